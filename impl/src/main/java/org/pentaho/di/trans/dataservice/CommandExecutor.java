@@ -13,6 +13,8 @@
 
 package org.pentaho.di.trans.dataservice;
 
+import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCacheReport;
+
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
@@ -37,6 +39,7 @@ public class CommandExecutor {
 
     commands.put( StopCommand.STOP, new StopCommand( builder.context ) );
     commands.put( ErrorsCommand.ERRORS, new ErrorsCommand( builder.context ) );
+    commands.put( CacheStatsCommand.CACHE_STATS, new CacheStatsCommand( builder.context ) );
   }
 
   public static class Builder {
@@ -132,4 +135,23 @@ public class CommandExecutor {
     }
   }
 
+  public class CacheStatsCommand extends ExecutorCommand {
+    public static final String CACHE_STATS = "cachestats";
+    // Keeps the encoded result within the limit of DataOutputStream.writeUTF
+    static final int MAX_LENGTH = 20000;
+
+    public CacheStatsCommand( DataServiceContext context ) {
+      super( context );
+    }
+
+    @Override public String execute( String[] args ) {
+      ServiceCacheReport report = context.getCacheReport();
+      if ( report == null ) {
+        return "";
+      }
+      String result = report.build( Arrays.asList( args ) );
+      return result.length() > MAX_LENGTH ? result.substring( 0, MAX_LENGTH ) + "\n..." : result;
+    }
+  }
+
 }
@@ -17,6 +17,7 @@ import org.pentaho.caching.api.PentahoCacheManager;
 import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.trans.dataservice.optimization.AutoOptimizationService;
 import org.pentaho.di.trans.dataservice.optimization.PushDownFactory;
+import org.pentaho.di.trans.dataservice.optimization.cache.ResultCache;
 import org.pentaho.di.trans.dataservice.serialization.DataServiceMetaStoreUtil;
 import org.pentaho.di.trans.dataservice.streaming.StreamServiceKey;
 import org.pentaho.di.trans.dataservice.streaming.execution.StreamingGeneratedTransExecution;
@@ -150,4 +151,11 @@ public interface Context {
    * @param key The key used to find the {@link StreamingGeneratedTransExecution} instance to remove from the cache/store.
    */
   void removeStreamingGeneratedTransExecution( String key );
+
+  /**
+   * Getter for the context {@link ResultCache} query result cache.
+   *
+   * @return the context {@link ResultCache} query result cache, or null if results are not cached.
+   */
+  ResultCache getResultCache();
 }
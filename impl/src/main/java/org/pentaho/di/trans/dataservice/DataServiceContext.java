@@ -22,6 +22,8 @@ import org.pentaho.caching.api.PentahoCacheManager;
 import org.pentaho.di.core.logging.LogChannelInterface;
 import org.pentaho.di.trans.dataservice.optimization.AutoOptimizationService;
 import org.pentaho.di.trans.dataservice.optimization.PushDownFactory;
+import org.pentaho.di.trans.dataservice.optimization.cache.ResultCache;
+import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCacheReport;
 import org.pentaho.di.trans.dataservice.serialization.DataServiceMetaStoreUtil;
 import org.pentaho.di.trans.dataservice.streaming.StreamServiceKey;
 import org.pentaho.di.trans.dataservice.streaming.execution.StreamingGeneratedTransExecution;
@@ -41,6 +43,8 @@ public class DataServiceContext implements Context {
   private final List<PushDownFactory> pushDownFactories;
   private final LogChannelInterface logChannel;
   private final UIFactory uiFactory;
+  private ResultCache resultCache;
+  private ServiceCacheReport cacheReport;
 
   //Cache for the generated tranformation executions, so that we can keep the same genTransExecution for multiple consumers
   private final Cache<String, StreamingGeneratedTransExecution> streamingGeneratedTransExecutionCache = CacheBuilder.newBuilder()
@@ -198,4 +202,21 @@ public class DataServiceContext implements Context {
       this.streamingGeneratedTransExecutionCache.cleanUp();
     }
   }
+
+  @Override
+  public ResultCache getResultCache() {
+    return resultCache;
+  }
+
+  public void setResultCache( ResultCache resultCache ) {
+    this.resultCache = resultCache;
+  }
+
+  public ServiceCacheReport getCacheReport() {
+    return cacheReport;
+  }
+
+  public void setCacheReport( ServiceCacheReport cacheReport ) {
+    this.cacheReport = cacheReport;
+  }
 }
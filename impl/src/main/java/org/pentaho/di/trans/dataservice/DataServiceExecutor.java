@@ -14,12 +14,14 @@
 package org.pentaho.di.trans.dataservice;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.MultimapBuilder;
+import com.google.common.util.concurrent.Striped;
 import io.reactivex.Observer;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.subjects.PublishSubject;
@@ -51,8 +53,13 @@ import org.pentaho.di.trans.dataservice.execution.TransStarter;
 import org.pentaho.di.trans.dataservice.optimization.OptimizationImpactInfo;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
 import org.pentaho.di.trans.dataservice.optimization.ValueMetaResolver;
+import org.pentaho.di.trans.dataservice.optimization.cache.ResultCache;
+import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCache;
+import org.pentaho.di.trans.dataservice.streaming.BackpressurePolicy;
+import org.pentaho.di.trans.dataservice.streaming.EventTime;
 import org.pentaho.di.trans.dataservice.streaming.StreamServiceKey;
 import org.pentaho.di.trans.dataservice.streaming.WindowParametersHelper;
+import org.pentaho.di.trans.dataservice.streaming.execution.PaneAggregator;
 import org.pentaho.di.trans.dataservice.streaming.execution.StreamingGeneratedTransExecution;
 import org.pentaho.di.trans.dataservice.streaming.execution.StreamingServiceTransExecutor;
 import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
@@ -69,6 +76,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
@@ -78,6 +86,12 @@ public class DataServiceExecutor {
 
   private static final Class<?> PKG = DataServiceExecutor.class;
 
+  // Streaming registration is serialized per stream, not on the shared context. Service and generated transformation
+  // keys use separate stripes, as a generated transformation lock may be held while a service stream finishes.
+  private static final int LOCK_STRIPES = Runtime.getRuntime().availableProcessors() * 4;
+  private static final Striped<Lock> SERVICE_LOCKS = Striped.lazyWeakLock( LOCK_STRIPES );
+  private static final Striped<Lock> GEN_TRANS_LOCKS = Striped.lazyWeakLock( LOCK_STRIPES );
+
   private final Trans serviceTrans;
   private final Trans genTrans;
 
@@ -93,10 +107,14 @@ public class DataServiceExecutor {
   private long windowSize;
   private long windowEvery;
   private long windowLimit;
+  private BackpressurePolicy backpressurePolicy;
+  private int backpressureBuffer;
+  private boolean eventTime;
   private StreamServiceKey streamServiceKey;
 
   private final AtomicBoolean genTransformationPushBasedIsFinished = new AtomicBoolean( false );
   private final AtomicBoolean transListenerFinishTransAdded = new AtomicBoolean( false );
+  private volatile boolean answeredFromResultCache;
 
   private DataServiceExecutor( Builder builder ) {
     sql = builder.sql;
@@ -110,6 +128,9 @@ public class DataServiceExecutor {
     windowSize = builder.windowSize;
     windowEvery = builder.windowEvery;
     windowLimit = builder.windowLimit;
+    backpressurePolicy = builder.backpressurePolicy;
+    backpressureBuffer = builder.backpressureBuffer;
+    eventTime = Boolean.TRUE.equals( builder.eventTime );
     streamServiceKey = builder.streamServiceKey;
 
     listenerMap = MultimapBuilder.enumKeys( ExecutionPoint.class ).linkedListValues().build();
@@ -127,6 +148,9 @@ public class DataServiceExecutor {
     private long windowSize = 0;
     private long windowEvery = 0;
     private long windowLimit = 0;
+    private BackpressurePolicy backpressurePolicy;
+    private int backpressureBuffer = 0;
+    private Boolean eventTime;
     private Map<String, String> parameters = new HashMap<>();
     private LogLevel logLevel;
     private SqlTransGenerator sqlTransGenerator;
@@ -181,6 +205,17 @@ public class DataServiceExecutor {
       return this;
     }
 
+    public Builder backpressure( BackpressurePolicy backpressurePolicy, int backpressureBuffer ) {
+      this.backpressurePolicy = backpressurePolicy;
+      this.backpressureBuffer = backpressureBuffer;
+      return this;
+    }
+
+    public Builder eventTime( boolean eventTime ) {
+      this.eventTime = eventTime;
+      return this;
+    }
+
     public Builder logLevel( LogLevel logLevel ) {
       this.logLevel = logLevel;
       return this;
@@ -240,6 +275,10 @@ public class DataServiceExecutor {
             BaseMessages.getString( PKG, "DataServiceExecutor.Error.WindowModeMandatory",
                 sql.getServiceName(), service.getName() ) );
       }
+      if ( service.isStreaming() ) {
+        resolveBackpressure();
+        resolveEventTime();
+      }
 
       if ( sql.getServiceName() == null || !sql.getServiceName().equals( service.getName() ) ) {
         throw new KettleException(
@@ -271,9 +310,12 @@ public class DataServiceExecutor {
 
       // Check if there is already a serviceTransformation in the context
       if ( service.isStreaming() ) {
-        synchronized ( context ) {
-          addInlinePushDownParameters();
-          this.streamServiceKey = getStreamingServiceKey();
+        addInlinePushDownParameters();
+        this.streamServiceKey = getStreamingServiceKey();
+        // Only queries of the same service stream need to agree on its executor
+        Lock lock = serviceLock( streamServiceKey );
+        lock.lock();
+        try {
           StreamingServiceTransExecutor serviceTransExecutor = context.getServiceTransExecutor( streamServiceKey );
 
           if ( serviceTransExecutor != null
@@ -299,11 +341,17 @@ public class DataServiceExecutor {
               serviceTransExecutor =
                 new StreamingServiceTransExecutor( streamServiceKey, serviceTrans, service.getStepname(),
                   windowMaxRowLimit, windowMaxTimeLimit, context );
+              if ( !Utils.isEmpty( service.getEventTimeField() ) ) {
+                serviceTransExecutor.setEventTime(
+                  EventTime.of( service.getEventTimeField(), Math.max( 0, service.getAllowedLateness() ) ) );
+              }
               context.addServiceTransExecutor( serviceTransExecutor );
             }
           } else {
             serviceTrans( serviceTransExecutor.getServiceTrans() );
           }
+        } finally {
+          lock.unlock();
         }
       } else if ( serviceTrans == null && service.getServiceTrans() != null ) {
         serviceTrans( service.getServiceTrans() );
@@ -421,6 +469,60 @@ public class DataServiceExecutor {
       return defaultLimit;
     }
 
+    /**
+     * Resolves the backpressure of a streaming query from, in order: the builder, the query parameters, the data
+     * service and the defaults. The query parameters are removed, so they do not reach the service transformation.
+     */
+    private void resolveBackpressure() {
+      String policyParameter = parameters.remove( DataServiceConstants.BACKPRESSURE_POLICY_PARAMETER );
+      String bufferParameter = parameters.remove( DataServiceConstants.BACKPRESSURE_BUFFER_PARAMETER );
+      if ( backpressurePolicy == null ) {
+        backpressurePolicy = BackpressurePolicy.parse( policyParameter );
+      }
+      if ( backpressurePolicy == null ) {
+        backpressurePolicy = BackpressurePolicy.parse( service.getBackpressurePolicy() );
+      }
+      if ( backpressurePolicy == null ) {
+        backpressurePolicy = BackpressurePolicy.DROP_OLDEST;
+      }
+      if ( backpressureBuffer <= 0 && !Utils.isEmpty( bufferParameter ) ) {
+        try {
+          backpressureBuffer = Integer.parseInt( bufferParameter.trim() );
+        } catch ( NumberFormatException e ) {
+          if ( context != null && context.getLogChannel() != null ) {
+            context.getLogChannel().logError( String.format( "%s: %s ",
+              DataServiceConstants.BACKPRESSURE_BUFFER_PARAMETER, e ) );
+          }
+        }
+      }
+      if ( backpressureBuffer <= 0 ) {
+        backpressureBuffer = service.getBackpressureBuffer();
+      }
+      if ( backpressureBuffer <= 0 ) {
+        backpressureBuffer = DataServiceConstants.BACKPRESSURE_BUFFER_DEFAULT;
+      }
+    }
+
+    /**
+     * Resolves whether a streaming query windows on event time, from the builder or the query parameters. Queries
+     * use processing time unless they opt in, and only a data service declaring an event time field can honor it.
+     * The query parameter is removed, so it does not reach the service transformation.
+     */
+    private void resolveEventTime() {
+      String eventTimeParameter = parameters.remove( DataServiceConstants.EVENT_TIME_PARAMETER );
+      if ( eventTime == null && !Utils.isEmpty( eventTimeParameter ) ) {
+        eventTime = "true".equalsIgnoreCase( eventTimeParameter.trim() )
+          || "Y".equalsIgnoreCase( eventTimeParameter.trim() );
+      }
+      if ( Boolean.TRUE.equals( eventTime ) && Utils.isEmpty( service.getEventTimeField() ) ) {
+        if ( context != null && context.getLogChannel() != null ) {
+          context.getLogChannel().logError( String.format( "%s: %s has no event time field",
+            DataServiceConstants.EVENT_TIME_PARAMETER, service.getName() ) );
+        }
+        eventTime = false;
+      }
+    }
+
     private int getServiceRowLimit( DataServiceMeta service ) throws KettleException {
       if ( service.getRowLimit() > 0 ) {
         return service.getRowLimit();
@@ -618,10 +720,38 @@ public class DataServiceExecutor {
     }
   }
 
-  public DataServiceExecutor executeQuery( final DataOutputStream dos ) throws IOException {
+  /**
+   * Write the metadata block opening the result of this query: the service name, and the names and container ids of
+   * the service and generated transformations.
+   */
+  public void writeHeader( DataOutputStream dos ) throws IOException {
     writeMetadata( dos, getServiceName(), calculateTransname( getSql(), true ),
         getServiceTrans().getContainerObjectId(), calculateTransname( getSql(), false ),
         getGenTrans().getContainerObjectId() );
+  }
+
+  public DataServiceExecutor executeQuery( final DataOutputStream dos ) throws IOException {
+    writeHeader( dos );
+
+    // Identical queries may be answered from cached results, without running either transformation
+    ResultCache resultCache = hasServiceCache() ? context.getResultCache() : null;
+    if ( resultCache != null ) {
+      Optional<ResultCache.Result> cachedResult = resultCache.get( this );
+      if ( cachedResult.isPresent() ) {
+        try {
+          cachedResult.get().writeTo( dos );
+        } catch ( KettleException e ) {
+          throw new IOException( e );
+        }
+        answeredFromResultCache = true;
+        genTransformationPushBasedIsFinished.set( true );
+        // The ids written above must not resolve to transformations still waiting to start
+        markAnsweredFromResultCache( getServiceTrans() );
+        markAnsweredFromResultCache( getGenTrans() );
+        return this;
+      }
+    }
+    final ResultCache.Collector resultCollector = resultCache == null ? null : resultCache.collect( this );
 
     final AtomicBoolean rowMetaWritten = new AtomicBoolean( false );
 
@@ -650,6 +780,9 @@ public class DataServiceExecutor {
         //In cases where there are now rows generated, it may end without having written the
         //metadata, and in that case the pipes are closed and an exception may rise (pipe close)
         writeMeta( getGenTrans(), dos, rowMetaWritten );
+        if ( resultCollector != null && !hasErrors() && !isStopped() ) {
+          resultCollector.complete( getGenTrans().getTransMeta().getStepFields( getResultStepName() ) );
+        }
 
         genTransformationPushBasedIsFinished.set( true );
         if ( disposableWrapper[ 0 ] != null ) {
@@ -662,6 +795,9 @@ public class DataServiceExecutor {
           RowMetaInterface rowMetaInterface = rowMetaAndData.getRowMeta();
           writeMeta( rowMetaInterface, dos, rowMetaWritten );
           rowMetaInterface.writeData( dos, rowMetaAndData.getData() );
+          if ( resultCollector != null ) {
+            resultCollector.add( rowMetaAndData );
+          }
         } catch ( Exception e ) {
           if ( !getServiceTrans().isStopped() ) {
             throw new KettleStepException( e );
@@ -672,6 +808,11 @@ public class DataServiceExecutor {
     return executeQuery( consumer );
   }
 
+  private static void markAnsweredFromResultCache( Trans trans ) {
+    trans.setFinished( true );
+    trans.getLogChannel().logBasic( "Not started, the query was answered from cached results" );
+  }
+
   /**
    * Stub method to call the writeMeta with the RowMetaInterface.
    * @param generatedTransformation
@@ -742,11 +883,43 @@ public class DataServiceExecutor {
     }
   }
 
+  /**
+   * Get the aggregator computing streaming windows from partial aggregates, if the query allows it.
+   *
+   * @return the {@link PaneAggregator}, or null if windows are processed by the generated transformation.
+   */
+  private PaneAggregator getPaneAggregator() {
+    if ( getSql() == null || !getSql().getSelectFields().hasAggregates() ) {
+      return null;
+    }
+    try {
+      return PaneAggregator.forQuery( getSql(), getGenTrans().getTransMeta().getStepFields( getResultStepName() ),
+        windowMode, windowSize, windowEvery ).orNull();
+    } catch ( KettleStepException e ) {
+      logger.debug( "Unable to determine the generated transformation output, windows are not aggregated", e );
+      return null;
+    }
+  }
+
+  /**
+   * Tests if streaming generated transformations are kept running across windows. Set the
+   * {@link DataServiceConstants#STREAMING_RESIDENT_PROPERTY} kettle property to false to start them for every window.
+   */
+  private boolean isResidentGenTrans() {
+    try {
+      return !"false".equalsIgnoreCase(
+        KettleUtils.getInstance().getKettleProperty( DataServiceConstants.STREAMING_RESIDENT_PROPERTY ) );
+    } catch ( KettleException e ) {
+      return true;
+    }
+  }
+
   /**
    * Executes a streaming push query. If the pollingMode is passed as true, then the resulting query is going to return a single
    * window, and the consumer is not kept as an active consumer in the consumer list.
-   * This method is synchronized to make sure that no duplicate entries are created if we have two, or more, executions running in parallel for the same
-   * dataservice and query.
+   * Registration is locked on the generated transformation cache key to make sure that no duplicate entries are created
+   * if we have two, or more, executions running in parallel for the same dataservice and query. Executions of other
+   * queries are not blocked.
    * @param streamingConsumer
    * @param pollingMode True, if the query is to be executed in polling mode
    * @return
@@ -759,8 +932,10 @@ public class DataServiceExecutor {
       return null;
     }
 
-    //Try to fetch the streaming generated transformation execution from cache (synchronize to avoid adding duplicates)
-    synchronized ( context ) {
+    //Try to fetch the streaming generated transformation execution from cache (lock to avoid adding duplicates)
+    Lock lock = genTransLock( streamingGenTransCacheKey );
+    lock.lock();
+    try {
       StreamingGeneratedTransExecution streamingGenTransFromCache = context.getStreamingGeneratedTransExecution( streamingGenTransCacheKey );
       if ( streamingGenTransFromCache == null ) {
         StreamingGeneratedTransExecution streamWiring =
@@ -769,17 +944,25 @@ public class DataServiceExecutor {
             sqlTransGenerator.getResultStepName(),
             sqlTransGenerator.getSql().getSqlString(), windowMode, windowSize, windowEvery, windowLimit,
             streamingGenTransCacheKey );
+        streamWiring.setPaneAggregator( getPaneAggregator() );
+        streamWiring.setResident( isResidentGenTrans() );
+        streamWiring.setBackpressure( backpressurePolicy, backpressureBuffer );
+        streamWiring.setEventTime( eventTime );
 
         serviceTrans.addTransListener( new TransAdapter() {
           @Override
           public void transFinished( Trans trans ) throws KettleException {
             //When the service transformation is not being used we should remove the service stream from the cache
             //It can be running because it may have been restarted (eg. ktr changes - see Builder::build())
-            synchronized ( context ) {
+            Lock serviceLock = serviceLock( streamServiceKey );
+            serviceLock.lock();
+            try {
               StreamingServiceTransExecutor streamingServiceTransExecutor = context.getServiceTransExecutor( streamServiceKey );
               if ( streamingServiceTransExecutor != null && !streamingServiceTransExecutor.getServiceTrans().isRunning() ) {
                 context.removeServiceTransExecutor( streamServiceKey );
               }
+            } finally {
+              serviceLock.unlock();
             }
           }
         } );
@@ -799,17 +982,30 @@ public class DataServiceExecutor {
         //one more consumer for that generated transformation
         streamingGenTransFromCache.addNewRowConsumer( streamingConsumer, pollingMode );
       }
+    } finally {
+      lock.unlock();
     }
 
     return this;
   }
 
+  @VisibleForTesting
+  static Lock serviceLock( StreamServiceKey streamServiceKey ) {
+    return SERVICE_LOCKS.get( streamServiceKey );
+  }
+
+  @VisibleForTesting
+  static Lock genTransLock( String streamingGenTransCacheKey ) {
+    return GEN_TRANS_LOCKS.get( streamingGenTransCacheKey );
+  }
+
   public String getStreamingGenTransCacheKey() {
     StreamingServiceTransExecutor serviceExecutor = context.getServiceTransExecutor( streamServiceKey );
     if ( serviceExecutor != null && serviceExecutor.getKey() != null ) {
       return WindowParametersHelper.getCacheKey( sqlTransGenerator.getSql().getSqlString(),
         windowMode, windowSize, windowEvery, (int) serviceExecutor.getWindowMaxRowLimit(),
-        serviceExecutor.getWindowMaxTimeLimit(), windowLimit, serviceExecutor.getKey().hashCode() );
+        serviceExecutor.getWindowMaxTimeLimit(), windowLimit, serviceExecutor.getKey().hashCode(),
+        eventTime && serviceExecutor.getEventTime() != null );
     }
     return null;
   }
@@ -847,6 +1043,19 @@ public class DataServiceExecutor {
     return executeQuery();
   }
 
+  /**
+   * Final results are only cached for data services with an enabled service cache optimization, so that caching
+   * stays opt-in per service and results are dropped along with the service cache.
+   */
+  private boolean hasServiceCache() {
+    for ( PushDownOptimizationMeta optimizationMeta : service.getPushDownOptimizationMeta() ) {
+      if ( optimizationMeta.isEnabled() && optimizationMeta.getType() instanceof ServiceCache ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public DataServiceExecutor executeQuery() {
     // Apply Push Down Optimizations
     for ( PushDownOptimizationMeta optimizationMeta : service.getPushDownOptimizationMeta() ) {
@@ -882,6 +1091,9 @@ public class DataServiceExecutor {
   }
 
   public void waitUntilFinished() {
+    if ( answeredFromResultCache ) {
+      return;
+    }
     if ( !service.isStreaming() ) {
       serviceTrans.waitUntilFinished();
       genTrans.waitUntilFinished();
@@ -938,6 +1150,13 @@ public class DataServiceExecutor {
     return sql.getServiceName();
   }
 
+  /**
+   * @return the context this query was built in
+   */
+  public Context getContext() {
+    return context;
+  }
+
   public Map<String, String> getParameters() {
     return parameters;
   }
@@ -1011,6 +1230,10 @@ public class DataServiceExecutor {
     return sql;
   }
 
+  public SqlTransGenerator getSqlTransGenerator() {
+    return sqlTransGenerator;
+  }
+
   /**
    * @return the resultStepName
    */
@@ -1026,6 +1249,18 @@ public class DataServiceExecutor {
     return sqlTransGenerator.getServiceRowLimit();
   }
 
+  public BackpressurePolicy getBackpressurePolicy() {
+    return backpressurePolicy;
+  }
+
+  public int getBackpressureBuffer() {
+    return backpressureBuffer;
+  }
+
+  public boolean isEventTime() {
+    return eventTime;
+  }
+
   public ListMultimap<ExecutionPoint, Runnable> getListenerMap() {
     return listenerMap;
   }
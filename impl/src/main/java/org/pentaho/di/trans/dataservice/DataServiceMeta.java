@@ -41,6 +41,10 @@ public class DataServiceMeta implements MetaStoreElement {
   public static final String IS_STREAMING = "streaming";
   public static final String ROW_LIMIT = "row_limit";
   public static final String TIME_LIMIT = "time_limit";
+  public static final String BACKPRESSURE_POLICY = "backpressure_policy";
+  public static final String BACKPRESSURE_BUFFER = "backpressure_buffer";
+  public static final String EVENT_TIME_FIELD = "event_time_field";
+  public static final String ALLOWED_LATENESS = "allowed_lateness";
 
   protected String name;
 
@@ -50,6 +54,18 @@ public class DataServiceMeta implements MetaStoreElement {
   @MetaStoreAttribute( key = TIME_LIMIT )
   protected long timeLimit;
 
+  @MetaStoreAttribute( key = BACKPRESSURE_POLICY )
+  protected String backpressurePolicy;
+
+  @MetaStoreAttribute( key = BACKPRESSURE_BUFFER )
+  protected int backpressureBuffer;
+
+  @MetaStoreAttribute( key = EVENT_TIME_FIELD )
+  protected String eventTimeField;
+
+  @MetaStoreAttribute( key = ALLOWED_LATENESS )
+  protected long allowedLateness;
+
   @MetaStoreAttribute( key = DATA_SERVICE_TRANSFORMATION_STEP_NAME )
   protected String stepname;
 
@@ -238,6 +254,80 @@ public class DataServiceMeta implements MetaStoreElement {
     this.timeLimit = timeLimit;
   }
 
+  /**
+   * Getter for the backpressure policy of streaming queries.
+   *
+   * @return The name of the {@link org.pentaho.di.trans.dataservice.streaming.BackpressurePolicy}, or null for the
+   * default.
+   */
+  public String getBackpressurePolicy() {
+    return this.backpressurePolicy;
+  }
+
+  /**
+   * Setter for the backpressure policy of streaming queries.
+   *
+   * @param backpressurePolicy The new backpressure policy name.
+   */
+  public void setBackpressurePolicy( String backpressurePolicy ) {
+    this.backpressurePolicy = backpressurePolicy;
+  }
+
+  /**
+   * Getter for the number of windows kept pending by streaming queries.
+   *
+   * @return The number of pending windows, or 0 for the default.
+   */
+  public int getBackpressureBuffer() {
+    return this.backpressureBuffer;
+  }
+
+  /**
+   * Setter for the number of windows kept pending by streaming queries.
+   *
+   * @param backpressureBuffer The new number of pending windows.
+   */
+  public void setBackpressureBuffer( int backpressureBuffer ) {
+    this.backpressureBuffer = backpressureBuffer;
+  }
+
+  /**
+   * Getter for the field holding the event time of streaming rows. When set, time based windows are assigned by
+   * this field rather than by the time rows are received.
+   *
+   * @return The event time field name, or null for processing time windows.
+   */
+  public String getEventTimeField() {
+    return this.eventTimeField;
+  }
+
+  /**
+   * Setter for the field holding the event time of streaming rows.
+   *
+   * @param eventTimeField The new event time field name.
+   */
+  public void setEventTimeField( String eventTimeField ) {
+    this.eventTimeField = eventTimeField;
+  }
+
+  /**
+   * Getter for the milliseconds an event time window waits for late rows after the newest event time seen.
+   *
+   * @return The allowed lateness in milliseconds.
+   */
+  public long getAllowedLateness() {
+    return this.allowedLateness;
+  }
+
+  /**
+   * Setter for the milliseconds an event time window waits for late rows.
+   *
+   * @param allowedLateness The new allowed lateness in milliseconds.
+   */
+  public void setAllowedLateness( long allowedLateness ) {
+    this.allowedLateness = allowedLateness;
+  }
+
   @Override public String toString() {
     return MoreObjects.toStringHelper( this )
       .add( "name", name )
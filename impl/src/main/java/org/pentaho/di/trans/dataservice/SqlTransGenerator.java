@@ -58,6 +58,7 @@ public class SqlTransGenerator {
 
   private String injectorStepName;
   private String resultStepName;
+  private String sortStepName;
 
   private int xLocation;
   private int rowLimit;
@@ -191,6 +192,7 @@ public class SqlTransGenerator {
     //
     if ( sql.getOrderFields() != null && !sql.getOrderFields().isEmpty() ) {
       StepMeta sortStep = generateSortStep( transMeta.getStepFields( lastStep ) );
+      sortStepName = sortStep.getName();
       lastStep = addToTrans( sortStep, transMeta, lastStep );
     }
 
@@ -709,6 +711,39 @@ public class SqlTransGenerator {
     this.resultStepName = resultStepName;
   }
 
+  /**
+   * @return the name of the ORDER BY sort step, or null if the query is not ordered
+   */
+  public String getSortStepName() {
+    return sortStepName;
+  }
+
+  /**
+   * Remove the ORDER BY sort step from a transformation generated by {@link #generateTransMeta()}, joining its
+   * neighbouring steps. Only valid when rows are injected in the requested order and reach the sort step unchanged.
+   *
+   * @param transMeta generated transformation, not yet prepared for execution
+   * @return true if a sort step was removed
+   */
+  public boolean removeSortStep( TransMeta transMeta ) {
+    StepMeta sortStep = sortStepName == null ? null : transMeta.findStep( sortStepName );
+    if ( sortStep == null ) {
+      return false;
+    }
+    List<StepMeta> previousSteps = transMeta.findPreviousSteps( sortStep );
+    List<StepMeta> nextSteps = transMeta.findNextSteps( sortStep );
+    if ( previousSteps.size() != 1 || nextSteps.size() != 1 ) {
+      return false;
+    }
+    StepMeta previous = previousSteps.get( 0 ), next = nextSteps.get( 0 );
+    transMeta.removeTransHop( transMeta.indexOfTransHop( transMeta.findTransHop( previous, sortStep ) ) );
+    transMeta.removeTransHop( transMeta.indexOfTransHop( transMeta.findTransHop( sortStep, next ) ) );
+    transMeta.removeStep( transMeta.indexOfStep( sortStep ) );
+    transMeta.addTransHop( new TransHopMeta( previous, next ) );
+    transMeta.clearCaches();
+    return true;
+  }
+
   /**
    * @return the rowLimit
    */
@@ -43,6 +43,7 @@ public class ExecutorQueryService implements Query.Service {
 
   private DataServiceResolver resolver;
   private MetastoreLocator metastoreLocator;
+  private final QueryCoalescer coalescer = new QueryCoalescer();
 
   @VisibleForTesting
   ExecutorQueryService( DataServiceResolver resolver, MetastoreLocator metastoreLocator ) {
@@ -79,7 +80,7 @@ public class ExecutorQueryService implements Query.Service {
         .parameters( parameters )
         .metastore( metaStore )
         .build();
-      query = new ExecutorQuery( executor );
+      query = new ExecutorQuery( executor, coalescer );
     } catch ( Exception e ) {
       Throwables.propagateIfInstanceOf( e, KettleException.class );
       throw new KettleException( e );
@@ -103,7 +104,7 @@ public class ExecutorQueryService implements Query.Service {
         .parameters( parameters )
         .metastore( metaStore )
         .build();
-      query = new ExecutorQuery( executor );
+      query = new ExecutorQuery( executor, null );
     } catch ( Exception e ) {
       Throwables.propagateIfInstanceOf( e, KettleException.class );
       throw new KettleException( e );
@@ -120,16 +121,19 @@ public class ExecutorQueryService implements Query.Service {
   private static class ExecutorQuery implements Query {
 
     private final DataServiceExecutor executor;
+    private final QueryCoalescer coalescer;
 
-    public ExecutorQuery( DataServiceExecutor executor ) {
+    public ExecutorQuery( DataServiceExecutor executor, QueryCoalescer coalescer ) {
       this.executor = executor;
+      this.coalescer = coalescer;
     }
 
     @Override
     public void writeTo( OutputStream outputStream ) throws IOException {
-      DataServiceExecutor dataServiceExecutor = executor.executeQuery( asDataOutputStream( outputStream ) );
-      if ( dataServiceExecutor != null ) {
-        dataServiceExecutor.waitUntilFinished();
+      if ( coalescer != null ) {
+        coalescer.writeTo( executor, outputStream );
+      } else {
+        QueryCoalescer.execute( executor, outputStream );
       }
     }
 
@@ -0,0 +1,339 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.clients;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.optimization.cache.ResultCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Runs identical queries arriving at the same time only once.
+ * <p>
+ * The first query for a {@link ResultCache.Key} leads, and its output is recorded as it is written. Identical
+ * queries arriving before the leader finishes replay the recorded output, then follow it until the query ends,
+ * instead of starting the service transformation again. Once the recorded output grows beyond the buffer limit,
+ * new queries are executed on their own, and only the output followers have yet to read is kept. Recording stops
+ * altogether if there are no followers by then. Followers falling further behind the leader than the buffer limit
+ * are disconnected.
+ * <p>
+ * Followers write their own metadata block in place of the leader's, so their clients receive the container ids of
+ * their own transformations, which never start.
+ */
+class QueryCoalescer {
+  static final long DEFAULT_MAX_BUFFER_BYTES = 64L * 1024 * 1024;
+  private static final int BLOCK_SIZE = 8192;
+
+  private final ConcurrentMap<ResultCache.Key, Flight> flights = new ConcurrentHashMap<>();
+  private final long maxBufferBytes;
+
+  QueryCoalescer() {
+    this( DEFAULT_MAX_BUFFER_BYTES );
+  }
+
+  QueryCoalescer( long maxBufferBytes ) {
+    this.maxBufferBytes = maxBufferBytes;
+  }
+
+  /**
+   * Write the result of a query, sharing the execution of an identical query in progress if there is one.
+   */
+  void writeTo( DataServiceExecutor executor, OutputStream outputStream ) throws IOException {
+    Optional<ResultCache.Key> key = ResultCache.Key.create( executor );
+    if ( !key.isPresent() ) {
+      execute( executor, outputStream );
+      return;
+    }
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    executor.writeHeader( new DataOutputStream( header ) );
+    Flight flight = new Flight( maxBufferBytes, header.size() );
+    Flight running = flights.putIfAbsent( key.get(), flight );
+    if ( running != null ) {
+      Flight.Cursor cursor = running.join();
+      if ( cursor != null ) {
+        // Never started, the leader's transformations produce the result
+        executor.getContext().removeExecutor( executor.getId() );
+        header.writeTo( outputStream );
+        running.replayTo( cursor, outputStream );
+      } else {
+        execute( executor, outputStream );
+      }
+      return;
+    }
+
+    Recorder recorder = new Recorder( flight, outputStream );
+    try {
+      execute( executor, recorder );
+      flights.remove( key.get(), flight );
+      flight.complete( null );
+    } catch ( IOException | RuntimeException e ) {
+      flights.remove( key.get(), flight );
+      flight.complete( e );
+      throw e;
+    }
+    recorder.rethrow();
+  }
+
+  static void execute( DataServiceExecutor executor, OutputStream outputStream ) throws IOException {
+    DataServiceExecutor dataServiceExecutor = executor.executeQuery(
+      ExecutorQueryService.asDataOutputStream( outputStream ) );
+    if ( dataServiceExecutor != null ) {
+      dataServiceExecutor.waitUntilFinished();
+    }
+  }
+
+  @VisibleForTesting
+  int inFlight() {
+    return flights.size();
+  }
+
+  /**
+   * Output of a leading query, kept in fixed size blocks. Written blocks are never modified, so followers copy them
+   * out without holding the lock.
+   */
+  static final class Flight {
+    private final long maxBufferBytes;
+    private final int headerLength;
+    // Recorded blocks, the first one starting at byte offset base of the output
+    private final List<byte[]> blocks = Lists.newArrayList();
+    private final List<Cursor> followers = Lists.newArrayList();
+    private long base;
+    private long bytes;
+    private boolean recording = true;
+    private boolean done;
+    private Throwable failure;
+
+    Flight( long maxBufferBytes ) {
+      this( maxBufferBytes, 0 );
+    }
+
+    /**
+     * @param headerLength length of the leader's metadata block, which followers do not replay
+     */
+    Flight( long maxBufferBytes, int headerLength ) {
+      this.maxBufferBytes = maxBufferBytes;
+      this.headerLength = headerLength;
+    }
+
+    /**
+     * @return read position of the caller, after the leader's metadata block, or null if it may not follow this query
+     */
+    synchronized Cursor join() {
+      // Followers replay the output from the start, so they may only join while all of it is recorded
+      if ( done || bytes > maxBufferBytes ) {
+        return null;
+      }
+      Cursor cursor = new Cursor( headerLength );
+      followers.add( cursor );
+      return cursor;
+    }
+
+    synchronized boolean hasFollowers() {
+      return !followers.isEmpty();
+    }
+
+    synchronized void append( byte[] b, int off, int len ) {
+      if ( !recording ) {
+        return;
+      }
+      while ( len > 0 ) {
+        int offset = (int) ( bytes % BLOCK_SIZE );
+        if ( offset == 0 ) {
+          blocks.add( new byte[ BLOCK_SIZE ] );
+        }
+        int count = Math.min( len, BLOCK_SIZE - offset );
+        System.arraycopy( b, off, blocks.get( blocks.size() - 1 ), offset, count );
+        bytes += count;
+        off += count;
+        len -= count;
+      }
+      release();
+      notifyAll();
+    }
+
+    synchronized void complete( Throwable failure ) {
+      this.done = true;
+      this.failure = failure;
+      notifyAll();
+    }
+
+    @VisibleForTesting
+    synchronized long bufferedBytes() {
+      return (long) blocks.size() * BLOCK_SIZE;
+    }
+
+    /**
+     * Once no more followers may join, disconnect followers lagging more than the buffer limit behind, and drop the
+     * blocks every remaining follower has read. Stop recording if none is left.
+     */
+    private void release() {
+      if ( bytes <= maxBufferBytes ) {
+        return;
+      }
+      for ( Iterator<Cursor> iterator = followers.iterator(); iterator.hasNext(); ) {
+        Cursor cursor = iterator.next();
+        if ( bytes - cursor.position > maxBufferBytes ) {
+          cursor.disconnected = true;
+          iterator.remove();
+          notifyAll();
+        }
+      }
+      if ( followers.isEmpty() ) {
+        recording = false;
+        blocks.clear();
+        return;
+      }
+      long read = Long.MAX_VALUE;
+      for ( Cursor cursor : followers ) {
+        read = Math.min( read, cursor.position );
+      }
+      int consumed = (int) ( ( read - base ) / BLOCK_SIZE );
+      if ( consumed > 0 ) {
+        blocks.subList( 0, consumed ).clear();
+        base += (long) consumed * BLOCK_SIZE;
+      }
+    }
+
+    /**
+     * Copy the output recorded so far, then follow the leader until it is done.
+     *
+     * @param cursor read position returned by {@link #join()}
+     * @throws IOException if the leading query failed, or the follower fell too far behind
+     */
+    void replayTo( Cursor cursor, OutputStream outputStream ) throws IOException {
+      try {
+        while ( true ) {
+          List<byte[]> pending;
+          long position;
+          long limit;
+          synchronized ( this ) {
+            while ( cursor.position >= bytes && !done && !cursor.disconnected ) {
+              wait();
+            }
+            if ( cursor.disconnected ) {
+              throw new IOException( "Fell more than " + maxBufferBytes + " bytes behind a shared query" );
+            }
+            if ( cursor.position >= bytes ) {
+              if ( failure != null ) {
+                throw new IOException( "Shared query execution failed", failure );
+              }
+              break;
+            }
+            position = cursor.position;
+            limit = bytes;
+            pending = ImmutableList.copyOf( blocks.subList(
+              (int) ( ( position - base ) / BLOCK_SIZE ), (int) ( ( limit - 1 - base ) / BLOCK_SIZE ) + 1 ) );
+          }
+          for ( byte[] block : pending ) {
+            int offset = (int) ( position % BLOCK_SIZE );
+            int count = (int) Math.min( BLOCK_SIZE - offset, limit - position );
+            outputStream.write( block, offset, count );
+            position += count;
+          }
+          synchronized ( this ) {
+            cursor.position = position;
+            release();
+          }
+        }
+        outputStream.flush();
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException( "Interrupted while waiting for a shared query" );
+      } finally {
+        synchronized ( this ) {
+          followers.remove( cursor );
+          release();
+        }
+      }
+    }
+
+    /**
+     * Position of a follower in the output, guarded by the flight.
+     */
+    static final class Cursor {
+      private long position;
+      private boolean disconnected;
+
+      Cursor( long position ) {
+        this.position = position;
+      }
+    }
+  }
+
+  /**
+   * Records the leader's output. If the leader's client goes away, the query keeps running as long as others
+   * follow it.
+   */
+  private static final class Recorder extends OutputStream {
+    private final Flight flight;
+    private final OutputStream outputStream;
+    private IOException clientFailure;
+
+    Recorder( Flight flight, OutputStream outputStream ) {
+      this.flight = flight;
+      this.outputStream = outputStream;
+    }
+
+    @Override public void write( int b ) throws IOException {
+      write( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    @Override public synchronized void write( byte[] b, int off, int len ) throws IOException {
+      flight.append( b, off, len );
+      if ( clientFailure == null ) {
+        try {
+          outputStream.write( b, off, len );
+        } catch ( IOException e ) {
+          abandon( e );
+        }
+      }
+    }
+
+    @Override public synchronized void flush() throws IOException {
+      if ( clientFailure == null ) {
+        try {
+          outputStream.flush();
+        } catch ( IOException e ) {
+          abandon( e );
+        }
+      }
+    }
+
+    private void abandon( IOException e ) throws IOException {
+      if ( !flight.hasFollowers() ) {
+        throw e;
+      }
+      clientFailure = e;
+    }
+
+    synchronized void rethrow() throws IOException {
+      if ( clientFailure != null ) {
+        throw clientFailure;
+      }
+    }
+  }
+}
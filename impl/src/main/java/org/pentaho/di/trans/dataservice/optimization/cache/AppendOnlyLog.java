@@ -0,0 +1,159 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * Append-only log with a single writer and any number of concurrent readers.
+ * <p>
+ * Elements are stored in fixed size segments, so appending never copies previous elements. An element is published
+ * by the volatile write of the log size that follows it, and is never modified afterwards. Readers waiting for more
+ * elements are parked until the writer appends or closes the log.
+ *
+ * @param <T> element type
+ */
+final class AppendOnlyLog<T> {
+  private static final int SEGMENT_BITS = 10;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+  private volatile Object[][] segments = new Object[ 1 ][];
+  private volatile int size;
+  private volatile boolean closed;
+
+  /**
+   * Append an element. Must only be called by the writer thread, or under a lock held by all writers.
+   *
+   * @return false if the log was already closed, the element is then discarded
+   */
+  boolean append( T element ) {
+    if ( closed ) {
+      return false;
+    }
+    int index = size;
+    int segment = index >>> SEGMENT_BITS;
+    Object[][] current = segments;
+    if ( segment == current.length ) {
+      current = Arrays.copyOf( current, current.length * 2 );
+      current[ segment ] = new Object[ SEGMENT_SIZE ];
+      segments = current;
+    } else if ( current[ segment ] == null ) {
+      current[ segment ] = new Object[ SEGMENT_SIZE ];
+    }
+    current[ segment ][ index & SEGMENT_MASK ] = element;
+    size = index + 1;
+    signal();
+    return true;
+  }
+
+  /**
+   * Mark the end of the log, releasing all waiting readers.
+   */
+  void close() {
+    closed = true;
+    signal();
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  int size() {
+    return size;
+  }
+
+  @SuppressWarnings( "unchecked" )
+  T get( int index ) {
+    checkElementIndex( index, size );
+    return (T) segments[ index >>> SEGMENT_BITS ][ index & SEGMENT_MASK ];
+  }
+
+  /**
+   * Wait until the element at an index is written or the log is closed.
+   * An interrupted reader stops waiting, keeping its interrupted status.
+   *
+   * @return true if the element is available
+   */
+  boolean await( int index ) {
+    Thread current = Thread.currentThread();
+    while ( index >= size && !closed && !current.isInterrupted() ) {
+      waiters.add( current );
+      try {
+        // Test again once registered, so a concurrent signal can not be missed
+        if ( index >= size && !closed ) {
+          LockSupport.park( this );
+        }
+      } finally {
+        waiters.remove( current );
+      }
+    }
+    return index < size;
+  }
+
+  /**
+   * @return iterator blocking until more elements are written or the log is closed
+   */
+  Iterator<T> iterator() {
+    return new Iterator<T>() {
+      private int index = 0;
+
+      @Override public boolean hasNext() {
+        return await( index );
+      }
+
+      @Override public T next() {
+        if ( !hasNext() ) {
+          throw new NoSuchElementException();
+        }
+        return get( index++ );
+      }
+    };
+  }
+
+  /**
+   * @return read-only view of the elements written so far
+   */
+  List<T> snapshot() {
+    final int snapshotSize = size;
+    return new AbstractList<T>() {
+      @Override public T get( int index ) {
+        checkElementIndex( index, snapshotSize );
+        return AppendOnlyLog.this.get( index );
+      }
+
+      @Override public int size() {
+        return snapshotSize;
+      }
+    };
+  }
+
+  private void signal() {
+    if ( !waiters.isEmpty() ) {
+      for ( Thread waiter : waiters ) {
+        LockSupport.unpark( waiter );
+      }
+    }
+  }
+}
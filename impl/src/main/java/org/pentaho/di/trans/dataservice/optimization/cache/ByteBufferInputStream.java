@@ -0,0 +1,48 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads from a byte buffer, advancing its position.
+ */
+class ByteBufferInputStream extends InputStream {
+  private final ByteBuffer buffer;
+
+  ByteBufferInputStream( ByteBuffer buffer ) {
+    this.buffer = buffer;
+  }
+
+  @Override public int read() {
+    return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+  }
+
+  @Override public int read( byte[] bytes, int off, int len ) {
+    if ( len == 0 ) {
+      return 0;
+    }
+    if ( !buffer.hasRemaining() ) {
+      return -1;
+    }
+    int count = Math.min( len, buffer.remaining() );
+    buffer.get( bytes, off, count );
+    return count;
+  }
+
+  @Override public int available() {
+    return buffer.remaining();
+  }
+}
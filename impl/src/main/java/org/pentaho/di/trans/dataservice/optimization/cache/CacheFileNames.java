@@ -0,0 +1,56 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Names of the directories holding the files of a cache.
+ * <p>
+ * Letters, digits, dashes and dots past the first character are kept. Any other character is escaped as
+ * <code>_</code> and its four digit hex code, so that two cache names never share a directory. Long names are cut and end with <code>~</code> and a hash of the
+ * full name instead.
+ */
+final class CacheFileNames {
+  private static final int MAX_LENGTH = 120;
+  private static final int HASH_LENGTH = 16;
+
+  private CacheFileNames() {
+  }
+
+  /**
+   * @param cacheName name of a cache
+   * @return directory name of the cache
+   */
+  static String directoryName( String cacheName ) {
+    StringBuilder name = new StringBuilder( cacheName.length() );
+    for ( int i = 0; i < cacheName.length(); i++ ) {
+      char c = cacheName.charAt( i );
+      if ( ( c >= 'A' && c <= 'Z' ) || ( c >= 'a' && c <= 'z' ) || ( c >= '0' && c <= '9' ) || c == '-'
+        || ( c == '.' && i > 0 ) ) {
+        name.append( c );
+      } else {
+        name.append( String.format( "_%04x", (int) c ) );
+      }
+    }
+    if ( name.length() > MAX_LENGTH ) {
+      String hash = Hashing.sha256().hashString( cacheName, StandardCharsets.UTF_8 ).toString();
+      name.setLength( MAX_LENGTH - HASH_LENGTH - 1 );
+      name.append( '~' ).append( hash, 0, HASH_LENGTH );
+    }
+    return name.toString();
+  }
+}
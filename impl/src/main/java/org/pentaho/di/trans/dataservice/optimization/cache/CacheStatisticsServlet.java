@@ -0,0 +1,57 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.MediaType;
+import org.pentaho.di.core.annotations.CarteServlet;
+import org.pentaho.di.www.BaseCartePlugin;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+
+/**
+ * This servlet reports service cache statistics and entries, optionally limited to named data services
+ */
+@CarteServlet(
+  id = "ds_serviceCacheStatistics",
+  name = "PDI Data Service: ServiceCache statistics",
+  description = "Report data service cache statistics" )
+public class CacheStatisticsServlet extends BaseCartePlugin {
+  private static final String NAME_PARAMETER = "name";
+  private static final String CONTEXT_PATH = "/dataServiceCacheStatistics";
+  private final ServiceCacheFactory factory;
+
+  public CacheStatisticsServlet( ServiceCacheFactory factory ) {
+    this.factory = factory;
+  }
+
+  public String getContextPath() {
+    return CONTEXT_PATH;
+  }
+
+  @Override public void handleRequest( CarteRequest request ) throws IOException {
+    Collection<String> requested = request.getParameters().get( NAME_PARAMETER );
+    final Collection<String> names = requested == null ? ImmutableList.<String>of() : requested;
+
+    request
+      .respond( 200 )
+      .with( MediaType.PLAIN_TEXT_UTF_8.toString(), new WriterResponse() {
+        @Override public void write( PrintWriter writer ) throws IOException {
+          new ServiceCacheReport( factory ).write( names, writer );
+        }
+      } );
+  }
+}
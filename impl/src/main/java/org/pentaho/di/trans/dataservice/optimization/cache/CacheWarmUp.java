@@ -0,0 +1,235 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.reactivex.subjects.PublishSubject;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
+import org.pentaho.di.trans.dataservice.resolvers.DataServiceResolver;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the warm-up queries configured on service caches at their scheduled times of day, so that caches are
+ * populated before peak time.
+ * <p>
+ * Schedules are read from the data services every {@link #RELOAD_MINUTES} minutes and checked every minute.
+ * Queries of a data service run one after another, each through a {@link DataServiceExecutor}, and the outcome and
+ * duration of each is logged. Queries still running after the configured timeout are stopped and logged as failed,
+ * so that a slow query does not hold back later warm-ups.
+ */
+public class CacheWarmUp {
+  static final int RELOAD_MINUTES = 15;
+
+  static final long DEFAULT_TIMEOUT_SECONDS = 1800;
+
+  private final DataServiceResolver resolver;
+  // Waits for queries to finish, so the scheduler thread can give up on them
+  private final ExecutorService waiter = Executors.newCachedThreadPool(
+    new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "data-service-cache-warm-up-wait-%d" ).build() );
+  private volatile long timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+  private ScheduledExecutorService scheduler;
+  private List<Schedule> schedules = ImmutableList.of();
+  private LocalDateTime loaded;
+  private LocalDateTime lastTick;
+
+  public CacheWarmUp( DataServiceResolver resolver ) {
+    this.resolver = resolver;
+  }
+
+  /**
+   * @param timeoutSeconds seconds a warm-up query may run before it is stopped, or 0 for no limit
+   */
+  public void setTimeoutSeconds( long timeoutSeconds ) {
+    this.timeoutSeconds = timeoutSeconds;
+  }
+
+  public long getTimeoutSeconds() {
+    return timeoutSeconds;
+  }
+
+  public synchronized void start() {
+    if ( scheduler == null ) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon( true ).setNameFormat( "data-service-cache-warm-up" ).build() );
+      scheduler.scheduleWithFixedDelay( new Runnable() {
+        @Override public void run() {
+          try {
+            tick( LocalDateTime.now() );
+          } catch ( RuntimeException e ) {
+            LogChannel.GENERAL.logError( "Service cache warm-up failed", e );
+          }
+        }
+      }, 1, 1, TimeUnit.MINUTES );
+    }
+  }
+
+  public synchronized void stop() {
+    if ( scheduler != null ) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Run warm-ups scheduled since the previous tick.
+   */
+  synchronized void tick( LocalDateTime now ) {
+    if ( lastTick == null ) {
+      lastTick = now.minusMinutes( 1 );
+    }
+    if ( loaded == null || !now.isBefore( loaded.plusMinutes( RELOAD_MINUTES ) ) ) {
+      schedules = loadSchedules();
+      loaded = now;
+    }
+    for ( Schedule schedule : schedules ) {
+      if ( schedule.isDue( lastTick, now ) ) {
+        warmUp( schedule );
+      }
+    }
+    lastTick = now;
+  }
+
+  private List<Schedule> loadSchedules() {
+    ImmutableList.Builder<Schedule> loading = ImmutableList.builder();
+    List<DataServiceMeta> dataServices = resolver.getDataServices( new Function<Exception, Void>() {
+      @Override public Void apply( Exception e ) {
+        LogChannel.GENERAL.logError( "Unable to load data service for cache warm-up", e );
+        return null;
+      }
+    } );
+    for ( DataServiceMeta dataService : dataServices ) {
+      for ( PushDownOptimizationMeta optimization : dataService.getPushDownOptimizationMeta() ) {
+        if ( optimization.isEnabled() && optimization.getType() instanceof ServiceCache ) {
+          ServiceCache serviceCache = (ServiceCache) optimization.getType();
+          Schedule schedule = new Schedule( dataService.getName(),
+            parseTimes( dataService.getName(), serviceCache.getWarmUpTimes() ),
+            Splitter.on( '\n' ).trimResults().omitEmptyStrings().splitToList(
+              Strings.nullToEmpty( serviceCache.getWarmUpQueries() ) ) );
+          if ( !schedule.times.isEmpty() && !schedule.queries.isEmpty() ) {
+            loading.add( schedule );
+          }
+        }
+      }
+    }
+    return loading.build();
+  }
+
+  private static List<LocalTime> parseTimes( String dataServiceName, String times ) {
+    ImmutableList.Builder<LocalTime> parsed = ImmutableList.builder();
+    for ( String time : Splitter.on( ',' ).trimResults().omitEmptyStrings().split( Strings.nullToEmpty( times ) ) ) {
+      try {
+        parsed.add( LocalTime.parse( time ) );
+      } catch ( DateTimeParseException e ) {
+        LogChannel.GENERAL.logError( "Invalid cache warm-up time for " + dataServiceName + ": " + time );
+      }
+    }
+    return parsed.build();
+  }
+
+  private void warmUp( Schedule schedule ) {
+    for ( String query : schedule.queries ) {
+      long start = System.currentTimeMillis();
+      DataServiceExecutor executor = null;
+      try {
+        executor = resolver.createBuilder( new SQL( query ) ).build();
+        // Rows are discarded, the service cache observes the service transformation
+        executor.executeQuery( PublishSubject.<RowMetaAndData>create() );
+        awaitFinished( executor );
+        long duration = System.currentTimeMillis() - start;
+        if ( executor.hasErrors() ) {
+          LogChannel.GENERAL.logError( "Cache warm-up of " + schedule.dataServiceName + " failed after "
+            + duration + " ms: " + query );
+        } else {
+          LogChannel.GENERAL.logBasic( "Cache warm-up of " + schedule.dataServiceName + " completed in "
+            + duration + " ms: " + query );
+        }
+      } catch ( TimeoutException e ) {
+        executor.stop( true );
+        LogChannel.GENERAL.logError( "Cache warm-up of " + schedule.dataServiceName + " failed, timed out after "
+          + ( System.currentTimeMillis() - start ) + " ms: " + query );
+      } catch ( InterruptedException e ) {
+        // Warm-ups are being stopped
+        executor.stop( true );
+        Thread.currentThread().interrupt();
+        return;
+      } catch ( Exception e ) {
+        LogChannel.GENERAL.logError( "Cache warm-up of " + schedule.dataServiceName + " failed after "
+          + ( System.currentTimeMillis() - start ) + " ms: " + query, e );
+      }
+    }
+  }
+
+  private void awaitFinished( DataServiceExecutor executor )
+    throws InterruptedException, ExecutionException, TimeoutException {
+    long timeout = timeoutSeconds;
+    if ( timeout <= 0 ) {
+      executor.waitUntilFinished();
+      return;
+    }
+    Future<?> finished = waiter.submit( executor::waitUntilFinished );
+    try {
+      finished.get( timeout, TimeUnit.SECONDS );
+    } finally {
+      finished.cancel( true );
+    }
+  }
+
+  private static final class Schedule {
+    private final String dataServiceName;
+    private final List<LocalTime> times;
+    private final List<String> queries;
+
+    Schedule( String dataServiceName, List<LocalTime> times, List<String> queries ) {
+      this.dataServiceName = dataServiceName;
+      this.times = times;
+      this.queries = queries;
+    }
+
+    /**
+     * @return true if a scheduled time falls after <code>from</code>, up to and including <code>to</code>
+     */
+    boolean isDue( LocalDateTime from, LocalDateTime to ) {
+      for ( LocalDate date = from.toLocalDate(); !date.isAfter( to.toLocalDate() ); date = date.plusDays( 1 ) ) {
+        for ( LocalTime time : times ) {
+          LocalDateTime scheduled = date.atTime( time );
+          if ( scheduled.isAfter( from ) && !scheduled.isAfter( to ) ) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -21,9 +21,12 @@ import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import org.pentaho.di.core.Condition;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.core.sql.SQLCondition;
 import org.pentaho.di.core.sql.SQLField;
@@ -32,8 +35,23 @@ import org.pentaho.di.core.sql.SQLLimit;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.BitSet;
+import java.util.Date;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author nhudak
@@ -41,12 +59,25 @@ import java.util.List;
 class CachedService implements Serializable {
 
   private static final long serialVersionUID = 1L;
-  private final ImmutableList<RowMetaAndData> rowMetaAndData;
+  /**
+   * Sort permutations kept for each entry
+   */
+  static final int MAX_ORDERINGS = 8;
+  /**
+   * Field indexes kept for each entry
+   */
+  static final int MAX_INDEXES = 8;
+  /**
+   * Queries restricting a field before it is indexed, unless the field is configured to be indexed
+   */
+  static final int OBSERVED_PREDICATE_USES = 3;
+  private final List<RowMetaAndData> rowMetaAndData;
   private final Optional<Integer> ranking;
   private final Optional<Integer> rankingServiceRows;
+  private transient volatile Derived derived;
 
   private CachedService( List<RowMetaAndData> rowMetaAndData, Optional<Integer> ranking,  Optional<Integer> ranking2 ) {
-    this.rowMetaAndData = ImmutableList.copyOf( rowMetaAndData );
+    this.rowMetaAndData = rowMetaAndData;
     this.ranking = ranking;
     this.rankingServiceRows = ranking2;
   }
@@ -54,7 +85,8 @@ class CachedService implements Serializable {
   public static CachedService complete( List<RowMetaAndData> rowMetaAndData ) {
     // Key based on service name and where clause only. Ordering here does not matter
     return new CachedService(
-      rowMetaAndData,
+      // Store rows column-wise, sharing a single row meta
+      ColumnarRows.compact( rowMetaAndData ),
       Optional.<Integer>absent(),
       Optional.<Integer>absent()
     );
@@ -62,20 +94,214 @@ class CachedService implements Serializable {
 
   public static CachedService partial( List<RowMetaAndData> rowMetaAndData, DataServiceExecutor executor ) {
     return new CachedService(
-      rowMetaAndData,
+      ColumnarRows.compact( rowMetaAndData ),
       Optional.of( calculateRank( executor ) ),
       Optional.of( calculateServiceRowRank( executor ) )
     );
   }
 
+  /**
+   * Recreate a cached service read back from a secondary storage tier. Rows are kept as given.
+   */
+  static CachedService restore( List<RowMetaAndData> rowMetaAndData, Optional<Integer> ranking,
+                                Optional<Integer> rankingServiceRows ) {
+    return new CachedService( rowMetaAndData, ranking, rankingServiceRows );
+  }
+
+  /**
+   * Copy this cached service, replacing its rows. Rankings are retained.
+   */
+  CachedService withRows( List<RowMetaAndData> rowMetaAndData ) {
+    return new CachedService( rowMetaAndData, ranking, rankingServiceRows );
+  }
+
   public List<RowMetaAndData> getRowMetaAndData() {
     return rowMetaAndData;
   }
 
+  /**
+   * Rows of a complete cached service in the given order.
+   *
+   * @return ordered view of the rows, or absent if this entry can not be ordered in memory
+   * @see #permutation(RowOrdering)
+   */
+  Optional<List<RowMetaAndData>> getRowMetaAndData( RowOrdering ordering ) throws KettleValueException {
+    Optional<int[]> permutation = permutation( ordering );
+    return permutation.isPresent() ? Optional.of( view( permutation.get(), null ) ) : Optional.absent();
+  }
+
+  /**
+   * Sort the rows of a complete cached service. The permutation is built on first use and kept with this entry, so
+   * later queries with the same ORDER BY fields are replayed without sorting.
+   *
+   * @return row numbers in order, or absent if this entry can not be ordered in memory
+   */
+  Optional<int[]> permutation( RowOrdering ordering ) throws KettleValueException {
+    if ( !isComplete() || !( rowMetaAndData instanceof RandomAccess ) ) {
+      return Optional.absent();
+    }
+    ConcurrentMap<RowOrdering, int[]> permutations = derived().permutations;
+    int[] permutation = permutations.get( ordering );
+    if ( permutation == null ) {
+      permutation = ordering.sort( rowMetaAndData );
+      if ( permutation == null ) {
+        return Optional.absent();
+      }
+      if ( permutations.size() < MAX_ORDERINGS ) {
+        permutations.putIfAbsent( ordering, permutation );
+      }
+    }
+    return Optional.of( permutation );
+  }
+
+  /**
+   * Find the rows of a complete cached service that may match the predicates, using field indexes. A field is
+   * indexed on first use if configured, or once it has been restricted by several queries.
+   *
+   * @param indexedFields fields indexed regardless of use
+   * @return row numbers that may match, or absent if no predicate could be answered by an index
+   */
+  Optional<BitSet> matching( PredicateSet predicates, Set<String> indexedFields ) {
+    if ( !isComplete() || !( rowMetaAndData instanceof RandomAccess ) ) {
+      return Optional.absent();
+    }
+    Derived current = derived();
+    BitSet matching = null;
+    for ( String fieldName : predicates.getFieldNames() ) {
+      int uses = current.predicateUses.computeIfAbsent( fieldName, name -> new AtomicInteger() ).incrementAndGet();
+      Optional<RowIndex> index = current.indexes.get( fieldName );
+      if ( index == null ) {
+        if ( !indexedFields.contains( fieldName ) && uses < OBSERVED_PREDICATE_USES
+          || current.indexes.size() >= MAX_INDEXES ) {
+          continue;
+        }
+        index = RowIndex.build( rowMetaAndData, fieldName );
+        current.indexes.putIfAbsent( fieldName, index );
+      }
+      BitSet rows = index.isPresent() ? predicates.lookup( fieldName, index.get() ) : null;
+      if ( rows == null ) {
+        continue;
+      }
+      if ( matching == null ) {
+        matching = rows;
+      } else {
+        matching.and( rows );
+      }
+    }
+    return Optional.fromNullable( matching );
+  }
+
+  /**
+   * View of selected rows.
+   *
+   * @param order    row numbers in replay order, or null to keep the cached order
+   * @param selected row numbers to keep, or null to keep all rows
+   */
+  List<RowMetaAndData> view( int[] order, BitSet selected ) {
+    if ( selected != null ) {
+      int[] kept = new int[ selected.cardinality() ];
+      int count = 0;
+      if ( order == null ) {
+        for ( int row = selected.nextSetBit( 0 ); row >= 0; row = selected.nextSetBit( row + 1 ) ) {
+          kept[ count++ ] = row;
+        }
+      } else {
+        for ( int row : order ) {
+          if ( selected.get( row ) ) {
+            kept[ count++ ] = row;
+          }
+        }
+      }
+      order = kept;
+    }
+    return order == null ? rowMetaAndData : Lists.transform( Ints.asList( order ), rowMetaAndData::get );
+  }
+
+  private Derived derived() {
+    Derived current = derived;
+    if ( current == null ) {
+      synchronized ( this ) {
+        if ( derived == null ) {
+          derived = new Derived();
+        }
+        current = derived;
+      }
+    }
+    return current;
+  }
+
   public Optional<Integer> getRanking() {
     return ranking;
   }
 
+  Optional<Integer> getRankingServiceRows() {
+    return rankingServiceRows;
+  }
+
+  /**
+   * @return approximate number of heap bytes held by the cached rows
+   */
+  long estimateBytes() {
+    return estimateBytes( rowMetaAndData );
+  }
+
+  static long estimateBytes( List<RowMetaAndData> rows ) {
+    if ( rows instanceof ColumnarRows ) {
+      return ( (ColumnarRows) rows ).estimateBytes();
+    }
+    if ( rows instanceof MappedRows ) {
+      return 0;
+    }
+    long bytes = 0;
+    for ( RowMetaAndData row : rows ) {
+      bytes += estimateBytes( row );
+    }
+    return bytes;
+  }
+
+  static long estimateBytes( RowMetaAndData row ) {
+    // RowMetaAndData and the row array, the row meta is shared
+    Object[] data = row.getData();
+    long bytes = 16 + 16 + ( data == null ? 0 : data.length * 8L );
+    for ( int i = 0; data != null && i < data.length; i++ ) {
+      bytes += estimateValueBytes( data[ i ] );
+    }
+    return bytes;
+  }
+
+  /**
+   * Estimates the heap retained by a field value, from its type and content. Strings and binary values are sized by
+   * their length, big numbers by their precision.
+   *
+   * @param value field value, as held in a row
+   * @return approximate number of heap bytes, excluding the reference to the value
+   */
+  static long estimateValueBytes( Object value ) {
+    if ( value == null ) {
+      return 0;
+    }
+    if ( value instanceof String ) {
+      // String header, array header and UTF-16 content
+      return 40 + 2L * ( (String) value ).length();
+    }
+    if ( value instanceof byte[] ) {
+      // Binary or lazily converted storage
+      return 16 + ( (byte[]) value ).length;
+    }
+    if ( value instanceof BigDecimal ) {
+      // BigDecimal, its BigInteger and magnitude array
+      return 32 + 40 + 16 + 4L * ( ( (BigDecimal) value ).unscaledValue().bitLength() / Integer.SIZE + 1 );
+    }
+    if ( value instanceof Timestamp ) {
+      return 32;
+    }
+    if ( value instanceof Date ) {
+      return 24;
+    }
+    // Boxed primitives and other small values
+    return 16;
+  }
+
   @Override public String toString() {
     return MoreObjects.toStringHelper( this )
       .add( "rowMetaAndData.length", rowMetaAndData.size() )
@@ -137,9 +363,74 @@ class CachedService implements Serializable {
     return outRanks;
   }
 
-  public static final class CacheKey implements Serializable {
+  /**
+   * Serialize through {@link CachedServiceCodec} when the rows share a single row meta, so cache providers storing
+   * entries by value write the row meta once and rows in Kettle's binary format, rather than an object graph. Rows
+   * holding values the row meta can not encode fall back to Java serialization of each row's values.
+   */
+  private Object writeReplace() {
+    return CachedServiceCodec.canEncode( this ) ? new SerializedForm( this ) : this;
+  }
 
+  private static final class SerializedForm implements Serializable {
     private static final long serialVersionUID = 1L;
+    private transient CachedService cachedService;
+
+    SerializedForm( CachedService cachedService ) {
+      this.cachedService = cachedService;
+    }
+
+    private void writeObject( ObjectOutputStream out ) throws IOException {
+      out.defaultWriteObject();
+      // Encoded up front, as a value meta only rejects a value of another type when its row is written
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      boolean binary;
+      try {
+        CachedServiceCodec.write( cachedService, new DataOutputStream( encoded ) );
+        binary = true;
+      } catch ( KettleException | RuntimeException e ) {
+        binary = false;
+      }
+      out.writeBoolean( binary );
+      try {
+        if ( binary ) {
+          encoded.writeTo( out );
+        } else {
+          CachedServiceCodec.writeObjects( cachedService, out );
+        }
+      } catch ( KettleException e ) {
+        throw new IOException( "Unable to encode cached service", e );
+      }
+    }
+
+    private void readObject( ObjectInputStream in ) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      try {
+        cachedService = in.readBoolean()
+          ? CachedServiceCodec.read( new DataInputStream( in ) )
+          : CachedServiceCodec.readObjects( in );
+      } catch ( KettleException e ) {
+        throw new IOException( "Unable to decode cached service", e );
+      }
+    }
+
+    private Object readResolve() {
+      return cachedService;
+    }
+  }
+
+  /**
+   * Structures built over the rows of a complete entry on demand. Not serialized.
+   */
+  private static final class Derived {
+    private final ConcurrentMap<RowOrdering, int[]> permutations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Optional<RowIndex>> indexes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> predicateUses = new ConcurrentHashMap<>();
+  }
+
+  public static final class CacheKey implements Serializable {
+
+    private static final long serialVersionUID = 2L;
 
     /**
      * Required
@@ -157,13 +448,18 @@ class CachedService implements Serializable {
      * Optional
      */
     private final ImmutableList<String> orderByFields;
+    /**
+     * Optional, derived from the where clause
+     */
+    private final Optional<PredicateSet> predicates;
 
     private CacheKey( int transMetaVersionId, ImmutableMap<String, String> parameters, Optional<String> whereClause,
-                      ImmutableList<String> orderByFields ) {
+                      ImmutableList<String> orderByFields, Optional<PredicateSet> predicates ) {
       this.transMetaVersionId = transMetaVersionId;
       this.parameters = parameters;
       this.whereClause = whereClause;
       this.orderByFields = orderByFields;
+      this.predicates = predicates;
     }
 
     public static CacheKey create( DataServiceExecutor executor ) {
@@ -191,6 +487,11 @@ class CachedService implements Serializable {
         }
       );
 
+      // Describe condition as field predicates, allowing cached supersets to answer narrower queries
+      Optional<PredicateSet> predicates = whereClause.isPresent()
+        ? PredicateSet.fromCondition( sql.getWhereCondition().getCondition(), sql.getRowMeta() )
+        : Optional.<PredicateSet>absent();
+
       // Extract ORDER BY fields from SQL
       ImmutableList<String> orderByFields = FluentIterable
         .from( Optional.fromNullable( sql.getOrderFields() ).asSet() )
@@ -213,7 +514,7 @@ class CachedService implements Serializable {
       // Copy execution parameters
       ImmutableMap<String, String> parameters = ImmutableMap.copyOf( executor.getParameters() );
 
-      return new CacheKey( version, parameters, whereClause, orderByFields );
+      return new CacheKey( version, parameters, whereClause, orderByFields, predicates );
     }
 
     /**
@@ -237,12 +538,42 @@ class CachedService implements Serializable {
       );
     }
 
+    int getTransMetaVersionId() {
+      return transMetaVersionId;
+    }
+
     public CacheKey withoutCondition() {
-      return new CacheKey( transMetaVersionId, parameters, Optional.<String>absent(), orderByFields );
+      return new CacheKey( transMetaVersionId, parameters, Optional.<String>absent(), orderByFields,
+        Optional.<PredicateSet>absent() );
     }
 
     public CacheKey withoutOrder() {
-      return new CacheKey( transMetaVersionId, parameters, whereClause, ImmutableList.<String>of() );
+      return new CacheKey( transMetaVersionId, parameters, whereClause, ImmutableList.<String>of(), predicates );
+    }
+
+    /**
+     * Tests if the service rows produced for this key are enough to answer a query with another key.
+     * <p>
+     * Both keys must share the transformation version and parameters. Ordering is ignored, since the generated
+     * transformation sorts its own input. Rows produced without a condition, or with a condition implied by the other
+     * key's condition, can answer the query because the generated transformation filters them again.
+     *
+     * @param other key of the query to answer
+     * @return true if rows produced for this key are a superset of the rows needed by <code>other</code>
+     */
+    public boolean covers( CacheKey other ) {
+      if ( transMetaVersionId != other.transMetaVersionId || !parameters.equals( other.parameters ) ) {
+        return false;
+      }
+      if ( !whereClause.isPresent() || whereClause.equals( other.whereClause ) ) {
+        return true;
+      }
+      return predicates.isPresent() && other.predicates.isPresent()
+        && predicates.get().contains( other.predicates.get() );
+    }
+
+    Optional<PredicateSet> getPredicates() {
+      return predicates;
     }
 
     @Override public boolean equals( Object o ) {
@@ -0,0 +1,282 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary file layout of a {@link CachedService}.
+ * <p>
+ * A file holds the rankings, the row meta (written once), each row in Kettle's binary row format and a table with
+ * the start position of every row. The trailing integer points at that table, so files can be memory-mapped and
+ * rows read back individually through {@link MappedRows}.
+ * <p>
+ * Cached services serialized by a cache provider use a stream layout instead: the rankings and row meta, followed by
+ * blocks of rows in Kettle's binary row format. Each block is deflated unless that does not make it smaller. Rows
+ * holding values that do not match the row meta are written as Java serialized objects instead.
+ */
+final class CachedServiceCodec {
+  private static final int FORMAT = 0x44534331;
+  private static final int STREAM_FORMAT = 0x44534332;
+  private static final int OBJECT_FORMAT = 0x44534333;
+  static final int BLOCK_ROWS = 1024;
+
+  private CachedServiceCodec() {
+  }
+
+  /**
+   * Rows can only be encoded if they share a single row meta.
+   */
+  static boolean canEncode( CachedService cachedService ) {
+    List<RowMetaAndData> rows = cachedService.getRowMetaAndData();
+    return rows.isEmpty() || rows instanceof ColumnarRows || rows instanceof MappedRows;
+  }
+
+  static void write( CachedService cachedService, File file ) throws IOException, KettleException {
+    List<RowMetaAndData> rows = cachedService.getRowMetaAndData();
+    RowMetaInterface rowMeta = rowMeta( rows );
+    int[] offsets = new int[ rows.size() ];
+
+    try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ) ) {
+      out.writeInt( FORMAT );
+      writeRanking( out, cachedService.getRanking() );
+      writeRanking( out, cachedService.getRankingServiceRows() );
+      out.writeInt( rows.size() );
+      if ( rowMeta != null ) {
+        rowMeta.writeMeta( out );
+      }
+      for ( int i = 0; i < offsets.length; i++ ) {
+        offsets[ i ] = out.size();
+        rowMeta.writeData( out, rows.get( i ).getData() );
+      }
+      int offsetTable = out.size();
+      for ( int offset : offsets ) {
+        out.writeInt( offset );
+      }
+      out.writeInt( offsetTable );
+      // DataOutputStream#size saturates at Integer.MAX_VALUE, mapped files can not address beyond it
+      if ( out.size() == Integer.MAX_VALUE ) {
+        throw new IOException( "Cached service is too large to be mapped: " + file );
+      }
+    }
+  }
+
+  /**
+   * Map a file written by {@link #write(CachedService, File)}. Rows are read from the file when accessed.
+   */
+  static CachedService map( File file ) throws IOException, KettleException {
+    MappedByteBuffer buffer;
+    try ( RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+          FileChannel channel = randomAccessFile.getChannel() ) {
+      buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+    }
+
+    DataInputStream in = new DataInputStream( new ByteBufferInputStream( buffer.duplicate() ) );
+    if ( in.readInt() != FORMAT ) {
+      throw new IOException( "Unrecognized cache file: " + file );
+    }
+    Optional<Integer> ranking = readRanking( in );
+    Optional<Integer> rankingServiceRows = readRanking( in );
+    int size = in.readInt();
+    if ( size == 0 ) {
+      return CachedService.restore( ImmutableList.<RowMetaAndData>of(), ranking, rankingServiceRows );
+    }
+    RowMetaInterface rowMeta = new RowMeta( in );
+    int offsetTable = buffer.getInt( buffer.limit() - Integer.BYTES );
+    return CachedService.restore( new MappedRows( rowMeta, buffer, size, offsetTable ), ranking, rankingServiceRows );
+  }
+
+  /**
+   * Write a cached service to a stream. Only as many bytes as needed are read back by {@link #read(DataInputStream)}.
+   */
+  static void write( CachedService cachedService, DataOutputStream out ) throws IOException, KettleException {
+    List<RowMetaAndData> rows = cachedService.getRowMetaAndData();
+    RowMetaInterface rowMeta = rowMeta( rows );
+    out.writeInt( STREAM_FORMAT );
+    writeRanking( out, cachedService.getRanking() );
+    writeRanking( out, cachedService.getRankingServiceRows() );
+    out.writeInt( rows.size() );
+    if ( rowMeta == null ) {
+      return;
+    }
+    rowMeta.writeMeta( out );
+
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    DataOutputStream blockOut = new DataOutputStream( block );
+    byte[] deflated = new byte[ 0 ];
+    Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+    try {
+      for ( int from = 0; from < rows.size(); from += BLOCK_ROWS ) {
+        block.reset();
+        for ( RowMetaAndData row : rows.subList( from, Math.min( from + BLOCK_ROWS, rows.size() ) ) ) {
+          rowMeta.writeData( blockOut, row.getData() );
+        }
+        byte[] raw = block.toByteArray();
+        deflater.reset();
+        deflater.setInput( raw );
+        deflater.finish();
+        if ( deflated.length < raw.length ) {
+          deflated = new byte[ raw.length ];
+        }
+        int length = 0;
+        while ( !deflater.finished() && length < raw.length ) {
+          length += deflater.deflate( deflated, length, raw.length - length );
+        }
+        boolean compressed = deflater.finished() && length < raw.length;
+        out.writeBoolean( compressed );
+        out.writeInt( raw.length );
+        out.writeInt( compressed ? length : raw.length );
+        out.write( compressed ? deflated : raw, 0, compressed ? length : raw.length );
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Read a cached service written by {@link #write(CachedService, DataOutputStream)}. Rows are stored column-wise.
+   */
+  static CachedService read( DataInputStream in ) throws IOException, KettleException {
+    if ( in.readInt() != STREAM_FORMAT ) {
+      throw new IOException( "Unrecognized cached service stream" );
+    }
+    Optional<Integer> ranking = readRanking( in );
+    Optional<Integer> rankingServiceRows = readRanking( in );
+    int size = in.readInt();
+    if ( size == 0 ) {
+      return CachedService.restore( ImmutableList.<RowMetaAndData>of(), ranking, rankingServiceRows );
+    }
+    RowMetaInterface rowMeta = new RowMeta( in );
+
+    List<RowMetaAndData> rows = Lists.newArrayListWithCapacity( size );
+    Inflater inflater = new Inflater();
+    try {
+      while ( rows.size() < size ) {
+        boolean compressed = in.readBoolean();
+        byte[] raw = new byte[ in.readInt() ];
+        int storedLength = in.readInt();
+        byte[] stored = compressed ? new byte[ storedLength ] : raw;
+        in.readFully( stored );
+        if ( compressed ) {
+          inflater.reset();
+          inflater.setInput( stored );
+          try {
+            if ( inflater.inflate( raw ) != raw.length ) {
+              throw new IOException( "Truncated cached service block" );
+            }
+          } catch ( DataFormatException e ) {
+            throw new IOException( "Corrupt cached service block", e );
+          }
+        }
+        DataInputStream blockIn = new DataInputStream( new ByteArrayInputStream( raw ) );
+        for ( int i = Math.min( BLOCK_ROWS, size - rows.size() ); i > 0; i-- ) {
+          rows.add( new RowMetaAndData( rowMeta, rowMeta.readData( blockIn ) ) );
+        }
+      }
+    } finally {
+      inflater.end();
+    }
+    return CachedService.restore( ColumnarRows.compact( rows ), ranking, rankingServiceRows );
+  }
+
+  /**
+   * Write a cached service whose values do not all match its row meta, which Kettle's binary row format can not
+   * hold. The row meta is followed by the values of each row as Java serialized objects.
+   */
+  static void writeObjects( CachedService cachedService, ObjectOutputStream out ) throws IOException,
+    KettleException {
+    List<RowMetaAndData> rows = cachedService.getRowMetaAndData();
+    RowMetaInterface rowMeta = rowMeta( rows );
+    out.writeInt( OBJECT_FORMAT );
+    writeRanking( out, cachedService.getRanking() );
+    writeRanking( out, cachedService.getRankingServiceRows() );
+    out.writeInt( rows.size() );
+    if ( rowMeta == null ) {
+      return;
+    }
+    rowMeta.writeMeta( new DataOutputStream( out ) );
+    for ( RowMetaAndData row : rows ) {
+      out.writeObject( row.getData() );
+    }
+  }
+
+  /**
+   * Read a cached service written by {@link #writeObjects(CachedService, ObjectOutputStream)}.
+   */
+  static CachedService readObjects( ObjectInputStream in ) throws IOException, ClassNotFoundException,
+    KettleException {
+    if ( in.readInt() != OBJECT_FORMAT ) {
+      throw new IOException( "Unrecognized cached service stream" );
+    }
+    Optional<Integer> ranking = readRanking( in );
+    Optional<Integer> rankingServiceRows = readRanking( in );
+    int size = in.readInt();
+    if ( size == 0 ) {
+      return CachedService.restore( ImmutableList.<RowMetaAndData>of(), ranking, rankingServiceRows );
+    }
+    RowMetaInterface rowMeta = new RowMeta( new DataInputStream( in ) );
+    List<RowMetaAndData> rows = Lists.newArrayListWithCapacity( size );
+    for ( int i = 0; i < size; i++ ) {
+      rows.add( new RowMetaAndData( rowMeta, (Object[]) in.readObject() ) );
+    }
+    return CachedService.restore( ColumnarRows.compact( rows ), ranking, rankingServiceRows );
+  }
+
+  private static RowMetaInterface rowMeta( List<RowMetaAndData> rows ) {
+    if ( rows instanceof ColumnarRows ) {
+      return ( (ColumnarRows) rows ).getRowMeta();
+    }
+    if ( rows instanceof MappedRows ) {
+      return ( (MappedRows) rows ).getRowMeta();
+    }
+    return rows.isEmpty() ? null : rows.get( 0 ).getRowMeta();
+  }
+
+  private static void writeRanking( DataOutput out, Optional<Integer> ranking ) throws IOException {
+    out.writeBoolean( ranking.isPresent() );
+    out.writeInt( ranking.or( 0 ) );
+  }
+
+  private static Optional<Integer> readRanking( DataInput in ) throws IOException {
+    boolean present = in.readBoolean();
+    int ranking = in.readInt();
+    return present ? Optional.of( ranking ) : Optional.<Integer>absent();
+  }
+}
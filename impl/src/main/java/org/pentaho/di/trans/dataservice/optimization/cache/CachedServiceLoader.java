@@ -13,24 +13,35 @@
 
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.execution.DefaultTransWiring;
 import org.pentaho.di.trans.dataservice.execution.TransStarter;
+import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.trans.RowProducer;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.step.StepMetaDataCombi;
 
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
@@ -38,25 +49,56 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 /**
+ * Replays cached rows into the generated transformation, in place of the service transformation.
+ * <p>
+ * Rows of a fully cached service can be replayed in bulk: blocks of rows are read and cloned ahead by parallel
+ * tasks, so the injecting task only hands rows over to the generated transformation. Blocks are still injected in
+ * their cached order.
+ * <p>
+ * Queries ordering a complete cached service by plain service fields receive its rows already sorted, and the
+ * generated transformation's sort step is removed. Rows of a complete cached service that can not match the WHERE
+ * condition are skipped when field indexes can tell; the generated transformation still filters the injected rows.
+ *
  * @author nhudak
  */
 class CachedServiceLoader {
+  static final int BLOCK_SIZE = 1024;
+
   private final Executor executor;
   private final Supplier<Iterator<RowMetaAndData>> rowSupplier;
+  private final CachedService cachedService;
+  private final int parallelism;
 
   CachedServiceLoader( Executor executor, Supplier<Iterator<RowMetaAndData>> rowSupplier ) {
     this.executor = executor;
     this.rowSupplier = rowSupplier;
+    this.cachedService = null;
+    this.parallelism = 1;
   }
 
   CachedServiceLoader( CachedService cachedService, Executor executor ) {
-    this( executor, () -> cachedService.getRowMetaAndData().iterator() );
+    this( cachedService, executor, 1 );
+  }
+
+  /**
+   * @param parallelism number of row blocks prepared concurrently, bulk replay is used if greater than 1
+   */
+  CachedServiceLoader( CachedService cachedService, Executor executor, int parallelism ) {
+    this.executor = executor;
+    this.rowSupplier = null;
+    this.cachedService = cachedService;
+    this.parallelism = parallelism;
   }
 
   ListenableFuture<Integer> replay( DataServiceExecutor dataServiceExecutor ) throws KettleException {
     final Trans serviceTrans = dataServiceExecutor.getServiceTrans(), genTrans = dataServiceExecutor.getGenTrans();
     final CountDownLatch startReplay = new CountDownLatch( 1 );
     final RowProducer rowProducer = dataServiceExecutor.addRowProducer();
+    final Optional<int[]> order = cachedService == null ? Optional.<int[]>absent() : replayOrder( dataServiceExecutor );
+    final List<RowMetaAndData> cachedRows =
+      cachedService == null ? null : rowsToReplay( dataServiceExecutor, order.orNull() );
+    final boolean bulk = cachedRows != null && parallelism > 1 && cachedRows instanceof RandomAccess
+      && cachedRows.size() > BLOCK_SIZE;
 
     List<Runnable> startTrans = dataServiceExecutor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.START ),
       postOptimization = dataServiceExecutor.getListenerMap().get( DataServiceExecutor.ExecutionPoint.READY );
@@ -90,25 +132,137 @@ class CachedServiceLoader {
     ListenableFutureTask<Integer> replay = ListenableFutureTask.create( new Callable<Integer>() {
       @Override public Integer call() throws Exception {
         Preconditions.checkState( startReplay.await( 30, TimeUnit.SECONDS ), "Cache replay did not start" );
-        int rowCount = 0;
-        for ( Iterator<RowMetaAndData> iterator = rowSupplier.get();
-              iterator.hasNext() && genTrans.isRunning(); ) {
-          RowMetaAndData metaAndData = iterator.next();
-          boolean rowAdded = false;
-          RowMetaInterface rowMeta = metaAndData.getRowMeta();
-          Object[] rowData = rowMeta.cloneRow( metaAndData.getData() );
-          while ( !rowAdded && genTrans.isRunning() ) {
-            rowAdded = rowProducer.putRowWait( rowMeta, rowData, 10, TimeUnit.SECONDS );
-          }
-          if ( rowAdded ) {
-            rowCount += 1;
-          }
-        }
+        int rowCount = bulk
+          ? replayBlocks( cachedRows, rowProducer, genTrans )
+          : replayRows( cachedRows != null ? cachedRows.iterator() : rowSupplier.get(), rowProducer, genTrans );
         rowProducer.finished();
         return rowCount;
       }
     } );
     executor.execute( replay );
+    // Removed last: if replay can not be set up, the query runs the service transformation and needs the sort step
+    if ( order.isPresent() ) {
+      dataServiceExecutor.getSqlTransGenerator().removeSortStep( dataServiceExecutor.getGenTransMeta() );
+    }
     return replay;
   }
+
+  /**
+   * Order in which a complete cached service can be replayed for the query, so the generated transformation's sort
+   * step can be removed. Rows replayed in order are still correct if the sort step is kept.
+   *
+   * @return row numbers in query order, or absent if the rows are left to the sort step
+   */
+  private Optional<int[]> replayOrder( DataServiceExecutor dataServiceExecutor ) {
+    Optional<RowOrdering> ordering = RowOrdering.forQuery( dataServiceExecutor );
+    if ( ordering.isPresent() ) {
+      try {
+        return cachedService.permutation( ordering.get() );
+      } catch ( KettleValueException e ) {
+        // Leave sorting to the generated transformation
+      }
+    }
+    return Optional.absent();
+  }
+
+  /**
+   * Rows of the cached service to replay, in the given order. Rows which can not match the WHERE condition are
+   * skipped when they can be found through field indexes.
+   */
+  private List<RowMetaAndData> rowsToReplay( DataServiceExecutor dataServiceExecutor, int[] order ) {
+    BitSet selected = null;
+    SQL sql = dataServiceExecutor.getSql();
+    // Input rows are limited before they are filtered, so every row must be replayed
+    if ( sql.getWhereCondition() != null && dataServiceExecutor.getServiceRowLimit() <= 0 ) {
+      Optional<PredicateSet> predicates =
+        PredicateSet.fromCondition( sql.getWhereCondition().getCondition(), sql.getRowMeta() );
+      if ( predicates.isPresent() ) {
+        selected = cachedService.matching( predicates.get(), indexedFields( dataServiceExecutor ) ).orNull();
+      }
+    }
+
+    return cachedService.view( order, selected );
+  }
+
+  private static Set<String> indexedFields( DataServiceExecutor dataServiceExecutor ) {
+    for ( PushDownOptimizationMeta optimization : dataServiceExecutor.getService().getPushDownOptimizationMeta() ) {
+      if ( optimization.isEnabled() && optimization.getType() instanceof ServiceCache ) {
+        return ( (ServiceCache) optimization.getType() ).getIndexedFieldNames();
+      }
+    }
+    return ImmutableSet.of();
+  }
+
+  private int replayRows( Iterator<RowMetaAndData> iterator, RowProducer rowProducer, Trans genTrans )
+    throws KettleException {
+    int rowCount = 0;
+    while ( iterator.hasNext() && genTrans.isRunning() ) {
+      RowMetaAndData metaAndData = iterator.next();
+      RowMetaInterface rowMeta = metaAndData.getRowMeta();
+      if ( putRow( rowProducer, genTrans, rowMeta, rowMeta.cloneRow( metaAndData.getData() ) ) ) {
+        rowCount += 1;
+      }
+    }
+    return rowCount;
+  }
+
+  /**
+   * Inject blocks of cloned rows, keeping up to {@link #parallelism} blocks in preparation.
+   */
+  private int replayBlocks( List<RowMetaAndData> cachedRows, RowProducer rowProducer, Trans genTrans )
+    throws Exception {
+    Deque<ListenableFutureTask<List<RowMetaAndData>>> pending = new ArrayDeque<>();
+    int nextBlock = 0;
+    int rowCount = 0;
+    try {
+      while ( genTrans.isRunning() ) {
+        while ( pending.size() < parallelism && nextBlock < cachedRows.size() ) {
+          ListenableFutureTask<List<RowMetaAndData>> block = prepareBlock( cachedRows, nextBlock );
+          executor.execute( block );
+          pending.add( block );
+          nextBlock += BLOCK_SIZE;
+        }
+        if ( pending.isEmpty() ) {
+          break;
+        }
+        for ( RowMetaAndData metaAndData : pending.poll().get() ) {
+          if ( !genTrans.isRunning() ) {
+            break;
+          }
+          if ( putRow( rowProducer, genTrans, metaAndData.getRowMeta(), metaAndData.getData() ) ) {
+            rowCount += 1;
+          }
+        }
+      }
+    } finally {
+      for ( ListenableFutureTask<List<RowMetaAndData>> block : pending ) {
+        block.cancel( false );
+      }
+    }
+    return rowCount;
+  }
+
+  private static ListenableFutureTask<List<RowMetaAndData>> prepareBlock( final List<RowMetaAndData> cachedRows,
+                                                                         final int from ) {
+    return ListenableFutureTask.create( new Callable<List<RowMetaAndData>>() {
+      @Override public List<RowMetaAndData> call() throws Exception {
+        List<RowMetaAndData> source = cachedRows.subList( from, Math.min( from + BLOCK_SIZE, cachedRows.size() ) );
+        List<RowMetaAndData> block = Lists.newArrayListWithCapacity( source.size() );
+        for ( RowMetaAndData metaAndData : source ) {
+          RowMetaInterface rowMeta = metaAndData.getRowMeta();
+          block.add( new RowMetaAndData( rowMeta, rowMeta.cloneRow( metaAndData.getData() ) ) );
+        }
+        return block;
+      }
+    } );
+  }
+
+  private static boolean putRow( RowProducer rowProducer, Trans genTrans, RowMetaInterface rowMeta,
+                                 Object[] rowData ) {
+    boolean rowAdded = false;
+    while ( !rowAdded && genTrans.isRunning() ) {
+      rowAdded = rowProducer.putRowWait( rowMeta, rowData, 10, TimeUnit.SECONDS );
+    }
+    return rowAdded;
+  }
 }
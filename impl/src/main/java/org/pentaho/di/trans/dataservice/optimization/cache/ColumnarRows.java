@@ -0,0 +1,358 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Immutable, column oriented list of rows sharing a single {@link RowMetaInterface}.
+ * <p>
+ * Integer and Number fields are kept in primitive arrays, String fields are dictionary encoded and Boolean fields
+ * are kept in a bit set. Nulls are tracked in a bit set per column. Any other field, or a field holding values that
+ * do not match its value meta, is kept as an array of objects. Rows are rebuilt on access, so callers always receive
+ * fresh {@link RowMetaAndData} instances.
+ *
+ * @see #compact(List)
+ */
+class ColumnarRows extends AbstractList<RowMetaAndData> implements RandomAccess, Serializable {
+
+  private static final long serialVersionUID = 1L;
+  private static final int OBJECT_REFERENCE_BYTES = 8;
+
+  private final RowMetaInterface rowMeta;
+  private final int size;
+  private final Column[] columns;
+
+  private ColumnarRows( RowMetaInterface rowMeta, int size, Column[] columns ) {
+    this.rowMeta = rowMeta;
+    this.size = size;
+    this.columns = columns;
+  }
+
+  /**
+   * Create a compact copy of a list of rows.
+   * Rows are only converted when every row shares the same layout, otherwise an immutable copy is returned.
+   *
+   * @param rows Rows to copy
+   * @return Immutable list, equal to <code>rows</code>
+   */
+  static List<RowMetaAndData> compact( List<RowMetaAndData> rows ) {
+    if ( rows instanceof ColumnarRows ) {
+      return rows;
+    }
+    if ( rows.isEmpty() ) {
+      return ImmutableList.of();
+    }
+    if ( !( rows instanceof RandomAccess ) ) {
+      rows = Lists.newArrayList( rows );
+    }
+    RowMetaInterface rowMeta = rows.get( 0 ).getRowMeta();
+    for ( RowMetaAndData row : rows ) {
+      if ( !sameLayout( rowMeta, row.getRowMeta() ) || row.getData() == null ) {
+        return ImmutableList.copyOf( rows );
+      }
+    }
+
+    Column[] columns = new Column[ rowMeta.size() ];
+    for ( int i = 0; i < columns.length; i++ ) {
+      columns[ i ] = Column.create( rowMeta.getValueMeta( i ), rows, i );
+    }
+    return new ColumnarRows( rowMeta, rows.size(), columns );
+  }
+
+  @Override public RowMetaAndData get( int index ) {
+    if ( index < 0 || index >= size ) {
+      throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + size );
+    }
+    // Sized to the row meta, as the rows were before compaction
+    Object[] data = new Object[ columns.length ];
+    for ( int i = 0; i < columns.length; i++ ) {
+      data[ i ] = columns[ i ].get( index );
+    }
+    return new RowMetaAndData( rowMeta, data );
+  }
+
+  /**
+   * Read a single value without materializing its row.
+   */
+  Object getValue( int index, int column ) {
+    if ( index < 0 || index >= size ) {
+      throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + size );
+    }
+    return columns[ column ].get( index );
+  }
+
+  @Override public int size() {
+    return size;
+  }
+
+  RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  /**
+   * @return approximate number of heap bytes retained by the column data, excluding the shared row meta
+   */
+  long estimateBytes() {
+    long bytes = 0;
+    for ( Column column : columns ) {
+      bytes += column.estimateBytes();
+    }
+    return bytes;
+  }
+
+  private static boolean sameLayout( RowMetaInterface expected, RowMetaInterface actual ) {
+    if ( expected == actual ) {
+      return true;
+    }
+    if ( actual == null || expected.size() != actual.size() ) {
+      return false;
+    }
+    for ( int i = 0; i < expected.size(); i++ ) {
+      ValueMetaInterface expectedMeta = expected.getValueMeta( i ), actualMeta = actual.getValueMeta( i );
+      if ( expectedMeta.getType() != actualMeta.getType()
+        || expectedMeta.getStorageType() != actualMeta.getStorageType()
+        || !Objects.equal( expectedMeta.getName(), actualMeta.getName() ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Object value( List<RowMetaAndData> rows, int row, int column ) {
+    Object[] data = rows.get( row ).getData();
+    return column < data.length ? data[ column ] : null;
+  }
+
+  private abstract static class Column implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    abstract Object get( int row );
+
+    abstract long estimateBytes();
+
+    static Column create( ValueMetaInterface valueMeta, List<RowMetaAndData> rows, int column ) {
+      if ( valueMeta.isStorageNormal() ) {
+        switch ( valueMeta.getType() ) {
+          case ValueMetaInterface.TYPE_INTEGER:
+            if ( holdsOnly( Long.class, rows, column ) ) {
+              return new LongColumn( rows, column );
+            }
+            break;
+          case ValueMetaInterface.TYPE_NUMBER:
+            if ( holdsOnly( Double.class, rows, column ) ) {
+              return new DoubleColumn( rows, column );
+            }
+            break;
+          case ValueMetaInterface.TYPE_STRING:
+            if ( holdsOnly( String.class, rows, column ) ) {
+              return new DictionaryColumn( rows, column );
+            }
+            break;
+          case ValueMetaInterface.TYPE_BOOLEAN:
+            if ( holdsOnly( Boolean.class, rows, column ) ) {
+              return new BooleanColumn( rows, column );
+            }
+            break;
+          default:
+            break;
+        }
+      }
+      return new ObjectColumn( rows, column );
+    }
+
+    private static boolean holdsOnly( Class<?> type, List<RowMetaAndData> rows, int column ) {
+      for ( int row = 0; row < rows.size(); row++ ) {
+        Object value = value( rows, row, column );
+        if ( value != null && value.getClass() != type ) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Base for columns backed by primitive storage, tracking nulls separately.
+   */
+  private abstract static class NullableColumn extends Column {
+    private static final long serialVersionUID = 1L;
+    private final BitSet nulls = new BitSet();
+
+    NullableColumn( List<RowMetaAndData> rows, int column ) {
+      for ( int row = 0; row < rows.size(); row++ ) {
+        if ( value( rows, row, column ) == null ) {
+          nulls.set( row );
+        }
+      }
+    }
+
+    @Override Object get( int row ) {
+      return nulls.get( row ) ? null : getValue( row );
+    }
+
+    abstract Object getValue( int row );
+
+    @Override long estimateBytes() {
+      return nulls.size() / Byte.SIZE;
+    }
+  }
+
+  private static final class LongColumn extends NullableColumn {
+    private static final long serialVersionUID = 1L;
+    private final long[] values;
+
+    LongColumn( List<RowMetaAndData> rows, int column ) {
+      super( rows, column );
+      values = new long[ rows.size() ];
+      for ( int row = 0; row < values.length; row++ ) {
+        Object value = value( rows, row, column );
+        values[ row ] = value == null ? 0L : (Long) value;
+      }
+    }
+
+    @Override Object getValue( int row ) {
+      return values[ row ];
+    }
+
+    @Override long estimateBytes() {
+      return super.estimateBytes() + (long) values.length * Long.BYTES;
+    }
+  }
+
+  private static final class DoubleColumn extends NullableColumn {
+    private static final long serialVersionUID = 1L;
+    private final double[] values;
+
+    DoubleColumn( List<RowMetaAndData> rows, int column ) {
+      super( rows, column );
+      values = new double[ rows.size() ];
+      for ( int row = 0; row < values.length; row++ ) {
+        Object value = value( rows, row, column );
+        values[ row ] = value == null ? 0D : (Double) value;
+      }
+    }
+
+    @Override Object getValue( int row ) {
+      return values[ row ];
+    }
+
+    @Override long estimateBytes() {
+      return super.estimateBytes() + (long) values.length * Double.BYTES;
+    }
+  }
+
+  private static final class BooleanColumn extends NullableColumn {
+    private static final long serialVersionUID = 1L;
+    private final BitSet values = new BitSet();
+
+    BooleanColumn( List<RowMetaAndData> rows, int column ) {
+      super( rows, column );
+      for ( int row = 0; row < rows.size(); row++ ) {
+        if ( Boolean.TRUE.equals( value( rows, row, column ) ) ) {
+          values.set( row );
+        }
+      }
+    }
+
+    @Override Object getValue( int row ) {
+      return values.get( row );
+    }
+
+    @Override long estimateBytes() {
+      return super.estimateBytes() + values.size() / Byte.SIZE;
+    }
+  }
+
+  /**
+   * Each distinct string is stored once, rows hold an index into the dictionary. Index -1 denotes null.
+   */
+  private static final class DictionaryColumn extends Column {
+    private static final long serialVersionUID = 1L;
+    private final String[] dictionary;
+    private final int[] codes;
+
+    DictionaryColumn( List<RowMetaAndData> rows, int column ) {
+      Map<String, Integer> index = Maps.newHashMap();
+      codes = new int[ rows.size() ];
+      for ( int row = 0; row < codes.length; row++ ) {
+        String value = (String) value( rows, row, column );
+        if ( value == null ) {
+          codes[ row ] = -1;
+        } else {
+          Integer code = index.get( value );
+          if ( code == null ) {
+            code = index.size();
+            index.put( value, code );
+          }
+          codes[ row ] = code;
+        }
+      }
+      dictionary = new String[ index.size() ];
+      for ( Map.Entry<String, Integer> entry : index.entrySet() ) {
+        dictionary[ entry.getValue() ] = entry.getKey();
+      }
+    }
+
+    @Override Object get( int row ) {
+      int code = codes[ row ];
+      return code < 0 ? null : dictionary[ code ];
+    }
+
+    @Override long estimateBytes() {
+      long bytes = (long) codes.length * Integer.BYTES + (long) dictionary.length * OBJECT_REFERENCE_BYTES;
+      for ( String value : dictionary ) {
+        bytes += CachedService.estimateValueBytes( value );
+      }
+      return bytes;
+    }
+  }
+
+  private static final class ObjectColumn extends Column {
+    private static final long serialVersionUID = 1L;
+    private final Object[] values;
+
+    ObjectColumn( List<RowMetaAndData> rows, int column ) {
+      values = new Object[ rows.size() ];
+      for ( int row = 0; row < values.length; row++ ) {
+        values[ row ] = value( rows, row, column );
+      }
+    }
+
+    @Override Object get( int row ) {
+      return values[ row ];
+    }
+
+    @Override long estimateBytes() {
+      long bytes = (long) values.length * OBJECT_REFERENCE_BYTES;
+      for ( Object value : values ) {
+        bytes += CachedService.estimateValueBytes( value );
+      }
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Table;
+import com.google.common.collect.Tables;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the size and accesses of entries held by the on-heap service caches.
+ * <p>
+ * Once the size of a service cache exceeds the per-service budget, or the total size exceeds the global budget,
+ * entries are chosen for eviction according to the {@link EvictionPolicy}. By default, large entries that have not
+ * been read recently leave the heap first.
+ */
+class HeapTier {
+  /**
+   * Order in which entries leave the heap.
+   */
+  enum EvictionPolicy {
+    /** Largest size weighted idle time first */
+    WEIGHTED,
+    /** Least recently read first */
+    LRU,
+    /** Least frequently read first, then least recently read */
+    LFU
+  }
+
+  private final Table<String, CachedService.CacheKey, Usage> usage = HashBasedTable.create();
+  private final Map<String, Long> serviceBytes = Maps.newHashMap();
+  private EvictionPolicy policy = EvictionPolicy.WEIGHTED;
+  private long budgetBytes;
+  private long serviceBudgetBytes;
+  private long totalBytes;
+
+  /**
+   * @param budgetBytes heap budget shared by all service caches, or 0 for no limit
+   */
+  synchronized void setBudgetBytes( long budgetBytes ) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  synchronized long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  /**
+   * @param serviceBudgetBytes heap budget of each service cache, or 0 for no limit
+   */
+  synchronized void setServiceBudgetBytes( long serviceBudgetBytes ) {
+    this.serviceBudgetBytes = serviceBudgetBytes;
+  }
+
+  synchronized long getServiceBudgetBytes() {
+    return serviceBudgetBytes;
+  }
+
+  synchronized void setPolicy( EvictionPolicy policy ) {
+    this.policy = policy;
+  }
+
+  synchronized EvictionPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * @return true if an entry of this size is within the per-service and global budgets on its own
+   */
+  synchronized boolean fits( long bytes ) {
+    return ( budgetBytes <= 0 || bytes <= budgetBytes ) && ( serviceBudgetBytes <= 0 || bytes <= serviceBudgetBytes );
+  }
+
+  synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  synchronized long getTotalBytes( String cacheName ) {
+    Long bytes = serviceBytes.get( cacheName );
+    return bytes == null ? 0 : bytes;
+  }
+
+  synchronized void admit( String cacheName, CachedService.CacheKey key, long bytes ) {
+    admit( cacheName, key, bytes, 0 );
+  }
+
+  synchronized void admit( String cacheName, CachedService.CacheKey key, long bytes, int rows ) {
+    Usage previous = usage.put( cacheName, key, new Usage( bytes, rows, System.currentTimeMillis() ) );
+    add( cacheName, bytes - ( previous == null ? 0 : previous.bytes ) );
+  }
+
+  synchronized Set<CachedService.CacheKey> keys( String cacheName ) {
+    return ImmutableSet.copyOf( usage.row( cacheName ).keySet() );
+  }
+
+  synchronized Set<String> cacheNames() {
+    return ImmutableSet.copyOf( usage.rowKeySet() );
+  }
+
+  synchronized Map<CachedService.CacheKey, Usage> usage( String cacheName ) {
+    return ImmutableMap.copyOf( usage.row( cacheName ) );
+  }
+
+  /**
+   * @return time an entry was admitted, or 0 if it is not tracked
+   */
+  synchronized long admittedAt( String cacheName, CachedService.CacheKey key ) {
+    Usage entry = usage.get( cacheName, key );
+    return entry == null ? 0 : entry.admitted;
+  }
+
+  synchronized void touch( String cacheName, CachedService.CacheKey key ) {
+    Usage entry = usage.get( cacheName, key );
+    if ( entry != null ) {
+      entry.lastAccess = System.currentTimeMillis();
+      entry.hits++;
+    }
+  }
+
+  synchronized void remove( String cacheName, CachedService.CacheKey key ) {
+    Usage removed = usage.remove( cacheName, key );
+    if ( removed != null ) {
+      add( cacheName, -removed.bytes );
+    }
+  }
+
+  synchronized void clear( String cacheName ) {
+    for ( Usage removed : usage.row( cacheName ).values() ) {
+      totalBytes -= removed.bytes;
+    }
+    usage.row( cacheName ).clear();
+    serviceBytes.remove( cacheName );
+  }
+
+  /**
+   * Select and forget entries until the per-service and global heap budgets are met.
+   *
+   * @return entries to be evicted from the heap, coldest first
+   */
+  synchronized List<Table.Cell<String, CachedService.CacheKey, Usage>> evictions() {
+    ImmutableList.Builder<Table.Cell<String, CachedService.CacheKey, Usage>> evictions = ImmutableList.builder();
+    long now = System.currentTimeMillis();
+    if ( serviceBudgetBytes > 0 ) {
+      for ( String cacheName : ImmutableList.copyOf( serviceBytes.keySet() ) ) {
+        while ( getTotalBytes( cacheName ) > serviceBudgetBytes && usage.containsRow( cacheName ) ) {
+          evictions.add( evict( victim( usage.row( cacheName ).entrySet(), cacheName, now ) ) );
+        }
+      }
+    }
+    while ( budgetBytes > 0 && totalBytes > budgetBytes && !usage.isEmpty() ) {
+      Table.Cell<String, CachedService.CacheKey, Usage> victim = null;
+      for ( Table.Cell<String, CachedService.CacheKey, Usage> cell : usage.cellSet() ) {
+        if ( victim == null || cell.getValue().isColder( victim.getValue(), policy, now ) ) {
+          victim = cell;
+        }
+      }
+      evictions.add( evict( victim ) );
+    }
+    return evictions.build();
+  }
+
+  private Table.Cell<String, CachedService.CacheKey, Usage> victim(
+    Set<Map.Entry<CachedService.CacheKey, Usage>> entries, String cacheName, long now ) {
+    Map.Entry<CachedService.CacheKey, Usage> victim = null;
+    for ( Map.Entry<CachedService.CacheKey, Usage> entry : entries ) {
+      if ( victim == null || entry.getValue().isColder( victim.getValue(), policy, now ) ) {
+        victim = entry;
+      }
+    }
+    return Tables.immutableCell( cacheName, victim.getKey(), victim.getValue() );
+  }
+
+  private Table.Cell<String, CachedService.CacheKey, Usage> evict(
+    Table.Cell<String, CachedService.CacheKey, Usage> victim ) {
+    usage.remove( victim.getRowKey(), victim.getColumnKey() );
+    add( victim.getRowKey(), -victim.getValue().bytes );
+    return victim;
+  }
+
+  private void add( String cacheName, long bytes ) {
+    totalBytes += bytes;
+    long remaining = getTotalBytes( cacheName ) + bytes;
+    if ( remaining == 0 && !usage.containsRow( cacheName ) ) {
+      serviceBytes.remove( cacheName );
+    } else {
+      serviceBytes.put( cacheName, remaining );
+    }
+  }
+
+  static final class Usage {
+    private final long bytes;
+    private final int rows;
+    private final long admitted;
+    private volatile long lastAccess;
+    private volatile int hits;
+
+    Usage( long bytes, int rows, long lastAccess ) {
+      this.bytes = bytes;
+      this.rows = rows;
+      this.admitted = lastAccess;
+      this.lastAccess = lastAccess;
+    }
+
+    long getBytes() {
+      return bytes;
+    }
+
+    int getRows() {
+      return rows;
+    }
+
+    long getAdmitted() {
+      return admitted;
+    }
+
+    int getHits() {
+      return hits;
+    }
+
+    double score( long now ) {
+      return (double) Math.max( bytes, 1 ) * ( now - lastAccess + 1 );
+    }
+
+    /**
+     * Tests if this entry should leave the heap before <code>other</code>.
+     */
+    boolean isColder( Usage other, EvictionPolicy policy, long now ) {
+      switch ( policy ) {
+        case LFU:
+          if ( hits != other.hits ) {
+            return hits < other.hits;
+          }
+          return lastAccess < other.lastAccess;
+        case LRU:
+          return lastAccess < other.lastAccess;
+        default:
+          return score( now ) > other.score( now );
+      }
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.pentaho.di.core.exception.KettleException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Second cache tier, holding cached services in memory-mapped files under a directory.
+ * <p>
+ * Entries demoted from the on-heap cache are written here and streamed back from the mapped file on replay.
+ * Entries not accessed within their idle expiry are discarded, either when read or by {@link #sweep()}.
+ */
+class MappedFileTier {
+  private static final String FILE_SUFFIX = ".rows";
+
+  private final File directory;
+  private final ConcurrentMap<String, ConcurrentMap<CachedService.CacheKey, Entry>> entries =
+    new ConcurrentHashMap<>();
+  // Files written by this tier and not deleted yet, including those being written
+  private final Set<File> files = Sets.newConcurrentHashSet();
+
+  MappedFileTier( File directory ) {
+    this.directory = directory;
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Write a cached service to this tier.
+   *
+   * @param cacheName       cache holding the entry
+   * @param key             entry key
+   * @param cachedService   entry value
+   * @param idleExpiryMillis entries not read within this time are discarded, or 0 to keep them indefinitely
+   * @return true if the entry was stored
+   */
+  boolean store( String cacheName, CachedService.CacheKey key, CachedService cachedService, long idleExpiryMillis )
+    throws IOException, KettleException {
+    if ( !CachedServiceCodec.canEncode( cachedService ) ) {
+      return false;
+    }
+    File cacheDirectory = new File( directory, CacheFileNames.directoryName( cacheName ) );
+    if ( !cacheDirectory.isDirectory() && !cacheDirectory.mkdirs() ) {
+      throw new IOException( "Unable to create cache directory " + cacheDirectory );
+    }
+    File file = new File( cacheDirectory, UUID.randomUUID() + FILE_SUFFIX );
+    files.add( file );
+    try {
+      CachedServiceCodec.write( cachedService, file );
+    } catch ( IOException | KettleException | RuntimeException e ) {
+      delete( file );
+      throw e;
+    }
+
+    Entry previous = entries( cacheName ).put( key, new Entry( file, idleExpiryMillis ) );
+    if ( previous != null ) {
+      delete( previous.file );
+    }
+    return true;
+  }
+
+  /**
+   * Map an entry back from this tier.
+   *
+   * @return cached service streaming rows from the mapped file, or null if not available
+   */
+  CachedService load( String cacheName, CachedService.CacheKey key ) throws IOException, KettleException {
+    Map<CachedService.CacheKey, Entry> cache = entries( cacheName );
+    Entry entry = cache.get( key );
+    if ( entry == null ) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if ( entry.isExpired( now ) ) {
+      remove( cacheName, key );
+      return null;
+    }
+    entry.lastAccess = now;
+    return CachedServiceCodec.map( entry.file );
+  }
+
+  Set<CachedService.CacheKey> keys( String cacheName ) {
+    return ImmutableSet.copyOf( entries( cacheName ).keySet() );
+  }
+
+  void remove( String cacheName, CachedService.CacheKey key ) {
+    Entry entry = entries( cacheName ).remove( key );
+    if ( entry != null ) {
+      delete( entry.file );
+    }
+  }
+
+  void clear( String cacheName ) {
+    Map<CachedService.CacheKey, Entry> cache = entries.remove( cacheName );
+    if ( cache != null ) {
+      for ( Entry entry : cache.values() ) {
+        delete( entry.file );
+      }
+    }
+  }
+
+  /**
+   * Discard entries past their idle expiry, even if never read again, and delete files under the directory that no
+   * entry refers to, e.g. left by an earlier run.
+   *
+   * @return number of files deleted
+   */
+  int sweep() {
+    int deleted = 0;
+    long now = System.currentTimeMillis();
+    for ( ConcurrentMap<CachedService.CacheKey, Entry> cache : entries.values() ) {
+      for ( Map.Entry<CachedService.CacheKey, Entry> entry : cache.entrySet() ) {
+        if ( entry.getValue().isExpired( now ) && cache.remove( entry.getKey(), entry.getValue() ) ) {
+          delete( entry.getValue().file );
+          deleted++;
+        }
+      }
+    }
+    File[] cacheDirectories = directory.listFiles( File::isDirectory );
+    for ( File cacheDirectory : cacheDirectories == null ? new File[ 0 ] : cacheDirectories ) {
+      File[] stored = cacheDirectory.listFiles( ( dir, name ) -> name.endsWith( FILE_SUFFIX ) );
+      for ( File file : stored == null ? new File[ 0 ] : stored ) {
+        if ( !files.contains( file ) ) {
+          delete( file );
+          deleted++;
+        }
+      }
+    }
+    return deleted;
+  }
+
+  private ConcurrentMap<CachedService.CacheKey, Entry> entries( String cacheName ) {
+    return entries.computeIfAbsent( cacheName, name -> new ConcurrentHashMap<>() );
+  }
+
+  private void delete( File file ) {
+    // Mapped files may not be deletable while mapped on some platforms
+    if ( file.exists() && !file.delete() ) {
+      file.deleteOnExit();
+    }
+    files.remove( file );
+  }
+
+  private static final class Entry {
+    private final File file;
+    private final long idleExpiryMillis;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    Entry( File file, long idleExpiryMillis ) {
+      this.file = file;
+      this.idleExpiryMillis = idleExpiryMillis;
+    }
+
+    boolean isExpired( long now ) {
+      return idleExpiryMillis > 0 && now - lastAccess > idleExpiryMillis;
+    }
+  }
+}
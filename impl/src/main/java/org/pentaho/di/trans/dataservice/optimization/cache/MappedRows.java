@@ -0,0 +1,90 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only view of rows kept in a memory-mapped file written by {@link CachedServiceCodec}.
+ * <p>
+ * Row data stays outside of the heap. Each access decodes a single row, so iterating streams the rows back in order.
+ */
+class MappedRows extends AbstractList<RowMetaAndData> implements RandomAccess {
+  private final RowMetaInterface rowMeta;
+  private final ByteBuffer buffer;
+  private final int size;
+  private final int offsetTable;
+
+  /**
+   * @param rowMeta     layout shared by all rows
+   * @param buffer      mapped file contents
+   * @param size        number of rows
+   * @param offsetTable position of the table holding the start position of each row
+   */
+  MappedRows( RowMetaInterface rowMeta, ByteBuffer buffer, int size, int offsetTable ) {
+    this.rowMeta = rowMeta;
+    this.buffer = buffer;
+    this.size = size;
+    this.offsetTable = offsetTable;
+  }
+
+  @Override public RowMetaAndData get( int index ) {
+    try {
+      return new RowMetaAndData( rowMeta, rowMeta.readData( row( index ) ) );
+    } catch ( KettleException | IOException e ) {
+      throw new IllegalStateException( "Unable to read cached row " + index, e );
+    }
+  }
+
+  /**
+   * Read a single value, decoding only the fields up to it.
+   */
+  Object getValue( int index, int column ) {
+    try {
+      DataInputStream row = row( index );
+      Object value = null;
+      for ( int i = 0; i <= column; i++ ) {
+        value = rowMeta.getValueMeta( i ).readData( row );
+      }
+      return value;
+    } catch ( KettleException | IOException e ) {
+      throw new IllegalStateException( "Unable to read cached row " + index, e );
+    }
+  }
+
+  private DataInputStream row( int index ) {
+    if ( index < 0 || index >= size ) {
+      throw new IndexOutOfBoundsException( "Index: " + index + ", Size: " + size );
+    }
+    ByteBuffer row = buffer.duplicate();
+    row.position( buffer.getInt( offsetTable + index * Integer.BYTES ) );
+    return new DataInputStream( new ByteBufferInputStream( row ) );
+  }
+
+  @Override public int size() {
+    return size;
+  }
+
+  RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+}
@@ -0,0 +1,227 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableSet;
+import org.pentaho.di.core.exception.KettleException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Disk store of cached services, kept across restarts.
+ * <p>
+ * Each entry is a pair of files: the cache name and serialized {@link CachedService.CacheKey}, and the rows written by
+ * {@link CachedServiceCodec}. A data service's entries are indexed the first time the service is queried, entries
+ * recorded for another cache name are left alone.
+ * Entries built from another version of the service transformation are deleted at that point.
+ */
+class PersistentCacheStore {
+  private static final String KEY_SUFFIX = ".key";
+  private static final String ROWS_SUFFIX = ".rows";
+  private static final ObjectInputFilter KEY_FILTER = ObjectInputFilter.Config.createFilter(
+    "org.pentaho.di.trans.dataservice.optimization.cache.*;com.google.common.**;"
+      + "java.lang.*;java.util.*;java.math.*;java.sql.Timestamp;!*" );
+
+  private final File directory;
+  private final ConcurrentMap<String, ConcurrentMap<CachedService.CacheKey, File>> index = new ConcurrentHashMap<>();
+
+  PersistentCacheStore( File directory ) {
+    this.directory = directory;
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Snapshot a cached service, replacing any entry with the same key.
+   *
+   * @return true if the entry was written
+   */
+  boolean save( String cacheName, CachedService.CacheKey key, CachedService cachedService )
+    throws IOException, KettleException {
+    if ( !CachedServiceCodec.canEncode( cachedService ) ) {
+      return false;
+    }
+    File cacheDirectory = cacheDirectory( cacheName );
+    if ( !cacheDirectory.isDirectory() && !cacheDirectory.mkdirs() ) {
+      throw new IOException( "Unable to create cache directory " + cacheDirectory );
+    }
+    String id = UUID.randomUUID().toString();
+    File rows = new File( cacheDirectory, id + ROWS_SUFFIX );
+    File keyFile = new File( cacheDirectory, id + KEY_SUFFIX );
+    File tmp = new File( cacheDirectory, id + KEY_SUFFIX + ".tmp" );
+    try {
+      CachedServiceCodec.write( cachedService, rows );
+      try ( ObjectOutputStream out = new ObjectOutputStream( new FileOutputStream( tmp ) ) ) {
+        out.writeUTF( cacheName );
+        out.writeObject( key );
+      }
+      // The key file marks a complete entry
+      Files.move( tmp.toPath(), keyFile.toPath(), StandardCopyOption.ATOMIC_MOVE );
+    } catch ( IOException | KettleException | RuntimeException e ) {
+      delete( tmp );
+      delete( rows );
+      throw e;
+    }
+
+    File previous = index( cacheName ).put( key, rows );
+    if ( previous != null ) {
+      deleteEntry( previous );
+    }
+    return true;
+  }
+
+  boolean contains( String cacheName, CachedService.CacheKey key ) {
+    return index( cacheName ).containsKey( key );
+  }
+
+  /**
+   * Map a stored entry.
+   *
+   * @param timeToLiveMillis entries not read within this time are discarded, or 0 to keep them indefinitely
+   * @return cached service streaming rows from disk, or null if not found
+   */
+  CachedService load( String cacheName, CachedService.CacheKey key, long timeToLiveMillis )
+    throws IOException, KettleException {
+    Map<CachedService.CacheKey, File> entries = index( cacheName );
+    discardOtherVersions( entries, key.getTransMetaVersionId() );
+
+    File rows = entries.get( key );
+    if ( rows == null ) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if ( timeToLiveMillis > 0 && now - rows.lastModified() > timeToLiveMillis ) {
+      remove( cacheName, key );
+      return null;
+    }
+    // Access time is kept as modification time, so expiry is measured from the last read
+    rows.setLastModified( now );
+    return CachedServiceCodec.map( rows );
+  }
+
+  Set<CachedService.CacheKey> keys( String cacheName ) {
+    return ImmutableSet.copyOf( index( cacheName ).keySet() );
+  }
+
+  void remove( String cacheName, CachedService.CacheKey key ) {
+    File rows = index( cacheName ).remove( key );
+    if ( rows != null ) {
+      deleteEntry( rows );
+    }
+  }
+
+  void clear( String cacheName ) {
+    for ( File rows : index( cacheName ).values() ) {
+      deleteEntry( rows );
+    }
+    index.remove( cacheName );
+  }
+
+  private ConcurrentMap<CachedService.CacheKey, File> index( String cacheName ) {
+    return index.computeIfAbsent( cacheName, this::scan );
+  }
+
+  /**
+   * Read all keys stored for a cache. Incomplete or unreadable entries are deleted.
+   */
+  private ConcurrentMap<CachedService.CacheKey, File> scan( String cacheName ) {
+    ConcurrentMap<CachedService.CacheKey, File> entries = new ConcurrentHashMap<>();
+    Set<File> foreign = new HashSet<>();
+    File[] keyFiles = cacheDirectory( cacheName ).listFiles( ( dir, name ) -> name.endsWith( KEY_SUFFIX ) );
+    if ( keyFiles == null ) {
+      return entries;
+    }
+    for ( File keyFile : keyFiles ) {
+      File rows = rowsFile( keyFile );
+      try ( ObjectInputStream in = new ObjectInputStream( new FileInputStream( keyFile ) ) ) {
+        in.setObjectInputFilter( KEY_FILTER );
+        if ( !cacheName.equals( in.readUTF() ) ) {
+          // The keys do not name the service, another cache's entries must never be served or deleted
+          foreign.add( rows );
+          continue;
+        }
+        CachedService.CacheKey key = (CachedService.CacheKey) in.readObject();
+        if ( rows.isFile() ) {
+          File previous = entries.put( key, rows );
+          if ( previous != null ) {
+            deleteEntry( previous );
+          }
+          continue;
+        }
+      } catch ( IOException | ClassNotFoundException | ClassCastException e ) {
+        // Written by an incompatible version, discard below
+      }
+      delete( keyFile );
+      delete( rows );
+    }
+    // Rows left without a key by an interrupted write
+    File[] rowFiles = cacheDirectory( cacheName ).listFiles( ( dir, name ) -> name.endsWith( ROWS_SUFFIX ) );
+    for ( File rows : rowFiles == null ? new File[ 0 ] : rowFiles ) {
+      if ( !entries.containsValue( rows ) && !foreign.contains( rows ) ) {
+        delete( rows );
+      }
+    }
+    return entries;
+  }
+
+  private static void discardOtherVersions( Map<CachedService.CacheKey, File> entries, int transMetaVersionId ) {
+    for ( Iterator<Map.Entry<CachedService.CacheKey, File>> iterator = entries.entrySet().iterator();
+          iterator.hasNext(); ) {
+      Map.Entry<CachedService.CacheKey, File> entry = iterator.next();
+      if ( entry.getKey().getTransMetaVersionId() != transMetaVersionId ) {
+        iterator.remove();
+        deleteEntry( entry.getValue() );
+      }
+    }
+  }
+
+  private File cacheDirectory( String cacheName ) {
+    return new File( directory, CacheFileNames.directoryName( cacheName ) );
+  }
+
+  private static File rowsFile( File keyFile ) {
+    String name = keyFile.getName();
+    return new File( keyFile.getParentFile(), name.substring( 0, name.length() - KEY_SUFFIX.length() ) + ROWS_SUFFIX );
+  }
+
+  private static void deleteEntry( File rows ) {
+    String name = rows.getName();
+    delete( new File( rows.getParentFile(), name.substring( 0, name.length() - ROWS_SUFFIX.length() ) + KEY_SUFFIX ) );
+    delete( rows );
+  }
+
+  private static void delete( File file ) {
+    // Mapped files may not be deletable while mapped on some platforms
+    if ( file.exists() && !file.delete() ) {
+      file.deleteOnExit();
+    }
+  }
+}
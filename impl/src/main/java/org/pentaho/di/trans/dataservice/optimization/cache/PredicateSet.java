@@ -0,0 +1,387 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.pentaho.di.core.Condition;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaAndData;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationException;
+import org.pentaho.di.trans.dataservice.optimization.ValueMetaResolver;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Conjunction of single field predicates describing a WHERE condition.
+ * <p>
+ * Only conditions made of AND-ed equalities, IN lists, ranges and NOT NULL checks against constants can be
+ * described. Ranges are only used for numeric and date fields, where natural ordering matches Kettle's comparison.
+ * Two predicate sets can be tested for containment, telling whether rows matching one also match the other.
+ */
+final class PredicateSet implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final ImmutableMap<String, FieldPredicate> fields;
+
+  private PredicateSet( ImmutableMap<String, FieldPredicate> fields ) {
+    this.fields = fields;
+  }
+
+  /**
+   * Describe a condition, with values typed according to the service fields.
+   *
+   * @param condition     WHERE condition of a query
+   * @param serviceFields fields produced by the service
+   * @return predicate set, or absent if the condition can not be described
+   */
+  static Optional<PredicateSet> fromCondition( Condition condition, RowMetaInterface serviceFields ) {
+    if ( condition == null || serviceFields == null ) {
+      return Optional.absent();
+    }
+    try {
+      Map<String, FieldPredicate> fields = Maps.newHashMap();
+      if ( !collect( condition, new ValueMetaResolver( serviceFields ), fields ) ) {
+        return Optional.absent();
+      }
+      return Optional.of( new PredicateSet( ImmutableMap.copyOf( fields ) ) );
+    } catch ( PushDownOptimizationException | RuntimeException e ) {
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Tests if every row matching <code>narrower</code> also matches this predicate set.
+   */
+  boolean contains( PredicateSet narrower ) {
+    for ( FieldPredicate predicate : narrower.fields.values() ) {
+      if ( predicate.isUnsatisfiable() ) {
+        return true;
+      }
+    }
+    for ( Map.Entry<String, FieldPredicate> entry : fields.entrySet() ) {
+      FieldPredicate other = narrower.fields.get( entry.getKey() );
+      if ( other == null || !entry.getValue().contains( other ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  Set<String> getFieldNames() {
+    return fields.keySet();
+  }
+
+  /**
+   * Find rows that may match the predicate on a field.
+   *
+   * @param fieldName field restricted by this predicate set
+   * @param index     index of that field
+   * @return rows that may match, or null if the predicate can not be answered by the index
+   */
+  BitSet lookup( String fieldName, RowIndex index ) {
+    FieldPredicate predicate = fields.get( fieldName );
+    return predicate == null ? null : predicate.lookup( index );
+  }
+
+  @Override public boolean equals( Object o ) {
+    return this == o || o instanceof PredicateSet && fields.equals( ( (PredicateSet) o ).fields );
+  }
+
+  @Override public int hashCode() {
+    return fields.hashCode();
+  }
+
+  @Override public String toString() {
+    return fields.toString();
+  }
+
+  private static boolean collect( Condition condition, ValueMetaResolver resolver,
+                                  Map<String, FieldPredicate> fields ) throws PushDownOptimizationException {
+    if ( condition.isNegated() ) {
+      return false;
+    }
+    if ( !condition.isAtomic() ) {
+      List<Condition> children = condition.getChildren();
+      for ( int i = 0; i < children.size(); i++ ) {
+        Condition child = children.get( i );
+        int operator = child.getOperator();
+        boolean conjunction = operator == Condition.OPERATOR_AND || i == 0 && operator == Condition.OPERATOR_NONE;
+        if ( !conjunction || !collect( child, resolver, fields ) ) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    String fieldName = condition.getLeftValuename();
+    if ( Strings.isNullOrEmpty( fieldName ) || condition.getRightValuename() != null ) {
+      return false;
+    }
+    ValueMetaInterface fieldMeta = resolver.getValueMeta( fieldName );
+    FieldPredicate predicate = fields.get( fieldName );
+    if ( predicate == null ) {
+      predicate = new FieldPredicate();
+      fields.put( fieldName, predicate );
+    }
+
+    int function = condition.getFunction();
+    if ( function == Condition.FUNC_NOT_NULL ) {
+      predicate.notNull = true;
+      return true;
+    }
+    ValueMetaAndData rightExact = condition.getRightExact();
+    if ( rightExact == null || rightExact.getValueData() == null ) {
+      return false;
+    }
+    if ( function == Condition.FUNC_IN_LIST ) {
+      String inList = rightExact.getValueData().toString();
+      return predicate.restrictTo( resolver.inListToTypedObjectArray( fieldName, inList ) );
+    }
+
+    int rightType = rightExact.getValueMeta().getType();
+    if ( fieldMeta.getType() == ValueMetaInterface.TYPE_INTEGER && rightType == ValueMetaInterface.TYPE_NUMBER ) {
+      // Conversion would round the constant
+      return false;
+    }
+    Object value = resolver.getTypedValue( fieldName, rightType, rightExact.getValueData() );
+    switch ( function ) {
+      case Condition.FUNC_EQUAL:
+        return predicate.restrictTo( new Object[] { value } );
+      case Condition.FUNC_LARGER:
+        return predicate.lower( value, false );
+      case Condition.FUNC_LARGER_EQUAL:
+        return predicate.lower( value, true );
+      case Condition.FUNC_SMALLER:
+        return predicate.upper( value, false );
+      case Condition.FUNC_SMALLER_EQUAL:
+        return predicate.upper( value, true );
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isOrdered( Object value ) {
+    return value instanceof Long || value instanceof Double || value instanceof BigDecimal || value instanceof Date;
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private static int compare( Object left, Object right ) {
+    return ( (Comparable<Object>) left ).compareTo( right );
+  }
+
+  /**
+   * Restriction on a single field: an optional set of allowed values, an optional range and a NOT NULL flag.
+   */
+  private static final class FieldPredicate implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private ImmutableSet<Object> values;
+    private Object lower;
+    private boolean lowerInclusive;
+    private Object upper;
+    private boolean upperInclusive;
+    private boolean notNull;
+
+    boolean restrictTo( Object[] allowed ) {
+      Set<Object> allowedSet = Sets.newHashSet();
+      for ( Object value : allowed ) {
+        if ( value == null || !( value instanceof Comparable ) ) {
+          return false;
+        }
+        allowedSet.add( value );
+      }
+      values = ImmutableSet.copyOf( values == null ? allowedSet : Sets.intersection( values, allowedSet ) );
+      return true;
+    }
+
+    boolean lower( Object value, boolean inclusive ) {
+      if ( !isOrdered( value ) || lower != null && lower.getClass() != value.getClass() ) {
+        return false;
+      }
+      int comparison = lower == null ? 1 : compare( value, lower );
+      if ( comparison > 0 || comparison == 0 && !inclusive ) {
+        lower = value;
+        lowerInclusive = inclusive;
+      }
+      return true;
+    }
+
+    boolean upper( Object value, boolean inclusive ) {
+      if ( !isOrdered( value ) || upper != null && upper.getClass() != value.getClass() ) {
+        return false;
+      }
+      int comparison = upper == null ? -1 : compare( value, upper );
+      if ( comparison < 0 || comparison == 0 && !inclusive ) {
+        upper = value;
+        upperInclusive = inclusive;
+      }
+      return true;
+    }
+
+    /**
+     * Null never equals a constant and sorts below any lower bound. Upper bounds alone may still match nulls.
+     */
+    boolean excludesNull() {
+      return notNull || values != null || lower != null;
+    }
+
+    boolean inRange( Object value ) {
+      if ( lower != null ) {
+        if ( value.getClass() != lower.getClass() ) {
+          return false;
+        }
+        int comparison = compare( value, lower );
+        if ( comparison < 0 || comparison == 0 && !lowerInclusive ) {
+          return false;
+        }
+      }
+      if ( upper != null ) {
+        if ( value.getClass() != upper.getClass() ) {
+          return false;
+        }
+        int comparison = compare( value, upper );
+        if ( comparison > 0 || comparison == 0 && !upperInclusive ) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return allowed values within range, or null if values are not restricted to a set
+     */
+    Set<Object> effectiveValues() {
+      if ( values == null ) {
+        boolean point = lower != null && upper != null && lowerInclusive && upperInclusive
+          && lower.getClass() == upper.getClass() && compare( lower, upper ) == 0;
+        return point ? ImmutableSet.of( lower ) : null;
+      }
+      Set<Object> inRange = Sets.newHashSet();
+      for ( Object value : values ) {
+        if ( inRange( value ) ) {
+          inRange.add( value );
+        }
+      }
+      return inRange;
+    }
+
+    BitSet lookup( RowIndex index ) {
+      Set<Object> effective = effectiveValues();
+      if ( effective != null ) {
+        return index.equalTo( effective );
+      }
+      if ( lower != null || upper != null ) {
+        return index.range( lower, lowerInclusive, upper, upperInclusive );
+      }
+      return null;
+    }
+
+    boolean isUnsatisfiable() {
+      Set<Object> effective = effectiveValues();
+      if ( effective != null ) {
+        return effective.isEmpty();
+      }
+      if ( lower != null && upper != null && lower.getClass() == upper.getClass() ) {
+        int comparison = compare( lower, upper );
+        return comparison > 0 || comparison == 0 && !( lowerInclusive && upperInclusive );
+      }
+      return false;
+    }
+
+    /**
+     * Tests if every value matching <code>other</code> also matches this predicate.
+     */
+    boolean contains( FieldPredicate other ) {
+      if ( excludesNull() && !other.excludesNull() ) {
+        return false;
+      }
+      Set<Object> otherValues = other.effectiveValues();
+      if ( otherValues != null ) {
+        for ( Object value : otherValues ) {
+          if ( values != null && !values.contains( value ) || !inRange( value ) ) {
+            return false;
+          }
+        }
+        return true;
+      }
+      if ( values != null ) {
+        return false;
+      }
+      return lowerContains( other ) && upperContains( other );
+    }
+
+    private boolean lowerContains( FieldPredicate other ) {
+      if ( lower == null ) {
+        return true;
+      }
+      if ( other.lower == null || other.lower.getClass() != lower.getClass() ) {
+        return false;
+      }
+      int comparison = compare( other.lower, lower );
+      return comparison > 0 || comparison == 0 && ( lowerInclusive || !other.lowerInclusive );
+    }
+
+    private boolean upperContains( FieldPredicate other ) {
+      if ( upper == null ) {
+        return true;
+      }
+      if ( other.upper == null || other.upper.getClass() != upper.getClass() ) {
+        return false;
+      }
+      int comparison = compare( other.upper, upper );
+      return comparison < 0 || comparison == 0 && ( upperInclusive || !other.upperInclusive );
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( this == o ) {
+        return true;
+      }
+      if ( !( o instanceof FieldPredicate ) ) {
+        return false;
+      }
+      FieldPredicate that = (FieldPredicate) o;
+      return notNull == that.notNull && lowerInclusive == that.lowerInclusive && upperInclusive == that.upperInclusive
+        && Objects.equal( values, that.values )
+        && Objects.equal( lower, that.lower )
+        && Objects.equal( upper, that.upper );
+    }
+
+    @Override public int hashCode() {
+      return Objects.hashCode( values, lower, upper, notNull );
+    }
+
+    @Override public String toString() {
+      return MoreObjects.toStringHelper( this ).omitNullValues()
+        .add( "values", values )
+        .add( "lower", lower == null ? null : ( lowerInclusive ? "[" : "(" ) + lower )
+        .add( "upper", upper == null ? null : upper + ( upperInclusive ? "]" : ")" ) )
+        .add( "notNull", notNull )
+        .toString();
+    }
+  }
+}
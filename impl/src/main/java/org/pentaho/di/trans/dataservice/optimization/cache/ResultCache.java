@@ -0,0 +1,313 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the final output of generated transformations, so identical queries can be answered without running
+ * either transformation.
+ * <p>
+ * Results are keyed by data service, service transformation version, normalized SQL, parameters and row limits.
+ * Time to live and size are configured apart from the service caches. The cache is disabled until both are set.
+ * <p>
+ * Transformations of a query answered from this cache are never started. They are marked finished, with a log line
+ * saying so, so clients polling the ids sent in the query header see a completed query.
+ */
+public class ResultCache {
+  private long timeToLiveSeconds;
+  private long maxBytes;
+  private volatile Cache<Key, Result> results;
+
+  /**
+   * @param timeToLiveSeconds seconds a result is kept after being cached, or 0 to disable the cache
+   */
+  public synchronized void setTimeToLiveSeconds( long timeToLiveSeconds ) {
+    this.timeToLiveSeconds = timeToLiveSeconds;
+    rebuild();
+  }
+
+  public synchronized long getTimeToLiveSeconds() {
+    return timeToLiveSeconds;
+  }
+
+  /**
+   * @param maxBytes approximate number of bytes all cached results may use, or 0 to disable the cache
+   */
+  public synchronized void setMaxBytes( long maxBytes ) {
+    this.maxBytes = maxBytes;
+    rebuild();
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public boolean isEnabled() {
+    return results != null;
+  }
+
+  /**
+   * Find the result of a query executed before.
+   *
+   * @return cached result, or absent if the query has to be executed
+   */
+  public Optional<Result> get( DataServiceExecutor executor ) {
+    Cache<Key, Result> cache = results;
+    if ( cache == null ) {
+      return Optional.absent();
+    }
+    Optional<Key> key = Key.create( executor );
+    return key.isPresent() ? Optional.fromNullable( cache.getIfPresent( key.get() ) ) : Optional.<Result>absent();
+  }
+
+  /**
+   * Start collecting the result of a query as it is written to the client.
+   *
+   * @return collector, or null if the result of this query can not be cached
+   */
+  public Collector collect( DataServiceExecutor executor ) {
+    Cache<Key, Result> cache = results;
+    if ( cache == null ) {
+      return null;
+    }
+    Optional<Key> key = Key.create( executor );
+    return key.isPresent() ? new Collector( cache, key.get(), getMaxBytes() ) : null;
+  }
+
+  /**
+   * Discard all results of a data service.
+   */
+  public void invalidate( String dataServiceName ) {
+    Cache<Key, Result> cache = results;
+    if ( cache != null ) {
+      for ( Key key : cache.asMap().keySet() ) {
+        if ( key.serviceName.equals( dataServiceName ) ) {
+          cache.invalidate( key );
+        }
+      }
+    }
+  }
+
+  private void rebuild() {
+    if ( timeToLiveSeconds <= 0 || maxBytes <= 0 ) {
+      results = null;
+      return;
+    }
+    results = CacheBuilder.newBuilder()
+      .expireAfterWrite( timeToLiveSeconds, TimeUnit.SECONDS )
+      .maximumWeight( maxBytes )
+      .weigher( new Weigher<Key, Result>() {
+        @Override public int weigh( Key key, Result result ) {
+          return (int) Math.min( Integer.MAX_VALUE, result.estimateBytes() );
+        }
+      } )
+      .build();
+  }
+
+  /**
+   * Final rows of a query, along with their layout.
+   */
+  public static final class Result {
+    private final RowMetaInterface rowMeta;
+    private final List<RowMetaAndData> rows;
+
+    Result( RowMetaInterface rowMeta, List<RowMetaAndData> rows ) {
+      this.rowMeta = rowMeta;
+      this.rows = rows;
+    }
+
+    public RowMetaInterface getRowMeta() {
+      return rowMeta;
+    }
+
+    public List<RowMetaAndData> getRows() {
+      return rows;
+    }
+
+    /**
+     * Write the row metadata and rows, as the generated transformation would.
+     */
+    public void writeTo( DataOutputStream dos ) throws KettleException {
+      rowMeta.writeMeta( dos );
+      for ( RowMetaAndData row : rows ) {
+        rowMeta.writeData( dos, row.getData() );
+      }
+    }
+
+    long estimateBytes() {
+      return CachedService.estimateBytes( rows );
+    }
+  }
+
+  /**
+   * Gathers rows of a running query. Results growing beyond the cache size are abandoned.
+   */
+  public static final class Collector {
+    private final Cache<Key, Result> cache;
+    private final Key key;
+    private final long maxBytes;
+    private final List<RowMetaAndData> rows = Lists.newArrayList();
+    private long bytes;
+    private boolean abandoned;
+
+    Collector( Cache<Key, Result> cache, Key key, long maxBytes ) {
+      this.cache = cache;
+      this.key = key;
+      this.maxBytes = maxBytes;
+    }
+
+    public synchronized void add( RowMetaAndData row ) {
+      if ( abandoned ) {
+        return;
+      }
+      bytes += CachedService.estimateBytes( row );
+      if ( bytes > maxBytes ) {
+        abandoned = true;
+        rows.clear();
+      } else {
+        rows.add( row );
+      }
+    }
+
+    /**
+     * Cache the collected rows. Should only be called once the query has finished without errors.
+     *
+     * @param rowMeta layout of the result, used if no rows were returned
+     */
+    public synchronized void complete( RowMetaInterface rowMeta ) {
+      if ( abandoned ) {
+        return;
+      }
+      RowMetaInterface resultMeta = rows.isEmpty() ? rowMeta : rows.get( 0 ).getRowMeta();
+      cache.put( key, new Result( resultMeta, ColumnarRows.compact( rows ) ) );
+    }
+
+    boolean isAbandoned() {
+      return abandoned;
+    }
+  }
+
+  /**
+   * Identifies queries returning the same result: same service, service transformation version, normalized SQL,
+   * parameters and row limits.
+   */
+  public static final class Key {
+    private final String serviceName;
+    private final int version;
+    private final String sql;
+    private final ImmutableMap<String, String> parameters;
+    private final int rowLimit;
+    private final int serviceRowLimit;
+
+    private Key( String serviceName, int version, String sql, Map<String, String> parameters, int rowLimit,
+                 int serviceRowLimit ) {
+      this.serviceName = serviceName;
+      this.version = version;
+      this.sql = sql;
+      this.parameters = ImmutableMap.copyOf( parameters );
+      this.rowLimit = rowLimit;
+      this.serviceRowLimit = serviceRowLimit;
+    }
+
+    /**
+     * @return key of the query, or absent if results of the query can not be shared
+     */
+    public static Optional<Key> create( DataServiceExecutor executor ) {
+      if ( executor.getService().isStreaming() ) {
+        return Optional.absent();
+      }
+      int version;
+      try {
+        version = executor.getService().getServiceTrans().getCacheVersion();
+      } catch ( KettleException e ) {
+        return Optional.absent();
+      }
+      return Optional.of( new Key( executor.getServiceName(), version,
+        normalize( executor.getSql().getSqlString() ), executor.getParameters(),
+        executor.getRowLimit(), executor.getServiceRowLimit() ) );
+    }
+
+    /**
+     * Trim and collapse whitespace outside of quoted literals and identifiers.
+     */
+    static String normalize( String sql ) {
+      StringBuilder normalized = new StringBuilder( sql.length() );
+      char quote = 0;
+      boolean space = false;
+      for ( char c : sql.trim().toCharArray() ) {
+        if ( quote == 0 && Character.isWhitespace( c ) ) {
+          space = true;
+          continue;
+        }
+        if ( space ) {
+          normalized.append( ' ' );
+          space = false;
+        }
+        if ( quote == 0 && ( c == '\'' || c == '"' || c == '[' ) ) {
+          quote = c == '[' ? ']' : c;
+        } else if ( c == quote ) {
+          quote = 0;
+        }
+        normalized.append( c );
+      }
+      return normalized.toString();
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( this == o ) {
+        return true;
+      }
+      if ( o == null || getClass() != o.getClass() ) {
+        return false;
+      }
+      Key that = (Key) o;
+      return version == that.version && rowLimit == that.rowLimit && serviceRowLimit == that.serviceRowLimit
+        && serviceName.equals( that.serviceName )
+        && sql.equals( that.sql )
+        && parameters.equals( that.parameters );
+    }
+
+    @Override public int hashCode() {
+      return Objects.hashCode( serviceName, version, sql, parameters, rowLimit, serviceRowLimit );
+    }
+
+    @Override public String toString() {
+      return MoreObjects.toStringHelper( this )
+        .add( "serviceName", serviceName )
+        .add( "version", version )
+        .add( "sql", sql )
+        .add( "parameters", parameters )
+        .add( "rowLimit", rowLimit )
+        .add( "serviceRowLimit", serviceRowLimit )
+        .toString();
+    }
+  }
+}
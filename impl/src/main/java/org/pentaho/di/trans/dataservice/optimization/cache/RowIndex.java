@@ -0,0 +1,242 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of a single field of cached rows, used to find the rows that may match a WHERE predicate without replaying
+ * every row.
+ * <p>
+ * Integer, number, string and boolean fields are hashed for equality and IN lookups. Integer, number, big number and
+ * date fields are also sorted for range lookups. Values are matched with their natural equality and ordering, which
+ * agree with Kettle's comparison for these types; other fields are not indexed.
+ */
+final class RowIndex {
+  private final Class<?> valueClass;
+  private final int size;
+  private final BitSet nullRows;
+  private final Map<Object, int[]> hashed;
+  private final Object[] sortedValues;
+  private final int[] sortedRows;
+
+  private RowIndex( Class<?> valueClass, int size, BitSet nullRows, Map<Object, int[]> hashed,
+                    Object[] sortedValues, int[] sortedRows ) {
+    this.valueClass = valueClass;
+    this.size = size;
+    this.nullRows = nullRows;
+    this.hashed = hashed;
+    this.sortedValues = sortedValues;
+    this.sortedRows = sortedRows;
+  }
+
+  /**
+   * Index a field of rows sharing a single layout.
+   *
+   * @return index, or absent if the field can not be indexed
+   */
+  static Optional<RowIndex> build( List<RowMetaAndData> rows, String fieldName ) {
+    if ( rows.isEmpty() ) {
+      return Optional.absent();
+    }
+    RowMetaInterface rowMeta = rows.get( 0 ).getRowMeta();
+    int fieldIndex = rowMeta.indexOfValue( fieldName );
+    ValueMetaInterface valueMeta = fieldIndex < 0 ? null : rowMeta.getValueMeta( fieldIndex );
+    if ( valueMeta == null || !valueMeta.isStorageNormal() ) {
+      return Optional.absent();
+    }
+    Class<?> valueClass;
+    boolean hash, sort;
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_INTEGER:
+        valueClass = Long.class;
+        hash = sort = true;
+        break;
+      case ValueMetaInterface.TYPE_NUMBER:
+        valueClass = Double.class;
+        hash = sort = true;
+        break;
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        // BigDecimal equality depends on scale
+        valueClass = BigDecimal.class;
+        hash = false;
+        sort = true;
+        break;
+      case ValueMetaInterface.TYPE_DATE:
+        valueClass = Date.class;
+        hash = false;
+        sort = true;
+        break;
+      case ValueMetaInterface.TYPE_STRING:
+        valueClass = String.class;
+        hash = !valueMeta.isCaseInsensitive();
+        sort = false;
+        break;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        valueClass = Boolean.class;
+        hash = true;
+        sort = false;
+        break;
+      default:
+        return Optional.absent();
+    }
+    if ( !hash && !sort ) {
+      return Optional.absent();
+    }
+
+    BitSet nullRows = new BitSet( rows.size() );
+    Map<Object, List<Integer>> rowsByValue = Maps.newHashMap();
+    final Object[] values = new Object[ rows.size() ];
+    List<Integer> nonNull = Lists.newArrayListWithCapacity( rows.size() );
+    for ( int i = 0; i < rows.size(); i++ ) {
+      Object value = rows.get( i ).getData()[ fieldIndex ];
+      if ( value == null ) {
+        nullRows.set( i );
+        continue;
+      }
+      if ( value.getClass() != valueClass ) {
+        return Optional.absent();
+      }
+      values[ i ] = value;
+      nonNull.add( i );
+      if ( hash ) {
+        List<Integer> matching = rowsByValue.get( value );
+        if ( matching == null ) {
+          rowsByValue.put( value, matching = Lists.newArrayList() );
+        }
+        matching.add( i );
+      }
+    }
+
+    Map<Object, int[]> hashed = null;
+    if ( hash ) {
+      ImmutableMap.Builder<Object, int[]> builder = ImmutableMap.builder();
+      for ( Map.Entry<Object, List<Integer>> entry : rowsByValue.entrySet() ) {
+        builder.put( entry.getKey(), Ints.toArray( entry.getValue() ) );
+      }
+      hashed = builder.build();
+    }
+    Object[] sortedValues = null;
+    int[] sortedRows = null;
+    if ( sort ) {
+      Integer[] order = nonNull.toArray( new Integer[ 0 ] );
+      Arrays.sort( order, new Comparator<Integer>() {
+        @Override public int compare( Integer left, Integer right ) {
+          return RowIndex.compare( values[ left ], values[ right ] );
+        }
+      } );
+      sortedValues = new Object[ order.length ];
+      sortedRows = new int[ order.length ];
+      for ( int i = 0; i < order.length; i++ ) {
+        sortedRows[ i ] = order[ i ];
+        sortedValues[ i ] = values[ order[ i ] ];
+      }
+    }
+    return Optional.of( new RowIndex( valueClass, rows.size(), nullRows, hashed, sortedValues, sortedRows ) );
+  }
+
+  /**
+   * @return rows holding one of the values, or null if the lookup can not be answered by this index
+   */
+  BitSet equalTo( Collection<Object> values ) {
+    if ( !accepts( values.toArray() ) ) {
+      return null;
+    }
+    BitSet rows = new BitSet( size );
+    for ( Object value : values ) {
+      if ( hashed != null ) {
+        int[] matching = hashed.get( value );
+        for ( int row : matching == null ? new int[ 0 ] : matching ) {
+          rows.set( row );
+        }
+      } else if ( sortedValues != null ) {
+        rows.or( range( value, true, value, true ) );
+      } else {
+        return null;
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Rows within a range. Without a lower bound, null values are included since they sort below any value.
+   *
+   * @param lower lower bound, or null if unbounded
+   * @param upper upper bound, or null if unbounded
+   * @return rows within the range, or null if the lookup can not be answered by this index
+   */
+  BitSet range( Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive ) {
+    if ( sortedValues == null || !accepts( lower, upper ) ) {
+      return null;
+    }
+    int from = lower == null ? 0 : search( lower, !lowerInclusive );
+    int to = upper == null ? sortedValues.length : search( upper, upperInclusive );
+    BitSet rows = new BitSet( size );
+    for ( int i = from; i < to; i++ ) {
+      rows.set( sortedRows[ i ] );
+    }
+    if ( lower == null ) {
+      rows.or( nullRows );
+    }
+    return rows;
+  }
+
+  private boolean accepts( Object... values ) {
+    for ( Object value : values ) {
+      if ( value != null && value.getClass() != valueClass ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param after true to find the first position after values equal to <code>value</code>
+   * @return first sorted position holding a value larger than (or, unless <code>after</code>, equal to) the value
+   */
+  private int search( Object value, boolean after ) {
+    int low = 0, high = sortedValues.length;
+    while ( low < high ) {
+      int middle = ( low + high ) >>> 1;
+      int comparison = compare( sortedValues[ middle ], value );
+      if ( comparison < 0 || after && comparison == 0 ) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private static int compare( Object left, Object right ) {
+    return ( (Comparable<Object>) left ).compareTo( right );
+  }
+}
@@ -0,0 +1,188 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.core.sql.SQLField;
+import org.pentaho.di.core.sql.SQLFields;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+
+import java.util.List;
+
+/**
+ * ORDER BY fields of a query, resolved against the service fields.
+ * <p>
+ * Rows sorted here are ordered as the generated transformation's sort step would order them, so a query can be
+ * answered by injecting sorted cached rows in place of that step. Only queries whose rows reach the sort step in
+ * injection order are described: aggregation, grouping and service row limits change which rows are sorted.
+ */
+final class RowOrdering {
+  private final ImmutableList<String> fieldNames;
+  private final ImmutableList<Boolean> ascending;
+
+  private RowOrdering( ImmutableList<String> fieldNames, ImmutableList<Boolean> ascending ) {
+    this.fieldNames = fieldNames;
+    this.ascending = ascending;
+  }
+
+  /**
+   * @return ordering of the query, or absent if its ORDER BY can not be applied to injected rows
+   */
+  static Optional<RowOrdering> forQuery( DataServiceExecutor executor ) {
+    SQL sql = executor.getSql();
+    SQLFields orderFields = sql.getOrderFields();
+    SQLFields selectFields = sql.getSelectFields();
+    RowMetaInterface serviceFields = sql.getRowMeta();
+    if ( orderFields == null || orderFields.isEmpty() || serviceFields == null
+      || selectFields.hasAggregates() || !sql.getGroupFields().getFields().isEmpty()
+      || executor.getServiceRowLimit() > 0 ) {
+      return Optional.absent();
+    }
+
+    ImmutableList.Builder<String> fieldNames = ImmutableList.builder();
+    ImmutableList.Builder<Boolean> ascending = ImmutableList.builder();
+    for ( SQLField orderField : orderFields.getFields() ) {
+      if ( orderField.getIif() != null ) {
+        return Optional.absent();
+      }
+      // Resolve fields as the sort step does: by name, then through a selected field's alias
+      ValueMetaInterface valueMeta = serviceFields.searchValueMeta( orderField.getField() );
+      if ( valueMeta == null ) {
+        SQLField selectField =
+          SQLField.searchSQLFieldByFieldOrAlias( selectFields.getFields(), orderField.getField() );
+        valueMeta =
+          serviceFields.searchValueMeta( selectField != null ? selectField.getField() : orderField.getAlias() );
+      }
+      if ( valueMeta == null ) {
+        return Optional.absent();
+      }
+      fieldNames.add( valueMeta.getName() );
+      ascending.add( orderField.isAscending() );
+    }
+    return Optional.of( new RowOrdering( fieldNames.build(), ascending.build() ) );
+  }
+
+  /**
+   * Sort rows sharing a single layout. Equal rows keep their relative order.
+   *
+   * @return permutation listing row indexes in order, or null if a field is missing from the rows
+   */
+  int[] sort( List<RowMetaAndData> rows ) throws KettleValueException {
+    if ( rows.isEmpty() ) {
+      return new int[ 0 ];
+    }
+    RowMetaInterface rowMeta = rows.get( 0 ).getRowMeta();
+    int[] indexes = new int[ fieldNames.size() ];
+    for ( int i = 0; i < indexes.length; i++ ) {
+      indexes[ i ] = rowMeta.indexOfValue( fieldNames.get( i ) );
+      if ( indexes[ i ] < 0 ) {
+        return null;
+      }
+    }
+
+    // Only the ordered fields are read, through the columns where rows are stored column-wise or mapped
+    ValueMetaInterface[] valueMetas = new ValueMetaInterface[ indexes.length ];
+    Object[][] keys = new Object[ indexes.length ][ rows.size() ];
+    for ( int i = 0; i < indexes.length; i++ ) {
+      valueMetas[ i ] = rowMeta.getValueMeta( indexes[ i ] );
+      for ( int row = 0; row < rows.size(); row++ ) {
+        keys[ i ][ row ] = value( rows, row, indexes[ i ] );
+      }
+    }
+
+    int[] permutation = new int[ rows.size() ];
+    for ( int i = 0; i < permutation.length; i++ ) {
+      permutation[ i ] = i;
+    }
+    mergeSort( permutation, new int[ permutation.length ], 0, permutation.length, valueMetas, keys );
+    return permutation;
+  }
+
+  private static Object value( List<RowMetaAndData> rows, int row, int column ) {
+    if ( rows instanceof ColumnarRows ) {
+      return ( (ColumnarRows) rows ).getValue( row, column );
+    }
+    if ( rows instanceof MappedRows ) {
+      return ( (MappedRows) rows ).getValue( row, column );
+    }
+    Object[] data = rows.get( row ).getData();
+    return column < data.length ? data[ column ] : null;
+  }
+
+  /**
+   * Stable sort of row numbers in [from, to), using scratch as temporary storage.
+   */
+  private void mergeSort( int[] order, int[] scratch, int from, int to, ValueMetaInterface[] valueMetas,
+                          Object[][] keys ) throws KettleValueException {
+    if ( to - from < 2 ) {
+      return;
+    }
+    int middle = ( from + to ) >>> 1;
+    mergeSort( order, scratch, from, middle, valueMetas, keys );
+    mergeSort( order, scratch, middle, to, valueMetas, keys );
+    if ( compare( order[ middle - 1 ], order[ middle ], valueMetas, keys ) <= 0 ) {
+      return;
+    }
+    System.arraycopy( order, from, scratch, from, to - from );
+    int left = from, right = middle;
+    for ( int i = from; i < to; i++ ) {
+      if ( right >= to || left < middle && compare( scratch[ left ], scratch[ right ], valueMetas, keys ) <= 0 ) {
+        order[ i ] = scratch[ left++ ];
+      } else {
+        order[ i ] = scratch[ right++ ];
+      }
+    }
+  }
+
+  private int compare( int left, int right, ValueMetaInterface[] valueMetas, Object[][] keys )
+    throws KettleValueException {
+    for ( int i = 0; i < valueMetas.length; i++ ) {
+      int comparison = valueMetas[ i ].compare( keys[ i ][ left ], keys[ i ][ right ] );
+      if ( comparison != 0 ) {
+        return ascending.get( i ) ? comparison : -comparison;
+      }
+    }
+    return 0;
+  }
+
+  @Override public boolean equals( Object o ) {
+    if ( this == o ) {
+      return true;
+    }
+    if ( !( o instanceof RowOrdering ) ) {
+      return false;
+    }
+    RowOrdering that = (RowOrdering) o;
+    return fieldNames.equals( that.fieldNames ) && ascending.equals( that.ascending );
+  }
+
+  @Override public int hashCode() {
+    return Objects.hashCode( fieldNames, ascending );
+  }
+
+  @Override public String toString() {
+    return MoreObjects.toStringHelper( this )
+      .add( "fieldNames", fieldNames )
+      .add( "ascending", ascending )
+      .toString();
+  }
+}
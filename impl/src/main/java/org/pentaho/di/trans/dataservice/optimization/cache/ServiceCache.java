@@ -15,8 +15,12 @@ package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -40,6 +44,7 @@ import javax.cache.expiry.ExpiryPolicy;
 import java.text.MessageFormat;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Predicates.instanceOf;
@@ -56,6 +61,10 @@ public class ServiceCache extends StepOptimization {
   private final ServiceCacheFactory factory;
   public static final String SERVICE_CACHE_TEMPLATE_NAME = "template_name";
   public static final String SERVICE_CACHE_TTL = "time_to_live";
+  public static final String SERVICE_CACHE_REFRESH_AHEAD = "refresh_ahead";
+  public static final String SERVICE_CACHE_WARM_UP_QUERIES = "warm_up_queries";
+  public static final String SERVICE_CACHE_WARM_UP_TIMES = "warm_up_times";
+  public static final String SERVICE_CACHE_INDEXED_FIELDS = "indexed_fields";
 
   @MetaStoreAttribute( key = SERVICE_CACHE_TEMPLATE_NAME )
   private String templateName = DEFAULT_TEMPLATE;
@@ -63,6 +72,18 @@ public class ServiceCache extends StepOptimization {
   @MetaStoreAttribute( key = SERVICE_CACHE_TTL )
   private String timeToLive;
 
+  @MetaStoreAttribute( key = SERVICE_CACHE_REFRESH_AHEAD )
+  private String refreshAhead;
+
+  @MetaStoreAttribute( key = SERVICE_CACHE_WARM_UP_QUERIES )
+  private String warmUpQueries;
+
+  @MetaStoreAttribute( key = SERVICE_CACHE_WARM_UP_TIMES )
+  private String warmUpTimes;
+
+  @MetaStoreAttribute( key = SERVICE_CACHE_INDEXED_FIELDS )
+  private String indexedFields;
+
   public ServiceCache( ServiceCacheFactory factory ) {
     this.factory = factory;
   }
@@ -75,10 +96,18 @@ public class ServiceCache extends StepOptimization {
     if ( !executor.getService().isStreaming() ) {
       final LogChannelInterface logChannel = executor.getGenTrans().getLogChannel();
 
-      for ( CachedService availableCache : getAvailableCache( executor ).values() ) {
+      // A refresh recomputes the service, so existing entries are not read
+      final boolean refresh = factory.isRefresh( executor );
+      Map<CachedService.CacheKey, CachedService> availableCache =
+        refresh ? ImmutableMap.<CachedService.CacheKey, CachedService>of() : getAvailableCache( executor );
+      for ( Map.Entry<CachedService.CacheKey, CachedService> available : availableCache.entrySet() ) {
         try {
-          ListenableFuture<Integer> replay = factory.createCachedServiceLoader( availableCache ).replay( executor );
-          addReplayCallback( logChannel, replay );
+          ListenableFuture<Integer> replay =
+            factory.createCachedServiceLoader( available.getValue() ).replay( executor );
+          addReplayCallback( executor.getServiceName(), logChannel, replay );
+          factory.promote( this, executor.getServiceName(), available.getKey(), available.getValue() );
+          factory.recordHit( executor.getServiceName() );
+          refreshAhead( executor, available.getKey() );
           return true;
         } catch ( Throwable e ) {
           logChannel.logError( "Unable to replay from cache", e );
@@ -86,28 +115,35 @@ public class ServiceCache extends StepOptimization {
       }
 
       CachedService.CacheKey rootKey = createRootKey( executor );
-      final Map<CachedService.CacheKey, ServiceObserver> runningServices = factory.getRunningServices();
-      if ( runningServices.containsKey( rootKey ) ) {
+      final SharedScanCoordinator sharedScans = factory.getSharedScans();
+      Optional<ServiceObserver> runningService =
+        refresh ? Optional.<ServiceObserver>absent() : sharedScans.attach( rootKey );
+      if ( runningService.isPresent() ) {
         try {
           ListenableFuture<Integer> replay =
-            factory.createCachedServiceLoader( () -> runningServices.get( rootKey ).rows() ).replay( executor );
-          addReplayCallback( logChannel, replay );
+            factory.createCachedServiceLoader( runningService.get()::rows ).replay( executor );
+          addReplayCallback( executor.getServiceName(), logChannel, replay );
+          factory.recordAttached( executor.getServiceName() );
+          logChannel.logDetailed( "Query attached to running service transformation", rootKey );
           return true;
         } catch ( KettleException e ) {
           logChannel.logError( "Unable to replay from running service" );
         }
       }
 
-      ServiceObserver serviceObserver = factory.createObserver( executor );
+      if ( !refresh ) {
+        factory.recordMiss( executor.getServiceName() );
+      }
+      final ServiceObserver serviceObserver = factory.createObserver( executor );
       //only allow replay from this running trans if it's going to return all the rows
       if ( CachedService.calculateRank( executor ) == Integer.MAX_VALUE ) {
-        runningServices.put( rootKey, serviceObserver );
+        sharedScans.register( rootKey, serviceObserver );
       }
       // Allow service transformation to run, observe rows
       Futures.addCallback( serviceObserver.install(), new FutureCallback<CachedService>() {
         @Override public void onSuccess( CachedService result ) {
           if ( executor.isStopped() || executor.hasErrors() ) {
-            runningServices.remove( rootKey );
+            sharedScans.release( rootKey, serviceObserver );
             return;
           }
 
@@ -119,14 +155,23 @@ public class ServiceCache extends StepOptimization {
           if ( result.isComplete() ) {
             key = key.withoutOrder();
           }
-          if ( cache.putIfAbsent( key, result ) ) {
+          if ( factory.rejects( result ) ) {
+            logChannel.logDetailed( "Service Transformation results are too large to cache", key );
+          } else if ( refresh ) {
+            // Readers kept using the previous entry until now
+            cache.put( key, result );
+            logChannel.logBasic( "Service Transformation cache refreshed", key );
+            factory.cached( executor.getServiceName(), key, result );
+          } else if ( cache.putIfAbsent( key, result ) ) {
             logChannel.logBasic( "Service Transformation results cached", key );
+            factory.cached( executor.getServiceName(), key, result );
           } else {
             try {
               CachedService existing = checkNotNull( cache.get( key ) );
               // If the existing result set can't answer this query, replace it
               if ( !existing.answersQuery( executor ) && cache.replace( key, existing, result ) ) {
                 logChannel.logBasic( "Service Transformation cache updated", key );
+                factory.cached( executor.getServiceName(), key, result );
               } else {
                 logChannel.logDetailed( "Service Transformation cache was not updated", key );
               }
@@ -134,11 +179,11 @@ public class ServiceCache extends StepOptimization {
               onFailure( t );
             }
           }
-          runningServices.remove( rootKey );
+          sharedScans.release( rootKey, serviceObserver );
         }
 
         @Override public void onFailure( Throwable t ) {
-          runningServices.remove( rootKey );
+          sharedScans.release( rootKey, serviceObserver );
           logChannel.logError( "Cache failed to observe service transformation", t );
         }
       }, factory.getExecutorService() );
@@ -146,9 +191,23 @@ public class ServiceCache extends StepOptimization {
     return false;
   }
 
-  private void addReplayCallback( final LogChannelInterface logChannel, ListenableFuture<Integer> replay ) {
+  /**
+   * Request a background refresh of an entry used to answer a query, if it is close to expiry.
+   */
+  private void refreshAhead( DataServiceExecutor executor, CachedService.CacheKey key ) {
+    CachedService.CacheKey rootKey = createRootKey( executor );
+    // Only entries produced by this query can be recomputed by running it again
+    if ( key.equals( rootKey ) || key.equals( rootKey.withoutOrder() ) ) {
+      factory.refreshAhead( this, executor, key );
+    }
+  }
+
+  private void addReplayCallback( final String serviceName, final LogChannelInterface logChannel,
+                                  ListenableFuture<Integer> replay ) {
+    final long start = System.nanoTime();
     Futures.addCallback( replay, new FutureCallback<Integer>() {
       @Override public void onSuccess( Integer rowCount ) {
+        factory.recordReplay( serviceName, rowCount, System.nanoTime() - start );
         logChannel.logBasic( "Service Transformation successfully replayed " + rowCount + " rows from cache" );
       }
 
@@ -186,30 +245,67 @@ public class ServiceCache extends StepOptimization {
   Map<CachedService.CacheKey, CachedService> getAvailableCache( final DataServiceExecutor executor ) {
     final Cache<CachedService.CacheKey, CachedService> cache =
         maybeInvalidateCache( executor );
-    if ( cache == null ) {
+    // Entries may still be found on disk, e.g. after a restart
+    if ( cache == null && !factory.hasSecondaryTiers() ) {
       return ImmutableMap.of();
     }
 
     // First test if the rootKey entry answers the query
+    final String serviceName = executor.getServiceName();
     CachedService.CacheKey rootKey = createRootKey( executor );
-    CachedService exactMatch = cache.get( rootKey );
-    if ( exactMatch != null && exactMatch.answersQuery( executor ) ) {
-      return ImmutableMap.of( rootKey, exactMatch );
+    CachedService exactMatch = lookup( cache, serviceName, rootKey );
+    if ( exactMatch != null ) {
+      if ( exactMatch.answersQuery( executor ) ) {
+        return ImmutableMap.of( rootKey, exactMatch );
+      }
+      factory.recordRejected( serviceName );
     }
 
     // Otherwise, check all related keys for a complete set
-    return FluentIterable.from( rootKey.all() )
-      .transform( new Function<CachedService.CacheKey, Map<CachedService.CacheKey, CachedService>>() {
+    final Function<CachedService.CacheKey, Map<CachedService.CacheKey, CachedService>> completeEntry =
+      new Function<CachedService.CacheKey, Map<CachedService.CacheKey, CachedService>>() {
         @Override public Map<CachedService.CacheKey, CachedService> apply(
           CachedService.CacheKey key ) {
-          CachedService value = cache.get( key );
+          CachedService value = lookup( cache, serviceName, key );
           return value != null && value.isComplete() ? ImmutableMap.of( key, value ) : null;
         }
+      };
+    Optional<Map<CachedService.CacheKey, CachedService>> related = FluentIterable.from( rootKey.all() )
+      .transform( completeEntry )
+      .filter( notNull() )
+      .first();
+    if ( related.isPresent() ) {
+      return related.get();
+    }
+
+    // Finally, look for a complete entry whose condition matches every row this query may select
+    final Set<CachedService.CacheKey> relatedKeys = rootKey.all();
+    final CachedService.CacheKey queryKey = rootKey;
+    return FluentIterable.from( factory.getCachedKeys( serviceName ) )
+      .filter( new Predicate<CachedService.CacheKey>() {
+        @Override public boolean apply( CachedService.CacheKey key ) {
+          return !relatedKeys.contains( key ) && key.covers( queryKey );
+        }
       } )
+      .transform( completeEntry )
       .filter( notNull() )
       .first().or( ImmutableMap.<CachedService.CacheKey, CachedService>of() );
   }
 
+  /**
+   * Reads an entry from the on-heap cache, falling back to the mapped tier and persistent store. Entries read from
+   * disk are only copied back to the heap once they answer a query, not when previewed or merely inspected.
+   */
+  private CachedService lookup( Cache<CachedService.CacheKey, CachedService> cache, String serviceName,
+                                CachedService.CacheKey key ) {
+    CachedService value = cache == null ? null : cache.get( key );
+    if ( value != null ) {
+      factory.accessed( serviceName, key );
+      return value;
+    }
+    return factory.load( this, serviceName, key );
+  }
+
   /**
    * Checks whether cache configuration has changed in such a way that the existing cache is
    * no longer valid.  Will return the cache associated with the data service (if available) otherwise.
@@ -222,6 +318,7 @@ public class ServiceCache extends StepOptimization {
       if ( !ttlMatches( cache.get(), logChannel ) ) {
         logChannel.logBasic( "Dropping cache associated with " + executor.getServiceName() );
         dropCache( cache.get() );
+        factory.clearTiers( executor.getServiceName() );
       } else {
         logChannel.logDebug( "Found cache associated with " + executor.getServiceName() );
         return cache.get();
@@ -301,6 +398,55 @@ public class ServiceCache extends StepOptimization {
     this.timeToLive = timeToLive;
   }
 
+  /**
+   * @return percentage of the time to live after which entries are refreshed when read, or null if disabled
+   */
+  public String getRefreshAhead() {
+    return refreshAhead;
+  }
+
+  public void setRefreshAhead( String refreshAhead ) {
+    this.refreshAhead = refreshAhead;
+  }
+
+  /**
+   * @return SQL statements run to populate the cache before peak time, one per line, or null if none
+   */
+  public String getWarmUpQueries() {
+    return warmUpQueries;
+  }
+
+  public void setWarmUpQueries( String warmUpQueries ) {
+    this.warmUpQueries = warmUpQueries;
+  }
+
+  /**
+   * @return comma separated times of day (HH:mm) at which warm-up queries are run, or null if none
+   */
+  public String getWarmUpTimes() {
+    return warmUpTimes;
+  }
+
+  public void setWarmUpTimes( String warmUpTimes ) {
+    this.warmUpTimes = warmUpTimes;
+  }
+
+  /**
+   * @return comma separated service fields indexed in complete cached entries, or null to index observed fields only
+   */
+  public String getIndexedFields() {
+    return indexedFields;
+  }
+
+  public void setIndexedFields( String indexedFields ) {
+    this.indexedFields = indexedFields;
+  }
+
+  Set<String> getIndexedFieldNames() {
+    return Strings.isNullOrEmpty( indexedFields ) ? ImmutableSet.<String>of()
+      : ImmutableSet.copyOf( Splitter.on( ',' ).trimResults().omitEmptyStrings().split( indexedFields ) );
+  }
+
   public String getConfiguredTimeToLive() {
     PentahoCacheTemplateConfiguration configuration = factory.getPentahoCacheTemplateConfiguration( this );
     return configuration.getProperties().get( CONFIG_TTL );
@@ -13,13 +13,24 @@
 
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.PublishSubject;
 import org.pentaho.caching.api.PentahoCacheManager;
 import org.pentaho.caching.api.PentahoCacheTemplateConfiguration;
 import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.optimization.PushDownFactory;
 import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheController;
@@ -27,10 +38,17 @@ import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheOverla
 
 import javax.cache.Cache;
 import javax.cache.CacheException;
+import javax.cache.configuration.CompleteConfiguration;
+import javax.cache.expiry.Duration;
+import javax.cache.expiry.ExpiryPolicy;
+import java.io.File;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -42,12 +60,44 @@ public class ServiceCacheFactory implements PushDownFactory {
 
   public static final String CACHE_PREFIX = "SERVICE_CACHE.";
 
+  static final int DEFAULT_REFRESH_CONCURRENCY = 2;
+
+  static final int DEFAULT_REPLAY_PARALLELISM = 1;
+
+  static final long TIER_SWEEP_MINUTES = 10;
+
   private final PentahoCacheManager cacheManager;
 
   private final ListeningExecutorService executorService;
 
   private final Map<CachedService.CacheKey, ServiceObserver> runningServices = new ConcurrentHashMap<>();
 
+  private final SharedScanCoordinator sharedScans = new SharedScanCoordinator( runningServices );
+
+  private final HeapTier heapTier = new HeapTier();
+
+  private final ServiceCacheStatistics statistics = new ServiceCacheStatistics();
+
+  private volatile MappedFileTier mappedTier;
+
+  private Scheduler sweepScheduler = Schedulers.io();
+
+  private Disposable tierSweep;
+
+  private volatile PersistentCacheStore persistentStore;
+
+  private volatile ResultCache resultCache;
+
+  private volatile long admissionMaxBytes;
+
+  private volatile int replayParallelism = DEFAULT_REPLAY_PARALLELISM;
+
+  private volatile Semaphore refreshPermits = new Semaphore( DEFAULT_REFRESH_CONCURRENCY );
+
+  private final Set<Map.Entry<String, CachedService.CacheKey>> refreshing = Sets.newConcurrentHashSet();
+
+  private final Set<DataServiceExecutor> refreshExecutors = Sets.newConcurrentHashSet();
+
   public ServiceCacheFactory( PentahoCacheManager cacheManager, ExecutorService executorService ) {
     this.cacheManager = cacheManager;
     this.executorService = MoreExecutors.listeningDecorator( executorService );
@@ -129,7 +179,7 @@ public class ServiceCacheFactory implements PushDownFactory {
   }
 
   public CachedServiceLoader createCachedServiceLoader( CachedService cachedService ) {
-    return new CachedServiceLoader( executorService, () -> cachedService.getRowMetaAndData().iterator() );
+    return new CachedServiceLoader( cachedService, executorService, replayParallelism );
   }
 
   public CachedServiceLoader createCachedServiceLoader( Supplier<Iterator<RowMetaAndData>> supplier ) {
@@ -150,4 +200,531 @@ public class ServiceCacheFactory implements PushDownFactory {
   public Map<CachedService.CacheKey, ServiceObserver> getRunningServices() {
     return runningServices;
   }
+
+  SharedScanCoordinator getSharedScans() {
+    return sharedScans;
+  }
+
+  /**
+   * Sets the directory holding the memory-mapped cache tier. Cached services evicted from the heap are written
+   * there and replayed from the mapped files. A blank directory disables the tier.
+   * <p>
+   * The directory is swept right away and every {@link #TIER_SWEEP_MINUTES} minutes, deleting expired entries and
+   * files left by an earlier run. Heap usage is reconciled with the on-heap caches at the same time.
+   *
+   * @param directory path of the mapped tier directory
+   */
+  public synchronized void setTierDirectory( String directory ) {
+    final MappedFileTier tier = Strings.isNullOrEmpty( directory ) ? null : new MappedFileTier( new File( directory ) );
+    mappedTier = tier;
+    if ( tierSweep != null ) {
+      tierSweep.dispose();
+      tierSweep = null;
+    }
+    if ( tier != null ) {
+      tierSweep = sweepScheduler.schedulePeriodicallyDirect( () -> sweep( tier ),
+        0, TIER_SWEEP_MINUTES, TimeUnit.MINUTES );
+    }
+  }
+
+  private void sweep( MappedFileTier tier ) {
+    reconcileHeap();
+    try {
+      int deleted = tier.sweep();
+      if ( deleted > 0 ) {
+        LogChannel.GENERAL.logDetailed( "Deleted " + deleted + " files from the mapped cache tier" );
+      }
+    } catch ( RuntimeException e ) {
+      LogChannel.GENERAL.logError( "Unable to sweep the mapped cache tier " + tier.getDirectory(), e );
+    }
+  }
+
+  /**
+   * @param sweepScheduler scheduler running the mapped tier sweep, set before the tier directory
+   */
+  @VisibleForTesting
+  void setSweepScheduler( Scheduler sweepScheduler ) {
+    this.sweepScheduler = sweepScheduler;
+  }
+
+  public String getTierDirectory() {
+    MappedFileTier tier = mappedTier;
+    return tier == null ? null : tier.getDirectory().getPath();
+  }
+
+  /**
+   * Sets the approximate number of bytes all service caches may keep on heap. Colder entries beyond this budget are
+   * moved to the mapped tier, or dropped if no tier directory is configured.
+   *
+   * @param budgetBytes heap budget in bytes, or 0 for no limit
+   */
+  public void setHeapBudgetBytes( long budgetBytes ) {
+    heapTier.setBudgetBytes( budgetBytes );
+  }
+
+  public long getHeapBudgetBytes() {
+    return heapTier.getBudgetBytes();
+  }
+
+  /**
+   * @return estimated bytes held on heap by all service caches
+   */
+  public long getHeapUsedBytes() {
+    return heapTier.getTotalBytes();
+  }
+
+  /**
+   * Sets the approximate number of bytes each service cache may keep on heap, in addition to the global budget.
+   *
+   * @param budgetBytes heap budget of a single data service in bytes, or 0 for no limit
+   */
+  public void setServiceHeapBudgetBytes( long budgetBytes ) {
+    heapTier.setServiceBudgetBytes( budgetBytes );
+  }
+
+  public long getServiceHeapBudgetBytes() {
+    return heapTier.getServiceBudgetBytes();
+  }
+
+  /**
+   * Sets the order in which entries leave the heap once a budget is exceeded: <code>weighted</code> for large idle
+   * entries first, <code>lru</code> for least recently read or <code>lfu</code> for least frequently read.
+   * Unknown policies fall back to <code>weighted</code>.
+   *
+   * @param policy name of the eviction policy
+   */
+  public void setEvictionPolicy( String policy ) {
+    HeapTier.EvictionPolicy evictionPolicy = HeapTier.EvictionPolicy.WEIGHTED;
+    if ( !Strings.isNullOrEmpty( policy ) ) {
+      try {
+        evictionPolicy = HeapTier.EvictionPolicy.valueOf( policy.trim().toUpperCase() );
+      } catch ( IllegalArgumentException e ) {
+        LogChannel.GENERAL.logError( "Unknown service cache eviction policy " + policy );
+      }
+    }
+    heapTier.setPolicy( evictionPolicy );
+  }
+
+  public String getEvictionPolicy() {
+    return heapTier.getPolicy().name().toLowerCase();
+  }
+
+  /**
+   * Sets the size above which service results are not cached. Such results would evict most of the heap tier, while
+   * being cheap to recompute relative to their size.
+   *
+   * @param maxBytes estimated size limit of a cached service in bytes, or 0 for no limit
+   */
+  public void setAdmissionMaxBytes( long maxBytes ) {
+    admissionMaxBytes = maxBytes;
+  }
+
+  public long getAdmissionMaxBytes() {
+    return admissionMaxBytes;
+  }
+
+  /**
+   * @return true if the cached service is too large to be kept on heap
+   */
+  public boolean rejects( CachedService cachedService ) {
+    long maxBytes = admissionMaxBytes;
+    return maxBytes > 0 && cachedService.estimateBytes() > maxBytes;
+  }
+
+  /**
+   * Sets the directory holding persisted cache entries. Entries are written there as they are cached and read back
+   * after a restart, the first time their data service is queried. A blank directory disables persistence.
+   *
+   * @param directory path of the persistent store
+   */
+  public void setPersistentDirectory( String directory ) {
+    persistentStore = Strings.isNullOrEmpty( directory ) ? null : new PersistentCacheStore( new File( directory ) );
+  }
+
+  public String getPersistentDirectory() {
+    PersistentCacheStore store = persistentStore;
+    return store == null ? null : store.getDirectory().getPath();
+  }
+
+  /**
+   * Sets the cache of final query results, cleared along with the service caches.
+   */
+  public void setResultCache( ResultCache resultCache ) {
+    this.resultCache = resultCache;
+  }
+
+  public ResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * @return true if entries may be found outside of the on-heap cache
+   */
+  public boolean hasSecondaryTiers() {
+    return mappedTier != null || persistentStore != null;
+  }
+
+  /**
+   * Sets the number of row blocks read and cloned concurrently while replaying a cached service. Values above 1
+   * enable bulk replay of large cached services.
+   *
+   * @param replayParallelism number of blocks prepared ahead of the injecting task
+   */
+  public void setReplayParallelism( int replayParallelism ) {
+    this.replayParallelism = Math.max( replayParallelism, 1 );
+  }
+
+  public int getReplayParallelism() {
+    return replayParallelism;
+  }
+
+  /**
+   * Sets the number of refreshes that may run at once. Refreshes requested beyond this bound are skipped, and will be
+   * requested again on a later read.
+   *
+   * @param refreshConcurrency maximum number of concurrent refreshes
+   */
+  public void setRefreshConcurrency( int refreshConcurrency ) {
+    refreshPermits = new Semaphore( Math.max( refreshConcurrency, 0 ) );
+  }
+
+  /**
+   * @return true if the query was started to refresh a cache entry
+   */
+  public boolean isRefresh( DataServiceExecutor executor ) {
+    return refreshExecutors.contains( executor );
+  }
+
+  /**
+   * Recomputes an entry in the background if it was cached longer ago than the refresh-ahead percentage of its time
+   * to live. The query is run again on the executor service and its result replaces the entry once complete, so
+   * readers keep using the current entry meanwhile.
+   *
+   * @param serviceCache optimization settings
+   * @param executor     query just answered by the entry
+   * @param key          entry key
+   * @return true if a refresh was started
+   */
+  public boolean refreshAhead( ServiceCache serviceCache, final DataServiceExecutor executor,
+                               CachedService.CacheKey key ) {
+    int percent = refreshAheadPercent( serviceCache );
+    long timeToLive = timeToLiveMillis( serviceCache );
+    long admitted = heapTier.admittedAt( executor.getServiceName(), key );
+    if ( percent <= 0 || timeToLive <= 0 || admitted <= 0
+      || System.currentTimeMillis() - admitted < timeToLive * percent / 100 ) {
+      return false;
+    }
+    final Map.Entry<String, CachedService.CacheKey> entry = Maps.immutableEntry( executor.getServiceName(), key );
+    if ( !refreshing.add( entry ) ) {
+      return false;
+    }
+    final Semaphore permits = refreshPermits;
+    if ( !permits.tryAcquire() ) {
+      refreshing.remove( entry );
+      return false;
+    }
+
+    final DataServiceExecutor refresh;
+    try {
+      refresh = new DataServiceExecutor.Builder( new SQL( executor.getSql().getSqlString() ),
+        executor.getService(), executor.getContext() )
+        .parameters( executor.getParameters() )
+        .rowLimit( executor.getRowLimit() )
+        .metastore( executor.getServiceTrans().getMetaStore() )
+        .build();
+    } catch ( KettleException | RuntimeException e ) {
+      LogChannel.GENERAL.logError( "Unable to refresh cached service " + executor.getServiceName(), e );
+      refreshing.remove( entry );
+      permits.release();
+      return false;
+    }
+    refreshExecutors.add( refresh );
+    executorService.execute( () -> {
+      try {
+        // Generated rows are discarded, the service cache observes the service transformation
+        refresh.executeQuery( PublishSubject.<RowMetaAndData>create() );
+        refresh.waitUntilFinished();
+      } catch ( RuntimeException e ) {
+        LogChannel.GENERAL.logError( "Unable to refresh cached service " + executor.getServiceName(), e );
+      } finally {
+        refreshExecutors.remove( refresh );
+        refreshing.remove( entry );
+        permits.release();
+      }
+    } );
+    return true;
+  }
+
+  /**
+   * Records a cached service stored in the on-heap cache. The entry is persisted if a persistent store is
+   * configured, and colder entries are demoted if the heap budget is exceeded.
+   */
+  public void cached( final String dataServiceName, final CachedService.CacheKey key,
+                      final CachedService cachedService ) {
+    final PersistentCacheStore store = persistentStore;
+    if ( store != null ) {
+      executorService.execute( () -> {
+        try {
+          store.save( cacheName( dataServiceName ), key, cachedService );
+        } catch ( Exception e ) {
+          LogChannel.GENERAL.logError( "Unable to persist cached service to " + store.getDirectory(), e );
+        }
+      } );
+    }
+    admit( dataServiceName, key, cachedService );
+  }
+
+  /**
+   * Records a read from the on-heap cache.
+   */
+  public void accessed( String dataServiceName, CachedService.CacheKey key ) {
+    heapTier.touch( dataServiceName, key );
+  }
+
+  public ServiceCacheStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Records a query answered from a cached service.
+   */
+  public void recordHit( String dataServiceName ) {
+    statistics.hit( dataServiceName );
+  }
+
+  /**
+   * Records a query that could not be answered from cache.
+   */
+  public void recordMiss( String dataServiceName ) {
+    statistics.miss( dataServiceName );
+  }
+
+  /**
+   * Records a cached service that was found but is ranked too low to answer a query.
+   */
+  public void recordRejected( String dataServiceName ) {
+    statistics.rejected( dataServiceName );
+  }
+
+  /**
+   * Records a query attached to a running service transformation.
+   */
+  public void recordAttached( String dataServiceName ) {
+    statistics.attached( dataServiceName );
+  }
+
+  /**
+   * Records a completed replay.
+   *
+   * @param rows  number of rows replayed
+   * @param nanos duration of the replay
+   */
+  public void recordReplay( String dataServiceName, int rows, long nanos ) {
+    statistics.replayed( dataServiceName, rows, nanos );
+  }
+
+  /**
+   * @return names of data services that were queried or have entries on heap
+   */
+  public Set<String> getCachedServiceNames() {
+    return Sets.union( statistics.getServiceNames(), heapTier.cacheNames() ).immutableCopy();
+  }
+
+  /**
+   * @return size, row count and accesses of each entry on heap
+   */
+  Map<CachedService.CacheKey, HeapTier.Usage> getHeapUsage( String dataServiceName ) {
+    return heapTier.usage( dataServiceName );
+  }
+
+  /**
+   * Looks up an entry in the mapped tier, then in the persistent store. The entry is not copied back to the on-heap
+   * cache, see {@link #promote(ServiceCache, String, CachedService.CacheKey, CachedService)}.
+   *
+   * @param serviceCache    optimization settings
+   * @param dataServiceName name of the data service
+   * @param key             entry key
+   * @return cached service streaming its rows from disk, or null if not found
+   */
+  public CachedService load( ServiceCache serviceCache, String dataServiceName, CachedService.CacheKey key ) {
+    // Not on heap anymore, e.g. expired
+    heapTier.remove( dataServiceName, key );
+    String cacheName = cacheName( dataServiceName );
+    MappedFileTier tier = mappedTier;
+    PersistentCacheStore store = persistentStore;
+    CachedService found = null;
+    if ( tier != null ) {
+      try {
+        found = tier.load( cacheName, key );
+      } catch ( Exception e ) {
+        LogChannel.GENERAL.logError( "Unable to read cached service from " + tier.getDirectory(), e );
+        tier.remove( cacheName, key );
+      }
+    }
+    if ( found == null && store != null ) {
+      try {
+        found = store.load( cacheName, key, timeToLiveMillis( serviceCache ) );
+      } catch ( Exception e ) {
+        LogChannel.GENERAL.logError( "Unable to read cached service from " + store.getDirectory(), e );
+        store.remove( cacheName, key );
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Copies an entry read from the mapped tier or persistent store back to the on-heap cache in the background. Only
+   * entries used to answer a query should be promoted. Entries that exceed a heap budget on their own keep streaming
+   * from disk, as they would be demoted again right away.
+   *
+   * @param serviceCache    optimization settings, used if the on-heap cache must be created
+   * @param dataServiceName name of the data service
+   * @param key             entry key
+   * @param found           entry returned by {@link #load(ServiceCache, String, CachedService.CacheKey)}
+   */
+  public void promote( final ServiceCache serviceCache, final String dataServiceName,
+                       final CachedService.CacheKey key, final CachedService found ) {
+    if ( heapTier.admittedAt( dataServiceName, key ) > 0 ) {
+      // Already on heap
+      return;
+    }
+    final String cacheName = cacheName( dataServiceName );
+    final MappedFileTier tier = mappedTier;
+    executorService.execute( () -> {
+      try {
+        CachedService onHeap = found.withRows( ColumnarRows.compact( found.getRowMetaAndData() ) );
+        if ( rejects( onHeap ) || !heapTier.fits( onHeap.estimateBytes() ) ) {
+          // Keep streaming it from disk
+          return;
+        }
+        Cache<CachedService.CacheKey, CachedService> cache = getCache( serviceCache, dataServiceName );
+        if ( cache.putIfAbsent( key, onHeap ) ) {
+          if ( tier != null ) {
+            tier.remove( cacheName, key );
+          }
+          admit( dataServiceName, key, onHeap );
+        }
+      } catch ( Exception e ) {
+        LogChannel.GENERAL.logError( "Unable to restore cached service to heap", e );
+      }
+    } );
+  }
+
+  /**
+   * Lists keys known to be cached for a data service, on heap or in a secondary tier.
+   * Entries may have expired since, so lookups can still miss.
+   */
+  public Set<CachedService.CacheKey> getCachedKeys( String dataServiceName ) {
+    Set<CachedService.CacheKey> keys = Sets.newLinkedHashSet( heapTier.keys( dataServiceName ) );
+    MappedFileTier tier = mappedTier;
+    if ( tier != null ) {
+      keys.addAll( tier.keys( cacheName( dataServiceName ) ) );
+    }
+    PersistentCacheStore store = persistentStore;
+    if ( store != null ) {
+      keys.addAll( store.keys( cacheName( dataServiceName ) ) );
+    }
+    return keys;
+  }
+
+  /**
+   * Discards all tiered entries of a data service cache.
+   */
+  public void clearTiers( String dataServiceName ) {
+    heapTier.clear( dataServiceName );
+    ResultCache results = resultCache;
+    if ( results != null ) {
+      results.invalidate( dataServiceName );
+    }
+    MappedFileTier tier = mappedTier;
+    if ( tier != null ) {
+      tier.clear( cacheName( dataServiceName ) );
+    }
+    PersistentCacheStore store = persistentStore;
+    if ( store != null ) {
+      store.clear( cacheName( dataServiceName ) );
+    }
+  }
+
+  private void admit( String dataServiceName, CachedService.CacheKey key, CachedService cachedService ) {
+    // Evict by what the heap actually holds
+    reconcileHeap();
+    heapTier.admit( dataServiceName, key, cachedService.estimateBytes(), cachedService.getRowMetaAndData().size() );
+    for ( Table.Cell<String, CachedService.CacheKey, HeapTier.Usage> eviction : heapTier.evictions() ) {
+      demote( eviction.getRowKey(), eviction.getColumnKey() );
+    }
+  }
+
+  /**
+   * Forgets the heap usage of entries no longer held by their on-heap cache, such as entries the cache expired or
+   * evicted on its own.
+   */
+  @VisibleForTesting
+  void reconcileHeap() {
+    for ( String dataServiceName : heapTier.cacheNames() ) {
+      Optional<Cache<CachedService.CacheKey, CachedService>> cache = getCache( dataServiceName );
+      for ( CachedService.CacheKey key : heapTier.keys( dataServiceName ) ) {
+        if ( !cache.isPresent() || !cache.get().containsKey( key ) ) {
+          heapTier.remove( dataServiceName, key );
+        }
+      }
+    }
+  }
+
+  /**
+   * Time to live configured for a service cache, either overridden by the optimization or set by its template.
+   */
+  private long timeToLiveMillis( ServiceCache serviceCache ) {
+    try {
+      String timeToLive = serviceCache.getTimeToLive() != null
+        ? serviceCache.getTimeToLive() : serviceCache.getConfiguredTimeToLive();
+      return Strings.isNullOrEmpty( timeToLive ) ? 0 : TimeUnit.SECONDS.toMillis( Long.parseLong( timeToLive ) );
+    } catch ( RuntimeException e ) {
+      return 0;
+    }
+  }
+
+  private static int refreshAheadPercent( ServiceCache serviceCache ) {
+    try {
+      String refreshAhead = serviceCache.getRefreshAhead();
+      int percent = Strings.isNullOrEmpty( refreshAhead ) ? 0 : Integer.parseInt( refreshAhead.trim() );
+      return percent < 100 ? percent : 0;
+    } catch ( NumberFormatException e ) {
+      return 0;
+    }
+  }
+
+  private void demote( String dataServiceName, CachedService.CacheKey key ) {
+    Optional<Cache<CachedService.CacheKey, CachedService>> cache = getCache( dataServiceName );
+    if ( !cache.isPresent() ) {
+      return;
+    }
+    CachedService cachedService = cache.get().get( key );
+    if ( cachedService == null ) {
+      return;
+    }
+    MappedFileTier tier = mappedTier;
+    try {
+      if ( tier != null
+        && !tier.store( cacheName( dataServiceName ), key, cachedService, idleExpiryMillis( cache.get() ) ) ) {
+        LogChannel.GENERAL.logDetailed( "Cached service can not be moved to the mapped tier, dropping it", key );
+      }
+    } catch ( Exception e ) {
+      LogChannel.GENERAL.logError( "Unable to write cached service to " + tier.getDirectory(), e );
+    }
+    cache.get().remove( key, cachedService );
+  }
+
+  private static long idleExpiryMillis( Cache<CachedService.CacheKey, CachedService> cache ) {
+    try {
+      CompleteConfiguration<?, ?> config = cache.getConfiguration( CompleteConfiguration.class );
+      Duration duration = ( (ExpiryPolicy) config.getExpiryPolicyFactory().create() ).getExpiryForAccess();
+      if ( duration == null || duration.isEternal() ) {
+        return 0;
+      }
+      return duration.getTimeUnit().toMillis( duration.getDurationAmount() );
+    } catch ( RuntimeException e ) {
+      return 0;
+    }
+  }
 }
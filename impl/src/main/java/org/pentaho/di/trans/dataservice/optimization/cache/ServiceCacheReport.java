@@ -0,0 +1,84 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain text report of service cache statistics and entries, used to size the caches.
+ * <p>
+ * Each data service is listed with its lookup counters and replay rate, followed by its entries. Entries on heap
+ * show their row count, estimated size, age and number of reads. Entries only found in a secondary tier are listed
+ * by key.
+ */
+public class ServiceCacheReport {
+  private final ServiceCacheFactory factory;
+
+  public ServiceCacheReport( ServiceCacheFactory factory ) {
+    this.factory = factory;
+  }
+
+  /**
+   * @param dataServiceNames data services to report, or empty to report all known services
+   * @return report text
+   */
+  public String build( Collection<String> dataServiceNames ) {
+    StringWriter report = new StringWriter();
+    try ( PrintWriter writer = new PrintWriter( report ) ) {
+      write( dataServiceNames, writer );
+    }
+    return report.toString();
+  }
+
+  /**
+   * @param dataServiceNames data services to report, or empty to report all known services
+   * @param writer           report destination
+   */
+  public void write( Collection<String> dataServiceNames, PrintWriter writer ) {
+    Collection<String> names = dataServiceNames == null || dataServiceNames.isEmpty()
+      ? factory.getCachedServiceNames() : dataServiceNames;
+    long now = System.currentTimeMillis();
+
+    writer.println( String.format( Locale.ROOT, "Heap: %d bytes used, budget %d bytes, %d bytes per service",
+      factory.getHeapUsedBytes(), factory.getHeapBudgetBytes(), factory.getServiceHeapBudgetBytes() ) );
+    for ( String name : names ) {
+      ServiceCacheStatistics.Counters counters = factory.getStatistics().get( name );
+      writer.println( String.format( Locale.ROOT,
+        "%s: hits=%d misses=%d attached=%d rejected=%d hitRate=%.1f%% replays=%d replayedRows=%d rowsPerSecond=%.0f",
+        name, counters.getHits(), counters.getMisses(), counters.getAttached(), counters.getRejected(),
+        counters.getHitRate() * 100, counters.getReplays(), counters.getReplayedRows(),
+        counters.getReplayRowsPerSecond() ) );
+
+      Map<CachedService.CacheKey, HeapTier.Usage> heap = factory.getHeapUsage( name );
+      for ( Map.Entry<CachedService.CacheKey, HeapTier.Usage> entry : heap.entrySet() ) {
+        HeapTier.Usage usage = entry.getValue();
+        writer.println( String.format( Locale.ROOT, "  heap %s rows=%d bytes=%d ageSeconds=%d reads=%d",
+          entry.getKey(), usage.getRows(), usage.getBytes(),
+          TimeUnit.MILLISECONDS.toSeconds( now - usage.getAdmitted() ), usage.getHits() ) );
+      }
+      Set<CachedService.CacheKey> keys = factory.getCachedKeys( name );
+      for ( CachedService.CacheKey key : keys ) {
+        if ( !heap.containsKey( key ) ) {
+          writer.println( "  disk " + key );
+        }
+      }
+    }
+  }
+}
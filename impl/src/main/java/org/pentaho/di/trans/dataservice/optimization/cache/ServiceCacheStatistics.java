@@ -0,0 +1,131 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts service cache lookups and replays of each data service, since the server started.
+ */
+public class ServiceCacheStatistics {
+  private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+  public Set<String> getServiceNames() {
+    return ImmutableSet.copyOf( counters.keySet() );
+  }
+
+  /**
+   * @return counters of a data service, all zero if it was never queried
+   */
+  public Counters get( String dataServiceName ) {
+    Counters found = counters.get( dataServiceName );
+    return found == null ? new Counters() : found;
+  }
+
+  void hit( String dataServiceName ) {
+    counters( dataServiceName ).hits.incrementAndGet();
+  }
+
+  void miss( String dataServiceName ) {
+    counters( dataServiceName ).misses.incrementAndGet();
+  }
+
+  void rejected( String dataServiceName ) {
+    counters( dataServiceName ).rejected.incrementAndGet();
+  }
+
+  void attached( String dataServiceName ) {
+    counters( dataServiceName ).attached.incrementAndGet();
+  }
+
+  void replayed( String dataServiceName, int rows, long nanos ) {
+    Counters service = counters( dataServiceName );
+    service.replays.incrementAndGet();
+    service.replayedRows.addAndGet( rows );
+    service.replayNanos.addAndGet( nanos );
+  }
+
+  private Counters counters( String dataServiceName ) {
+    return counters.computeIfAbsent( dataServiceName, name -> new Counters() );
+  }
+
+  public static final class Counters {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong attached = new AtomicLong();
+    private final AtomicLong replays = new AtomicLong();
+    private final AtomicLong replayedRows = new AtomicLong();
+    private final AtomicLong replayNanos = new AtomicLong();
+
+    /**
+     * @return queries answered by a cached service
+     */
+    public long getHits() {
+      return hits.get();
+    }
+
+    /**
+     * @return queries that ran the service transformation
+     */
+    public long getMisses() {
+      return misses.get();
+    }
+
+    /**
+     * @return cached services found for a query, but ranked too low to answer it
+     */
+    public long getRejected() {
+      return rejected.get();
+    }
+
+    /**
+     * @return queries answered by replaying a running service transformation
+     */
+    public long getAttached() {
+      return attached.get();
+    }
+
+    public long getReplays() {
+      return replays.get();
+    }
+
+    public long getReplayedRows() {
+      return replayedRows.get();
+    }
+
+    /**
+     * @return rows replayed per second of replay, or 0 if nothing was replayed
+     */
+    public double getReplayRowsPerSecond() {
+      long nanos = replayNanos.get();
+      return nanos > 0 ? replayedRows.get() * (double) TimeUnit.SECONDS.toNanos( 1 ) / nanos : 0;
+    }
+
+    /**
+     * @return share of lookups answered from cache, or 0 if there were none
+     */
+    public double getHitRate() {
+      long answered = getHits() + getAttached();
+      long total = answered + getMisses();
+      return total > 0 ? answered / (double) total : 0;
+    }
+  }
+}
@@ -14,7 +14,6 @@
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.pentaho.di.core.exception.KettleValueException;
@@ -30,8 +29,6 @@ import org.pentaho.di.trans.step.StepMeta;
 
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Predicates.instanceOf;
 
@@ -41,42 +38,17 @@ import static com.google.common.base.Predicates.instanceOf;
 public class ServiceObserver extends AbstractFuture<CachedService> implements Runnable {
   private final DataServiceExecutor executor;
 
-  List<RowMetaAndData> rowMetaAndData = Lists.newArrayList();
-  boolean isRunning = true;
-  CountDownLatch latch = new CountDownLatch( 1 );
+  final AppendOnlyLog<RowMetaAndData> rowLog = new AppendOnlyLog<>();
 
   public ServiceObserver( DataServiceExecutor executor ) {
     this.executor = executor;
   }
 
+  /**
+   * @return rows observed so far, then rows observed later until the service step finishes
+   */
   public Iterator<RowMetaAndData> rows() {
-    return new Iterator<RowMetaAndData>() {
-      int index = 0;
-      @Override public boolean hasNext() {
-        if ( rowMetaAndData.size() > index ) {
-          return true;
-        }
-        if ( isRunning ) {
-          latch = new CountDownLatch( 1 );
-          try {
-            while ( !latch.await( 1, TimeUnit.SECONDS ) ) {
-              if ( !isRunning ) {
-                return rowMetaAndData.size() > index;
-              }
-            }
-            return rowMetaAndData.size() > index;
-          } catch ( InterruptedException e ) {
-            return rowMetaAndData.size() > index;
-          }
-        } else {
-          return rowMetaAndData.size() > index;
-        }
-      }
-
-      @Override public RowMetaAndData next() {
-        return rowMetaAndData.get( index++ );
-      }
-    };
+    return rowLog.iterator();
   }
 
   public ListenableFuture<CachedService> install() {
@@ -98,15 +70,16 @@ public class ServiceObserver extends AbstractFuture<CachedService> implements Ru
           clonedRow = rowMeta.cloneRow( row );
         } catch ( KettleValueException e ) {
           setException( e );
+          rowLog.close();
           return;
         }
-        rowMetaAndData.add( new RowMetaAndData( rowMeta, clonedRow ) );
-        latch.countDown();
+        rowLog.append( new RowMetaAndData( rowMeta, clonedRow ) );
       }
     } );
     serviceStep.addStepListener( new StepAdapter() {
       @Override public void stepFinished( Trans trans, StepMeta stepMeta, StepInterface step ) {
-        isRunning = false;
+        rowLog.close();
+        List<RowMetaAndData> rowMetaAndData = rowLog.snapshot();
         if ( executor.getGenTrans().getErrors() > 0 ) {
           setException(
             new KettleException( "Dynamic transformation finished with errors, could not cache results" ) );
@@ -0,0 +1,78 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+
+import java.util.Map;
+
+/**
+ * Coordinates queries against service transformations that are already running.
+ * <p>
+ * A query arriving while a compatible service transformation is running is attached to that run instead of
+ * starting its own. Every row observed so far is kept by the {@link ServiceObserver}, so a late query first
+ * replays the rows it missed and then follows the live scan. Each attached query still runs its own generated
+ * transformation, which applies its WHERE, ORDER BY and LIMIT clauses to the shared rows.
+ *
+ * @see CachedService.CacheKey#covers(CachedService.CacheKey)
+ */
+class SharedScanCoordinator {
+  private final Map<CachedService.CacheKey, ServiceObserver> runningServices;
+
+  SharedScanCoordinator( Map<CachedService.CacheKey, ServiceObserver> runningServices ) {
+    this.runningServices = runningServices;
+  }
+
+  /**
+   * Finds a running service transformation able to feed a query.
+   * An exact match is preferred, otherwise any running scan covering the query's key is used.
+   *
+   * @param rootKey root cache key of the query
+   * @return observer of the compatible service transformation, if any
+   */
+  Optional<ServiceObserver> attach( CachedService.CacheKey rootKey ) {
+    ServiceObserver exactMatch = runningServices.get( rootKey );
+    if ( exactMatch != null ) {
+      return Optional.of( exactMatch );
+    }
+    for ( Map.Entry<CachedService.CacheKey, ServiceObserver> running : runningServices.entrySet() ) {
+      if ( running.getKey().covers( rootKey ) ) {
+        return Optional.of( running.getValue() );
+      }
+    }
+    return Optional.absent();
+  }
+
+  /**
+   * Makes a service transformation available to later queries.
+   * Only runs that will produce every service row should be registered.
+   *
+   * @param rootKey  root cache key of the query running the service transformation
+   * @param observer observer installed on the service step
+   */
+  void register( CachedService.CacheKey rootKey, ServiceObserver observer ) {
+    runningServices.put( rootKey, observer );
+  }
+
+  /**
+   * Stops attaching new queries to a service transformation.
+   * Queries already attached keep replaying from the observer.
+   *
+   * @param rootKey  root cache key used to register the run
+   * @param observer observer registered for the run
+   */
+  void release( CachedService.CacheKey rootKey, ServiceObserver observer ) {
+    runningServices.remove( rootKey, observer );
+  }
+}
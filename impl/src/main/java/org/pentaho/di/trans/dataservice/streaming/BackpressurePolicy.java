@@ -0,0 +1,59 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+/**
+ * What happens to the windows of a streaming query produced while the generated transformation is still busy with
+ * an earlier window.
+ */
+public enum BackpressurePolicy {
+  /** Keep only the newest pending window, dropping the previous one */
+  DROP_OLDEST,
+  /** Keep up to the buffer size pending windows, dropping the oldest one when full */
+  BUFFER,
+  /**
+   * Keep up to the buffer size pending windows, pausing row delivery to the query when full. The service stream is
+   * held back once the query channel fills up. Windows produced before row delivery stopped are still queued as they
+   * are, so no window is dropped or changed
+   */
+  BLOCK,
+  /**
+   * Keep up to the buffer size pending windows, merging new windows into the newest one when full. A merged window
+   * holds the distinct rows of every window merged into it, so it can be larger than the query's window size or span,
+   * up to the coalesce row limit
+   */
+  COALESCE;
+
+  /**
+   * Parses a policy name, ignoring case. <code>latest</code> is accepted for {@link #DROP_OLDEST}.
+   *
+   * @param name The policy name.
+   * @return The policy, or null if the name is empty or unknown.
+   */
+  public static BackpressurePolicy parse( String name ) {
+    if ( name == null || name.trim().isEmpty() ) {
+      return null;
+    }
+    String normalized = name.trim().toUpperCase().replace( '-', '_' );
+    if ( "LATEST".equals( normalized ) ) {
+      return DROP_OLDEST;
+    }
+    for ( BackpressurePolicy policy : values() ) {
+      if ( policy.name().equals( normalized ) ) {
+        return policy;
+      }
+    }
+    return null;
+  }
+}
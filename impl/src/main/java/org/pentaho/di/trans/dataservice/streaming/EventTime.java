@@ -0,0 +1,91 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+import com.google.common.base.MoreObjects;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.util.Date;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Event time windowing of a streaming service: the field holding the time of each row, and how long windows wait
+ * for rows arriving out of order.
+ * <p>
+ * The event time field may be a date, or a number of milliseconds since the epoch.
+ */
+public final class EventTime {
+  private final String field;
+  private final long allowedLateness;
+
+  private EventTime( String field, long allowedLateness ) {
+    this.field = field;
+    this.allowedLateness = allowedLateness;
+  }
+
+  /**
+   * @param field           event time field name
+   * @param allowedLateness milliseconds a window waits for late rows after the newest event time seen
+   */
+  public static EventTime of( String field, long allowedLateness ) {
+    checkNotNull( field, "Event time field is required" );
+    checkArgument( allowedLateness >= 0, "Allowed lateness must not be negative" );
+    return new EventTime( field, allowedLateness );
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  public long getAllowedLateness() {
+    return allowedLateness;
+  }
+
+  /**
+   * @return event time of a row, or null if the row has no usable event time
+   */
+  public Long timestamp( RowMetaAndData row ) {
+    RowMetaInterface rowMeta = row.getRowMeta();
+    Object[] data = row.getData();
+    int index = rowMeta == null ? -1 : rowMeta.indexOfValue( field );
+    if ( index < 0 || data == null || index >= data.length ) {
+      return null;
+    }
+    ValueMetaInterface valueMeta = rowMeta.getValueMeta( index );
+    try {
+      if ( valueMeta.isDate() ) {
+        Date date = valueMeta.getDate( data[ index ] );
+        return date == null ? null : date.getTime();
+      }
+      if ( valueMeta.isNumeric() ) {
+        return valueMeta.getInteger( data[ index ] );
+      }
+    } catch ( KettleValueException e ) {
+      // Not a usable event time
+    }
+    return null;
+  }
+
+  @Override public String toString() {
+    return MoreObjects.toStringHelper( this )
+      .add( "field", field )
+      .add( "allowedLateness", allowedLateness )
+      .toString();
+  }
+}
@@ -0,0 +1,367 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+import com.google.common.math.LongMath;
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Row and time based windows over a stream, emitted as views of a shared {@link WindowLog} rather than copies.
+ * <p>
+ * Windows open and close as with {@link Observable#buffer(int, int)} and
+ * {@link Observable#buffer(long, long, TimeUnit, Scheduler)}: a window opens every <code>every</code> rows or
+ * milliseconds and is emitted once it holds <code>size</code> rows, or <code>size</code> milliseconds after it
+ * opened. Time based windows are emitted even if empty. When the stream completes, windows still open are emitted
+ * with the rows received so far. Each subscription keeps its own log, retaining only the rows of open windows.
+ * Time based windows may be capped to their newest rows, bounding the log whatever the stream rate.
+ * <p>
+ * Event time windows are assigned by a time carried by each item instead, and are closed by a watermark rather than
+ * a scheduler, so replaying a stream produces the same windows.
+ */
+public final class SlidingWindows {
+  private SlidingWindows() {
+  }
+
+  /**
+   * @param size  rows in a window
+   * @param every rows between the start of consecutive windows
+   */
+  public static <T> Observable<List<T>> rowBased( Observable<T> stream, int size, int every ) {
+    checkArgument( size > 0 && every > 0, "Window size and rate must be positive" );
+    return Observable.create( emitter -> {
+      RowWindows<T> windows = new RowWindows<>( emitter, size, every );
+      emitter.setDisposable( stream.subscribe( windows::add, emitter::onError, windows::complete ) );
+    } );
+  }
+
+  /**
+   * @param sizeMillis  milliseconds a window stays open
+   * @param everyMillis milliseconds between the start of consecutive windows
+   * @param scheduler   scheduler opening and closing windows
+   */
+  public static <T> Observable<List<T>> timeBased( Observable<T> stream, long sizeMillis, long everyMillis,
+                                                   Scheduler scheduler ) {
+    return timeBased( stream, sizeMillis, everyMillis, Integer.MAX_VALUE, scheduler, dropped -> { } );
+  }
+
+  /**
+   * @param sizeMillis  milliseconds a window stays open
+   * @param everyMillis milliseconds between the start of consecutive windows
+   * @param maxRows     rows retained for the open windows. Once exceeded, the oldest rows are dropped from them
+   * @param scheduler   scheduler opening and closing windows
+   * @param overflow    notified of the number of rows dropped
+   */
+  public static <T> Observable<List<T>> timeBased( Observable<T> stream, long sizeMillis, long everyMillis,
+                                                   int maxRows, Scheduler scheduler, LongConsumer overflow ) {
+    checkArgument( sizeMillis > 0 && everyMillis > 0, "Window size and rate must be positive" );
+    checkArgument( maxRows > 0, "Window row cap must be positive" );
+    return Observable.create( emitter -> {
+      TimeWindows<T> windows = new TimeWindows<>( emitter, sizeMillis == everyMillis, maxRows, overflow );
+      Scheduler.Worker worker = scheduler.createWorker();
+      CompositeDisposable disposables = new CompositeDisposable( worker );
+      emitter.setDisposable( disposables );
+      if ( sizeMillis == everyMillis ) {
+        worker.schedulePeriodically( windows::next, sizeMillis, sizeMillis, TimeUnit.MILLISECONDS );
+      } else {
+        Runnable open = () -> {
+          long start = windows.open();
+          worker.schedule( () -> windows.close( start ), sizeMillis, TimeUnit.MILLISECONDS );
+        };
+        // The first window opens on subscription
+        open.run();
+        worker.schedulePeriodically( open, everyMillis, everyMillis, TimeUnit.MILLISECONDS );
+      }
+      disposables.add( stream.subscribe( windows::add, emitter::onError, windows::complete ) );
+    } );
+  }
+
+  /**
+   * Windows cover <code>size</code> milliseconds of event time and start every <code>every</code> milliseconds,
+   * aligned on the epoch. The watermark trails the newest event time seen by the allowed lateness, and a window is
+   * emitted once the watermark reaches its end. Windows holding no items are not emitted. Items only belonging to
+   * windows already closed, or without an event time, are dropped as late. When the stream completes, windows still
+   * open are emitted.
+   *
+   * @param sizeMillis      milliseconds of event time covered by a window
+   * @param everyMillis     milliseconds of event time between the start of consecutive windows
+   * @param maxRows         items retained for the open windows. Once exceeded, the earliest received items of the
+   *                        earliest open window are dropped
+   * @param eventTime       event time of an item, or null if it has none
+   * @param allowedLateness milliseconds the watermark trails the newest event time
+   * @param overflow        notified of the number of items dropped from full windows
+   * @param late            notified of the number of late items dropped
+   */
+  public static <T> Observable<List<T>> eventTimeBased( Observable<T> stream, long sizeMillis, long everyMillis,
+                                                        int maxRows, Function<T, Long> eventTime,
+                                                        long allowedLateness, LongConsumer overflow,
+                                                        LongConsumer late ) {
+    checkArgument( sizeMillis > 0 && everyMillis > 0, "Window size and rate must be positive" );
+    checkArgument( maxRows > 0, "Window row cap must be positive" );
+    checkArgument( allowedLateness >= 0, "Allowed lateness must not be negative" );
+    return Observable.create( emitter -> {
+      EventTimeWindows<T> windows = new EventTimeWindows<>( emitter, sizeMillis, everyMillis, maxRows, eventTime,
+        allowedLateness, overflow, late );
+      emitter.setDisposable( stream.subscribe( windows::add, emitter::onError, windows::complete ) );
+    } );
+  }
+
+  private static final class RowWindows<T> {
+    private final ObservableEmitter<List<T>> emitter;
+    private final WindowLog<T> log = new WindowLog<>();
+    private final int size;
+    private final int every;
+    private long nextStart;
+
+    RowWindows( ObservableEmitter<List<T>> emitter, int size, int every ) {
+      this.emitter = emitter;
+      this.size = size;
+      this.every = every;
+    }
+
+    synchronized void add( T item ) {
+      log.append( item );
+      if ( log.size() - nextStart == size ) {
+        List<T> window = log.view( nextStart, log.size() );
+        nextStart += every;
+        log.trim( nextStart );
+        emitter.onNext( window );
+      } else if ( log.size() <= nextStart ) {
+        // Between windows, rows are skipped
+        log.trim( log.size() );
+      }
+    }
+
+    synchronized void complete() {
+      for ( long start = nextStart; start < log.size(); start += every ) {
+        emitter.onNext( log.view( start, log.size() ) );
+      }
+      emitter.onComplete();
+    }
+  }
+
+  private static final class TimeWindows<T> {
+    private final ObservableEmitter<List<T>> emitter;
+    private final WindowLog<T> log = new WindowLog<>();
+    private final Deque<Long> open = new ArrayDeque<>();
+    private final boolean exact;
+    private final int maxRows;
+    private final LongConsumer overflow;
+    private long start;
+    // Rows before this position were dropped from the open windows
+    private long floor;
+    private boolean done;
+
+    TimeWindows( ObservableEmitter<List<T>> emitter, boolean exact, int maxRows, LongConsumer overflow ) {
+      this.emitter = emitter;
+      this.exact = exact;
+      this.maxRows = maxRows;
+      this.overflow = overflow;
+    }
+
+    synchronized void add( T item ) {
+      if ( done ) {
+        return;
+      }
+      log.append( item );
+      if ( !exact && open.isEmpty() ) {
+        // Between windows, rows are skipped
+        log.trim( log.size() );
+        return;
+      }
+      long from = Math.max( floor, exact ? start : open.peekFirst() );
+      long excess = log.size() - from - maxRows;
+      if ( excess > 0 ) {
+        floor = from + excess;
+        log.trim( floor );
+        overflow.accept( excess );
+      }
+    }
+
+    private List<T> view( long position ) {
+      return log.view( Math.max( position, floor ), log.size() );
+    }
+
+    /**
+     * Emit the current window and start the next one, for windows that do not overlap.
+     */
+    synchronized void next() {
+      if ( !done ) {
+        List<T> window = view( start );
+        start = log.size();
+        log.trim( start );
+        emitter.onNext( window );
+      }
+    }
+
+    synchronized long open() {
+      long position = log.size();
+      if ( open.isEmpty() ) {
+        log.trim( position );
+      }
+      open.addLast( position );
+      return position;
+    }
+
+    synchronized void close( long position ) {
+      if ( done || !open.remove( position ) ) {
+        return;
+      }
+      List<T> window = view( position );
+      log.trim( open.isEmpty() ? log.size() : Math.max( open.peekFirst(), floor ) );
+      emitter.onNext( window );
+    }
+
+    synchronized void complete() {
+      if ( done ) {
+        return;
+      }
+      done = true;
+      if ( exact ) {
+        emitter.onNext( view( start ) );
+      }
+      for ( Long position : open ) {
+        emitter.onNext( view( position ) );
+      }
+      open.clear();
+      emitter.onComplete();
+    }
+  }
+
+  /**
+   * Items are kept in panes as wide as the greatest common divisor of the window size and rate, so that each item
+   * is held once and each window is a run of whole panes.
+   */
+  private static final class EventTimeWindows<T> {
+    private final ObservableEmitter<List<T>> emitter;
+    private final NavigableMap<Long, Deque<T>> panes = new TreeMap<>();
+    private final long size;
+    private final long every;
+    private final long pane;
+    private final int maxRows;
+    private final Function<T, Long> eventTime;
+    private final long allowedLateness;
+    private final LongConsumer overflow;
+    private final LongConsumer late;
+    private long watermark = Long.MIN_VALUE;
+    // Windows starting before this time were emitted
+    private long nextStart = Long.MIN_VALUE;
+    private int retained;
+    private boolean done;
+
+    EventTimeWindows( ObservableEmitter<List<T>> emitter, long size, long every, int maxRows,
+                      Function<T, Long> eventTime, long allowedLateness, LongConsumer overflow, LongConsumer late ) {
+      this.emitter = emitter;
+      this.size = size;
+      this.every = every;
+      this.pane = LongMath.gcd( size, every );
+      this.maxRows = maxRows;
+      this.eventTime = eventTime;
+      this.allowedLateness = allowedLateness;
+      this.overflow = overflow;
+      this.late = late;
+    }
+
+    synchronized void add( T item ) {
+      if ( done ) {
+        return;
+      }
+      Long time = eventTime.apply( item );
+      if ( time == null ) {
+        late.accept( 1 );
+        return;
+      }
+      long lastStart = Math.floorDiv( time, every ) * every;
+      if ( lastStart + size <= time ) {
+        // Between windows, items are skipped
+        advance( time - allowedLateness );
+        return;
+      }
+      if ( lastStart + size <= watermark || lastStart < nextStart ) {
+        late.accept( 1 );
+        return;
+      }
+      panes.computeIfAbsent( Math.floorDiv( time, pane ) * pane, start -> new ArrayDeque<>() ).addLast( item );
+      if ( ++retained > maxRows ) {
+        Deque<T> oldest = panes.firstEntry().getValue();
+        oldest.pollFirst();
+        if ( oldest.isEmpty() ) {
+          panes.pollFirstEntry();
+        }
+        retained--;
+        overflow.accept( 1 );
+      }
+      advance( time - allowedLateness );
+    }
+
+    synchronized void complete() {
+      if ( done ) {
+        return;
+      }
+      done = true;
+      emit( Long.MAX_VALUE );
+      emitter.onComplete();
+    }
+
+    private void advance( long time ) {
+      if ( time > watermark ) {
+        watermark = time;
+        emit( watermark );
+      }
+    }
+
+    /**
+     * Emit the windows holding items that end before a time, in start order.
+     */
+    private void emit( long end ) {
+      while ( !panes.isEmpty() ) {
+        long first = panes.firstKey();
+        // Earliest window not yet emitted holding the first pane
+        long start = Math.max( nextStart, Math.floorDiv( first - size, every ) * every + every );
+        if ( start > first ) {
+          // The pane belongs to no window left to emit
+          retained -= panes.pollFirstEntry().getValue().size();
+          continue;
+        }
+        if ( start > end - size ) {
+          return;
+        }
+        List<T> window = new ArrayList<>();
+        for ( Deque<T> items : panes.subMap( start, true, start + size, false ).values() ) {
+          window.addAll( items );
+        }
+        nextStart = start + every;
+        while ( !panes.isEmpty() && panes.firstKey() < nextStart ) {
+          retained -= panes.pollFirstEntry().getValue().size();
+        }
+        emitter.onNext( window );
+      }
+    }
+  }
+}
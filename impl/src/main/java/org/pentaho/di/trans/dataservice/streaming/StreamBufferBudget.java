@@ -0,0 +1,113 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
+import org.pentaho.di.trans.dataservice.utils.KettleUtils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rows that may be held by the buffers of all streaming listeners, across every streaming service.
+ * <p>
+ * A listener reserves its row cap, and the ring of the channel feeding it, when it is created and releases them when
+ * it is un-subscribed. Once the budget is taken, new listeners are granted what is left, but never less than
+ * {@link DataServiceConstants#STREAMING_BUFFER_MIN_ROWS} rows, so that queries keep producing windows. Rows dropped
+ * by any listener because its buffers were full are counted here as well.
+ */
+public final class StreamBufferBudget {
+  private static StreamBufferBudget instance;
+
+  private final long budgetRows;
+  private final AtomicLong overflowRows = new AtomicLong();
+  private long reservedRows;
+
+  /**
+   * @param budgetRows rows shared by all listeners, or 0 for no limit
+   */
+  public StreamBufferBudget( long budgetRows ) {
+    this.budgetRows = budgetRows;
+  }
+
+  /**
+   * @return the budget shared by all streaming services, sized by the
+   * {@link DataServiceConstants#STREAMING_BUFFER_BUDGET_PROPERTY} property
+   */
+  public static synchronized StreamBufferBudget getInstance() {
+    if ( instance == null ) {
+      instance = new StreamBufferBudget( readBudgetRows() );
+    }
+    return instance;
+  }
+
+  private static long readBudgetRows() {
+    try {
+      String budget =
+        KettleUtils.getInstance().getKettleProperty( DataServiceConstants.STREAMING_BUFFER_BUDGET_PROPERTY );
+      if ( budget != null && !budget.trim().isEmpty() ) {
+        return Long.parseLong( budget.trim() );
+      }
+    } catch ( KettleException | NumberFormatException e ) {
+      // Keep the default
+    }
+    return DataServiceConstants.STREAMING_BUFFER_BUDGET_DEFAULT;
+  }
+
+  /**
+   * Reserve the row cap or channel ring of a listener.
+   *
+   * @param rows The rows requested.
+   * @return The rows granted, to be released with {@link #release(int)}.
+   */
+  public synchronized int reserve( int rows ) {
+    int granted = rows;
+    if ( budgetRows > 0 ) {
+      long available = budgetRows - reservedRows;
+      granted = (int) Math.min( rows, Math.max( available, DataServiceConstants.STREAMING_BUFFER_MIN_ROWS ) );
+    }
+    reservedRows += granted;
+    return granted;
+  }
+
+  /**
+   * Release rows granted by {@link #reserve(int)}.
+   *
+   * @param rows The rows granted.
+   */
+  public synchronized void release( int rows ) {
+    reservedRows = Math.max( 0, reservedRows - rows );
+  }
+
+  /**
+   * Count rows dropped by a listener because its buffers were full.
+   *
+   * @param rows The rows dropped.
+   */
+  public void overflow( long rows ) {
+    overflowRows.addAndGet( rows );
+  }
+
+  public long getBudgetRows() {
+    return budgetRows;
+  }
+
+  public synchronized long getReservedRows() {
+    return reservedRows;
+  }
+
+  public long getOverflowRows() {
+    return overflowRows.get();
+  }
+}
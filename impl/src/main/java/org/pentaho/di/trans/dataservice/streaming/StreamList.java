@@ -13,14 +13,30 @@
 
 package org.pentaho.di.trans.dataservice.streaming;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.PublishSubject;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+
 /**
  * Generic stream.
+ * <p>
+ * Items are published synchronously to {@link #getStream()} subscribers, and handed off to every open
+ * {@link Channel}. Each channel buffers items in a bounded ring and delivers them in batches on its own thread,
+ * so a slow consumer does not hold up the producer or the other consumers. Items added from their parts are only
+ * assembled when delivered, so adding them allocates nothing on the producer thread.
  * @param <T>
  */
 public class StreamList<T> {
   protected final PublishSubject<T> onAdd;
+  private final List<Channel<T>> channels = new CopyOnWriteArrayList<>();
+  private volatile Channel<?>[] openChannels = new Channel<?>[ 0 ];
 
   /**
    * Constructor.
@@ -35,6 +51,36 @@ public class StreamList<T> {
    */
   public void add( T item ) {
     onAdd.onNext( item );
+    for ( Channel<?> channel : openChannels ) {
+      cast( channel ).offer( null, item, null );
+    }
+  }
+
+  /**
+   * Adds an item to the stream from its parts. Each channel assembles the item on its own thread when delivering it,
+   * so items dropped by a channel are never assembled. Subscribers of {@link #getStream()} get it assembled now.
+   *
+   * @param context   The first part of the item.
+   * @param value     The second part of the item.
+   * @param assembler Assembles the item from its parts. Must not capture state, it is kept until delivery.
+   */
+  public <C, V> void add( C context, V value, BiFunction<? super C, ? super V, ? extends T> assembler ) {
+    if ( onAdd.hasObservers() ) {
+      onAdd.onNext( assembler.apply( context, value ) );
+    }
+    for ( Channel<?> channel : openChannels ) {
+      cast( channel ).offer( context, value, assembler );
+    }
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private Channel<T> cast( Channel<?> channel ) {
+    return (Channel<T>) channel;
+  }
+
+  // Iterating an array snapshot spares an iterator per item
+  private synchronized void updateOpenChannels() {
+    openChannels = channels.toArray( new Channel<?>[ 0 ] );
   }
 
   /**
@@ -45,4 +91,213 @@ public class StreamList<T> {
   public PublishSubject<T> getStream() {
     return onAdd;
   }
+
+  /**
+   * Opens a channel receiving all items added from now on.
+   *
+   * @param capacity The number of items the channel holds before dropping the oldest ones.
+   * @return The {@link Channel} opened.
+   */
+  public Channel<T> openChannel( int capacity ) {
+    return openChannel( capacity, Schedulers.io() );
+  }
+
+  /**
+   * Opens a channel receiving all items added from now on.
+   *
+   * @param capacity The number of items the channel holds before dropping the oldest ones.
+   * @param scheduler The {@link Scheduler} items are delivered on.
+   * @return The {@link Channel} opened.
+   */
+  public Channel<T> openChannel( int capacity, Scheduler scheduler ) {
+    Channel<T> channel = new Channel<>( this, capacity, scheduler );
+    channels.add( channel );
+    updateOpenChannels();
+    return channel;
+  }
+
+  /**
+   * Getter for the number of items dropped by the open channels.
+   *
+   * @return the number of items dropped because a consumer fell behind.
+   */
+  public long getDropped() {
+    long dropped = 0;
+    for ( Channel<T> channel : channels ) {
+      dropped += channel.getDropped();
+    }
+    return dropped;
+  }
+
+  @VisibleForTesting
+  List<Channel<T>> getChannels() {
+    return channels;
+  }
+
+  /**
+   * Bounded ring between the producer and a single consumer. When the consumer falls behind and the ring is full,
+   * the oldest item is dropped and counted. While the consumer has paused the channel, nothing is delivered and the
+   * producer waits for room instead, holding back the stream.
+   * @param <T>
+   */
+  public static class Channel<T> {
+    /** Maximum number of items delivered per hand off */
+    static final int BATCH_SIZE = 1024;
+
+    private final StreamList<T> streamList;
+    private final PublishSubject<T> stream = PublishSubject.create();
+    private final Scheduler scheduler;
+    private final Object[] ring;
+    private final Object[] contexts;
+    private final Object[] assemblers;
+    private long head;
+    private long tail;
+    private long dropped;
+    private long delivered;
+    private int paused;
+    private boolean draining;
+    private boolean closed;
+
+    Channel( StreamList<T> streamList, int capacity, Scheduler scheduler ) {
+      this.streamList = streamList;
+      this.ring = new Object[ Math.max( capacity, 1 ) ];
+      this.contexts = new Object[ ring.length ];
+      this.assemblers = new Object[ ring.length ];
+      this.scheduler = scheduler;
+    }
+
+    /**
+     * Retreives the subject the items of this channel are delivered to.
+     *
+     * @return {@link io.reactivex.subjects.PublishSubject} the channel subject.
+     */
+    public PublishSubject<T> getStream() {
+      return stream;
+    }
+
+    void offer( Object context, Object value, BiFunction<?, ?, ? extends T> assembler ) {
+      boolean schedule;
+      synchronized ( this ) {
+        try {
+          while ( paused > 0 && tail - head == ring.length && !closed ) {
+            wait();
+          }
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+        if ( closed ) {
+          return;
+        }
+        if ( tail - head == ring.length ) {
+          // The oldest slot is the one written next
+          head++;
+          dropped++;
+        }
+        int index = (int) ( tail++ % ring.length );
+        ring[ index ] = value;
+        contexts[ index ] = context;
+        assemblers[ index ] = assembler;
+        schedule = !draining && paused == 0;
+        draining |= schedule;
+      }
+      if ( schedule ) {
+        scheduler.scheduleDirect( this::drain );
+      }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private void drain() {
+      while ( true ) {
+        List<T> batch;
+        synchronized ( this ) {
+          int size = (int) Math.min( tail - head, BATCH_SIZE );
+          if ( size == 0 || closed || paused > 0 ) {
+            draining = false;
+            return;
+          }
+          batch = Lists.newArrayListWithCapacity( size );
+          for ( int i = 0; i < size; i++ ) {
+            int index = (int) ( head++ % ring.length );
+            BiFunction<Object, Object, T> assembler = (BiFunction<Object, Object, T>) assemblers[ index ];
+            batch.add( assembler == null ? (T) ring[ index ] : assembler.apply( contexts[ index ], ring[ index ] ) );
+            ring[ index ] = null;
+            contexts[ index ] = null;
+            assemblers[ index ] = null;
+          }
+          delivered += size;
+        }
+        for ( T item : batch ) {
+          stream.onNext( item );
+        }
+      }
+    }
+
+    /**
+     * Stops delivering items until {@link #resume()} is called as many times. Once the ring is full, the producer
+     * waits for room instead of dropping items.
+     */
+    public synchronized void pause() {
+      paused++;
+    }
+
+    /**
+     * Resumes delivering items, once every {@link #pause()} is matched.
+     */
+    public void resume() {
+      boolean schedule;
+      synchronized ( this ) {
+        if ( paused == 0 ) {
+          return;
+        }
+        paused--;
+        notifyAll();
+        schedule = paused == 0 && !draining && tail > head && !closed;
+        draining |= schedule;
+      }
+      if ( schedule ) {
+        scheduler.scheduleDirect( this::drain );
+      }
+    }
+
+    public synchronized boolean isPaused() {
+      return paused > 0;
+    }
+
+    /**
+     * Stops receiving items and releases the buffered ones, as well as a waiting producer.
+     */
+    public void close() {
+      streamList.channels.remove( this );
+      streamList.updateOpenChannels();
+      synchronized ( this ) {
+        closed = true;
+        head = tail;
+        Arrays.fill( ring, null );
+        Arrays.fill( contexts, null );
+        Arrays.fill( assemblers, null );
+        notifyAll();
+      }
+    }
+
+    public int getCapacity() {
+      return ring.length;
+    }
+
+    /**
+     * Getter for the number of items waiting to be delivered.
+     *
+     * @return the channel queue depth.
+     */
+    public synchronized int getDepth() {
+      return (int) ( tail - head );
+    }
+
+    public synchronized long getDropped() {
+      return dropped;
+    }
+
+    public synchronized long getDelivered() {
+      return delivered;
+    }
+  }
 }
@@ -0,0 +1,117 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+import com.google.common.collect.Lists;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * Log of the most recent stream items, shared by all overlapping windows over the stream.
+ * <p>
+ * Items are kept in fixed size chunks addressed by their absolute position in the stream. A window is a view of a
+ * range of positions, holding only the chunks it spans, so an item is stored once however many windows include it.
+ * Chunks no longer needed by future windows are released with {@link #trim(long)}; views already handed out keep
+ * their chunks alive. Positions below the log size are never written again, so views may be read by any thread
+ * once published. Appending and taking views must be serialized by the caller.
+ *
+ * @param <T> item type
+ */
+final class WindowLog<T> {
+  private static final int CHUNK_BITS = 10;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final List<Object[]> chunks = Lists.newArrayList();
+  private long first;
+  private long size;
+
+  void append( T item ) {
+    int offset = (int) ( size & CHUNK_MASK );
+    if ( offset == 0 ) {
+      chunks.add( new Object[ CHUNK_SIZE ] );
+    }
+    chunks.get( chunks.size() - 1 )[ offset ] = item;
+    size++;
+  }
+
+  /**
+   * @return position following the last item appended
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * @return position of the oldest item still held
+   */
+  long first() {
+    return first;
+  }
+
+  /**
+   * Release items before a position. Items after the last one appended are never released.
+   */
+  void trim( long retainFrom ) {
+    long limit = Math.min( retainFrom, size );
+    while ( !chunks.isEmpty() && first + CHUNK_SIZE <= limit ) {
+      chunks.remove( 0 );
+      first += CHUNK_SIZE;
+    }
+  }
+
+  /**
+   * @return read only view of the items at positions from <code>start</code>, inclusive, to <code>end</code>,
+   * exclusive
+   */
+  List<T> view( long start, long end ) {
+    checkArgument( start >= first && start <= end && end <= size, "Range [%s, %s) not held", start, end );
+    if ( start == end ) {
+      return Collections.emptyList();
+    }
+    int from = (int) ( ( start - first ) >>> CHUNK_BITS );
+    int to = (int) ( ( end - 1 - first ) >>> CHUNK_BITS );
+    Object[][] spanned = chunks.subList( from, to + 1 ).toArray( new Object[ to - from + 1 ][] );
+    return new View<>( spanned, (int) ( start & CHUNK_MASK ), (int) ( end - start ) );
+  }
+
+  private static final class View<T> extends AbstractList<T> implements RandomAccess {
+    private final Object[][] chunks;
+    private final int offset;
+    private final int size;
+
+    View( Object[][] chunks, int offset, int size ) {
+      this.chunks = chunks;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Override public T get( int index ) {
+      checkElementIndex( index, size );
+      int position = offset + index;
+      return (T) chunks[ position >>> CHUNK_BITS ][ position & CHUNK_MASK ];
+    }
+
+    @Override public int size() {
+      return size;
+    }
+  }
+}
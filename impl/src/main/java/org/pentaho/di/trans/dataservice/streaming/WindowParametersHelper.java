@@ -40,6 +40,27 @@ public abstract class WindowParametersHelper {
    */
   public static String getCacheKey( String query, IDataServiceClientService.StreamingMode windowMode, long windowSize, long windowEvery,
                                     int windowMaxRowLimit, long windowMaxTimeLimit, long windowLimit, int serviceExecutorCacheKeyHash ) {
+    return getCacheKey( query, windowMode, windowSize, windowEvery, windowMaxRowLimit, windowMaxTimeLimit, windowLimit,
+      serviceExecutorCacheKeyHash, false );
+  }
+
+  /**
+   * Generates the cache key for a given query with a specific size and rate, windowed on event or processing time.
+   *
+   * @param query The query.
+   * @param windowMode The query window mode.
+   * @param windowSize The query window size.
+   * @param windowEvery The query window rate.
+   * @param windowMaxRowLimit The query window max rows.
+   * @param windowMaxTimeLimit The query window max time.
+   * @param windowLimit The query window limit.
+   * @param serviceExecutorCacheKeyHash The service transformation service executor key cache hash.
+   * @param eventTime Whether the query windows on the event time of the service rows.
+   * @return The cache key for the query.
+   */
+  public static String getCacheKey( String query, IDataServiceClientService.StreamingMode windowMode, long windowSize,
+                                    long windowEvery, int windowMaxRowLimit, long windowMaxTimeLimit, long windowLimit,
+                                    int serviceExecutorCacheKeyHash, boolean eventTime ) {
 
     boolean timeBased = IDataServiceClientService.StreamingMode.TIME_BASED.equals( windowMode );
     boolean rowBased = IDataServiceClientService.StreamingMode.ROW_BASED.equals( windowMode );
@@ -59,7 +80,8 @@ public abstract class WindowParametersHelper {
       .concat( "-" ).concat( String.valueOf( windowSize ) )
       .concat( "-" ).concat( String.valueOf( windowEvery ) )
       .concat( "-" ).concat( String.valueOf( maxRows ) )
-      .concat( "-" ).concat( String.valueOf( maxTime ) );
+      .concat( "-" ).concat( String.valueOf( maxTime ) )
+      .concat( eventTime ? "-event" : "" );
   }
 
   /**
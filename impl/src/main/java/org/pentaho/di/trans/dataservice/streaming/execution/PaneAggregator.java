@@ -0,0 +1,444 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming.execution;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.math.IntMath;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueDataUtil;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.core.sql.SQLAggregation;
+import org.pentaho.di.core.sql.SQLField;
+import org.pentaho.di.core.sql.SQLFields;
+import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the windows of a streaming GROUP BY query from per-pane partial aggregates, without running the
+ * generated transformation.
+ * <p>
+ * A window is cut into panes of consecutive rows, starting at the window's first row. Sliding row based windows
+ * start on pane boundaries, so panes shared with the previous window are recognized by their first and last row and
+ * only the new panes are aggregated. Partial SUM, COUNT, MIN, MAX and AVG values of each pane are then combined into
+ * the window result, aggregated as the generated transformation's group by step would.
+ * <p>
+ * Only queries selecting grouped fields and those aggregates, without filters, ordering, limits or computed fields,
+ * are handled. Windows that can not be aggregated here, such as empty windows or rows of another layout, are left to
+ * the generated transformation.
+ */
+public final class PaneAggregator {
+  private final ImmutableList<SQLField> selectFields;
+  private final ImmutableList<String> groupFields;
+  private final RowMetaInterface outputFields;
+  private final int paneSize;
+
+  private Layout layout;
+  private Map<PaneKey, Map<GroupKey, Partial>> previous = Collections.emptyMap();
+
+  private PaneAggregator( List<SQLField> selectFields, List<String> groupFields, RowMetaInterface outputFields,
+                          int paneSize ) {
+    this.selectFields = ImmutableList.copyOf( selectFields );
+    this.groupFields = ImmutableList.copyOf( groupFields );
+    this.outputFields = outputFields;
+    this.paneSize = paneSize;
+  }
+
+  /**
+   * @param sql          The query.
+   * @param outputFields The fields written by the generated transformation's result step.
+   * @param windowMode   The streaming window mode.
+   * @param windowSize   The query window size.
+   * @param windowEvery  The query window rate.
+   * @return The aggregator for the query windows, or absent if the generated transformation has to run.
+   */
+  public static Optional<PaneAggregator> forQuery( SQL sql, RowMetaInterface outputFields,
+                                                   IDataServiceClientService.StreamingMode windowMode,
+                                                   long windowSize, long windowEvery ) {
+    SQLFields select = sql.getSelectFields();
+    if ( ( sql.getWhereCondition() != null && !sql.getWhereCondition().isEmpty() )
+      || ( sql.getHavingCondition() != null && !sql.getHavingCondition().isEmpty() )
+      || ( sql.getOrderFields() != null && !sql.getOrderFields().isEmpty() )
+      || sql.getLimitClause() != null || select.isDistinct() || !select.hasAggregates()
+      || !select.getConstantFields().isEmpty() || !select.getIifFunctionFields().isEmpty()
+      || outputFields == null || outputFields.size() != select.getFields().size() ) {
+      return Optional.absent();
+    }
+
+    List<String> groupFields = Lists.newArrayList();
+    for ( SQLField groupField : sql.getGroupFields().getFields() ) {
+      groupFields.add( groupField.getField() );
+    }
+    for ( SQLField field : select.getFields() ) {
+      if ( field.getAggregation() == null ) {
+        if ( !groupFields.contains( field.getField() ) ) {
+          return Optional.absent();
+        }
+      } else if ( field.getValueData() != null || field.isCountDistinct()
+        || ( field.getValueMeta() == null && !field.isCountStar() ) || !isDecomposable( field.getAggregation() ) ) {
+        return Optional.absent();
+      }
+    }
+
+    // Sliding row windows start every pane, anything else is aggregated as a single pane
+    int paneSize = Integer.MAX_VALUE;
+    if ( IDataServiceClientService.StreamingMode.ROW_BASED.equals( windowMode ) && windowSize > 0
+      && windowSize <= Integer.MAX_VALUE && windowEvery > 0 && windowEvery < windowSize ) {
+      paneSize = IntMath.gcd( (int) windowSize, (int) windowEvery );
+    }
+    return Optional.of( new PaneAggregator( select.getFields(), groupFields, outputFields, paneSize ) );
+  }
+
+  private static boolean isDecomposable( SQLAggregation aggregation ) {
+    switch ( aggregation ) {
+      case SUM:
+      case COUNT:
+      case MIN:
+      case MAX:
+      case AVG:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  int getPaneSize() {
+    return paneSize;
+  }
+
+  /**
+   * Aggregate a window. Must not be called concurrently.
+   *
+   * @return The result rows, or absent if the window has to be processed by the generated transformation.
+   */
+  public Optional<List<RowMetaAndData>> aggregate( List<RowMetaAndData> window ) {
+    if ( window.isEmpty() ) {
+      return Optional.absent();
+    }
+    try {
+      RowMetaInterface rowMeta = window.get( 0 ).getRowMeta();
+      if ( layout == null || layout.rowMeta != rowMeta ) {
+        previous = Collections.emptyMap();
+        layout = Layout.resolve( rowMeta, groupFields, selectFields );
+      }
+      if ( layout == null ) {
+        return Optional.absent();
+      }
+
+      Map<PaneKey, Map<GroupKey, Partial>> panes = Maps.newHashMap();
+      Map<GroupKey, Partial> totals = Maps.newLinkedHashMap();
+      for ( int start = 0, end; start < window.size(); start = end ) {
+        end = start + Math.min( paneSize, window.size() - start );
+        PaneKey key = new PaneKey( window.get( start ), window.get( end - 1 ), end - start );
+        Map<GroupKey, Partial> pane = previous.get( key );
+        if ( pane == null ) {
+          pane = layout.aggregate( window.subList( start, end ) );
+          if ( pane == null ) {
+            previous = Collections.emptyMap();
+            return Optional.absent();
+          }
+        }
+        panes.put( key, pane );
+        for ( Map.Entry<GroupKey, Partial> entry : pane.entrySet() ) {
+          Partial total = totals.get( entry.getKey() );
+          if ( total == null ) {
+            totals.put( entry.getKey(), total = layout.newPartial() );
+          }
+          layout.combine( total, entry.getValue() );
+        }
+      }
+      previous = panes;
+
+      List<RowMetaAndData> rows = Lists.newArrayListWithCapacity( totals.size() );
+      for ( Map.Entry<GroupKey, Partial> entry : totals.entrySet() ) {
+        rows.add( new RowMetaAndData( outputFields, layout.result( entry.getKey(), entry.getValue(), outputFields ) ) );
+      }
+      return Optional.of( rows );
+    } catch ( KettleValueException | RuntimeException e ) {
+      previous = Collections.emptyMap();
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Field indexes and value types of a service row layout.
+   */
+  private static final class Layout {
+    private final RowMetaInterface rowMeta;
+    private final RowMetaInterface groupMeta;
+    private final int[] groupIndexes;
+    private final SQLAggregation[] aggregations;
+    private final boolean[] countStar;
+    private final int[] subjectIndexes;
+    private final ValueMetaInterface[] subjectMeta;
+    private final ValueMetaInterface[] resultMeta;
+    private final int[] selectGroupIndexes;
+    private final int[] selectAggregateIndexes;
+
+    private Layout( RowMetaInterface rowMeta, RowMetaInterface groupMeta, int[] groupIndexes, int aggregates,
+                    int selected ) {
+      this.rowMeta = rowMeta;
+      this.groupMeta = groupMeta;
+      this.groupIndexes = groupIndexes;
+      this.aggregations = new SQLAggregation[ aggregates ];
+      this.countStar = new boolean[ aggregates ];
+      this.subjectIndexes = new int[ aggregates ];
+      this.subjectMeta = new ValueMetaInterface[ aggregates ];
+      this.resultMeta = new ValueMetaInterface[ aggregates ];
+      this.selectGroupIndexes = new int[ selected ];
+      this.selectAggregateIndexes = new int[ selected ];
+    }
+
+    /**
+     * @return layout of the rows, or null if fields are missing or not stored as normal values
+     */
+    static Layout resolve( RowMetaInterface rowMeta, List<String> groupFields, List<SQLField> selectFields ) {
+      RowMeta groupMeta = new RowMeta();
+      int[] groupIndexes = new int[ groupFields.size() ];
+      for ( int i = 0; i < groupIndexes.length; i++ ) {
+        groupIndexes[ i ] = rowMeta.indexOfValue( groupFields.get( i ) );
+        if ( groupIndexes[ i ] < 0 || !rowMeta.getValueMeta( groupIndexes[ i ] ).isStorageNormal() ) {
+          return null;
+        }
+        groupMeta.addValueMeta( rowMeta.getValueMeta( groupIndexes[ i ] ) );
+      }
+
+      int aggregates = 0;
+      for ( SQLField field : selectFields ) {
+        if ( field.getAggregation() != null ) {
+          aggregates++;
+        }
+      }
+      Layout layout = new Layout( rowMeta, groupMeta, groupIndexes, aggregates, selectFields.size() );
+      int aggregate = 0;
+      for ( int i = 0; i < selectFields.size(); i++ ) {
+        SQLField field = selectFields.get( i );
+        layout.selectGroupIndexes[ i ] = -1;
+        layout.selectAggregateIndexes[ i ] = -1;
+        if ( field.getAggregation() == null ) {
+          layout.selectGroupIndexes[ i ] = groupFields.indexOf( field.getField() );
+          continue;
+        }
+        layout.selectAggregateIndexes[ i ] = aggregate;
+        layout.aggregations[ aggregate ] = field.getAggregation();
+        layout.countStar[ aggregate ] = field.isCountStar();
+        if ( !field.isCountStar() ) {
+          int index = rowMeta.indexOfValue( field.getValueMeta().getName() );
+          if ( index < 0 || !rowMeta.getValueMeta( index ).isStorageNormal() ) {
+            return null;
+          }
+          layout.subjectIndexes[ aggregate ] = index;
+          ValueMetaInterface valueMeta = rowMeta.getValueMeta( index );
+          // Integers are averaged as numbers, as the generated transformation's conversion step does
+          if ( SQLAggregation.AVG.equals( field.getAggregation() )
+            && valueMeta.getType() == ValueMetaInterface.TYPE_INTEGER ) {
+            layout.subjectMeta[ aggregate ] = valueMeta;
+            valueMeta = new ValueMetaNumber( valueMeta.getName() );
+          } else {
+            layout.subjectMeta[ aggregate ] = valueMeta;
+          }
+          layout.resultMeta[ aggregate ] = valueMeta;
+        }
+        if ( SQLAggregation.COUNT.equals( field.getAggregation() ) ) {
+          layout.resultMeta[ aggregate ] = new ValueMetaInteger( "count" );
+        }
+        aggregate++;
+      }
+      return layout;
+    }
+
+    Partial newPartial() {
+      return new Partial( aggregations.length );
+    }
+
+    /**
+     * @return partial aggregates of each group, or null if a row has another layout
+     */
+    Map<GroupKey, Partial> aggregate( List<RowMetaAndData> rows ) throws KettleValueException {
+      Map<GroupKey, Partial> groups = Maps.newLinkedHashMap();
+      for ( RowMetaAndData row : rows ) {
+        if ( row.getRowMeta() != rowMeta ) {
+          return null;
+        }
+        Object[] data = row.getData();
+        Object[] groupValues = new Object[ groupIndexes.length ];
+        for ( int i = 0; i < groupIndexes.length; i++ ) {
+          groupValues[ i ] = data[ groupIndexes[ i ] ];
+        }
+        GroupKey key = new GroupKey( groupMeta, groupValues );
+        Partial partial = groups.get( key );
+        if ( partial == null ) {
+          groups.put( key, partial = newPartial() );
+        }
+        for ( int i = 0; i < aggregations.length; i++ ) {
+          if ( countStar[ i ] ) {
+            partial.counts[ i ]++;
+            continue;
+          }
+          Object value = data[ subjectIndexes[ i ] ];
+          // Empty strings count as null, as they do in the generated transformation's group by step
+          if ( subjectMeta[ i ].isNull( value ) ) {
+            continue;
+          }
+          if ( subjectMeta[ i ] != resultMeta[ i ] && !SQLAggregation.COUNT.equals( aggregations[ i ] ) ) {
+            value = resultMeta[ i ].convertData( subjectMeta[ i ], value );
+          }
+          accumulate( partial, i, value, 1 );
+        }
+      }
+      return groups;
+    }
+
+    void combine( Partial total, Partial pane ) throws KettleValueException {
+      for ( int i = 0; i < aggregations.length; i++ ) {
+        if ( countStar[ i ] || SQLAggregation.COUNT.equals( aggregations[ i ] ) ) {
+          total.counts[ i ] += pane.counts[ i ];
+        } else if ( pane.values[ i ] != null ) {
+          accumulate( total, i, pane.values[ i ], pane.counts[ i ] );
+        }
+      }
+    }
+
+    private void accumulate( Partial partial, int i, Object value, long count ) throws KettleValueException {
+      ValueMetaInterface valueMeta = resultMeta[ i ];
+      Object current = partial.values[ i ];
+      switch ( aggregations[ i ] ) {
+        case SUM:
+        case AVG:
+          partial.values[ i ] = current == null ? value : ValueDataUtil.sum( valueMeta, current, valueMeta, value );
+          break;
+        case MIN:
+          if ( current == null || valueMeta.compare( value, current ) < 0 ) {
+            partial.values[ i ] = value;
+          }
+          break;
+        case MAX:
+          if ( current == null || valueMeta.compare( value, current ) > 0 ) {
+            partial.values[ i ] = value;
+          }
+          break;
+        default:
+          break;
+      }
+      partial.counts[ i ] += count;
+    }
+
+    Object[] result( GroupKey key, Partial partial, RowMetaInterface outputFields ) throws KettleValueException {
+      Object[] row = new Object[ outputFields.size() ];
+      for ( int i = 0; i < row.length; i++ ) {
+        ValueMetaInterface valueMeta;
+        Object value;
+        if ( selectGroupIndexes[ i ] >= 0 ) {
+          valueMeta = groupMeta.getValueMeta( selectGroupIndexes[ i ] );
+          value = key.values[ selectGroupIndexes[ i ] ];
+        } else {
+          int aggregate = selectAggregateIndexes[ i ];
+          valueMeta = resultMeta[ aggregate ];
+          if ( countStar[ aggregate ] || SQLAggregation.COUNT.equals( aggregations[ aggregate ] ) ) {
+            value = partial.counts[ aggregate ];
+          } else if ( SQLAggregation.AVG.equals( aggregations[ aggregate ] ) && partial.values[ aggregate ] != null ) {
+            value = ValueDataUtil.divide( valueMeta, partial.values[ aggregate ],
+              new ValueMetaInteger( "count" ), partial.counts[ aggregate ] );
+          } else {
+            value = partial.values[ aggregate ];
+          }
+        }
+        ValueMetaInterface outputMeta = outputFields.getValueMeta( i );
+        row[ i ] = outputMeta.getType() == valueMeta.getType() ? value : outputMeta.convertData( valueMeta, value );
+      }
+      return row;
+    }
+  }
+
+  /**
+   * Aggregate values and counts of non-null values, per aggregate field.
+   */
+  private static final class Partial {
+    private final Object[] values;
+    private final long[] counts;
+
+    Partial( int aggregates ) {
+      values = new Object[ aggregates ];
+      counts = new long[ aggregates ];
+    }
+  }
+
+  /**
+   * Grouping values, compared as the group by step compares them.
+   */
+  private static final class GroupKey {
+    private final RowMetaInterface groupMeta;
+    private final Object[] values;
+    private final int hash;
+
+    GroupKey( RowMetaInterface groupMeta, Object[] values ) throws KettleValueException {
+      this.groupMeta = groupMeta;
+      this.values = values;
+      this.hash = groupMeta.hashCode( values );
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( !( o instanceof GroupKey ) ) {
+        return false;
+      }
+      try {
+        return groupMeta.compare( values, ( (GroupKey) o ).values ) == 0;
+      } catch ( KettleValueException e ) {
+        throw new IllegalArgumentException( e );
+      }
+    }
+
+    @Override public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * Identifies a pane by its bounding rows. Windows are contiguous ranges of a stream, so these determine the rows.
+   */
+  private static final class PaneKey {
+    private final RowMetaAndData first;
+    private final RowMetaAndData last;
+    private final int size;
+
+    PaneKey( RowMetaAndData first, RowMetaAndData last, int size ) {
+      this.first = first;
+      this.last = last;
+      this.size = size;
+    }
+
+    @Override public boolean equals( Object o ) {
+      if ( !( o instanceof PaneKey ) ) {
+        return false;
+      }
+      PaneKey that = (PaneKey) o;
+      return first == that.first && last == that.last && size == that.size;
+    }
+
+    @Override public int hashCode() {
+      return 31 * ( 31 * System.identityHashCode( first ) + System.identityHashCode( last ) ) + size;
+    }
+  }
+}
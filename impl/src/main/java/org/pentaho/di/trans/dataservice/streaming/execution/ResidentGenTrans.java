@@ -0,0 +1,176 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming.execution;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.SingleThreadedTransExecutor;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.steps.calculator.CalculatorMeta;
+import org.pentaho.di.trans.steps.constant.ConstantMeta;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
+import org.pentaho.di.trans.steps.filterrows.FilterRowsMeta;
+import org.pentaho.di.trans.steps.injector.InjectorMeta;
+import org.pentaho.di.trans.steps.memgroupby.MemoryGroupByMeta;
+import org.pentaho.di.trans.steps.selectvalues.SelectValuesMeta;
+import org.pentaho.di.trans.steps.sort.SortRowsMeta;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generated transformation kept running across the windows of a streaming query.
+ * <p>
+ * The steps are prepared and initialized once, then run single threaded on the rows of each window. The end of a
+ * window is signalled to the steps as the end of a batch, so the sort and group by steps flush and reset their state
+ * for the next window. Transformations with steps keeping state across batches, such as the limit and offset steps,
+ * are not supported.
+ */
+class ResidentGenTrans {
+  private static final Log logger = LogFactory.getLog( ResidentGenTrans.class );
+
+  private static final Set<Class<? extends StepMetaInterface>> BATCH_STEPS = ImmutableSet.of(
+    InjectorMeta.class, DummyTransMeta.class, SelectValuesMeta.class, FilterRowsMeta.class, CalculatorMeta.class,
+    ConstantMeta.class, MemoryGroupByMeta.class, SortRowsMeta.class );
+
+  private final Trans genTrans;
+  private final String injectorStepName;
+  private final String resultStepName;
+  private SingleThreadedTransExecutor executor;
+  private RowProducer rowProducer;
+  private List<RowMetaAndData> rows = new ArrayList<>();
+  private boolean disposed;
+
+  ResidentGenTrans( Trans genTrans, String injectorStepName, String resultStepName ) {
+    this.genTrans = genTrans;
+    this.injectorStepName = injectorStepName;
+    this.resultStepName = resultStepName;
+  }
+
+  /**
+   * Tests if a generated transformation can be kept running across windows.
+   *
+   * @param transMeta The generated transformation meta.
+   * @return True if all steps reset their state at the end of a window.
+   */
+  static boolean supports( TransMeta transMeta ) {
+    if ( transMeta == null || transMeta.nrSteps() == 0 ) {
+      return false;
+    }
+    for ( int i = 0; i < transMeta.nrSteps(); i++ ) {
+      StepMetaInterface stepMeta = transMeta.getStep( i ).getStepMetaInterface();
+      if ( stepMeta == null || !BATCH_STEPS.contains( stepMeta.getClass() ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs the rows of one window through the generated transformation, starting it on the first window.
+   *
+   * @param window The window rows.
+   * @param prepareLock The lock held while the generated transformation is prepared.
+   * @return The rows written by the result step, or absent if the transformation is stopped or disposed.
+   * @throws KettleException If the transformation could not be started or failed processing the window.
+   */
+  synchronized Optional<List<RowMetaAndData>> execute( List<RowMetaAndData> window, Object prepareLock )
+    throws KettleException {
+    if ( disposed || ( executor == null && !start( prepareLock ) ) || genTrans.isStopped() ) {
+      return Optional.absent();
+    }
+
+    List<RowMetaAndData> result = new ArrayList<>();
+    rows = result;
+    for ( RowMetaAndData row : window ) {
+      // Single threaded transformations have unbounded row sets, this never blocks
+      rowProducer.putRow( row.getRowMeta(), row.getData() );
+    }
+    if ( !executor.oneIteration() ) {
+      return Optional.absent();
+    }
+    return Optional.of( result );
+  }
+
+  private boolean start( Object prepareLock ) throws KettleException {
+    genTrans.getTransMeta().setTransformationType( TransMeta.TransformationType.SingleThreaded );
+    genTrans.getTransListeners().clear();
+    genTrans.cleanup();
+    synchronized ( prepareLock ) {
+      if ( Thread.currentThread().isInterrupted() ) {
+        //avoids InterruptedException caused by the transformations being stopped in the meantime
+        return false;
+      }
+      genTrans.prepareExecution( null );
+      rowProducer = genTrans.addRowProducer( injectorStepName, 0 );
+    }
+
+    StepInterface resultStep = genTrans.findRunThread( resultStepName );
+    resultStep.addRowListener( new RowAdapter() {
+      @Override public void rowWrittenEvent( RowMetaInterface rowMeta, Object[] row ) {
+        rows.add( new RowMetaAndData( rowMeta, row ) );
+      }
+    } );
+
+    SingleThreadedTransExecutor singleThreadedExecutor = createExecutor();
+    if ( !singleThreadedExecutor.init() ) {
+      throw new KettleException( "Unable to initialize the steps of the generated transformation" );
+    }
+    executor = singleThreadedExecutor;
+    return true;
+  }
+
+  @VisibleForTesting
+  SingleThreadedTransExecutor createExecutor() {
+    return new SingleThreadedTransExecutor( genTrans );
+  }
+
+  synchronized boolean isStarted() {
+    return executor != null;
+  }
+
+  synchronized boolean isDisposed() {
+    return disposed;
+  }
+
+  /**
+   * Stops the generated transformation. It is prepared again if needed to run a window the usual way.
+   */
+  synchronized void dispose() {
+    disposed = true;
+    if ( executor != null ) {
+      try {
+        executor.dispose();
+      } catch ( KettleException | RuntimeException e ) {
+        logger.debug( "Error disposing the steps of the generated transformation", e );
+      }
+      executor = null;
+    }
+    if ( genTrans.getTransMeta() != null ) {
+      genTrans.getTransMeta().setTransformationType( TransMeta.TransformationType.Normal );
+    }
+  }
+}
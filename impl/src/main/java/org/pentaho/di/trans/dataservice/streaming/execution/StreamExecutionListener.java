@@ -21,15 +21,28 @@ import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.PublishSubject;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
+import org.pentaho.di.trans.dataservice.streaming.EventTime;
+import org.pentaho.di.trans.dataservice.streaming.SlidingWindows;
+import org.pentaho.di.trans.dataservice.streaming.StreamBufferBudget;
+import org.pentaho.di.trans.dataservice.streaming.StreamList;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class to represents a listener for a service transformation stream.
+ * <p>
+ * The rows held by the listener buffers are capped by the max rows window size, or the row window size if larger, as
+ * granted by the {@link StreamBufferBudget}. When a buffer is full its oldest rows are dropped and counted as overflow
+ * rows. Row windows are never resized: a listener is rejected if the budget can not grant the rows of its window. A
+ * channel opened by the listener holds at most the rows granted to the listener, and reserves its ring as well.
+ * <p>
+ * When the service declares an {@link EventTime}, time based windows are assigned by the event time of the rows and
+ * closed by its watermark. Such windows are only published once closed, without a pre-window or fallback window.
  */
 public class StreamExecutionListener {
   private IDataServiceClientService.StreamingMode windowMode;
@@ -46,6 +59,14 @@ public class StreamExecutionListener {
   private List<RowMetaAndData> cachePreWindow = Collections.synchronizedList( new ArrayList<RowMetaAndData>() );
   private PublishSubject<List<RowMetaAndData>> outputBufferPublisher;
   private final AtomicBoolean hasWindow = new AtomicBoolean( false );
+  private final AtomicBoolean released = new AtomicBoolean( false );
+  private final AtomicLong overflowRows = new AtomicLong();
+  private final AtomicLong lateRows = new AtomicLong();
+  private StreamList.Channel<RowMetaAndData> channel;
+  private StreamBufferBudget budget;
+  private EventTime eventTime;
+  private int rowCap;
+  private int channelRows;
 
   /**
    * Constructor. Subscribes a listener to the given window buffer.
@@ -64,13 +85,185 @@ public class StreamExecutionListener {
                                   Consumer<List<RowMetaAndData>> windowConsumer,
                                   final IDataServiceClientService.StreamingMode windowMode, final long windowSize,
                                   final long windowEvery, final int maxRows, final long maxTime ) {
+    this( stream, windowConsumer, windowMode, windowSize, windowEvery, maxRows, maxTime,
+      StreamBufferBudget.getInstance() );
+  }
+
+  /**
+   * Constructor. Subscribes a listener to the given window buffer, reserving its buffered rows from a budget.
+   *
+   * @param stream         The {@link io.reactivex.subjects.PublishSubject} data stream.
+   * @param windowConsumer The consumer for the windows produced.
+   * @param windowMode     The streaming window mode.
+   * @param windowSize     The window size. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param windowEvery    The window rate. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param maxRows        The max rows window size.
+   * @param maxTime        The max time window size.
+   * @param budget         The budget the max rows window size is reserved from.
+   */
+  public StreamExecutionListener( final PublishSubject<RowMetaAndData> stream,
+                                  Consumer<List<RowMetaAndData>> windowConsumer,
+                                  final IDataServiceClientService.StreamingMode windowMode, final long windowSize,
+                                  final long windowEvery, final int maxRows, final long maxTime,
+                                  final StreamBufferBudget budget ) {
+    this( stream, windowConsumer, windowMode, windowSize, windowEvery, maxRows, maxTime, budget, null );
+  }
+
+  /**
+   * Constructor. Subscribes a listener to the given window buffer, reserving its buffered rows from a budget.
+   *
+   * @param stream         The {@link io.reactivex.subjects.PublishSubject} data stream.
+   * @param windowConsumer The consumer for the windows produced.
+   * @param windowMode     The streaming window mode.
+   * @param windowSize     The window size. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param windowEvery    The window rate. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param maxRows        The max rows window size.
+   * @param maxTime        The max time window size.
+   * @param budget         The budget the max rows window size is reserved from.
+   * @param eventTime      The event time of TIME_BASED windows, or null to window by processing time.
+   * @throws IllegalStateException if the budget can not grant the rows of a ROW_BASED window.
+   */
+  public StreamExecutionListener( final PublishSubject<RowMetaAndData> stream,
+                                  Consumer<List<RowMetaAndData>> windowConsumer,
+                                  final IDataServiceClientService.StreamingMode windowMode, final long windowSize,
+                                  final long windowEvery, final int maxRows, final long maxTime,
+                                  final StreamBufferBudget budget, final EventTime eventTime ) {
+    reserve( windowMode, windowSize, windowEvery, maxRows, maxTime, budget, eventTime );
+    init( stream, windowConsumer );
+  }
+
+  /**
+   * Constructor. Subscribes a listener to the given stream channel, which is closed when the listener is
+   * un-subscribed.
+   *
+   * @param channel        The {@link StreamList.Channel} delivering the data stream.
+   * @param windowConsumer The consumer for the windows produced.
+   * @param windowMode     The streaming window mode.
+   * @param windowSize     The window size. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param windowEvery    The window rate. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param maxRows        The max rows window size.
+   * @param maxTime        The max time window size.
+   */
+  public StreamExecutionListener( final StreamList.Channel<RowMetaAndData> channel,
+                                  Consumer<List<RowMetaAndData>> windowConsumer,
+                                  final IDataServiceClientService.StreamingMode windowMode, final long windowSize,
+                                  final long windowEvery, final int maxRows, final long maxTime ) {
+    this( channel, windowConsumer, windowMode, windowSize, windowEvery, maxRows, maxTime, null );
+  }
+
+  /**
+   * Constructor. Subscribes a listener to the given stream channel, which is closed when the listener is
+   * un-subscribed.
+   *
+   * @param channel        The {@link StreamList.Channel} delivering the data stream.
+   * @param windowConsumer The consumer for the windows produced.
+   * @param windowMode     The streaming window mode.
+   * @param windowSize     The window size. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param windowEvery    The window rate. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param maxRows        The max rows window size.
+   * @param maxTime        The max time window size.
+   * @param eventTime      The event time of TIME_BASED windows, or null to window by processing time.
+   */
+  public StreamExecutionListener( final StreamList.Channel<RowMetaAndData> channel,
+                                  Consumer<List<RowMetaAndData>> windowConsumer,
+                                  final IDataServiceClientService.StreamingMode windowMode, final long windowSize,
+                                  final long windowEvery, final int maxRows, final long maxTime,
+                                  final EventTime eventTime ) {
+    this( channel, windowConsumer, windowMode, windowSize, windowEvery, maxRows, maxTime,
+      StreamBufferBudget.getInstance(), eventTime );
+  }
+
+  /**
+   * Constructor. Subscribes a listener to the given stream channel, which is closed when the listener is
+   * un-subscribed, reserving its buffered rows from a budget.
+   *
+   * @param channel        The {@link StreamList.Channel} delivering the data stream.
+   * @param windowConsumer The consumer for the windows produced.
+   * @param windowMode     The streaming window mode.
+   * @param windowSize     The window size. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param windowEvery    The window rate. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                       TIME_BASED streamingType.
+   * @param maxRows        The max rows window size.
+   * @param maxTime        The max time window size.
+   * @param budget         The budget the max rows window size is reserved from.
+   * @param eventTime      The event time of TIME_BASED windows, or null to window by processing time.
+   * @throws IllegalStateException if the budget can not grant the rows of a ROW_BASED window.
+   */
+  public StreamExecutionListener( final StreamList.Channel<RowMetaAndData> channel,
+                                  Consumer<List<RowMetaAndData>> windowConsumer,
+                                  final IDataServiceClientService.StreamingMode windowMode, final long windowSize,
+                                  final long windowEvery, final int maxRows, final long maxTime,
+                                  final StreamBufferBudget budget, final EventTime eventTime ) {
+    this( channel.getStream(), windowConsumer, windowMode, windowSize, windowEvery, maxRows, maxTime,
+      budget, eventTime );
+    this.channel = channel;
+  }
+
+  /**
+   * Constructor. Opens a channel of the given stream, with as many of the requested rows as the budget grants, and
+   * subscribes a listener to it. The channel is closed and its rows released when the listener is un-subscribed.
+   *
+   * @param stream          The {@link StreamList} the channel is opened on.
+   * @param channelCapacity The most rows the channel should hold before dropping the oldest ones. The channel holds
+   *                        no more rows than granted to the listener buffers.
+   * @param windowConsumer  The consumer for the windows produced.
+   * @param windowMode      The streaming window mode.
+   * @param windowSize      The window size. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                        TIME_BASED streamingType.
+   * @param windowEvery     The window rate. Number of rows for a ROW_BASED streamingType and milliseconds for a
+   *                        TIME_BASED streamingType.
+   * @param maxRows         The max rows window size.
+   * @param maxTime         The max time window size.
+   * @param budget          The budget the channel and the max rows window size are reserved from.
+   * @param eventTime       The event time of TIME_BASED windows, or null to window by processing time.
+   * @throws IllegalStateException if the budget can not grant the rows of a ROW_BASED window.
+   */
+  public StreamExecutionListener( final StreamList<RowMetaAndData> stream, final int channelCapacity,
+                                  Consumer<List<RowMetaAndData>> windowConsumer,
+                                  final IDataServiceClientService.StreamingMode windowMode, final long windowSize,
+                                  final long windowEvery, final int maxRows, final long maxTime,
+                                  final StreamBufferBudget budget, final EventTime eventTime ) {
+    reserve( windowMode, windowSize, windowEvery, maxRows, maxTime, budget, eventTime );
+    // A ring larger than the listener buffers would only queue rows they drop
+    this.channelRows = budget.reserve( Math.max( Math.min( channelCapacity, rowCap ), 1 ) );
+    this.channel = stream.openChannel( channelRows );
+    init( channel.getStream(), windowConsumer );
+  }
+
+  /**
+   * Sets the window parameters and reserves the row cap of the listener buffers: the max rows window size, or the
+   * row window size if larger.
+   *
+   * @throws IllegalStateException if the budget can not grant the rows of a ROW_BASED window.
+   */
+  private void reserve( final IDataServiceClientService.StreamingMode windowMode, final long windowSize,
+                        final long windowEvery, final int maxRows, final long maxTime, final StreamBufferBudget budget,
+                        final EventTime eventTime ) {
     this.windowMode = windowMode;
     this.windowSize = windowSize;
     this.windowEvery = windowEvery;
     this.maxRows = maxRows;
     this.maxTime = maxTime;
-
-    init( stream, windowConsumer );
+    this.budget = budget;
+    this.eventTime = eventTime;
+    long windowRows = IDataServiceClientService.StreamingMode.ROW_BASED.equals( windowMode )
+      ? Math.max( windowSize, windowEvery ) : 0;
+    this.rowCap = budget.reserve( (int) Math.min( Math.max( Math.max( maxRows, windowRows ), 1 ),
+      Integer.MAX_VALUE ) );
+    if ( rowCap < windowRows ) {
+      budget.release( rowCap );
+      throw new IllegalStateException( "Streaming buffers can not hold a window of " + windowRows + " rows, only "
+        + rowCap + " rows are available" );
+    }
   }
 
   /**
@@ -83,18 +276,31 @@ public class StreamExecutionListener {
     boolean rowBased = IDataServiceClientService.StreamingMode.ROW_BASED.equals( windowMode );
     boolean timeBased = IDataServiceClientService.StreamingMode.TIME_BASED.equals( windowMode );
 
+    if ( timeBased && eventTime != null ) {
+      // Closed by the watermark only, a processing time fallback or pre-window would break replays
+      this.buffer = SlidingWindows.eventTimeBased( stream, windowSize, windowEvery > 0 ? windowEvery : windowSize,
+        rowCap, eventTime::timestamp, eventTime.getAllowedLateness(), this::overflow, lateRows::addAndGet );
+      this.outputBufferPublisher = PublishSubject.create();
+      this.outputSubject = this.outputBufferPublisher.subscribe( windowConsumer );
+      resetBuffer();
+      return;
+    }
+
+    // Windows are views of a log shared by all open windows, overlapping windows do not copy rows
     if ( windowEvery > 0 ) {
       if ( timeBased ) {
-        this.buffer = stream.buffer( windowSize, windowEvery, TimeUnit.MILLISECONDS );
+        this.buffer = SlidingWindows.timeBased( stream, windowSize, windowEvery, rowCap, Schedulers.computation(),
+          this::overflow );
       } else if ( rowBased ) {
-        this.buffer = stream.buffer( (int) windowSize, (int) windowEvery );
+        this.buffer = SlidingWindows.rowBased( stream, (int) windowSize, (int) windowEvery );
       }
     } else if ( timeBased ) {
-      this.buffer = stream.buffer( windowSize, TimeUnit.MILLISECONDS );
+      this.buffer = SlidingWindows.timeBased( stream, windowSize, windowSize, rowCap, Schedulers.computation(),
+        this::overflow );
     } else {
-      this.buffer = stream.buffer( (int) windowSize );
+      this.buffer = SlidingWindows.rowBased( stream, (int) windowSize, (int) windowSize );
     }
-    this.fallbackBuffer = stream.buffer( maxTime, TimeUnit.MILLISECONDS, Schedulers.computation(), maxRows, () -> new ArrayList<>(), true );
+    this.fallbackBuffer = stream.buffer( maxTime, TimeUnit.MILLISECONDS, Schedulers.computation(), rowCap, () -> new ArrayList<>(), true );
 
     this.outputBufferPublisher = PublishSubject.create();
     this.outputSubject = this.outputBufferPublisher.subscribe( windowConsumer );
@@ -104,12 +310,14 @@ public class StreamExecutionListener {
     resetFallbackBuffer();
 
     // below is created the streaming objects used while the first window is not produced
+    // the starter buffer is also capped, a full one is published before its time is up
     if ( timeBased ) {
-      this.starterSubject = stream.buffer( (int) ( windowEvery > 0 ? windowEvery : windowSize ), TimeUnit.MILLISECONDS )
+      this.starterSubject = stream.buffer( (int) ( windowEvery > 0 ? windowEvery : windowSize ), TimeUnit.MILLISECONDS,
+        Schedulers.computation(), rowCap, () -> new ArrayList<>(), true )
         .subscribe( items -> {
           if ( !hasWindow.get() ) {
             resetFallbackBuffer();
-            this.cachePreWindow.addAll( items );
+            addPreWindow( items );
             outputBufferPublisher.onNext( this.cachePreWindow );
           }
         } );
@@ -118,13 +326,34 @@ public class StreamExecutionListener {
         .subscribe( items -> {
           if ( !hasWindow.get() ) {
             resetFallbackBuffer();
-            this.cachePreWindow.addAll( items );
+            addPreWindow( items );
             outputBufferPublisher.onNext( this.cachePreWindow );
           }
         } );
     }
   }
 
+  /**
+   * Adds rows to the cached window data, dropping the oldest ones beyond the row cap.
+   *
+   * @param items The rows to add.
+   */
+  private void addPreWindow( List<RowMetaAndData> items ) {
+    synchronized ( this.cachePreWindow ) {
+      this.cachePreWindow.addAll( items );
+      int excess = this.cachePreWindow.size() - rowCap;
+      if ( excess > 0 ) {
+        this.cachePreWindow.subList( 0, excess ).clear();
+        overflow( excess );
+      }
+    }
+  }
+
+  private void overflow( long rows ) {
+    overflowRows.addAndGet( rows );
+    budget.overflow( rows );
+  }
+
   /**
    * Getter for the cached window data collected before a window is ready.
    *
@@ -134,14 +363,85 @@ public class StreamExecutionListener {
     return this.cachePreWindow;
   }
 
+  /**
+   * Getter for the number of rows dropped because this listener fell behind the stream.
+   *
+   * @return The number of dropped rows, 0 if the listener is not fed by a channel.
+   */
+  public long getDroppedRows() {
+    return this.channel == null ? 0 : this.channel.getDropped();
+  }
+
+  /**
+   * Stops the rows being delivered to this listener, holding back the service stream once its channel is full.
+   * Does nothing if the listener is not fed by a channel.
+   */
+  public void pause() {
+    if ( this.channel != null ) {
+      this.channel.pause();
+    }
+  }
+
+  /**
+   * Resumes delivering the rows held back by {@link #pause()}.
+   */
+  public void resume() {
+    if ( this.channel != null ) {
+      this.channel.resume();
+    }
+  }
+
+  /**
+   * Getter for the number of rows dropped because the listener buffers were full.
+   *
+   * @return The number of overflow rows.
+   */
+  public long getOverflowRows() {
+    return overflowRows.get();
+  }
+
+  /**
+   * Getter for the number of rows dropped because they arrived after their event time windows were closed, or had
+   * no event time.
+   *
+   * @return The number of late rows, 0 if the listener does not window by event time.
+   */
+  public long getLateRows() {
+    return lateRows.get();
+  }
+
+  /**
+   * Getter for the rows the listener buffers may hold.
+   *
+   * @return The row cap granted by the budget.
+   */
+  public int getRowCap() {
+    return rowCap;
+  }
+
+  /**
+   * Getter for the number of rows waiting to be delivered to this listener.
+   *
+   * @return The channel queue depth, 0 if the listener is not fed by a channel.
+   */
+  public int getPendingRows() {
+    return this.channel == null ? 0 : this.channel.getDepth();
+  }
+
   /**
    * Un-subscribes the streaming buffers.
    */
   public void unSubscribe() {
+    if ( this.channel != null ) {
+      this.channel.close();
+    }
     unSubscribeOutput();
     unSubscribeStarter();
     unSubscribeBuffer();
     unSubscribeFallbackBuffer();
+    if ( released.compareAndSet( false, true ) ) {
+      budget.release( rowCap + channelRows );
+    }
   }
 
   /**
@@ -246,6 +546,8 @@ public class StreamExecutionListener {
   private void resetFallbackBuffer() {
     //If we are processing a regular window buffer, we should discard the fallback one
     unSubscribeFallbackBuffer();
-    this.fallbackSubject = this.fallbackBuffer.subscribe( this::processFallbackWindow );
+    if ( this.fallbackBuffer != null ) {
+      this.fallbackSubject = this.fallbackBuffer.subscribe( this::processFallbackWindow );
+    }
   }
 }
@@ -14,11 +14,12 @@
 package org.pentaho.di.trans.dataservice.streaming.execution;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
-import io.reactivex.BackpressureOverflowStrategy;
-import io.reactivex.BackpressureStrategy;
 import io.reactivex.Observer;
+import io.reactivex.Scheduler;
 import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.PublishSubject;
 import org.apache.commons.logging.Log;
@@ -31,6 +32,7 @@ import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.RowProducer;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
+import org.pentaho.di.trans.dataservice.streaming.BackpressurePolicy;
 import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
 import org.pentaho.di.trans.step.RowAdapter;
 import org.pentaho.di.trans.step.StepInterface;
@@ -65,7 +67,14 @@ public class StreamingGeneratedTransExecution implements Runnable {
   private long windowSize;
   private long windowEvery;
   private long windowLimit;
+  private boolean eventTime;
   private String streamingGeneratedTransCacheKey;
+  private PaneAggregator paneAggregator;
+  private volatile ResidentGenTrans residentGenTrans;
+  private BackpressurePolicy backpressurePolicy = BackpressurePolicy.DROP_OLDEST;
+  private int backpressureBuffer = 1;
+  private Scheduler windowScheduler = Schedulers.trampoline();
+  private volatile WindowQueue windowQueue;
 
   /**
    * Constructor.
@@ -106,6 +115,92 @@ public class StreamingGeneratedTransExecution implements Runnable {
     this.addNewRowConsumer( rowConsumer, pollingMode );
   }
 
+  /**
+   * Sets the aggregator computing windows without running the generated transformation.
+   *
+   * @param paneAggregator The {@link PaneAggregator} for the query, or null to always run the generated transformation.
+   */
+  public void setPaneAggregator( PaneAggregator paneAggregator ) {
+    this.paneAggregator = paneAggregator;
+  }
+
+  /**
+   * Keeps the generated transformation running across windows, instead of preparing and starting it for every
+   * window. Only applies if all the steps of the generated transformation support it.
+   *
+   * @param resident True to keep the generated transformation running.
+   */
+  public void setResident( boolean resident ) {
+    if ( resident && residentGenTrans == null && ResidentGenTrans.supports( genTrans.getTransMeta() ) ) {
+      residentGenTrans = new ResidentGenTrans( genTrans, injectorStepName, resultStepName );
+    } else if ( !resident && residentGenTrans != null ) {
+      residentGenTrans.dispose();
+      residentGenTrans = null;
+    }
+  }
+
+  /**
+   * Sets how windows produced while the generated transformation is busy are handled. Windows are then processed
+   * on a separate thread, so the service stream is only held back by the {@link BackpressurePolicy#BLOCK} policy,
+   * which pauses the row delivery to the query while the pending windows are full.
+   * Must be called before {@link #run()}.
+   *
+   * @param policy The {@link BackpressurePolicy} of the query.
+   * @param bufferSize The number of windows kept pending.
+   */
+  public void setBackpressure( BackpressurePolicy policy, int bufferSize ) {
+    setBackpressure( policy, bufferSize, Schedulers.io() );
+  }
+
+  @VisibleForTesting
+  protected void setBackpressure( BackpressurePolicy policy, int bufferSize, Scheduler scheduler ) {
+    this.backpressurePolicy = policy;
+    this.backpressureBuffer = Math.max( bufferSize, 1 );
+    this.windowScheduler = scheduler;
+  }
+
+  /**
+   * Sets whether the query windows on the event time of the service rows. Must be called before {@link #run()}.
+   *
+   * @param eventTime true to assign TIME_BASED windows by the service event time, false for processing time.
+   */
+  public void setEventTime( boolean eventTime ) {
+    this.eventTime = eventTime;
+  }
+
+  /**
+   * @return The number of windows dropped while the generated transformation was busy.
+   */
+  public long getDroppedWindows() {
+    WindowQueue queue = windowQueue;
+    return queue == null ? 0 : queue.getDropped();
+  }
+
+  /**
+   * @return The number of windows merged into a pending window while the generated transformation was busy.
+   */
+  public long getCoalescedWindows() {
+    WindowQueue queue = windowQueue;
+    return queue == null ? 0 : queue.getCoalesced();
+  }
+
+  /**
+   * @return The number of windows waiting for the generated transformation.
+   */
+  public int getPendingWindows() {
+    WindowQueue queue = windowQueue;
+    return queue == null ? 0 : queue.getDepth();
+  }
+
+  public BackpressurePolicy getBackpressurePolicy() {
+    return backpressurePolicy;
+  }
+
+  @VisibleForTesting
+  protected boolean isResident() {
+    return residentGenTrans != null;
+  }
+
   /**
    * Gets the window consumer, that should be used to consume the data produced in the service executor.
    * @return A {@link Consumer} that accepts a list of {@link RowMetaAndData} produced by the service executor.
@@ -119,22 +214,27 @@ public class StreamingGeneratedTransExecution implements Runnable {
    * Spans boundary thread to execute the transformation.
    */
   @Override public void run() {
-    //we stop back pressure by only processing the last data
-    getGeneratedDataObservable()
-      .toFlowable( BackpressureStrategy.LATEST )
-      .onBackpressureBuffer( 1, () -> { }, BackpressureOverflowStrategy.DROP_OLDEST )
-      .doOnError( t -> logger.error( "Error receiving data from the service transformation observable", t ) )
-      .doOnNext( rowMetaAndDataList -> {
+    //windows produced while the generated transformation is busy are handled by the backpressure policy
+    WindowQueue queue = new WindowQueue( backpressurePolicy, backpressureBuffer,
+      (int) Math.min( serviceExecutor.getWindowMaxRowLimit(), Integer.MAX_VALUE ), windowScheduler,
+      rowMetaAndDataList -> {
         if ( consumersCount.get() > 0 ) {
           serviceExecutor.touchServiceListener( this.streamingGeneratedTransCacheKey );
         }
-      } )
-      .subscribe( rowMetaAndDataList -> this.runGenTrans( rowMetaAndDataList ) );
+        this.runGenTrans( rowMetaAndDataList );
+      } );
+    windowQueue = queue;
+    getGeneratedDataObservable()
+      .doOnError( t -> logger.error( "Error receiving data from the service transformation observable", t ) )
+      .subscribe( queue::offer );
 
     // This is where we will inject the rows from the service transformation step
     if ( this.stream == null ) {
       this.stream = serviceExecutor.getBuffer( query, getWindowConsumer(),
-        windowMode, windowSize, windowEvery, windowLimit );
+        windowMode, windowSize, windowEvery, windowLimit, eventTime );
+    }
+    if ( stream != null && BackpressurePolicy.BLOCK.equals( backpressurePolicy ) ) {
+      queue.setFlowControl( stream::pause, stream::resume );
     }
     try {
       if ( stream == null ) {
@@ -154,7 +254,24 @@ public class StreamingGeneratedTransExecution implements Runnable {
   @VisibleForTesting
   protected void runGenTrans( final List<RowMetaAndData> rowIterator ) throws KettleStepException {
     if ( isRunning.compareAndSet( false, true ) ) {
+      boolean generated = false;
       try {
+        if ( paneAggregator != null ) {
+          Optional<List<RowMetaAndData>> aggregated = paneAggregator.aggregate( rowIterator );
+          if ( aggregated.isPresent() ) {
+            publish( aggregated.get() );
+            return;
+          }
+        }
+        if ( residentGenTrans != null ) {
+          Optional<List<RowMetaAndData>> resultRows = runResidentGenTrans( rowIterator );
+          if ( resultRows.isPresent() ) {
+            publish( resultRows.get() );
+            return;
+          }
+        }
+
+        generated = true;
         LogChannelInterface log = genTrans.getLogChannel();
         RowProducer rowProducer;
         StepInterface resultStep;
@@ -187,18 +304,43 @@ public class StreamingGeneratedTransExecution implements Runnable {
         genTrans.stopAll();
         resultStep.removeRowListener( rowListener );
 
-        if ( !this.genTransCachePublishSubject.hasComplete() ) {
-          this.genTransCachePublishSubject.onNext( Collections.unmodifiableList( rowsList ) );
-        }
+        publish( rowsList );
 
         log.logDetailed( DataServiceConstants.STREAMING_GENERATED_TRANSFORMATION_STOPPED );
       } catch ( KettleException e ) {
         throw new KettleStepException( e );
       } finally {
         isRunning.set( false );
-        genTrans.setRunning( false );
-        genTrans.setStopped( true );
+        if ( generated ) {
+          genTrans.setRunning( false );
+          genTrans.setStopped( true );
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs a window through the generated transformation kept running across windows. If that fails, the
+   * generated transformation is disposed and prepared for every window from then on.
+   */
+  private Optional<List<RowMetaAndData>> runResidentGenTrans( List<RowMetaAndData> rowIterator ) {
+    ResidentGenTrans resident = residentGenTrans;
+    try {
+      Optional<List<RowMetaAndData>> resultRows = resident.execute( rowIterator, serviceExecutor.getServiceTrans() );
+      if ( resultRows.isPresent() ) {
+        return resultRows;
       }
+    } catch ( KettleException | RuntimeException e ) {
+      logger.debug( "Unable to keep the generated transformation running, it will be started for every window", e );
+    }
+    resident.dispose();
+    residentGenTrans = null;
+    return Optional.absent();
+  }
+
+  private void publish( List<RowMetaAndData> rows ) {
+    if ( !this.genTransCachePublishSubject.hasComplete() ) {
+      this.genTransCachePublishSubject.onNext( Collections.unmodifiableList( rows ) );
     }
   }
 
@@ -256,6 +398,14 @@ public class StreamingGeneratedTransExecution implements Runnable {
   public void clearRowConsumers( ) {
     this.genTransCachePublishSubject.onComplete();
     consumersCount.set( 0 );
+    WindowQueue queue = windowQueue;
+    if ( queue != null ) {
+      queue.close();
+    }
+    ResidentGenTrans resident = residentGenTrans;
+    if ( resident != null ) {
+      resident.dispose();
+    }
   }
 
   @VisibleForTesting
@@ -13,12 +13,16 @@
 
 package org.pentaho.di.trans.dataservice.streaming.execution;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
 import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.Schedulers;
 import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleStepException;
@@ -32,6 +36,8 @@ import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
 import org.pentaho.di.trans.dataservice.execution.CopyParameters;
 import org.pentaho.di.trans.dataservice.execution.PrepareExecution;
 import org.pentaho.di.trans.dataservice.execution.TransStarter;
+import org.pentaho.di.trans.dataservice.streaming.EventTime;
+import org.pentaho.di.trans.dataservice.streaming.StreamBufferBudget;
 import org.pentaho.di.trans.dataservice.streaming.StreamList;
 import org.pentaho.di.trans.dataservice.streaming.StreamServiceKey;
 import org.pentaho.di.trans.dataservice.streaming.WindowParametersHelper;
@@ -40,14 +46,21 @@ import org.pentaho.di.trans.step.RowAdapter;
 import org.pentaho.di.trans.step.StepInterface;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
 
 /**
  * This class represents a streaming execution for a service transformation.
  * It spans a thread to run the transformation when data is requested and running thread exists, caching the requests.
  * When all the cached requests are expired the transformation is stopped and it's associated thread terminated.
+ * Expired requests are detected by a periodic maintenance task, so that passing rows along does no bookkeeping.
  */
 public class StreamingServiceTransExecutor {
+  // Rows are wrapped by the stream channels as they deliver them, not on the service step thread
+  private static final BiFunction<RowMetaInterface, Object[], RowMetaAndData> ROW_ASSEMBLER =
+    ( rowMeta, row ) -> new RowMetaAndData( rowMeta, row );
+
   private final Trans serviceTrans;
   private final StreamServiceKey key;
   private final String serviceStepName;
@@ -55,9 +68,12 @@ public class StreamingServiceTransExecutor {
   private final AtomicBoolean isStopping = new AtomicBoolean( false );
 
   private StreamList<RowMetaAndData> stepStream;
-  private long lastCacheCleanupMillis = 0;
+  private volatile boolean hasListeners;
+  private Scheduler maintenanceScheduler = Schedulers.computation();
+  private volatile Disposable maintenance;
   private int windowMaxRowLimit;
   private long windowMaxTimeLimit;
+  private EventTime eventTime;
   private Context context;
 
   /**
@@ -74,6 +90,7 @@ public class StreamingServiceTransExecutor {
         //remove the generated trans from the dataservices context cache
         context.removeStreamingGeneratedTransExecution( removal.getKey() );
         if ( serviceListeners.size() == 0 ) {
+          hasListeners = false;
           context.removeServiceTransExecutor( key );
         }
 
@@ -140,6 +157,25 @@ public class StreamingServiceTransExecutor {
     return windowMaxTimeLimit;
   }
 
+  /**
+   * Getter for the event time of the service rows.
+   *
+   * @return the event time TIME_BASED windows are assigned by, or null if they are assigned by processing time.
+   */
+  public EventTime getEventTime() {
+    return eventTime;
+  }
+
+  /**
+   * Setter for the event time of the service rows. Applies to the stream listeners created afterwards for queries
+   * that opt in to event time.
+   *
+   * @param eventTime the event time TIME_BASED windows are assigned by, or null to assign them by processing time.
+   */
+  public void setEventTime( EventTime eventTime ) {
+    this.eventTime = eventTime;
+  }
+
   /**
    * This method is used by the client to get the stream listener fot the given query and window parameters.
    * If no cached listener exists it creates a new one, and spans the Service Transformation execution thread if not
@@ -155,12 +191,34 @@ public class StreamingServiceTransExecutor {
    * @param windowLimit The query max window size. Number of rows for a TIME_BASED streamingType and milliseconds for a
    *                 ROW_BASED streamingType.
    * @return The {@link StreamExecutionListener} for the given query or null if any parameters are invalid (windowSize equal to 0).
+   * @throws IllegalStateException if the streaming buffer budget can not grant the rows of a ROW_BASED window.
    */
   public StreamExecutionListener getBuffer( String query, Consumer<List<RowMetaAndData>> windowConsumer, final IDataServiceClientService.StreamingMode windowMode,
                                             long windowSize, long windowEvery, long windowLimit ) {
+    return getBuffer( query, windowConsumer, windowMode, windowSize, windowEvery, windowLimit, false );
+  }
+
+  /**
+   * Gets the stream listener for the given query and window parameters, windowed on event or processing time.
+   *
+   * @param query The requested query.
+   * @param windowConsumer The consumer for the window that is produced by the buffer.
+   * @param windowMode The streaming window mode.
+   * @param windowSize The query window size.
+   * @param windowEvery The query window rate.
+   * @param windowLimit The query max window size.
+   * @param eventTime Whether TIME_BASED windows are assigned by the service event time, if one is set, instead of
+   *                  processing time.
+   * @return The {@link StreamExecutionListener} for the given query or null if windowSize is equal to 0.
+   * @throws IllegalStateException if the streaming buffer budget can not grant the rows of a ROW_BASED window.
+   */
+  public StreamExecutionListener getBuffer( String query, Consumer<List<RowMetaAndData>> windowConsumer,
+                                            final IDataServiceClientService.StreamingMode windowMode,
+                                            long windowSize, long windowEvery, long windowLimit, boolean eventTime ) {
+    EventTime queryEventTime = eventTime ? this.eventTime : null;
 
     String cacheId = WindowParametersHelper.getCacheKey( query, windowMode, windowSize, windowEvery, windowMaxRowLimit,
-      windowMaxTimeLimit, windowLimit, getKey().hashCode() );
+      windowMaxTimeLimit, windowLimit, getKey().hashCode(), queryEventTime != null );
 
     //this is a special case we want to deal in a graceful way... when this is true
     //an empty output should be produced upstream (the null should ensure that behaviour)
@@ -184,10 +242,13 @@ public class StreamingServiceTransExecutor {
       windowSize = WindowParametersHelper.getWindowSize( windowSize, timeBased, maxRows, maxTime );
       windowEvery = WindowParametersHelper.getWindowEvery( windowEvery, timeBased, maxRows, maxTime );
 
-      streamListener = new StreamExecutionListener( stepStream.getStream(), windowConsumer, windowMode, windowSize, windowEvery,
-        maxRows, maxTime );
+      // Each listener drains its own bounded channel, so slow windows do not hold up the service step
+      streamListener = new StreamExecutionListener( stepStream, DataServiceConstants.STREAMING_CHANNEL_CAPACITY,
+        windowConsumer, windowMode, windowSize, windowEvery, maxRows, maxTime, StreamBufferBudget.getInstance(),
+        queryEventTime );
 
       serviceListeners.put( cacheId, streamListener );
+      hasListeners = true;
     }
 
     if ( isRunning.compareAndSet( false, true  ) ) {
@@ -201,7 +262,9 @@ public class StreamingServiceTransExecutor {
    * Starts the Service transformation and its row event listener.
    */
   private void startService() {
-    lastCacheCleanupMillis = System.currentTimeMillis();
+    long interval = DataServiceConstants.STREAMING_CACHE_CLEANUP_INTERVAL_SECONDS;
+    maintenance =
+      maintenanceScheduler.schedulePeriodicallyDirect( this::maintain, interval, interval, TimeUnit.SECONDS );
 
     //Copy parameters into the service transformation
     DataServiceExecutor dataServiceExecutor = context.getExecutor( serviceTrans.getContainerObjectId() );
@@ -247,20 +310,17 @@ public class StreamingServiceTransExecutor {
           // Add the row to the data stream. If no listeners are registered then the service transformation is stopped.
           LogChannelInterface log = trans.getLogChannel();
 
-          try {
-            log.logRowlevel( DataServiceConstants.PASSING_ALONG_ROW + rowMeta.getString( row ) );
-          } catch ( KettleValueException e ) {
-            // Ignore error
+          if ( log.isRowLevel() ) {
+            try {
+              log.logRowlevel( DataServiceConstants.PASSING_ALONG_ROW + rowMeta.getString( row ) );
+            } catch ( KettleValueException e ) {
+              // Ignore error
+            }
           }
 
-          serviceCacheCleanup();
-
-          if ( serviceListeners.size() > 0 ) {
-            RowMetaAndData rowData = new RowMetaAndData();
-            rowData.setRowMeta( rowMeta );
-            rowData.setData( row );
-
-            stepStream.add( rowData );
+          // The flag is only confirmed against the cache once the last listener has been removed
+          if ( hasListeners || serviceListeners.size() > 0 ) {
+            stepStream.add( rowMeta, row, ROW_ASSEMBLER );
           } else {
             stopService();
           }
@@ -270,18 +330,25 @@ public class StreamingServiceTransExecutor {
   }
 
   /**
-   * Clean up service listener cache.
+   * Clean up the service listener cache, stopping the service transformation once no listeners are left.
    */
-  private void serviceCacheCleanup() {
-    long currentTime = System.currentTimeMillis();
-    long updateTime = lastCacheCleanupMillis + ( DataServiceConstants.STREAMING_CACHE_CLEANUP_INTERVAL_SECONDS * 1000 );
-
-    if ( updateTime <= currentTime ) {
-      serviceListeners.cleanUp();
-      lastCacheCleanupMillis = currentTime;
+  private void maintain() {
+    serviceListeners.cleanUp();
+    if ( serviceListeners.size() == 0 ) {
+      stopService();
     }
   }
 
+  /**
+   * Setter for the scheduler running the listener cache maintenance. Takes effect when the service is started.
+   *
+   * @param maintenanceScheduler The maintenance scheduler.
+   */
+  @VisibleForTesting
+  void setMaintenanceScheduler( Scheduler maintenanceScheduler ) {
+    this.maintenanceScheduler = maintenanceScheduler;
+  }
+
   /**
    * Clears the listeners cache.
    */
@@ -309,6 +376,9 @@ public class StreamingServiceTransExecutor {
       LogChannelInterface log = serviceTrans.getLogChannel();
 
       serviceTrans.stopAll();
+      if ( maintenance != null ) {
+        maintenance.dispose();
+      }
 
       isRunning.set( false );
       isStopping.set( false );
@@ -325,6 +395,28 @@ public class StreamingServiceTransExecutor {
     clearCache();
   }
 
+  /**
+   * Getter for the number of service rows dropped because listeners fell behind the stream.
+   *
+   * @return the number of rows dropped by the registered listeners.
+   */
+  public long getDroppedRows() {
+    return stepStream == null ? 0 : stepStream.getDropped();
+  }
+
+  /**
+   * Getter for the number of service rows dropped because the buffers of the registered listeners were full.
+   *
+   * @return the number of overflow rows of the registered listeners.
+   */
+  public long getOverflowRows() {
+    long rows = 0;
+    for ( StreamExecutionListener listener : serviceListeners.asMap().values() ) {
+      rows += listener.getOverflowRows();
+    }
+    return rows;
+  }
+
   /**
    * Get the execution listener and does a touch in it's cache value so that the timeout time is reset.
    *
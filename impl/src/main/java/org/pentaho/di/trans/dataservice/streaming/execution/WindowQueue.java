@@ -0,0 +1,219 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming.execution;
+
+import io.reactivex.Scheduler;
+import io.reactivex.functions.Consumer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.trans.dataservice.streaming.BackpressurePolicy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Windows waiting for the generated transformation of a streaming query.
+ * <p>
+ * Windows are handed to the consumer one at a time, in order, on the given scheduler. Windows offered while the
+ * queue is full are handled according to the {@link BackpressurePolicy}, and counted. Offering never blocks: with
+ * {@link BackpressurePolicy#BLOCK} the source is paused through the flow control hooks until the queue has room again,
+ * and windows the source produced before it was held back are queued beyond the capacity, unchanged.
+ */
+class WindowQueue {
+  private static final Log logger = LogFactory.getLog( WindowQueue.class );
+
+  private final BackpressurePolicy policy;
+  private final int capacity;
+  private final int coalesceRowLimit;
+  private final Scheduler scheduler;
+  private final Consumer<List<RowMetaAndData>> consumer;
+  private final Deque<List<RowMetaAndData>> pending = new ArrayDeque<>();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private Runnable pause;
+  private Runnable resume;
+  private boolean sourcePaused;
+  private boolean draining;
+  private boolean closed;
+
+  /**
+   * @param policy           The policy applied when the queue is full.
+   * @param capacity         The number of pending windows, ignored by {@link BackpressurePolicy#DROP_OLDEST}.
+   * @param coalesceRowLimit The maximum rows of a coalesced window, keeping the newest, or 0 for no limit.
+   * @param scheduler        The scheduler the consumer is called on.
+   * @param consumer         The consumer of the windows.
+   */
+  WindowQueue( BackpressurePolicy policy, int capacity, int coalesceRowLimit, Scheduler scheduler,
+               Consumer<List<RowMetaAndData>> consumer ) {
+    checkArgument( capacity > 0, "Capacity must be positive" );
+    this.policy = policy;
+    this.capacity = BackpressurePolicy.DROP_OLDEST.equals( policy ) ? 1 : capacity;
+    this.coalesceRowLimit = coalesceRowLimit;
+    this.scheduler = scheduler;
+    this.consumer = consumer;
+  }
+
+  /**
+   * Sets the hooks holding back and releasing the source of the windows, used by {@link BackpressurePolicy#BLOCK}.
+   *
+   * @param pause  Called when the queue fills up.
+   * @param resume Called once the queue has room again, or is closed.
+   */
+  void setFlowControl( Runnable pause, Runnable resume ) {
+    synchronized ( pending ) {
+      this.pause = pause;
+      this.resume = resume;
+    }
+  }
+
+  /**
+   * Queues a window. Windows arriving while the queue is full are kept by {@link BackpressurePolicy#BLOCK}, so a
+   * window is never altered or lost while the paused source stops sending them.
+   *
+   * @param window The window rows.
+   */
+  void offer( List<RowMetaAndData> window ) {
+    boolean schedule;
+    synchronized ( pending ) {
+      if ( closed ) {
+        return;
+      }
+      if ( pending.size() >= capacity ) {
+        switch ( policy ) {
+          case BLOCK:
+            break;
+          case COALESCE:
+            pending.addLast( coalesce( pending.pollLast(), window ) );
+            coalesced.incrementAndGet();
+            window = null;
+            break;
+          default:
+            pending.poll();
+            dropped.incrementAndGet();
+            break;
+        }
+      }
+      if ( window != null ) {
+        pending.addLast( window );
+      }
+      if ( BackpressurePolicy.BLOCK.equals( policy ) && !sourcePaused && pause != null
+        && pending.size() >= capacity ) {
+        sourcePaused = true;
+        pause.run();
+      }
+      schedule = !draining;
+      draining = true;
+    }
+    if ( schedule ) {
+      scheduler.scheduleDirect( this::drain );
+    }
+  }
+
+  private void drain() {
+    while ( true ) {
+      List<RowMetaAndData> window;
+      synchronized ( pending ) {
+        window = pending.poll();
+        if ( window == null || closed ) {
+          draining = false;
+          return;
+        }
+        if ( sourcePaused && pending.size() < capacity ) {
+          resumeSource();
+        }
+      }
+      try {
+        consumer.accept( window );
+      } catch ( Exception e ) {
+        logger.error( "Error processing a streaming window", e );
+      }
+      delivered.incrementAndGet();
+    }
+  }
+
+  private List<RowMetaAndData> coalesce( List<RowMetaAndData> older, List<RowMetaAndData> newer ) {
+    // Sliding windows share rows, each row is kept once
+    Set<RowMetaAndData> rows = Collections.newSetFromMap( new IdentityHashMap<>() );
+    List<RowMetaAndData> merged = new ArrayList<>( older.size() + newer.size() );
+    addDistinct( older, rows, merged );
+    addDistinct( newer, rows, merged );
+    if ( coalesceRowLimit > 0 && merged.size() > coalesceRowLimit ) {
+      return new ArrayList<>( merged.subList( merged.size() - coalesceRowLimit, merged.size() ) );
+    }
+    return merged;
+  }
+
+  private static void addDistinct( List<RowMetaAndData> window, Set<RowMetaAndData> rows,
+                                   List<RowMetaAndData> merged ) {
+    for ( RowMetaAndData row : window ) {
+      if ( rows.add( row ) ) {
+        merged.add( row );
+      }
+    }
+  }
+
+  private void resumeSource() {
+    sourcePaused = false;
+    resume.run();
+  }
+
+  /**
+   * Discards pending windows and resumes a paused source. Windows offered afterwards are ignored.
+   */
+  void close() {
+    synchronized ( pending ) {
+      closed = true;
+      pending.clear();
+      if ( sourcePaused ) {
+        resumeSource();
+      }
+    }
+  }
+
+  BackpressurePolicy getPolicy() {
+    return policy;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  int getDepth() {
+    synchronized ( pending ) {
+      return pending.size();
+    }
+  }
+
+  long getDropped() {
+    return dropped.get();
+  }
+
+  long getCoalesced() {
+    return coalesced.get();
+  }
+
+  long getDelivered() {
+    return delivered.get();
+  }
+}
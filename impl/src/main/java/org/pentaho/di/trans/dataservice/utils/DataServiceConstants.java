@@ -23,6 +23,8 @@ public final class DataServiceConstants {
   public static final String LEGACY_LIMIT_PROPERTY = "det.dataservice.dynamic.limit";
   public static final String ROW_LIMIT_PROPERTY = "dataservice.dynamic.limit";
   public static final String TIME_LIMIT_PROPERTY = "dataservice.dynamic.timelimitmilli";
+  public static final String STREAMING_RESIDENT_PROPERTY = "dataservice.streaming.resident";
+  public static final String STREAMING_BUFFER_BUDGET_PROPERTY = "dataservice.streaming.buffer.rows";
   public static final int ROW_LIMIT_DEFAULT = 50000;
   public static final long TIME_LIMIT_DEFAULT = 100000;
 
@@ -41,6 +43,17 @@ public final class DataServiceConstants {
   public static final long STREAMING_CACHE_CLEANUP_INTERVAL_SECONDS = 130;
   public static final int KETTLE_STREAMING_ROW_LIMIT = 5000;
   public static final int KETTLE_STREAMING_TIME_LIMIT = 10000;
+  public static final int STREAMING_CHANNEL_CAPACITY = 16384;
+  public static final long STREAMING_BUFFER_BUDGET_DEFAULT = 1000000;
+  public static final int STREAMING_BUFFER_MIN_ROWS = 1000;
+
+  // Streaming backpressure, per query parameters
+  public static final String BACKPRESSURE_POLICY_PARAMETER = "DATASERVICE_BACKPRESSURE";
+  public static final String BACKPRESSURE_BUFFER_PARAMETER = "DATASERVICE_BACKPRESSURE_BUFFER";
+  public static final int BACKPRESSURE_BUFFER_DEFAULT = 16;
+
+  // Streaming event time, per query parameter
+  public static final String EVENT_TIME_PARAMETER = "DATASERVICE_EVENT_TIME";
 
   private DataServiceConstants() {
     throw new AssertionError();
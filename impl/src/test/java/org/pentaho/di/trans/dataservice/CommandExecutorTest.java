@@ -13,23 +13,28 @@
 
 package org.pentaho.di.trans.dataservice;
 
+import com.google.common.base.Strings;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCacheReport;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -53,7 +58,7 @@ public class CommandExecutorTest {
   @Mock DataServiceExecutor executor;
 
   @Before public void setUp() {
-    when( context.getExecutor( EXECUTOR_ID ) ).thenReturn( executor );
+    lenient().when( context.getExecutor( EXECUTOR_ID ) ).thenReturn( executor );
   }
 
   @Test public void testBuildCommand() {
@@ -101,6 +106,22 @@ public class CommandExecutorTest {
     assertThat( dataInputStream.readUTF(), equalTo( "false" ) );
   }
 
+  @Test public void testExecuteCacheStats() throws Exception {
+    ServiceCacheReport report = mock( ServiceCacheReport.class );
+    when( context.getCacheReport() ).thenReturn( report );
+    when( report.build( Arrays.asList( "service1", "service2" ) ) ).thenReturn( "report" );
+    CommandExecutor commandExecutor = new CommandExecutor.Builder(
+      CommandExecutor.buildCommand( CommandExecutor.CacheStatsCommand.CACHE_STATS, "service1", "service2" ),
+      context ).build();
+    assertThat( executeCommand( commandExecutor ).readUTF(), equalTo( "report" ) );
+
+    when( report.build( Arrays.<String>asList() ) ).thenReturn( Strings.repeat( "x", 70000 ) );
+    commandExecutor = new CommandExecutor.Builder(
+      CommandExecutor.buildCommand( CommandExecutor.CacheStatsCommand.CACHE_STATS ), context ).build();
+    assertThat( executeCommand( commandExecutor ).readUTF().length(),
+      equalTo( CommandExecutor.CacheStatsCommand.MAX_LENGTH + 4 ) );
+  }
+
   private static DataInputStream executeCommand( CommandExecutor commandExecutor ) throws IOException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     DataOutputStream dos = new DataOutputStream( baos );
@@ -13,6 +13,7 @@
 
 package org.pentaho.di.trans.dataservice;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ListMultimap;
@@ -48,6 +49,10 @@ import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
 import org.pentaho.di.trans.dataservice.execution.CopyParameters;
 import org.pentaho.di.trans.dataservice.optimization.OptimizationImpactInfo;
 import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
+import org.pentaho.di.trans.dataservice.optimization.cache.ResultCache;
+import org.pentaho.di.trans.dataservice.optimization.cache.ServiceCache;
+import org.pentaho.di.trans.dataservice.streaming.BackpressurePolicy;
+import org.pentaho.di.trans.dataservice.streaming.EventTime;
 import org.pentaho.di.trans.dataservice.streaming.StreamServiceKey;
 import org.pentaho.di.trans.dataservice.streaming.WindowParametersHelper;
 import org.pentaho.di.trans.dataservice.streaming.execution.StreamingGeneratedTransExecution;
@@ -68,6 +73,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.function.BiConsumer;
 
 import static org.hamcrest.Matchers.arrayWithSize;
@@ -273,6 +280,59 @@ public class DataServiceExecutorTest extends BaseTest {
       build();
   }
 
+  @Test
+  public void testBuilderBuildStreamingBackpressure() throws Exception {
+    SQL sql = new SQL( "SELECT * FROM " + DATA_SERVICE_NAME );
+
+    when( serviceTransExecutor.getServiceTrans() ).thenReturn( serviceTrans );
+    when( serviceTransExecutor.getKey() ).thenReturn( key );
+    when( serviceTrans.getTransMeta() ).thenReturn( dataService.getServiceTrans() );
+
+    context.addServiceTransExecutor( serviceTransExecutor );
+    dataService.setStreaming( true );
+
+    DataServiceExecutor executor = new DataServiceExecutor.Builder( sql, dataService, context ).
+      sqlTransGenerator( sqlTransGenerator ).
+      genTrans( genTrans ).
+      windowMode( IDataServiceClientService.StreamingMode.ROW_BASED ).
+      build();
+    assertEquals( BackpressurePolicy.DROP_OLDEST, executor.getBackpressurePolicy() );
+    assertEquals( DataServiceConstants.BACKPRESSURE_BUFFER_DEFAULT, executor.getBackpressureBuffer() );
+
+    // Data service settings
+    dataService.setBackpressurePolicy( "buffer" );
+    dataService.setBackpressureBuffer( 8 );
+    executor = new DataServiceExecutor.Builder( sql, dataService, context ).
+      sqlTransGenerator( sqlTransGenerator ).
+      genTrans( genTrans ).
+      windowMode( IDataServiceClientService.StreamingMode.ROW_BASED ).
+      build();
+    assertEquals( BackpressurePolicy.BUFFER, executor.getBackpressurePolicy() );
+    assertEquals( 8, executor.getBackpressureBuffer() );
+
+    // Query parameters take precedence, and are not passed along to the service transformation
+    executor = new DataServiceExecutor.Builder( sql, dataService, context ).
+      sqlTransGenerator( sqlTransGenerator ).
+      genTrans( genTrans ).
+      windowMode( IDataServiceClientService.StreamingMode.ROW_BASED ).
+      parameters( ImmutableMap.of( DataServiceConstants.BACKPRESSURE_POLICY_PARAMETER, "coalesce",
+        DataServiceConstants.BACKPRESSURE_BUFFER_PARAMETER, "2", "foo", "bar" ) ).
+      build();
+    assertEquals( BackpressurePolicy.COALESCE, executor.getBackpressurePolicy() );
+    assertEquals( 2, executor.getBackpressureBuffer() );
+    assertEquals( ImmutableMap.of( "foo", "bar" ), executor.getParameters() );
+
+    // Set on the builder
+    executor = new DataServiceExecutor.Builder( sql, dataService, context ).
+      sqlTransGenerator( sqlTransGenerator ).
+      genTrans( genTrans ).
+      windowMode( IDataServiceClientService.StreamingMode.ROW_BASED ).
+      backpressure( BackpressurePolicy.BLOCK, 3 ).
+      build();
+    assertEquals( BackpressurePolicy.BLOCK, executor.getBackpressurePolicy() );
+    assertEquals( 3, executor.getBackpressureBuffer() );
+  }
+
   @Test
   public void testBuilderBuildStreamingServiceContext() throws Exception {
     SQL sql = new SQL( "SELECT * FROM " + DATA_SERVICE_NAME );
@@ -313,6 +373,55 @@ public class DataServiceExecutorTest extends BaseTest {
     assertNotSame( executor.getServiceTrans(), serviceTrans );
   }
 
+  @Test
+  public void testBuilderBuildStreamingLocksServiceKey() throws Exception {
+    SQL sql = new SQL( "SELECT * FROM " + DATA_SERVICE_NAME );
+
+    when( serviceTransExecutor.getServiceTrans() ).thenReturn( serviceTrans );
+    when( serviceTransExecutor.getKey() ).thenReturn( key );
+    when( serviceTrans.getTransMeta() ).thenReturn( dataService.getServiceTrans() );
+
+    context.addServiceTransExecutor( serviceTransExecutor );
+    dataService.setStreaming( true );
+
+    assertSame( DataServiceExecutor.serviceLock( key ), DataServiceExecutor.serviceLock(
+      StreamServiceKey.create( dataService.getName(), Collections.emptyMap(), Collections.emptyList() ) ) );
+    assertSame( DataServiceExecutor.genTransLock( "genTransKey" ), DataServiceExecutor.genTransLock( "genTransKey" ) );
+
+    DataServiceExecutor.Builder builder = new DataServiceExecutor.Builder( sql, dataService, context ).
+      sqlTransGenerator( sqlTransGenerator ).
+      genTrans( genTrans ).
+      metastore( mock( IMetaStore.class ) ).
+      enableMetrics( false ).
+      normalizeConditions( false ).
+      rowLimit( 50 ).
+      windowMode( IDataServiceClientService.StreamingMode.ROW_BASED );
+
+    AtomicReference<DataServiceExecutor> built = new AtomicReference<>();
+    Thread thread = new Thread( () -> {
+      try {
+        built.set( builder.build() );
+      } catch ( KettleException e ) {
+        throw new IllegalStateException( e );
+      }
+    } );
+
+    Lock lock = DataServiceExecutor.serviceLock( key );
+    lock.lock();
+    try {
+      thread.start();
+      thread.join( 200 );
+      assertTrue( thread.isAlive() );
+      assertNull( built.get() );
+    } finally {
+      lock.unlock();
+    }
+
+    thread.join( 5000 );
+    assertFalse( thread.isAlive() );
+    assertSame( serviceTrans, built.get().getServiceTrans() );
+  }
+
   @Test
   public void testBuilderBuildServiceServiceTransNotNull() throws Exception {
     SQL sql = new SQL( "SELECT * FROM " + DATA_SERVICE_NAME );
@@ -346,6 +455,79 @@ public class DataServiceExecutorTest extends BaseTest {
     assertSame( dataService.getServiceTrans(), serviceTrans.getTransMeta() );
   }
 
+  @Test
+  public void testBuilderBuildStreamingEventTime() throws Exception {
+    SQL sql = new SQL( "SELECT * FROM " + DATA_SERVICE_NAME );
+
+    when( serviceTrans.getTransMeta() ).thenReturn( serviceTransMeta );
+    when( serviceTransMeta.realClone( false ) ).thenReturn( serviceTransMeta );
+    when( serviceTransMeta.listVariables() ).thenReturn( new String[]{} );
+    when( serviceTransMeta.listParameters() ).thenReturn( new String[]{} );
+    when( serviceTransMeta.getStepFields( DATA_SERVICE_STEP ) ).thenReturn( new RowMeta() );
+
+    dataService.setServiceTrans( serviceTrans.getTransMeta() );
+    dataService.setStreaming( true );
+    dataService.setEventTimeField( "ts" );
+    dataService.setAllowedLateness( 250 );
+
+    DataServiceExecutor executor = new DataServiceExecutor.Builder( sql, dataService, context )
+      .sqlTransGenerator( sqlTransGenerator )
+      .genTrans( genTrans )
+      .metastore( mock( IMetaStore.class ) )
+      .enableMetrics( false )
+      .normalizeConditions( false )
+      .windowMode( IDataServiceClientService.StreamingMode.TIME_BASED )
+      .build();
+
+    EventTime eventTime = context.getServiceTransExecutor( key ).getEventTime();
+    assertThat( eventTime.getField(), is( "ts" ) );
+    assertThat( eventTime.getAllowedLateness(), is( 250L ) );
+    // Queries keep processing time unless they opt in
+    assertFalse( executor.isEventTime() );
+
+    executor = new DataServiceExecutor.Builder( sql, dataService, context )
+      .sqlTransGenerator( sqlTransGenerator )
+      .genTrans( genTrans )
+      .windowMode( IDataServiceClientService.StreamingMode.TIME_BASED )
+      .parameters( ImmutableMap.of( DataServiceConstants.EVENT_TIME_PARAMETER, "true", "foo", "bar" ) )
+      .build();
+    assertTrue( executor.isEventTime() );
+    assertEquals( ImmutableMap.of( "foo", "bar" ), executor.getParameters() );
+
+    executor = new DataServiceExecutor.Builder( sql, dataService, context )
+      .sqlTransGenerator( sqlTransGenerator )
+      .genTrans( genTrans )
+      .windowMode( IDataServiceClientService.StreamingMode.TIME_BASED )
+      .parameters( ImmutableMap.of( DataServiceConstants.EVENT_TIME_PARAMETER, "Y" ) )
+      .eventTime( false )
+      .build();
+    assertFalse( executor.isEventTime() );
+  }
+
+  @Test
+  public void testBuilderBuildStreamingEventTimeWithoutField() throws Exception {
+    SQL sql = new SQL( "SELECT * FROM " + DATA_SERVICE_NAME );
+
+    when( serviceTrans.getTransMeta() ).thenReturn( serviceTransMeta );
+    when( serviceTransMeta.realClone( false ) ).thenReturn( serviceTransMeta );
+    when( serviceTransMeta.listVariables() ).thenReturn( new String[]{} );
+    when( serviceTransMeta.listParameters() ).thenReturn( new String[]{} );
+    when( serviceTransMeta.getStepFields( DATA_SERVICE_STEP ) ).thenReturn( new RowMeta() );
+
+    dataService.setServiceTrans( serviceTrans.getTransMeta() );
+    dataService.setStreaming( true );
+
+    DataServiceExecutor executor = new DataServiceExecutor.Builder( sql, dataService, context )
+      .sqlTransGenerator( sqlTransGenerator )
+      .genTrans( genTrans )
+      .windowMode( IDataServiceClientService.StreamingMode.TIME_BASED )
+      .eventTime( true )
+      .build();
+
+    assertNull( context.getServiceTransExecutor( key ).getEventTime() );
+    assertFalse( executor.isEventTime() );
+  }
+
   @Test
   public void testExecuteQuery() throws Exception {
     testExecuteQueryAux( true, false );
@@ -579,6 +761,66 @@ public class DataServiceExecutorTest extends BaseTest {
     verify( serviceTrans, times( 1 ) ).waitUntilFinished();
   }
 
+  @Test
+  public void testExecuteQueryFromResultCache() throws Exception {
+    SQL sql = new SQL( "SELECT * FROM " + DATA_SERVICE_NAME );
+    PushDownOptimizationMeta serviceCache = new PushDownOptimizationMeta();
+    serviceCache.setType( mock( ServiceCache.class ) );
+    dataService.getPushDownOptimizationMeta().add( serviceCache );
+
+    DataServiceExecutor executor = new DataServiceExecutor.Builder( sql, dataService, context ).
+      serviceTrans( serviceTrans ).
+      sqlTransGenerator( sqlTransGenerator ).
+      genTrans( genTrans ).
+      build();
+
+    ResultCache resultCache = mock( ResultCache.class );
+    ResultCache.Result result = mock( ResultCache.Result.class );
+    when( resultCache.get( executor ) ).thenReturn( Optional.of( result ) );
+    context.setResultCache( resultCache );
+
+    DataOutputStream dataOutputStream = new DataOutputStream( new ByteArrayOutputStream() );
+    assertSame( executor, executor.executeQuery( dataOutputStream ) );
+    executor.waitUntilFinished();
+
+    verify( result ).writeTo( dataOutputStream );
+    verify( resultCache, never() ).collect( executor );
+    verify( genTrans, never() ).startThreads();
+    verify( serviceTrans, never() ).startThreads();
+    verify( serviceTrans, never() ).waitUntilFinished();
+    // Clients polling the ids in the header see finished transformations
+    verify( serviceTrans ).setFinished( true );
+    verify( genTrans ).setFinished( true );
+    verify( genTrans.getLogChannel() ).logBasic( anyString() );
+  }
+
+  @Test
+  public void testExecuteQueryWithoutServiceCacheSkipsResultCache() throws Exception {
+    SQL sql = new SQL( "SELECT * FROM " + DATA_SERVICE_NAME );
+    when( serviceTrans.getTransMeta().listParameters() ).thenReturn( new String[ 0 ] );
+    PushDownOptimizationMeta disabledCache = new PushDownOptimizationMeta();
+    disabledCache.setType( mock( ServiceCache.class ) );
+    disabledCache.setEnabled( false );
+    dataService.getPushDownOptimizationMeta().add( disabledCache );
+
+    DataServiceExecutor executor = new DataServiceExecutor.Builder( sql, dataService, context ).
+      serviceTrans( serviceTrans ).
+      sqlTransGenerator( sqlTransGenerator ).
+      genTrans( genTrans ).
+      build();
+    when( genTrans.addRowProducer( INJECTOR_STEP_NAME, 0 ) ).thenReturn( mock( RowProducer.class ) );
+
+    ResultCache resultCache = mock( ResultCache.class );
+    context.setResultCache( resultCache );
+
+    executor.executeQuery( new DataOutputStream( new ByteArrayOutputStream() ) );
+
+    verify( resultCache, never() ).get( any( DataServiceExecutor.class ) );
+    verify( resultCache, never() ).collect( any( DataServiceExecutor.class ) );
+    verify( genTrans ).startThreads();
+    verify( serviceTrans ).startThreads();
+  }
+
   @Test
   public void testExecuteStreamQuery() throws Exception {
     testExecuteStreamQuery( 1, 1, false );
@@ -29,6 +29,7 @@ import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.optimization.ValueMetaResolver;
+import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.di.trans.steps.calculator.CalculatorMeta;
 import org.pentaho.di.trans.steps.filterrows.FilterRowsMeta;
@@ -38,6 +39,7 @@ import org.pentaho.di.trans.steps.selectvalues.SelectValuesMeta;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Filter;
 
 import static junit.framework.TestCase.fail;
@@ -341,6 +343,44 @@ public class SqlTransGeneratorTest {
     assertStepNotPresent( transMeta, "DateToStr - Remove temporary fields" );
   }
 
+  @Test
+  public void testRemoveSortStep() throws KettleException {
+    SQL sql = new SQL( "SELECT foo, bar FROM table WHERE bar > 1 ORDER BY foo" );
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "bar" ) );
+    sql.parse( rowMeta );
+
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    TransMeta transMeta = generator.generateTransMeta();
+    assertThat( generator.getSortStepName(), equalTo( "Sort rows" ) );
+    getStepByName( transMeta, "Sort rows" );
+    int hops = transMeta.nrTransHops();
+
+    assertTrue( generator.removeSortStep( transMeta ) );
+    assertStepNotPresent( transMeta, "Sort rows" );
+    assertThat( transMeta.nrTransHops(), equalTo( hops - 1 ) );
+    List<StepMeta> previous = transMeta.findPreviousSteps( transMeta.findStep( "Select values" ) );
+    assertThat( previous.size(), equalTo( 1 ) );
+    assertTrue( previous.get( 0 ).getStepMetaInterface() instanceof FilterRowsMeta );
+    assertFalse( generator.removeSortStep( transMeta ) );
+  }
+
+  @Test
+  public void testRemoveSortStepUnordered() throws KettleException {
+    SQL sql = new SQL( "SELECT * FROM table" );
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "foo" ) );
+    sql.parse( rowMeta );
+
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    TransMeta transMeta = generator.generateTransMeta();
+    int steps = transMeta.nrSteps();
+
+    assertFalse( generator.removeSortStep( transMeta ) );
+    assertThat( transMeta.nrSteps(), equalTo( steps ) );
+  }
+
   private void assertStepNotPresent( TransMeta transMeta, String stepName ) {
     int selectValuesIndex = Arrays.asList( transMeta.getStepNames() ).indexOf( stepName );
     if ( selectValuesIndex >= 0 ) {
@@ -27,6 +27,7 @@ import org.pentaho.di.core.sql.SQL;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.dataservice.DataServiceContext;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
 import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
 import org.pentaho.di.trans.dataservice.resolvers.DataServiceResolver;
 import org.pentaho.di.trans.dataservice.serialization.DataServiceFactory;
@@ -64,6 +65,7 @@ public class ExecutorQueryServiceTest {
   @Mock private DataServiceContext context;
   @Mock private DataServiceResolver dataServiceResolver;
   @Mock private DataServiceExecutor dataServiceExecutor;
+  @Mock private DataServiceMeta dataServiceMeta;
   @Mock private Trans serviceTrans;
   @Mock private Trans genTrans;
   @Mock private DataServiceExecutor.Builder builder;
@@ -149,6 +151,9 @@ public class ExecutorQueryServiceTest {
     ExecutorQueryService executorQueryService = new ExecutorQueryService( dataServiceResolver, metastoreLocator );
     Query executorQuery = executorQueryService.prepareQuery( sql.getSqlString(), rowLimit, parameters );
 
+    // Streaming services are never coalesced, so the query writes directly to the stream
+    when( dataServiceExecutor.getService() ).thenReturn( dataServiceMeta );
+    when( dataServiceMeta.isStreaming() ).thenReturn( true );
     DataOutputStream dataOutputStreamMock = mock( DataOutputStream.class );
     doReturn( dataServiceExecutor ).when( dataServiceExecutor ).executeQuery( dataOutputStreamMock );
     executorQuery.writeTo( dataOutputStreamMock );
@@ -161,6 +166,9 @@ public class ExecutorQueryServiceTest {
     ExecutorQueryService executorQueryService = new ExecutorQueryService( dataServiceResolver, metastoreLocator );
     Query executorQuery = executorQueryService.prepareQuery( sql.getSqlString(), rowLimit, parameters );
 
+    // Streaming services are never coalesced, so the query writes directly to the stream
+    when( dataServiceExecutor.getService() ).thenReturn( dataServiceMeta );
+    when( dataServiceMeta.isStreaming() ).thenReturn( true );
     DataOutputStream dataOutputStreamMock = mock( DataOutputStream.class );
     doReturn( null ).when( dataServiceExecutor ).executeQuery( dataOutputStreamMock );
     executorQuery.writeTo( dataOutputStreamMock );
@@ -0,0 +1,305 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.clients;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.dataservice.Context;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class QueryCoalescerTest {
+  private static final String QUERY = "SELECT * FROM MOCK_SERVICE";
+
+  private QueryCoalescer coalescer;
+  private ExecutorService threads;
+  private Context context;
+  private CountDownLatch leaderStarted;
+  private CountDownLatch leaderRelease;
+
+  @Before
+  public void setUp() throws Exception {
+    coalescer = new QueryCoalescer();
+    threads = Executors.newCachedThreadPool();
+    context = mock( Context.class );
+    leaderStarted = new CountDownLatch( 1 );
+    leaderRelease = new CountDownLatch( 1 );
+  }
+
+  @After
+  public void tearDown() {
+    threads.shutdownNow();
+  }
+
+  @Test
+  public void testFollowersShareExecution() throws Exception {
+    DataServiceExecutor leader = leader( null );
+    DataServiceExecutor follower = follower( "  SELECT *\n FROM   MOCK_SERVICE " );
+
+    ByteArrayOutputStream leaderOut = new ByteArrayOutputStream();
+    Future<?> leading = submit( leader, leaderOut );
+    assertThat( leaderStarted.await( 5, TimeUnit.SECONDS ), is( true ) );
+
+    SignalingStream followerOut = new SignalingStream();
+    Future<?> following = submit( follower, followerOut );
+    assertThat( followerOut.written.await( 5, TimeUnit.SECONDS ), is( true ) );
+    leaderRelease.countDown();
+
+    leading.get( 5, TimeUnit.SECONDS );
+    following.get( 5, TimeUnit.SECONDS );
+    assertThat( leaderOut.toString( "UTF-8" ), equalTo( "headerrows" ) );
+    // The follower's own metadata replaces the leader's
+    assertThat( followerOut.toString( "UTF-8" ), equalTo( "ownrows" ) );
+    verify( follower, never() ).executeQuery( any( DataOutputStream.class ) );
+    verify( context ).removeExecutor( "follower" );
+    assertThat( coalescer.inFlight(), is( 0 ) );
+  }
+
+  @Test
+  public void testLeaderFailure() throws Exception {
+    DataServiceExecutor leader = leader( new IllegalStateException( "failed" ) );
+    DataServiceExecutor follower = follower( QUERY );
+
+    Future<?> leading = submit( leader, new ByteArrayOutputStream() );
+    assertThat( leaderStarted.await( 5, TimeUnit.SECONDS ), is( true ) );
+    SignalingStream followerOut = new SignalingStream();
+    Future<?> following = submit( follower, followerOut );
+    assertThat( followerOut.written.await( 5, TimeUnit.SECONDS ), is( true ) );
+    leaderRelease.countDown();
+
+    assertThat( failure( leading ), instanceOf( IllegalStateException.class ) );
+    assertThat( failure( following ), instanceOf( IOException.class ) );
+    assertThat( coalescer.inFlight(), is( 0 ) );
+  }
+
+  @Test
+  public void testLeaderClientGone() throws Exception {
+    DataServiceExecutor leader = leader( null );
+    DataServiceExecutor follower = follower( QUERY );
+    OutputStream leaderOut = new OutputStream() {
+      @Override public void write( int b ) throws IOException {
+        write( new byte[] { (byte) b }, 0, 1 );
+      }
+
+      @Override public void write( byte[] b, int off, int len ) throws IOException {
+        if ( leaderRelease.getCount() == 0 ) {
+          throw new IOException( "Broken pipe" );
+        }
+      }
+    };
+
+    Future<?> leading = submit( leader, leaderOut );
+    assertThat( leaderStarted.await( 5, TimeUnit.SECONDS ), is( true ) );
+    SignalingStream followerOut = new SignalingStream();
+    Future<?> following = submit( follower, followerOut );
+    assertThat( followerOut.written.await( 5, TimeUnit.SECONDS ), is( true ) );
+    leaderRelease.countDown();
+
+    // The follower still gets the whole result, the leader reports its own client failure
+    following.get( 5, TimeUnit.SECONDS );
+    assertThat( followerOut.toString( "UTF-8" ), equalTo( "ownrows" ) );
+    assertThat( failure( leading ), instanceOf( IOException.class ) );
+  }
+
+  @Test
+  public void testBufferFull() throws Exception {
+    coalescer = new QueryCoalescer( 2 );
+    DataServiceExecutor leader = leader( null );
+    DataServiceExecutor other = executor( QUERY, "other" );
+    when( other.executeQuery( any( DataOutputStream.class ) ) ).thenAnswer( invocation -> {
+      DataOutputStream dos = invocation.getArgument( 0 );
+      dos.write( "own".getBytes( StandardCharsets.UTF_8 ) );
+      return null;
+    } );
+
+    Future<?> leading = submit( leader, new ByteArrayOutputStream() );
+    assertThat( leaderStarted.await( 5, TimeUnit.SECONDS ), is( true ) );
+
+    ByteArrayOutputStream otherOut = new ByteArrayOutputStream();
+    coalescer.writeTo( other, otherOut );
+    assertThat( otherOut.toString( "UTF-8" ), equalTo( "own" ) );
+    verify( context, never() ).removeExecutor( "other" );
+
+    leaderRelease.countDown();
+    leading.get( 5, TimeUnit.SECONDS );
+  }
+
+  @Test
+  public void testRecordingStopsWithoutFollowers() throws Exception {
+    long maxBufferBytes = 64 * 1024;
+    QueryCoalescer.Flight flight = new QueryCoalescer.Flight( maxBufferBytes );
+    byte[] chunk = new byte[ 1000 ];
+    for ( int i = 0; i < 10000; i++ ) {
+      flight.append( chunk, 0, chunk.length );
+      assertThat( flight.bufferedBytes(), lessThanOrEqualTo( maxBufferBytes + chunk.length ) );
+    }
+
+    assertThat( flight.bufferedBytes(), is( 0L ) );
+    assertThat( flight.join(), nullValue() );
+  }
+
+  @Test
+  public void testBlocksReadByFollowersReleased() throws Exception {
+    QueryCoalescer.Flight flight = new QueryCoalescer.Flight( 64 * 1024 );
+    QueryCoalescer.Flight.Cursor cursor = flight.join();
+    ByteArrayOutputStream followerOut = new ByteArrayOutputStream();
+    Future<?> following = threads.submit( () -> {
+      flight.replayTo( cursor, followerOut );
+      return null;
+    } );
+
+    byte[] chunk = new byte[ 1000 ];
+    for ( int i = 0; i < 10000; i++ ) {
+      flight.append( chunk, 0, chunk.length );
+    }
+    flight.complete( null );
+
+    following.get( 5, TimeUnit.SECONDS );
+    assertThat( followerOut.size(), is( 10000 * chunk.length ) );
+    assertThat( flight.bufferedBytes(), is( 0L ) );
+  }
+
+  @Test
+  public void testLaggingFollowerDisconnected() throws Exception {
+    long maxBufferBytes = 64 * 1024;
+    QueryCoalescer.Flight flight = new QueryCoalescer.Flight( maxBufferBytes );
+    QueryCoalescer.Flight.Cursor cursor = flight.join();
+
+    // The follower reads nothing while the leader keeps writing
+    byte[] chunk = new byte[ 1000 ];
+    for ( int i = 0; i < 10000; i++ ) {
+      flight.append( chunk, 0, chunk.length );
+      assertThat( flight.bufferedBytes(), lessThanOrEqualTo( maxBufferBytes + chunk.length ) );
+    }
+    assertThat( flight.hasFollowers(), is( false ) );
+
+    ByteArrayOutputStream followerOut = new ByteArrayOutputStream();
+    try {
+      flight.replayTo( cursor, followerOut );
+      fail( "Lagging follower should be disconnected" );
+    } catch ( IOException e ) {
+      assertThat( followerOut.size(), is( 0 ) );
+    }
+  }
+
+  @Test
+  public void testStreamingNotCoalesced() throws Exception {
+    DataServiceExecutor executor = executor( QUERY, "streaming" );
+    when( executor.getService().isStreaming() ).thenReturn( true );
+    DataOutputStream dataOutputStream = mock( DataOutputStream.class );
+    when( executor.executeQuery( dataOutputStream ) ).thenReturn( executor );
+
+    coalescer.writeTo( executor, dataOutputStream );
+    verify( executor ).waitUntilFinished();
+    assertThat( coalescer.inFlight(), is( 0 ) );
+  }
+
+  private Future<?> submit( DataServiceExecutor executor, OutputStream outputStream ) {
+    return threads.submit( () -> {
+      coalescer.writeTo( executor, outputStream );
+      return null;
+    } );
+  }
+
+  private DataServiceExecutor leader( RuntimeException failure ) throws Exception {
+    DataServiceExecutor leader = executor( QUERY, "leader" );
+    doAnswer( invocation -> {
+      DataOutputStream dos = invocation.getArgument( 0 );
+      dos.write( "header".getBytes( StandardCharsets.UTF_8 ) );
+      return null;
+    } ).when( leader ).writeHeader( any( DataOutputStream.class ) );
+    when( leader.executeQuery( any( DataOutputStream.class ) ) ).thenAnswer( invocation -> {
+      DataOutputStream dos = invocation.getArgument( 0 );
+      dos.write( "header".getBytes( StandardCharsets.UTF_8 ) );
+      leaderStarted.countDown();
+      assertThat( leaderRelease.await( 5, TimeUnit.SECONDS ), is( true ) );
+      if ( failure != null ) {
+        throw failure;
+      }
+      dos.write( "rows".getBytes( StandardCharsets.UTF_8 ) );
+      return null;
+    } );
+    return leader;
+  }
+
+  private DataServiceExecutor follower( String query ) throws Exception {
+    DataServiceExecutor follower = executor( query, "follower" );
+    doAnswer( invocation -> {
+      DataOutputStream dos = invocation.getArgument( 0 );
+      dos.write( "own".getBytes( StandardCharsets.UTF_8 ) );
+      return null;
+    } ).when( follower ).writeHeader( any( DataOutputStream.class ) );
+    return follower;
+  }
+
+  private DataServiceExecutor executor( String query, String id ) throws Exception {
+    DataServiceExecutor executor = mock( DataServiceExecutor.class, RETURNS_DEEP_STUBS );
+    when( executor.getService().isStreaming() ).thenReturn( false );
+    when( executor.getService().getServiceTrans().getCacheVersion() ).thenReturn( 1 );
+    when( executor.getServiceName() ).thenReturn( "MOCK_SERVICE" );
+    when( executor.getSql() ).thenReturn( new SQL( query ) );
+    when( executor.getParameters() ).thenReturn( ImmutableMap.<String, String>of() );
+    when( executor.getContext() ).thenReturn( context );
+    when( executor.getId() ).thenReturn( id );
+    return executor;
+  }
+
+  private static Throwable failure( Future<?> future ) throws Exception {
+    try {
+      future.get( 5, TimeUnit.SECONDS );
+    } catch ( ExecutionException e ) {
+      return e.getCause();
+    }
+    fail( "Expected failure" );
+    return null;
+  }
+
+  private static class SignalingStream extends ByteArrayOutputStream {
+    private final CountDownLatch written = new CountDownLatch( 1 );
+
+    @Override public synchronized void write( byte[] b, int off, int len ) {
+      super.write( b, off, len );
+      written.countDown();
+    }
+  }
+}
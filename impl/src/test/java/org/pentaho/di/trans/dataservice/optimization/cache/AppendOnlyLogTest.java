@@ -0,0 +1,90 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class AppendOnlyLogTest {
+
+  @Test
+  public void testAppendAcrossSegments() throws Exception {
+    AppendOnlyLog<Integer> log = new AppendOnlyLog<>();
+    for ( int i = 0; i < 5000; i++ ) {
+      assertTrue( log.append( i ) );
+    }
+    List<Integer> snapshot = log.snapshot();
+    log.append( 5000 );
+    log.close();
+
+    assertThat( log.size(), equalTo( 5001 ) );
+    assertThat( log.get( 4321 ), equalTo( 4321 ) );
+    assertThat( snapshot, hasSize( 5000 ) );
+    assertThat( snapshot.get( 1024 ), equalTo( 1024 ) );
+    assertFalse( log.append( 5001 ) );
+    assertThat( log.size(), equalTo( 5001 ) );
+  }
+
+  @Test
+  public void testIteratorEndsWhenClosed() throws Exception {
+    AppendOnlyLog<String> log = new AppendOnlyLog<>();
+    log.append( "a" );
+    log.close();
+
+    Iterator<String> iterator = log.iterator();
+    assertThat( iterator.next(), is( "a" ) );
+    assertFalse( iterator.hasNext() );
+  }
+
+  @Test( timeout = 10000 )
+  public void testConcurrentReaders() throws Exception {
+    final AppendOnlyLog<Integer> log = new AppendOnlyLog<>();
+    ExecutorService readers = Executors.newFixedThreadPool( 4 );
+    try {
+      List<Future<List<Integer>>> results = Lists.newArrayList();
+      for ( int i = 0; i < 4; i++ ) {
+        results.add( readers.submit( () -> ImmutableList.copyOf( log.iterator() ) ) );
+      }
+      for ( int i = 0; i < 10000; i++ ) {
+        log.append( i );
+      }
+      log.close();
+
+      for ( Future<List<Integer>> result : results ) {
+        List<Integer> rows = result.get( 5, TimeUnit.SECONDS );
+        assertThat( rows, hasSize( 10000 ) );
+        for ( int i = 0; i < rows.size(); i++ ) {
+          assertThat( rows.get( i ), equalTo( i ) );
+        }
+      }
+    } finally {
+      readers.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class CacheFileNamesTest {
+
+  @Test
+  public void testDirectoryName() {
+    assertThat( CacheFileNames.directoryName( "SERVICE_CACHE.sales-2" ), is( "SERVICE_005fCACHE.sales-2" ) );
+    assertThat( CacheFileNames.directoryName( ".." ), is( "_002e." ) );
+    assertThat( CacheFileNames.directoryName( "a/b" ), is( "a_002fb" ) );
+  }
+
+  @Test
+  public void testDistinctNames() {
+    assertThat( CacheFileNames.directoryName( "a b" ), not( equalTo( CacheFileNames.directoryName( "a_b" ) ) ) );
+    assertThat( CacheFileNames.directoryName( "a_0020b" ),
+      not( equalTo( CacheFileNames.directoryName( "a b" ) ) ) );
+  }
+
+  @Test
+  public void testLongNames() {
+    String first = CacheFileNames.directoryName( Strings.repeat( "a", 200 ) + "1" );
+    String second = CacheFileNames.directoryName( Strings.repeat( "a", 200 ) + "2" );
+    assertThat( first.length(), lessThanOrEqualTo( 120 ) );
+    assertThat( first, not( equalTo( second ) ) );
+    assertThat( first, not( endsWith( "1" ) ) );
+  }
+}
@@ -0,0 +1,117 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import io.reactivex.Observer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
+import org.pentaho.di.trans.dataservice.resolvers.DataServiceResolver;
+
+import java.time.LocalDateTime;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.StrictStubs.class)
+public class CacheWarmUpTest {
+  private static final String SERVICE = "MOCK_SERVICE";
+  private static final String QUERY = "SELECT * FROM MOCK_SERVICE";
+
+  @Mock DataServiceResolver resolver;
+  @Mock ServiceCacheFactory factory;
+  @Mock TransMeta transMeta;
+  @Mock DataServiceExecutor.Builder builder;
+  @Mock DataServiceExecutor executor;
+
+  private PushDownOptimizationMeta optimization;
+  private CacheWarmUp warmUp;
+
+  @Before
+  public void setUp() throws Exception {
+    ServiceCache serviceCache = new ServiceCache( factory );
+    serviceCache.setWarmUpQueries( QUERY + "\n\n" );
+    serviceCache.setWarmUpTimes( "07:45, invalid" );
+    optimization = new PushDownOptimizationMeta();
+    optimization.setType( serviceCache );
+    DataServiceMeta dataService = new DataServiceMeta( transMeta );
+    dataService.setName( SERVICE );
+    dataService.setPushDownOptimizationMeta( ImmutableList.of( optimization ) );
+    //noinspection unchecked
+    when( resolver.getDataServices( any( Function.class ) ) ).thenReturn( ImmutableList.of( dataService ) );
+
+    warmUp = new CacheWarmUp( resolver );
+  }
+
+  @Test
+  public void testRunsWhenDue() throws Exception {
+    when( resolver.createBuilder( argThat( ( SQL sql ) -> QUERY.equals( sql.getSqlString() ) ) ) )
+      .thenReturn( builder );
+    when( builder.build() ).thenReturn( executor );
+    //noinspection unchecked
+    when( executor.executeQuery( any( Observer.class ) ) ).thenReturn( executor );
+
+    warmUp.tick( LocalDateTime.of( 2024, 3, 1, 7, 44 ) );
+    verify( resolver, never() ).createBuilder( any( SQL.class ) );
+
+    warmUp.tick( LocalDateTime.of( 2024, 3, 1, 7, 45 ) );
+    warmUp.tick( LocalDateTime.of( 2024, 3, 1, 7, 46 ) );
+    //noinspection unchecked
+    verify( executor ).executeQuery( any( Observer.class ) );
+    verify( executor ).waitUntilFinished();
+
+    // Missed ticks are caught up on the next one
+    warmUp.tick( LocalDateTime.of( 2024, 3, 2, 9, 0 ) );
+    verify( executor, times( 2 ) ).waitUntilFinished();
+  }
+
+  @Test
+  public void testDisabledOptimization() throws Exception {
+    optimization.setEnabled( false );
+
+    warmUp.tick( LocalDateTime.of( 2024, 3, 1, 7, 45 ) );
+    verify( resolver, never() ).createBuilder( any( SQL.class ) );
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    when( resolver.createBuilder( any( SQL.class ) ) ).thenReturn( builder );
+    when( builder.build() ).thenReturn( executor );
+    //noinspection unchecked
+    when( executor.executeQuery( any( Observer.class ) ) ).thenReturn( executor );
+    doAnswer( invocation -> {
+      Thread.sleep( 60000 );
+      return null;
+    } ).when( executor ).waitUntilFinished();
+    warmUp.setTimeoutSeconds( 1 );
+
+    warmUp.tick( LocalDateTime.of( 2024, 3, 1, 7, 45 ) );
+    verify( executor ).stop( true );
+    verify( executor, never() ).hasErrors();
+  }
+}
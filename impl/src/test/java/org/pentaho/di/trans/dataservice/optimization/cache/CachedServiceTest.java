@@ -13,9 +13,11 @@
 
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -34,6 +36,7 @@ import org.pentaho.di.core.RowMetaAndData;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
 import org.pentaho.di.core.row.value.ValueMetaInteger;
 import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.core.sql.SQL;
@@ -44,6 +47,7 @@ import org.pentaho.di.trans.dataservice.DataServiceContext;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.DataServiceMeta;
 import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.dataservice.optimization.PushDownOptimizationMeta;
 import org.pentaho.di.trans.dataservice.optimization.cache.CachedService.CacheKey;
 import org.pentaho.di.trans.step.RowListener;
 import org.pentaho.di.trans.step.StepDataInterface;
@@ -53,15 +57,25 @@ import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaDataCombi;
 import org.pentaho.di.trans.step.StepMetaInterface;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
@@ -77,6 +91,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -168,6 +183,41 @@ public class CachedServiceTest {
         .build() ) ) ) );
   }
 
+  @Test
+  public void testCacheKeyCovers() throws Exception {
+    CacheKey unbounded = cacheKey( BASE_QUERY );
+    CacheKey withCondition = cacheKey( BASE_QUERY + " WHERE A = 42" );
+    CacheKey withConditionOrdered = cacheKey( BASE_QUERY + " WHERE A = 42 ORDER BY B" );
+    CacheKey otherCondition = cacheKey( BASE_QUERY + " WHERE A = 7" );
+
+    assertTrue( unbounded.covers( withCondition ) );
+    assertTrue( unbounded.covers( otherCondition ) );
+    assertTrue( withCondition.covers( withConditionOrdered ) );
+    assertTrue( withConditionOrdered.covers( withCondition ) );
+    assertFalse( withCondition.covers( unbounded ) );
+    assertFalse( withCondition.covers( otherCondition ) );
+
+    when( transMeta.getCacheVersion() ).thenReturn( 2 );
+    assertFalse( unbounded.covers( cacheKey( BASE_QUERY ) ) );
+  }
+
+  @Test
+  public void testCacheKeyCoversNarrowerCondition() throws Exception {
+    CacheKey range = cacheKey( BASE_QUERY + " WHERE A >= 10" );
+    CacheKey narrower = cacheKey( BASE_QUERY + " WHERE A >= 20 AND ID = 'x' ORDER BY B" );
+    CacheKey inList = cacheKey( BASE_QUERY + " WHERE A IN (12, 15)" );
+    CacheKey disjunction = cacheKey( BASE_QUERY + " WHERE A >= 20 OR ID = 'x'" );
+
+    assertTrue( range.covers( narrower ) );
+    assertTrue( range.covers( inList ) );
+    assertFalse( narrower.covers( range ) );
+    assertFalse( range.covers( disjunction ) );
+    assertFalse( disjunction.getPredicates().isPresent() );
+
+    when( transMeta.getCacheVersion() ).thenReturn( 2 );
+    assertFalse( range.covers( cacheKey( BASE_QUERY + " WHERE A >= 20" ) ) );
+  }
+
   @Test
   public void testPartial() throws Exception {
     CachedService rowLimit, limit, limitOffset, unlimited;
@@ -422,6 +472,259 @@ public class CachedServiceTest {
     }
   }
 
+  @Test
+  public void testReplayBulk() throws Exception {
+    DataServiceExecutor executor = dataServiceExecutor( BASE_QUERY );
+    List<RowMetaAndData> largeData = Lists.newArrayList();
+    for ( long i = 0; i < CachedServiceLoader.BLOCK_SIZE * 3 + 10; i++ ) {
+      largeData.add( new RowMetaAndData( rowMeta, String.valueOf( i ), i % 13, i % 17 ) );
+    }
+    CachedService cachedService = CachedService.complete( largeData );
+    RowProducer rowProducer = genTrans.addRowProducer( INJECTOR_STEP, 0 );
+
+    final List<Object[]> injected = Lists.newArrayList();
+    when(
+      rowProducer.putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyLong(), any( TimeUnit.class ) )
+    ).then( new Answer<Boolean>() {
+      @Override public Boolean answer( InvocationOnMock invocation ) throws Throwable {
+        injected.add( (Object[]) invocation.getArguments()[ 1 ] );
+        return true;
+      }
+    } );
+    when( genTrans.isRunning() ).thenReturn( true );
+
+    ExecutorService executorService = Executors.newCachedThreadPool();
+    try {
+      CachedServiceLoader cachedServiceLoader = new CachedServiceLoader( cachedService, executorService, 3 );
+      ListenableFuture<Integer> replay = cachedServiceLoader.replay( executor );
+      executor.executeListeners( DataServiceExecutor.ExecutionPoint.READY );
+      executor.executeListeners( DataServiceExecutor.ExecutionPoint.START );
+
+      assertThat( replay.get( 5, TimeUnit.SECONDS ), equalTo( largeData.size() ) );
+    } finally {
+      executorService.shutdownNow();
+    }
+
+    verify( rowProducer ).finished();
+    assertThat( injected.size(), equalTo( largeData.size() ) );
+    for ( int i = 0; i < largeData.size(); i++ ) {
+      // Rows are injected in cached order, as clones
+      assertThat( injected.get( i ), equalTo( largeData.get( i ).getData() ) );
+      assertThat( injected.get( i ), not( sameInstance( cachedService.getRowMetaAndData().get( i ).getData() ) ) );
+    }
+  }
+
+  @Test
+  public void testReplaySorted() throws Exception {
+    DataServiceExecutor executor = dataServiceExecutor( BASE_QUERY + " ORDER BY A DESC, ID" );
+    CachedService cachedService = CachedService.complete( testData );
+    RowProducer rowProducer = genTrans.addRowProducer( INJECTOR_STEP, 0 );
+    when( sqlTransGenerator.removeSortStep( genTrans.getTransMeta() ) ).thenReturn( true );
+
+    final List<Object[]> injected = Lists.newArrayList();
+    when(
+      rowProducer.putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyLong(), any( TimeUnit.class ) )
+    ).then( new Answer<Boolean>() {
+      @Override public Boolean answer( InvocationOnMock invocation ) throws Throwable {
+        injected.add( (Object[]) invocation.getArguments()[ 1 ] );
+        return true;
+      }
+    } );
+    when( genTrans.isRunning() ).thenReturn( true );
+
+    Executor mockExecutor = mock( Executor.class );
+    ListenableFuture<Integer> replay = new CachedServiceLoader( cachedService, mockExecutor ).replay( executor );
+    ArgumentCaptor<Runnable> replayRunnable = ArgumentCaptor.forClass( Runnable.class );
+    verify( mockExecutor ).execute( replayRunnable.capture() );
+    verify( sqlTransGenerator ).removeSortStep( genTrans.getTransMeta() );
+
+    executor.executeListeners( DataServiceExecutor.ExecutionPoint.READY );
+    executor.executeListeners( DataServiceExecutor.ExecutionPoint.START );
+    replayRunnable.getValue().run();
+    assertThat( replay.get( 1, TimeUnit.SECONDS ), equalTo( testData.size() ) );
+
+    List<Object[]> expected = Lists.newArrayList();
+    for ( RowMetaAndData metaAndData : testData ) {
+      expected.add( metaAndData.getData() );
+    }
+    expected.sort( ( left, right ) -> {
+      int comparison = ( (Long) right[ 1 ] ).compareTo( (Long) left[ 1 ] );
+      return comparison != 0 ? comparison : ( (String) left[ 0 ] ).compareTo( (String) right[ 0 ] );
+    } );
+    assertThat( injected.size(), equalTo( expected.size() ) );
+    for ( int i = 0; i < expected.size(); i++ ) {
+      assertThat( injected.get( i ), equalTo( expected.get( i ) ) );
+    }
+  }
+
+  @Test
+  public void testSortStepKeptIfReplayFails() throws Exception {
+    DataServiceExecutor executor = dataServiceExecutor( BASE_QUERY + " ORDER BY A DESC, ID" );
+    Executor mockExecutor = mock( Executor.class );
+    doThrow( new RejectedExecutionException() ).when( mockExecutor ).execute( any( Runnable.class ) );
+
+    try {
+      new CachedServiceLoader( CachedService.complete( testData ), mockExecutor ).replay( executor );
+      fail( "Replay should not be scheduled" );
+    } catch ( RejectedExecutionException e ) {
+      // The query falls back to the service transformation, which still sorts
+      verify( sqlTransGenerator, never() ).removeSortStep( any( TransMeta.class ) );
+    }
+  }
+
+  @Test
+  public void testRowOrdering() throws Exception {
+    CachedService cachedService = CachedService.complete( testData );
+    RowOrdering ordering = RowOrdering.forQuery( dataServiceExecutor( BASE_QUERY + " ORDER BY B" ) ).get();
+    List<RowMetaAndData> sorted = cachedService.getRowMetaAndData( ordering ).get();
+    for ( int i = 1; i < sorted.size(); i++ ) {
+      assertTrue( (Long) sorted.get( i - 1 ).getData()[ 2 ] <= (Long) sorted.get( i ).getData()[ 2 ] );
+    }
+
+    // Only plain ORDER BY of complete entries is answered in memory
+    assertFalse( RowOrdering.forQuery( dataServiceExecutor( BASE_QUERY ) ).isPresent() );
+    assertFalse( RowOrdering.forQuery(
+      dataServiceExecutor( "SELECT A, SUM(B) FROM " + SERVICE_NAME + " GROUP BY A ORDER BY A" ) ).isPresent() );
+    assertFalse( partial( dataServiceExecutor( BASE_QUERY + " LIMIT 20" ) )
+      .getRowMetaAndData( ordering ).isPresent() );
+  }
+
+  @Test
+  public void testReplayIndexed() throws Exception {
+    ServiceCache serviceCache = new ServiceCache( mock( ServiceCacheFactory.class ) );
+    serviceCache.setIndexedFields( "A, C" );
+    PushDownOptimizationMeta optimization = new PushDownOptimizationMeta();
+    optimization.setType( serviceCache );
+    dataServiceMeta.setPushDownOptimizationMeta( ImmutableList.of( optimization ) );
+
+    DataServiceExecutor executor = dataServiceExecutor( BASE_QUERY + " WHERE A = 3" );
+    RowProducer rowProducer = genTrans.addRowProducer( INJECTOR_STEP, 0 );
+    final List<Object[]> injected = Lists.newArrayList();
+    when(
+      rowProducer.putRowWait( any( RowMetaInterface.class ), any( Object[].class ), anyLong(), any( TimeUnit.class ) )
+    ).then( new Answer<Boolean>() {
+      @Override public Boolean answer( InvocationOnMock invocation ) throws Throwable {
+        injected.add( (Object[]) invocation.getArguments()[ 1 ] );
+        return true;
+      }
+    } );
+    when( genTrans.isRunning() ).thenReturn( true );
+
+    Executor mockExecutor = mock( Executor.class );
+    ListenableFuture<Integer> replay =
+      new CachedServiceLoader( CachedService.complete( testData ), mockExecutor ).replay( executor );
+    ArgumentCaptor<Runnable> replayRunnable = ArgumentCaptor.forClass( Runnable.class );
+    verify( mockExecutor ).execute( replayRunnable.capture() );
+    executor.executeListeners( DataServiceExecutor.ExecutionPoint.READY );
+    executor.executeListeners( DataServiceExecutor.ExecutionPoint.START );
+    replayRunnable.getValue().run();
+
+    // Only rows matching the indexed predicate are injected, in cached order
+    List<Object[]> expected = Lists.newArrayList();
+    for ( RowMetaAndData metaAndData : testData ) {
+      if ( (Long) metaAndData.getData()[ 1 ] == 3 ) {
+        expected.add( metaAndData.getData() );
+      }
+    }
+    assertThat( replay.get( 1, TimeUnit.SECONDS ), equalTo( expected.size() ) );
+    assertThat( injected.size(), equalTo( expected.size() ) );
+    for ( int i = 0; i < expected.size(); i++ ) {
+      assertThat( injected.get( i ), equalTo( expected.get( i ) ) );
+    }
+  }
+
+  @Test
+  public void testMatchingIndexes() throws Exception {
+    CachedService cachedService = CachedService.complete( testData );
+    SQL sql = dataServiceExecutor( BASE_QUERY + " WHERE A = 3 AND B >= 10" ).getSql();
+    PredicateSet predicates = PredicateSet.fromCondition( sql.getWhereCondition().getCondition(), rowMeta ).get();
+
+    // Configured fields are indexed on first use
+    BitSet matching = cachedService.matching( predicates, ImmutableSet.of( "A" ) ).get();
+    for ( int i = 0; i < testData.size(); i++ ) {
+      assertThat( matching.get( i ), is( i % 13 == 3 ) );
+    }
+
+    // Other fields are indexed once restricted by repeated queries
+    for ( int i = 1; i < CachedService.OBSERVED_PREDICATE_USES; i++ ) {
+      cachedService.matching( predicates, ImmutableSet.<String>of() );
+    }
+    matching = cachedService.matching( predicates, ImmutableSet.<String>of() ).get();
+    for ( int i = 0; i < testData.size(); i++ ) {
+      assertThat( matching.get( i ), is( i % 13 == 3 && i % 17 >= 10 ) );
+    }
+
+    assertFalse( partial( dataServiceExecutor( BASE_QUERY + " LIMIT 20" ) )
+      .matching( predicates, ImmutableSet.of( "A" ) ).isPresent() );
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    List<RowMetaAndData> largeData = Lists.newArrayList();
+    for ( long i = 0; i < CachedServiceCodec.BLOCK_ROWS * 2 + 5; i++ ) {
+      largeData.add( new RowMetaAndData( rowMeta, i % 3 == 0 ? null : String.valueOf( i ), i % 13, i ) );
+    }
+    CachedService cachedService = CachedService.partial( largeData, dataServiceExecutor( BASE_QUERY + " LIMIT 20" ) );
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try ( ObjectOutputStream out = new ObjectOutputStream( bytes ) ) {
+      out.writeObject( cachedService );
+    }
+    CachedService copy;
+    try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) ) {
+      copy = (CachedService) in.readObject();
+    }
+
+    assertThat( copy.getRanking(), equalTo( cachedService.getRanking() ) );
+    assertThat( copy.getRankingServiceRows(), equalTo( cachedService.getRankingServiceRows() ) );
+    assertThat( copy.getRowMetaAndData(), instanceOf( ColumnarRows.class ) );
+    assertThat( copy.getRowMetaAndData().size(), equalTo( largeData.size() ) );
+    for ( int i = 0; i < largeData.size(); i++ ) {
+      Object[] expected = largeData.get( i ).getData(), actual = copy.getRowMetaAndData().get( i ).getData();
+      for ( int field = 0; field < rowMeta.size(); field++ ) {
+        assertThat( actual[ field ], equalTo( expected[ field ] ) );
+      }
+    }
+
+    // Empty entries carry no row meta
+    try ( ObjectOutputStream out = new ObjectOutputStream( bytes = new ByteArrayOutputStream() ) ) {
+      out.writeObject( CachedService.complete( ImmutableList.<RowMetaAndData>of() ) );
+    }
+    try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) ) {
+      assertTrue( ( (CachedService) in.readObject() ).getRowMetaAndData().isEmpty() );
+    }
+  }
+
+  @Test
+  public void testSerializationOfMismatchedValues() throws Exception {
+    // Integer values in Integer (Long) fields can not be written in Kettle's binary format
+    List<RowMetaAndData> data = Lists.newArrayList();
+    for ( int i = 0; i < 10; i++ ) {
+      data.add( new RowMetaAndData( rowMeta, i == 3 ? "" : String.valueOf( i ), i, i % 2 == 0 ? null : i ) );
+    }
+    CachedService cachedService = CachedService.partial( data, dataServiceExecutor( BASE_QUERY + " LIMIT 20" ) );
+    assertThat( cachedService.getRowMetaAndData(), instanceOf( ColumnarRows.class ) );
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try ( ObjectOutputStream out = new ObjectOutputStream( bytes ) ) {
+      out.writeObject( cachedService );
+    }
+    CachedService copy;
+    try ( ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) ) {
+      copy = (CachedService) in.readObject();
+    }
+
+    assertThat( copy.getRanking(), equalTo( cachedService.getRanking() ) );
+    assertThat( copy.getRankingServiceRows(), equalTo( cachedService.getRankingServiceRows() ) );
+    assertThat( copy.getRowMetaAndData().size(), equalTo( data.size() ) );
+    for ( int i = 0; i < data.size(); i++ ) {
+      Object[] expected = data.get( i ).getData(), actual = copy.getRowMetaAndData().get( i ).getData();
+      for ( int field = 0; field < rowMeta.size(); field++ ) {
+        assertThat( actual[ field ], equalTo( expected[ field ] ) );
+      }
+    }
+  }
+
   @Test
   public void testAnswersQuery() throws Exception {
     String query = "SELECT ID, A FROM " + SERVICE_NAME + " WHERE B = 1";
@@ -509,4 +812,19 @@ public class CachedServiceTest {
     return CacheKey.create( dataServiceExecutor( query ) );
   }
 
+
+  @Test
+  public void testEstimateBytesFromValues() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "text" ) );
+    rowMeta.addValueMeta( new ValueMetaBigNumber( "amount" ) );
+    RowMetaAndData small = new RowMetaAndData( rowMeta, "a", BigDecimal.ONE );
+    RowMetaAndData large = new RowMetaAndData( rowMeta, Strings.repeat( "a", 1000 ),
+      new BigDecimal( Strings.repeat( "9", 300 ) ) );
+
+    // Strings take two bytes per character, big numbers grow with their precision
+    assertThat( CachedService.estimateBytes( large ) - CachedService.estimateBytes( small ),
+      greaterThan( 2L * 999 + 100 ) );
+    assertThat( CachedService.estimateValueBytes( null ), is( 0L ) );
+  }
 }
@@ -0,0 +1,136 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ColumnarRowsTest {
+
+  private RowMeta rowMeta;
+  private List<RowMetaAndData> rows;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "id" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "amount" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rowMeta.addValueMeta( new ValueMetaBoolean( "active" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "created" ) );
+
+    rows = Lists.newArrayList();
+    for ( long i = 0; i < 1000; i++ ) {
+      rows.add( new RowMetaAndData( rowMeta,
+        i % 10 == 0 ? null : i,
+        i % 7 == 0 ? null : i * 1.5,
+        i % 11 == 0 ? null : "region " + i % 4,
+        i % 13 == 0 ? null : i % 2 == 0,
+        new Date( i ) ) );
+    }
+  }
+
+  @Test
+  public void testCompactReplaysSameRows() throws Exception {
+    List<RowMetaAndData> compact = ColumnarRows.compact( rows );
+
+    assertThat( compact, instanceOf( ColumnarRows.class ) );
+    assertThat( compact.size(), equalTo( rows.size() ) );
+    for ( int i = 0; i < rows.size(); i++ ) {
+      RowMetaAndData expected = rows.get( i ), actual = compact.get( i );
+      assertThat( actual.getRowMeta(), sameInstance( expected.getRowMeta() ) );
+      for ( int field = 0; field < rowMeta.size(); field++ ) {
+        assertThat( actual.getData()[ field ], equalTo( expected.getData()[ field ] ) );
+        assertThat( ( (ColumnarRows) compact ).getValue( i, field ), equalTo( expected.getData()[ field ] ) );
+      }
+    }
+  }
+
+  @Test
+  public void testRowsAreRebuilt() throws Exception {
+    List<RowMetaAndData> compact = ColumnarRows.compact( rows );
+
+    compact.get( 1 ).getData()[ 0 ] = -1L;
+    assertThat( compact.get( 1 ).getData()[ 0 ], equalTo( (Object) 1L ) );
+    assertThat( compact.get( 0 ).getData()[ 0 ], nullValue() );
+  }
+
+  @Test
+  public void testMismatchedValuesAreKept() throws Exception {
+    rows.add( new RowMetaAndData( rowMeta, "not a long", 1, 2L, "true", null ) );
+    List<RowMetaAndData> compact = ColumnarRows.compact( rows );
+
+    Object[] last = compact.get( compact.size() - 1 ).getData();
+    assertThat( last[ 0 ], equalTo( (Object) "not a long" ) );
+    assertThat( last[ 1 ], equalTo( (Object) 1 ) );
+    assertThat( last[ 2 ], equalTo( (Object) 2L ) );
+    assertThat( last[ 3 ], equalTo( (Object) "true" ) );
+    assertThat( compact.get( 2 ).getData()[ 0 ], equalTo( (Object) 2L ) );
+  }
+
+  @Test
+  public void testMixedLayoutsAreCopied() throws Exception {
+    RowMeta otherMeta = new RowMeta();
+    otherMeta.addValueMeta( new ValueMetaString( "other" ) );
+    rows.add( new RowMetaAndData( otherMeta, "x" ) );
+
+    List<RowMetaAndData> copy = ColumnarRows.compact( rows );
+    assertThat( copy, not( instanceOf( ColumnarRows.class ) ) );
+    assertThat( copy, equalTo( rows ) );
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertThat( ColumnarRows.compact( ImmutableList.<RowMetaAndData>of() ).isEmpty(), is( true ) );
+  }
+
+  @Test
+  public void testEstimateBytes() throws Exception {
+    RowMeta layout = new RowMeta();
+    layout.addValueMeta( new ValueMetaInteger( "id" ) );
+    layout.addValueMeta( new ValueMetaString( "region" ) );
+    List<RowMetaAndData> layoutRows = Lists.newArrayList();
+    for ( long i = 0; i < 1000; i++ ) {
+      layoutRows.add( new RowMetaAndData( layout, i, "r" + i % 2 ) );
+    }
+    ColumnarRows compact = (ColumnarRows) ColumnarRows.compact( layoutRows );
+
+    // One long and one dictionary code per row, a null bit set and two short dictionary strings
+    long columns = 1000L * Long.BYTES + 1000L * Integer.BYTES;
+    assertThat( compact.estimateBytes(), greaterThanOrEqualTo( columns ) );
+    assertThat( compact.estimateBytes(), lessThan( columns + 1000L / Byte.SIZE + 2 * 64 ) );
+  }
+}
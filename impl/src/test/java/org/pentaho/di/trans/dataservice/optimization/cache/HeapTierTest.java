@@ -0,0 +1,137 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.Table;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class HeapTierTest {
+
+  private static final String SERVICE = "MOCK_SERVICE";
+  private HeapTier heapTier;
+  private CachedService.CacheKey small, large;
+
+  @Before
+  public void setUp() throws Exception {
+    heapTier = new HeapTier();
+    small = mock( CachedService.CacheKey.class );
+    large = mock( CachedService.CacheKey.class );
+  }
+
+  @Test
+  public void testUnlimited() throws Exception {
+    heapTier.admit( SERVICE, small, 100 );
+    heapTier.admit( SERVICE, large, 1000 );
+
+    assertThat( heapTier.getTotalBytes(), equalTo( 1100L ) );
+    assertThat( heapTier.evictions(), is( empty() ) );
+  }
+
+  @Test
+  public void testEvictsLargeEntryFirst() throws Exception {
+    heapTier.setBudgetBytes( 1000 );
+    heapTier.admit( SERVICE, small, 100 );
+    heapTier.admit( SERVICE, large, 1000 );
+
+    List<Table.Cell<String, CachedService.CacheKey, HeapTier.Usage>> evictions = heapTier.evictions();
+    assertThat( evictions, hasSize( 1 ) );
+    assertThat( evictions.get( 0 ).getColumnKey(), sameInstance( large ) );
+    assertThat( heapTier.getTotalBytes(), equalTo( 100L ) );
+  }
+
+  @Test
+  public void testFits() throws Exception {
+    assertThat( heapTier.fits( Long.MAX_VALUE ), is( true ) );
+
+    heapTier.setBudgetBytes( 1000 );
+    heapTier.setServiceBudgetBytes( 500 );
+    assertThat( heapTier.fits( 500 ), is( true ) );
+    assertThat( heapTier.fits( 501 ), is( false ) );
+
+    heapTier.setServiceBudgetBytes( 0 );
+    assertThat( heapTier.fits( 1000 ), is( true ) );
+    assertThat( heapTier.fits( 1001 ), is( false ) );
+  }
+
+  @Test
+  public void testServiceBudget() throws Exception {
+    CachedService.CacheKey other = mock( CachedService.CacheKey.class );
+    heapTier.setServiceBudgetBytes( 500 );
+    heapTier.admit( SERVICE, small, 100 );
+    heapTier.admit( SERVICE, large, 1000 );
+    heapTier.admit( "OTHER", other, 400 );
+
+    List<Table.Cell<String, CachedService.CacheKey, HeapTier.Usage>> evictions = heapTier.evictions();
+    assertThat( evictions, hasSize( 1 ) );
+    assertThat( evictions.get( 0 ).getColumnKey(), sameInstance( large ) );
+    assertThat( heapTier.getTotalBytes( SERVICE ), equalTo( 100L ) );
+    assertThat( heapTier.getTotalBytes( "OTHER" ), equalTo( 400L ) );
+    assertThat( heapTier.getTotalBytes(), equalTo( 500L ) );
+  }
+
+  @Test
+  public void testLeastRecentlyUsed() throws Exception {
+    heapTier.setBudgetBytes( 1050 );
+    heapTier.setPolicy( HeapTier.EvictionPolicy.LRU );
+    heapTier.admit( SERVICE, large, 1000 );
+    heapTier.admit( SERVICE, small, 100 );
+    Thread.sleep( 5 );
+    heapTier.touch( SERVICE, large );
+
+    List<Table.Cell<String, CachedService.CacheKey, HeapTier.Usage>> evictions = heapTier.evictions();
+    assertThat( evictions, hasSize( 1 ) );
+    assertThat( evictions.get( 0 ).getColumnKey(), sameInstance( small ) );
+  }
+
+  @Test
+  public void testLeastFrequentlyUsed() throws Exception {
+    heapTier.setBudgetBytes( 1050 );
+    heapTier.setPolicy( HeapTier.EvictionPolicy.LFU );
+    heapTier.admit( SERVICE, large, 1000 );
+    heapTier.admit( SERVICE, small, 100 );
+    heapTier.touch( SERVICE, large );
+    heapTier.touch( SERVICE, large );
+    heapTier.touch( SERVICE, small );
+
+    List<Table.Cell<String, CachedService.CacheKey, HeapTier.Usage>> evictions = heapTier.evictions();
+    assertThat( evictions, hasSize( 1 ) );
+    assertThat( evictions.get( 0 ).getColumnKey(), sameInstance( small ) );
+    assertThat( evictions.get( 0 ).getValue().getHits(), equalTo( 1 ) );
+  }
+
+  @Test
+  public void testReplaceAndClear() throws Exception {
+    heapTier.admit( SERVICE, small, 100 );
+    heapTier.admit( SERVICE, small, 300 );
+    assertThat( heapTier.getTotalBytes(), equalTo( 300L ) );
+
+    heapTier.admit( "OTHER", large, 50 );
+    heapTier.clear( SERVICE );
+    assertThat( heapTier.getTotalBytes(), equalTo( 50L ) );
+    heapTier.remove( "OTHER", large );
+    assertThat( heapTier.getTotalBytes(), equalTo( 0L ) );
+  }
+}
@@ -0,0 +1,154 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.io.File;
+import java.util.List;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class MappedFileTierTest {
+
+  private static final String CACHE_NAME = ServiceCacheFactory.CACHE_PREFIX + "MOCK_SERVICE";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private MappedFileTier tier;
+  private CachedService.CacheKey key;
+  private List<RowMetaAndData> rows;
+
+  @BeforeClass
+  public static void initKettle() throws Exception {
+    if ( !KettleClientEnvironment.isInitialized() ) {
+      KettleClientEnvironment.init();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    tier = new MappedFileTier( folder.getRoot() );
+    key = mock( CachedService.CacheKey.class );
+
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "ID" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "A" ) );
+    rows = Lists.newArrayList();
+    for ( long i = 0; i < 100; i++ ) {
+      rows.add( new RowMetaAndData( rowMeta, String.valueOf( i ), i % 3 == 0 ? null : i ) );
+    }
+  }
+
+  @Test
+  public void testStoreAndLoad() throws Exception {
+    CachedService cachedService = CachedService.complete( rows );
+    assertThat( tier.store( CACHE_NAME, key, cachedService, 0 ), is( true ) );
+
+    CachedService mapped = tier.load( CACHE_NAME, key );
+    assertThat( mapped.isComplete(), is( true ) );
+    assertThat( mapped.getRowMetaAndData(), instanceOf( MappedRows.class ) );
+    assertThat( mapped.getRowMetaAndData(), equalTo( rows ) );
+    MappedRows mappedRows = (MappedRows) mapped.getRowMetaAndData();
+    for ( int i = 0; i < rows.size(); i++ ) {
+      assertThat( mappedRows.getValue( i, 0 ), equalTo( rows.get( i ).getData()[ 0 ] ) );
+      assertThat( mappedRows.getValue( i, 1 ), equalTo( rows.get( i ).getData()[ 1 ] ) );
+    }
+    assertThat( tier.load( CACHE_NAME, mock( CachedService.CacheKey.class ) ), nullValue() );
+  }
+
+  @Test
+  public void testRankingRetained() throws Exception {
+    CachedService partial = CachedService.restore( ColumnarRows.compact( rows ), Optional.of( 20 ), Optional.of( 50 ) );
+    tier.store( CACHE_NAME, key, partial, 0 );
+
+    CachedService mapped = tier.load( CACHE_NAME, key );
+    assertThat( mapped.getRanking(), equalTo( Optional.of( 20 ) ) );
+    assertThat( mapped.getRankingServiceRows(), equalTo( Optional.of( 50 ) ) );
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    tier.store( CACHE_NAME, key, CachedService.complete( ImmutableList.<RowMetaAndData>of() ), 0 );
+    assertThat( tier.load( CACHE_NAME, key ).getRowMetaAndData().isEmpty(), is( true ) );
+  }
+
+  @Test
+  public void testMixedLayoutsAreNotStored() throws Exception {
+    RowMeta otherMeta = new RowMeta();
+    otherMeta.addValueMeta( new ValueMetaString( "other" ) );
+    rows.add( new RowMetaAndData( otherMeta, "x" ) );
+
+    assertThat( tier.store( CACHE_NAME, key, CachedService.complete( rows ), 0 ), is( false ) );
+    assertThat( tier.load( CACHE_NAME, key ), nullValue() );
+  }
+
+  @Test
+  public void testIdleExpiry() throws Exception {
+    tier.store( CACHE_NAME, key, CachedService.complete( rows ), 1 );
+    Thread.sleep( 10 );
+    assertThat( tier.load( CACHE_NAME, key ), nullValue() );
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    tier.store( CACHE_NAME, key, CachedService.complete( rows ), 0 );
+    tier.clear( CACHE_NAME );
+
+    assertThat( tier.load( CACHE_NAME, key ), nullValue() );
+    for ( File directory : folder.getRoot().listFiles() ) {
+      assertThat( directory.listFiles(), emptyArray() );
+    }
+  }
+
+  @Test
+  public void testSweep() throws Exception {
+    CachedService.CacheKey expired = mock( CachedService.CacheKey.class );
+    tier.store( CACHE_NAME, expired, CachedService.complete( rows ), 1 );
+    tier.store( CACHE_NAME, key, CachedService.complete( rows ), 0 );
+    File cacheDirectory = folder.getRoot().listFiles()[ 0 ];
+    // Left by an earlier run
+    File orphan = new File( cacheDirectory, "orphan.rows" );
+    assertThat( orphan.createNewFile(), is( true ) );
+    Thread.sleep( 10 );
+
+    assertThat( tier.sweep(), is( 2 ) );
+    assertThat( orphan.exists(), is( false ) );
+    assertThat( cacheDirectory.listFiles(), arrayWithSize( 1 ) );
+    assertThat( tier.keys( CACHE_NAME ), contains( key ) );
+    assertThat( tier.load( CACHE_NAME, key ).getRowMetaAndData(), equalTo( rows ) );
+    assertThat( tier.sweep(), is( 0 ) );
+  }
+}
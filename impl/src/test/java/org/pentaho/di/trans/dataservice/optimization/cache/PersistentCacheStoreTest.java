@@ -0,0 +1,177 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.DataServiceContext;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.dataservice.optimization.cache.CachedService.CacheKey;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.StrictStubs.class )
+public class PersistentCacheStoreTest {
+
+  private static final String SERVICE_NAME = "MOCK_SERVICE";
+  private static final String BASE_QUERY = "SELECT * from " + SERVICE_NAME;
+  private static final String SERVICE_STEP = "service step";
+  private static final String CACHE_NAME = ServiceCacheFactory.CACHE_PREFIX + SERVICE_NAME;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  @Mock( answer = Answers.RETURNS_DEEP_STUBS ) Trans serviceTrans;
+  @Mock DataServiceContext context;
+
+  private TransMeta transMeta;
+  private DataServiceMeta dataServiceMeta;
+  private List<RowMetaAndData> rows;
+
+  @BeforeClass
+  public static void initKettle() throws Exception {
+    if ( !KettleClientEnvironment.isInitialized() ) {
+      KettleClientEnvironment.init();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "ID" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "A" ) );
+    rows = Lists.newArrayList();
+    for ( long i = 0; i < 50; i++ ) {
+      rows.add( new RowMetaAndData( rowMeta, String.valueOf( i ), i ) );
+    }
+
+    transMeta = serviceTrans.getTransMeta();
+    when( transMeta.getCacheVersion() ).thenReturn( 1 );
+    when( transMeta.getStepFields( SERVICE_STEP ) ).thenReturn( rowMeta );
+
+    dataServiceMeta = new DataServiceMeta( transMeta );
+    dataServiceMeta.setName( SERVICE_NAME );
+    dataServiceMeta.setStepname( SERVICE_STEP );
+  }
+
+  @Test
+  public void testReloadAfterRestart() throws Exception {
+    CacheKey key = cacheKey( BASE_QUERY );
+    assertThat( new PersistentCacheStore( folder.getRoot() ).save( CACHE_NAME, key, CachedService.complete( rows ) ),
+      is( true ) );
+
+    PersistentCacheStore restarted = new PersistentCacheStore( folder.getRoot() );
+    CachedService loaded = restarted.load( CACHE_NAME, cacheKey( BASE_QUERY ), 0 );
+    assertThat( loaded.isComplete(), is( true ) );
+    assertThat( loaded.getRowMetaAndData(), equalTo( rows ) );
+    assertThat( restarted.contains( CACHE_NAME, key ), is( true ) );
+    assertThat( restarted.load( CACHE_NAME, cacheKey( BASE_QUERY + " WHERE A = 1" ), 0 ), nullValue() );
+  }
+
+  @Test
+  public void testOtherVersionsDiscarded() throws Exception {
+    new PersistentCacheStore( folder.getRoot() )
+      .save( CACHE_NAME, cacheKey( BASE_QUERY ), CachedService.complete( rows ) );
+
+    when( transMeta.getCacheVersion() ).thenReturn( 2 );
+    PersistentCacheStore restarted = new PersistentCacheStore( folder.getRoot() );
+    assertThat( restarted.load( CACHE_NAME, cacheKey( BASE_QUERY ), 0 ), nullValue() );
+    assertThat( cacheDirectory().listFiles(), arrayWithSize( 0 ) );
+  }
+
+  @Test
+  public void testReplaceAndClear() throws Exception {
+    PersistentCacheStore store = new PersistentCacheStore( folder.getRoot() );
+    CacheKey key = cacheKey( BASE_QUERY );
+    store.save( CACHE_NAME, key, CachedService.complete( rows ) );
+    store.save( CACHE_NAME, key, CachedService.complete( rows.subList( 0, 10 ) ) );
+
+    assertThat( cacheDirectory().listFiles(), arrayWithSize( 2 ) );
+    assertThat( store.load( CACHE_NAME, key, 0 ).getRowMetaAndData().size(), equalTo( 10 ) );
+
+    store.clear( CACHE_NAME );
+    assertThat( cacheDirectory().listFiles(), arrayWithSize( 0 ) );
+    assertThat( store.load( CACHE_NAME, key, 0 ), nullValue() );
+  }
+
+  @Test
+  public void testUnreadableEntriesDiscarded() throws Exception {
+    new PersistentCacheStore( folder.getRoot() )
+      .save( CACHE_NAME, cacheKey( BASE_QUERY ), CachedService.complete( rows ) );
+    for ( File file : cacheDirectory().listFiles() ) {
+      if ( file.getName().endsWith( ".key" ) ) {
+        assertThat( file.delete(), is( true ) );
+        assertThat( file.createNewFile(), is( true ) );
+      }
+    }
+
+    PersistentCacheStore restarted = new PersistentCacheStore( folder.getRoot() );
+    assertThat( restarted.load( CACHE_NAME, cacheKey( BASE_QUERY ), 0 ), nullValue() );
+    assertThat( cacheDirectory().listFiles(), arrayWithSize( 0 ) );
+  }
+
+  @Test
+  public void testOtherCacheEntriesIgnored() throws Exception {
+    String otherName = CACHE_NAME + " other";
+    new PersistentCacheStore( folder.getRoot() )
+      .save( CACHE_NAME, cacheKey( BASE_QUERY ), CachedService.complete( rows ) );
+    // Entries of one cache found in the directory of another
+    File otherDirectory = new File( folder.getRoot(), CacheFileNames.directoryName( otherName ) );
+    assertThat( otherDirectory.mkdirs(), is( true ) );
+    for ( File file : cacheDirectory().listFiles() ) {
+      Files.copy( file.toPath(), new File( otherDirectory, file.getName() ).toPath() );
+    }
+
+    PersistentCacheStore restarted = new PersistentCacheStore( folder.getRoot() );
+    assertThat( restarted.load( otherName, cacheKey( BASE_QUERY ), 0 ), nullValue() );
+    assertThat( otherDirectory.listFiles(), arrayWithSize( 2 ) );
+    assertThat( restarted.load( CACHE_NAME, cacheKey( BASE_QUERY ), 0 ).getRowMetaAndData(), equalTo( rows ) );
+  }
+
+  private File cacheDirectory() {
+    return new File( folder.getRoot(), CacheFileNames.directoryName( CACHE_NAME ) );
+  }
+
+  private CacheKey cacheKey( String query ) throws KettleException {
+    return CacheKey.create( new DataServiceExecutor.Builder( new SQL( query ), dataServiceMeta, context )
+      .serviceTrans( serviceTrans )
+      .build() );
+  }
+}
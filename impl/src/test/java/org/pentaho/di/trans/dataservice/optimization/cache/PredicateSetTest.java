@@ -0,0 +1,115 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class PredicateSetTest {
+  private static final String BASE_QUERY = "SELECT * FROM service WHERE ";
+
+  private RowMeta rowMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "S" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "I" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "N" ) );
+    rowMeta.addValueMeta( new ValueMetaDate( "D" ) );
+  }
+
+  @Test
+  public void testRanges() throws Exception {
+    assertTrue( contains( "I >= 10", "I >= 20" ) );
+    assertTrue( contains( "I >= 10", "I > 10" ) );
+    assertTrue( contains( "I >= 10", "I >= 10 AND I < 15" ) );
+    assertTrue( contains( "I > 10 AND I < 20", "I >= 11 AND I <= 19" ) );
+    assertTrue( contains( "N < 1.5", "N <= 1.25" ) );
+
+    assertFalse( contains( "I > 10", "I >= 10" ) );
+    assertFalse( contains( "I >= 20", "I >= 10" ) );
+    assertFalse( contains( "I >= 10 AND I < 15", "I >= 10" ) );
+  }
+
+  @Test
+  public void testValues() throws Exception {
+    assertTrue( contains( "I IN (1, 2, 3)", "I = 2" ) );
+    assertTrue( contains( "I IN (1, 2, 3)", "I IN (3, 1)" ) );
+    assertTrue( contains( "I >= 10", "I IN (10, 12)" ) );
+    assertTrue( contains( "I = 12", "I >= 12 AND I <= 12" ) );
+    assertTrue( contains( "S = 'x'", "S = 'x' AND I = 4" ) );
+
+    assertFalse( contains( "I IN (1, 2, 3)", "I IN (3, 4)" ) );
+    assertFalse( contains( "I >= 10", "I IN (9, 12)" ) );
+    assertFalse( contains( "I IN (10, 12)", "I >= 10" ) );
+    assertFalse( contains( "S = 'x' AND I = 4", "S = 'x'" ) );
+  }
+
+  @Test
+  public void testNulls() throws Exception {
+    assertTrue( contains( "I IS NOT NULL", "I = 4" ) );
+    assertTrue( contains( "I IS NOT NULL", "I > 4" ) );
+    assertTrue( contains( "I < 4", "I IS NOT NULL AND I < 2" ) );
+
+    // Null values match an upper bound alone
+    assertFalse( contains( "I IS NOT NULL", "I < 4" ) );
+    assertFalse( contains( "I > 4", "I IS NOT NULL" ) );
+  }
+
+  @Test
+  public void testUnsatisfiable() throws Exception {
+    assertTrue( contains( "I = 1", "I > 10 AND I < 5" ) );
+    assertTrue( contains( "S = 'x'", "I = 3 AND I = 4" ) );
+  }
+
+  @Test
+  public void testUnsupported() throws Exception {
+    assertFalse( predicates( "I = 1 OR I = 2" ).isPresent() );
+    assertFalse( predicates( "I <> 1" ).isPresent() );
+    assertFalse( predicates( "S LIKE 'x%'" ).isPresent() );
+    // Ranges on strings depend on collation
+    assertFalse( predicates( "S > 'x'" ).isPresent() );
+    assertFalse( predicates( "I > 1.5" ).isPresent() );
+  }
+
+  @Test
+  public void testFieldNames() throws Exception {
+    assertThat( predicates( "S = 'x' AND I > 2 AND I < 10" ).get().getFieldNames(), containsInAnyOrder( "S", "I" ) );
+    assertThat( predicates( "I > 2 AND S = 'x'" ), equalTo( predicates( "S = 'x' AND I > 2" ) ) );
+  }
+
+  private boolean contains( String wider, String narrower ) throws Exception {
+    return predicates( wider ).get().contains( predicates( narrower ).get() );
+  }
+
+  private Optional<PredicateSet> predicates( String where ) throws Exception {
+    SQL sql = new SQL( BASE_QUERY + where );
+    sql.parse( rowMeta );
+    return PredicateSet.fromCondition( sql.getWhereCondition().getCondition(), rowMeta );
+  }
+}
@@ -0,0 +1,187 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ResultCacheTest {
+  private static final String SERVICE_NAME = "MOCK_SERVICE";
+
+  private ResultCache resultCache;
+  private RowMeta rowMeta;
+  private List<RowMetaAndData> rows;
+
+  @BeforeClass
+  public static void initKettle() throws Exception {
+    if ( !KettleClientEnvironment.isInitialized() ) {
+      KettleClientEnvironment.init();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    resultCache = new ResultCache();
+    resultCache.setTimeToLiveSeconds( 60 );
+    resultCache.setMaxBytes( 1 << 20 );
+
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "ID" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "COUNT" ) );
+    rows = Lists.newArrayList();
+    for ( long i = 0; i < 20; i++ ) {
+      rows.add( new RowMetaAndData( rowMeta, String.valueOf( i ), i ) );
+    }
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    ResultCache disabled = new ResultCache();
+    assertThat( disabled.isEnabled(), is( false ) );
+    assertThat( disabled.collect( executor( "SELECT * FROM " + SERVICE_NAME ) ), nullValue() );
+
+    disabled.setMaxBytes( 1024 );
+    assertThat( disabled.isEnabled(), is( false ) );
+    disabled.setTimeToLiveSeconds( 60 );
+    assertThat( disabled.isEnabled(), is( true ) );
+  }
+
+  @Test
+  public void testCollectAndGet() throws Exception {
+    String query = "SELECT ID, COUNT(*) FROM " + SERVICE_NAME + " GROUP BY ID";
+    assertThat( resultCache.get( executor( query ) ).isPresent(), is( false ) );
+
+    cache( query );
+
+    ResultCache.Result result = resultCache.get( executor( "  SELECT ID,  COUNT(*)\n FROM " + SERVICE_NAME
+      + " GROUP BY ID " ) ).get();
+    assertThat( result.getRows(), equalTo( rows ) );
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    result.writeTo( new DataOutputStream( bytes ) );
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) );
+    RowMetaInterface written = new RowMeta( in );
+    for ( RowMetaAndData row : rows ) {
+      assertThat( new RowMetaAndData( written, written.readData( in ) ), equalTo( row ) );
+    }
+    assertThat( in.available(), is( 0 ) );
+  }
+
+  @Test
+  public void testEmptyResult() throws Exception {
+    String query = "SELECT * FROM " + SERVICE_NAME + " WHERE ID = 'none'";
+    resultCache.collect( executor( query ) ).complete( rowMeta );
+
+    ResultCache.Result result = resultCache.get( executor( query ) ).get();
+    assertThat( result.getRowMeta(), equalTo( (RowMetaInterface) rowMeta ) );
+    assertThat( result.getRows().isEmpty(), is( true ) );
+  }
+
+  @Test
+  public void testKeyedByQuery() throws Exception {
+    String query = "SELECT * FROM " + SERVICE_NAME + " WHERE ID = 'a  b'";
+    cache( query );
+
+    assertThat( resultCache.get( executor( "SELECT * FROM " + SERVICE_NAME + " WHERE ID = 'a b'" ) ).isPresent(),
+      is( false ) );
+    assertThat( resultCache.get( executor( query, ImmutableMap.of( "p", "1" ), 1, 0 ) ).isPresent(), is( false ) );
+    assertThat( resultCache.get( executor( query, ImmutableMap.<String, String>of(), 2, 0 ) ).isPresent(),
+      is( false ) );
+    assertThat( resultCache.get( executor( query, ImmutableMap.<String, String>of(), 1, 10 ) ).isPresent(),
+      is( false ) );
+    assertThat( resultCache.get( executor( query ) ).isPresent(), is( true ) );
+  }
+
+  @Test
+  public void testOversizedResultAbandoned() throws Exception {
+    resultCache.setMaxBytes( 256 );
+    String query = "SELECT * FROM " + SERVICE_NAME;
+    ResultCache.Collector collector = resultCache.collect( executor( query ) );
+    for ( RowMetaAndData row : rows ) {
+      collector.add( row );
+    }
+    collector.complete( rowMeta );
+
+    assertThat( collector.isAbandoned(), is( true ) );
+    assertThat( resultCache.get( executor( query ) ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    String query = "SELECT * FROM " + SERVICE_NAME;
+    cache( query );
+    resultCache.invalidate( "OTHER_SERVICE" );
+    assertThat( resultCache.get( executor( query ) ).isPresent(), is( true ) );
+
+    resultCache.invalidate( SERVICE_NAME );
+    assertThat( resultCache.get( executor( query ) ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testNormalize() throws Exception {
+    assertThat( ResultCache.Key.normalize( " SELECT  *\n\tFROM  \"my  service\"  WHERE [a  b] = 'x  y' " ),
+      equalTo( "SELECT * FROM \"my  service\" WHERE [a  b] = 'x  y'" ) );
+  }
+
+  private void cache( String query ) throws Exception {
+    ResultCache.Collector collector = resultCache.collect( executor( query ) );
+    for ( RowMetaAndData row : rows ) {
+      collector.add( row );
+    }
+    collector.complete( rowMeta );
+  }
+
+  private DataServiceExecutor executor( String query ) throws Exception {
+    return executor( query, ImmutableMap.<String, String>of(), 1, 0 );
+  }
+
+  private DataServiceExecutor executor( String query, Map<String, String> parameters, int version, int rowLimit )
+    throws Exception {
+    DataServiceExecutor executor = mock( DataServiceExecutor.class, RETURNS_DEEP_STUBS );
+    when( executor.getService().isStreaming() ).thenReturn( false );
+    when( executor.getService().getServiceTrans().getCacheVersion() ).thenReturn( version );
+    when( executor.getServiceName() ).thenReturn( SERVICE_NAME );
+    when( executor.getSql() ).thenReturn( new SQL( query ) );
+    when( executor.getParameters() ).thenReturn( parameters );
+    when( executor.getRowLimit() ).thenReturn( rowLimit );
+    when( executor.getServiceRowLimit() ).thenReturn( 0 );
+    return executor;
+  }
+}
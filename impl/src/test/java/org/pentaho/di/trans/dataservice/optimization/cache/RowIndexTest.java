@@ -0,0 +1,108 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+
+import java.math.BigDecimal;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class RowIndexTest {
+  private RowMeta rowMeta;
+  private List<RowMetaAndData> rows;
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "S" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "I" ) );
+    rowMeta.addValueMeta( new ValueMetaBigNumber( "B" ) );
+
+    rows = Lists.newArrayList();
+    for ( long i = 0; i < 20; i++ ) {
+      // Every fifth row has no integer value
+      rows.add( new RowMetaAndData( rowMeta, "s" + i % 4, i % 5 == 0 ? null : i % 7, new BigDecimal( i ) ) );
+    }
+  }
+
+  @Test
+  public void testEquality() throws Exception {
+    assertThat( lookup( "I", "I = 3" ), equalTo( expected( 3, 17 ) ) );
+    assertThat( lookup( "I", "I IN (3, 6)" ), equalTo( expected( 3, 6, 13, 17 ) ) );
+    assertThat( lookup( "S", "S = 's1'" ), equalTo( expected( 1, 5, 9, 13, 17 ) ) );
+    assertThat( lookup( "I", "I = 12" ), equalTo( expected() ) );
+    // Big numbers are matched by value, regardless of scale
+    assertThat( lookup( "B", "B = 2.00" ), equalTo( expected( 2 ) ) );
+  }
+
+  @Test
+  public void testRanges() throws Exception {
+    assertThat( lookup( "I", "I >= 5 AND I < 6" ), equalTo( expected( 12, 19 ) ) );
+    assertThat( lookup( "I", "I > 5" ), equalTo( expected( 6, 13 ) ) );
+    assertThat( lookup( "B", "B >= 18" ), equalTo( expected( 18, 19 ) ) );
+    // Null values sort below an upper bound
+    assertThat( lookup( "I", "I < 1" ), equalTo( expected( 0, 5, 7, 10, 14, 15 ) ) );
+    // Strings are only hashed
+    assertThat( RowIndex.build( rows, "S" ).get().range( "s1", true, null, false ), nullValue() );
+  }
+
+  @Test
+  public void testNotIndexed() throws Exception {
+    assertFalse( RowIndex.build( rows, "X" ).isPresent() );
+    assertFalse( RowIndex.build( ImmutableList.<RowMetaAndData>of(), "I" ).isPresent() );
+
+    RowMeta caseInsensitive = new RowMeta();
+    ValueMetaString valueMeta = new ValueMetaString( "S" );
+    valueMeta.setCaseInsensitive( true );
+    caseInsensitive.addValueMeta( valueMeta );
+    assertFalse( RowIndex.build( ImmutableList.of( new RowMetaAndData( caseInsensitive, "x" ) ), "S" ).isPresent() );
+
+    // Values must match the field type
+    RowIndex index = RowIndex.build( rows, "I" ).get();
+    assertThat( index.range( 1.5, true, null, false ), nullValue() );
+    assertTrue( RowIndex.build( rows, "B" ).isPresent() );
+  }
+
+  private BitSet lookup( String fieldName, String where ) throws Exception {
+    SQL sql = new SQL( "SELECT * FROM service WHERE " + where );
+    sql.parse( rowMeta );
+    Optional<PredicateSet> predicates = PredicateSet.fromCondition( sql.getWhereCondition().getCondition(), rowMeta );
+    return predicates.get().lookup( fieldName, RowIndex.build( rows, fieldName ).get() );
+  }
+
+  private static BitSet expected( int... rows ) {
+    BitSet expected = new BitSet();
+    for ( int row : rows ) {
+      expected.set( row );
+    }
+    return expected;
+  }
+}
@@ -14,27 +14,42 @@
 package org.pentaho.di.trans.dataservice.optimization.cache;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.reactivex.schedulers.TestScheduler;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.pentaho.caching.api.PentahoCacheManager;
 import org.pentaho.caching.api.PentahoCacheTemplateConfiguration;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheController;
 import org.pentaho.di.trans.dataservice.optimization.cache.ui.ServiceCacheOverlay;
 
 import javax.cache.Cache;
+import java.io.File;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.isA;
 import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.pentaho.caching.api.Constants.CONFIG_TTL;
@@ -52,6 +67,7 @@ public class ServiceCacheFactoryTest {
   @InjectMocks ServiceCacheFactory serviceCacheFactory;
   @Mock Cache<CachedService.CacheKey, CachedService> cache;
   @Mock PentahoCacheTemplateConfiguration template;
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
 
   @Test
   public void testFactory() throws Exception {
@@ -107,6 +123,102 @@ public class ServiceCacheFactoryTest {
     assertThat( serviceCacheFactory.getCache( serviceCache, DATA_SERVICE_NAME ), is( cache ) );
   }
 
+  @Test
+  public void testRefreshAheadNotDue() throws Exception {
+    DataServiceExecutor executor = mock( DataServiceExecutor.class );
+    when( executor.getServiceName() ).thenReturn( DATA_SERVICE_NAME );
+    CachedService.CacheKey key = mock( CachedService.CacheKey.class );
+    ServiceCache serviceCache = serviceCacheFactory.createPushDown();
+    serviceCache.setTimeToLive( "3600" );
+
+    // Disabled by default
+    assertThat( serviceCacheFactory.refreshAhead( serviceCache, executor, key ), is( false ) );
+
+    // Entry not known to be cached
+    serviceCache.setRefreshAhead( "80" );
+    assertThat( serviceCacheFactory.refreshAhead( serviceCache, executor, key ), is( false ) );
+
+    // Entry cached just now
+    serviceCacheFactory.cached( DATA_SERVICE_NAME, key, CachedService.complete( ImmutableList.<RowMetaAndData>of() ) );
+    assertThat( serviceCacheFactory.refreshAhead( serviceCache, executor, key ), is( false ) );
+
+    assertThat( serviceCacheFactory.isRefresh( executor ), is( false ) );
+    verify( executorService, never() ).execute( any( Runnable.class ) );
+  }
+
+  @Test
+  public void testPromoteWithinHeapBudget() throws Exception {
+    ServiceCacheFactory factory = new ServiceCacheFactory( cacheManager, MoreExecutors.newDirectExecutorService() );
+    ServiceCache serviceCache = factory.createPushDown();
+    CachedService.CacheKey key = mock( CachedService.CacheKey.class );
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "A" ) );
+    List<RowMetaAndData> rows =
+      ImmutableList.of( new RowMetaAndData( rowMeta, 1L ), new RowMetaAndData( rowMeta, 2L ) );
+    CachedService found = CachedService.complete( rows );
+
+    // Would be demoted again right away
+    factory.setServiceHeapBudgetBytes( 1 );
+    factory.promote( serviceCache, DATA_SERVICE_NAME, key, found );
+    verify( cacheManager, never() ).getCache( anyString(), eq( CachedService.CacheKey.class ),
+      eq( CachedService.class ) );
+    assertThat( factory.getHeapUsedBytes(), is( 0L ) );
+
+    factory.setServiceHeapBudgetBytes( 0 );
+    when( cacheManager.getCache( cacheName(), CachedService.CacheKey.class, CachedService.class ) ).thenReturn( cache );
+    when( cache.putIfAbsent( eq( key ), any( CachedService.class ) ) ).thenReturn( true );
+    factory.promote( serviceCache, DATA_SERVICE_NAME, key, found );
+    assertThat( factory.getHeapUsedBytes(), greaterThan( 0L ) );
+
+    // Already on heap
+    factory.promote( serviceCache, DATA_SERVICE_NAME, key, found );
+    verify( cache ).putIfAbsent( eq( key ), any( CachedService.class ) );
+  }
+
+  @Test
+  public void testReconcileHeap() throws Exception {
+    CachedService.CacheKey expired = mock( CachedService.CacheKey.class );
+    CachedService.CacheKey live = mock( CachedService.CacheKey.class );
+    when( cacheManager.getCache( cacheName(), CachedService.CacheKey.class, CachedService.class ) ).thenReturn( cache );
+    when( cache.containsKey( expired ) ).thenReturn( true, false );
+    when( cache.containsKey( live ) ).thenReturn( true );
+    CachedService empty = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+    serviceCacheFactory.cached( DATA_SERVICE_NAME, expired, empty );
+    serviceCacheFactory.cached( DATA_SERVICE_NAME, live, empty );
+    assertThat( serviceCacheFactory.getHeapUsage( DATA_SERVICE_NAME ).size(), is( 2 ) );
+
+    // Expired by the cache itself
+    serviceCacheFactory.reconcileHeap();
+    assertThat( serviceCacheFactory.getHeapUsage( DATA_SERVICE_NAME ).keySet(), contains( live ) );
+  }
+
+  @Test
+  public void testTierSweep() throws Exception {
+    TestScheduler scheduler = new TestScheduler();
+    serviceCacheFactory.setSweepScheduler( scheduler );
+    File directory = folder.newFolder();
+    File cacheDirectory = new File( directory, "cache" );
+    assertThat( cacheDirectory.mkdirs(), is( true ) );
+    File orphan = new File( cacheDirectory, "orphan.rows" );
+    assertThat( orphan.createNewFile(), is( true ) );
+
+    // Swept on start
+    serviceCacheFactory.setTierDirectory( directory.getPath() );
+    scheduler.triggerActions();
+    assertThat( orphan.exists(), is( false ) );
+
+    // Then periodically
+    assertThat( orphan.createNewFile(), is( true ) );
+    scheduler.advanceTimeBy( ServiceCacheFactory.TIER_SWEEP_MINUTES, TimeUnit.MINUTES );
+    assertThat( orphan.exists(), is( false ) );
+
+    // Until the tier is disabled
+    serviceCacheFactory.setTierDirectory( "" );
+    assertThat( orphan.createNewFile(), is( true ) );
+    scheduler.advanceTimeBy( ServiceCacheFactory.TIER_SWEEP_MINUTES, TimeUnit.MINUTES );
+    assertThat( orphan.exists(), is( true ) );
+  }
+
   private String cacheName() {
     return serviceCacheFactory.cacheName( DATA_SERVICE_NAME );
   }
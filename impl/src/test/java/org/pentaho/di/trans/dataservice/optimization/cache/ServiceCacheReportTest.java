@@ -0,0 +1,85 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.pentaho.caching.api.PentahoCacheManager;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+@RunWith( MockitoJUnitRunner.StrictStubs.class)
+public class ServiceCacheReportTest {
+  private static final String SERVICE = "MOCK_SERVICE";
+
+  @Mock PentahoCacheManager cacheManager;
+  @Mock ExecutorService executorService;
+  @Mock CachedService.CacheKey key;
+  private ServiceCacheFactory factory;
+
+  @Before
+  public void setUp() throws Exception {
+    factory = new ServiceCacheFactory( cacheManager, executorService );
+  }
+
+  @Test
+  public void testCounters() throws Exception {
+    factory.recordHit( SERVICE );
+    factory.recordHit( SERVICE );
+    factory.recordAttached( SERVICE );
+    factory.recordMiss( SERVICE );
+    factory.recordRejected( SERVICE );
+    factory.recordReplay( SERVICE, 500, TimeUnit.MILLISECONDS.toNanos( 250 ) );
+
+    ServiceCacheStatistics.Counters counters = factory.getStatistics().get( SERVICE );
+    assertThat( counters.getHitRate(), closeTo( 0.75, 0.001 ) );
+    assertThat( counters.getRejected(), equalTo( 1L ) );
+    assertThat( counters.getReplayedRows(), equalTo( 500L ) );
+    assertThat( counters.getReplayRowsPerSecond(), closeTo( 2000, 0.001 ) );
+    assertThat( factory.getStatistics().get( "OTHER" ).getHitRate(), equalTo( 0.0 ) );
+  }
+
+  @Test
+  public void testReportEntries() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "A" ) );
+    List<RowMetaAndData> rows = ImmutableList.of(
+      new RowMetaAndData( rowMeta, 1L ), new RowMetaAndData( rowMeta, 2L ), new RowMetaAndData( rowMeta, 3L ) );
+    factory.cached( SERVICE, key, CachedService.complete( rows ) );
+    factory.recordHit( SERVICE );
+
+    String report = new ServiceCacheReport( factory ).build( ImmutableList.<String>of() );
+    assertThat( report, containsString( SERVICE + ": hits=1 misses=0" ) );
+    assertThat( report, containsString( "heap " + key + " rows=3 bytes=" ) );
+
+    report = new ServiceCacheReport( factory ).build( ImmutableList.of( "OTHER" ) );
+    assertThat( report, containsString( "OTHER: hits=0" ) );
+    assertThat( report, not( containsString( SERVICE ) ) );
+  }
+}
@@ -58,10 +58,12 @@ import static org.hamcrest.core.IsNot.not;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.ignoreStubs;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -149,6 +151,23 @@ public class ServiceCacheTest {
     verifyNoMoreInteractions( ignoreStubs( cache ) );
   }
 
+  @Test
+  public void testActivateObserveRejectsLargeResult() throws Exception {
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE ORDER BY ID" );
+    CachedService cachedService = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+
+    ServiceObserver observer = mock( ServiceObserver.class );
+    when( factory.createObserver( executor ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
+    when( factory.rejects( cachedService ) ).thenReturn( true );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+
+    verify( cache, never() ).putIfAbsent( any( CachedService.CacheKey.class ), any( CachedService.class ) );
+    verify( factory, never() ).cached( any( String.class ), any( CachedService.CacheKey.class ),
+      any( CachedService.class ) );
+  }
+
   @Test
   public void testActivateObserveStreaming() throws Exception {
     DataServiceExecutor executor = dataServiceStreamingExecutor( "SELECT * FROM MOCK_SERVICE ORDER BY ID" );
@@ -177,7 +196,7 @@ public class ServiceCacheTest {
     when( factory.createObserver( executor ) ).thenReturn( observer );
 
     Map<CachedService.CacheKey, ServiceObserver> runningServices = new HashMap<>();
-    when( factory.getRunningServices() ).thenReturn( runningServices );
+    when( factory.getSharedScans() ).thenReturn( new SharedScanCoordinator( runningServices ) );
     when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
 
     assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
@@ -261,6 +280,63 @@ public class ServiceCacheTest {
     verify( cachedServiceLoader ).replay( executor );
   }
 
+  @Test
+  public void testPromoteOnlyWhenAnswering() throws Exception {
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE" );
+    CachedService.CacheKey key = serviceCache.createRootKey( executor );
+    CachedService onDisk = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+    CachedServiceLoader cachedServiceLoader = mock( CachedServiceLoader.class );
+
+    when( factory.load( serviceCache, "MOCK_SERVICE", key ) ).thenReturn( onDisk );
+    when( factory.createCachedServiceLoader( onDisk ) ).thenReturn( cachedServiceLoader );
+    when( cachedServiceLoader.replay( executor ) ).thenReturn( Futures.immediateFuture( 0 ) );
+
+    assertThat( serviceCache.preview( executor, serviceStep ).isModified(), is( true ) );
+    verify( factory, never() ).promote( any( ServiceCache.class ), anyString(), any( CachedService.CacheKey.class ),
+      any( CachedService.class ) );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
+    verify( factory ).promote( serviceCache, "MOCK_SERVICE", key, onDisk );
+  }
+
+  @Test
+  public void testReplayRequestsRefreshAhead() throws Exception {
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE WHERE A = 2" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+    CachedService cachedService = mock( CachedService.class );
+    CachedServiceLoader cachedServiceLoader = mock( CachedServiceLoader.class );
+
+    when( cache.get( key ) ).thenReturn( cachedService );
+    when( cachedService.answersQuery( executor ) ).thenReturn( true );
+    when( factory.createCachedServiceLoader( cachedService ) ).thenReturn( cachedServiceLoader );
+    when( cachedServiceLoader.replay( executor ) ).thenReturn( Futures.immediateFuture( 2000 ) );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( true ) );
+    verify( factory ).refreshAhead( serviceCache, executor, key );
+    verify( factory ).recordHit( "MOCK_SERVICE" );
+  }
+
+  @Test
+  public void testRefreshReplacesEntry() throws Exception {
+    DataServiceExecutor executor = dataServiceExecutor( "SELECT * FROM MOCK_SERVICE ORDER BY ID" );
+    CachedService.CacheKey key = CachedService.CacheKey.create( executor );
+    CachedService cachedService = CachedService.complete( ImmutableList.<RowMetaAndData>of() );
+
+    when( factory.isRefresh( executor ) ).thenReturn( true );
+    ServiceObserver observer = mock( ServiceObserver.class );
+    when( factory.createObserver( executor ) ).thenReturn( observer );
+    when( observer.install() ).thenReturn( Futures.immediateFuture( cachedService ) );
+
+    assertThat( serviceCache.activate( executor, serviceStep ), is( false ) );
+
+    verify( cache ).put( key.withoutOrder(), cachedService );
+    verify( factory ).cached( "MOCK_SERVICE", key.withoutOrder(), cachedService );
+    verify( factory, never() ).recordMiss( "MOCK_SERVICE" );
+    verify( factory, never() ).refreshAhead( any( ServiceCache.class ), any( DataServiceExecutor.class ),
+      any( CachedService.CacheKey.class ) );
+    verifyNoMoreInteractions( ignoreStubs( cache ) );
+  }
+
   @Test
   public void testReplayComplete() throws Exception {
 
@@ -291,7 +367,7 @@ public class ServiceCacheTest {
     HashMap<CachedService.CacheKey, ServiceObserver> runningServices = new HashMap<>();
     ServiceObserver serviceObserver = new ServiceObserver( executor );
     runningServices.put( key, serviceObserver );
-    when( factory.getRunningServices() ).thenReturn( runningServices );
+    when( factory.getSharedScans() ).thenReturn( new SharedScanCoordinator( runningServices ) );
     //noinspection unchecked
     when( factory.createCachedServiceLoader( any( java.util.function.Supplier.class ) ) ).thenReturn( cachedServiceLoader );
     when( cachedServiceLoader.replay( executor ) ).thenReturn( Futures.immediateFuture( 2000 ) );
@@ -88,18 +88,16 @@ public class ServiceObserverTest {
     CountDownLatch firstRowLatch = new CountDownLatch( 1 );
     ServiceObserver serviceObserver = new ServiceObserver( executor ) {
       @Override public void run() {
-        rowMetaAndData.add( new RowMetaAndData() );
+        rowLog.append( new RowMetaAndData() );
         firstRowLatch.countDown();
         try {
           delayRowsLatch.await();
-          rowMetaAndData.add( new RowMetaAndData() );
-          latch.countDown();
-          rowMetaAndData.add( new RowMetaAndData() );
-          latch.countDown();
+          rowLog.append( new RowMetaAndData() );
+          rowLog.append( new RowMetaAndData() );
         } catch ( InterruptedException e ) {
           throw new RuntimeException( e );
         }
-        isRunning = false;
+        rowLog.close();
       }
     };
     Executors.newSingleThreadExecutor().submit( serviceObserver );
@@ -130,5 +128,7 @@ public class ServiceObserverTest {
     } catch ( Exception e ) {
       assertThat( e.getCause(), is( exception ) );
     }
+    // Attached readers are released
+    assertFalse( observer.rows().hasNext() );
   }
 }
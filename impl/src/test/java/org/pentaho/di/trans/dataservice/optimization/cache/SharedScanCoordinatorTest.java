@@ -0,0 +1,120 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.optimization.cache;
+
+import com.google.common.collect.Maps;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.DataServiceContext;
+import org.pentaho.di.trans.dataservice.DataServiceExecutor;
+import org.pentaho.di.trans.dataservice.DataServiceMeta;
+import org.pentaho.di.trans.dataservice.optimization.cache.CachedService.CacheKey;
+
+import java.util.Map;
+
+import static org.hamcrest.Matchers.anEmptyMap;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.StrictStubs.class )
+public class SharedScanCoordinatorTest {
+
+  private static final String SERVICE_NAME = "MOCK_SERVICE";
+  private static final String BASE_QUERY = "SELECT * from " + SERVICE_NAME;
+  private static final String SERVICE_STEP = "service step";
+
+  @Mock( answer = Answers.RETURNS_DEEP_STUBS ) Trans serviceTrans;
+  @Mock DataServiceContext context;
+
+  private Map<CacheKey, ServiceObserver> runningServices;
+  private SharedScanCoordinator coordinator;
+  private DataServiceMeta dataServiceMeta;
+
+  @Before
+  public void setUp() throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "A" ) );
+
+    TransMeta transMeta = serviceTrans.getTransMeta();
+    when( transMeta.getCacheVersion() ).thenReturn( 1 );
+    when( transMeta.getStepFields( SERVICE_STEP ) ).thenReturn( rowMeta );
+
+    dataServiceMeta = new DataServiceMeta( transMeta );
+    dataServiceMeta.setName( SERVICE_NAME );
+    dataServiceMeta.setStepname( SERVICE_STEP );
+
+    runningServices = Maps.newConcurrentMap();
+    coordinator = new SharedScanCoordinator( runningServices );
+  }
+
+  @Test
+  public void testAttachExactMatch() throws Exception {
+    ServiceObserver unbounded = mock( ServiceObserver.class );
+    ServiceObserver exact = mock( ServiceObserver.class );
+    coordinator.register( cacheKey( BASE_QUERY ), unbounded );
+    coordinator.register( cacheKey( BASE_QUERY + " WHERE A = 1" ), exact );
+
+    assertThat( coordinator.attach( cacheKey( BASE_QUERY + " WHERE A = 1" ) ).get(), sameInstance( exact ) );
+  }
+
+  @Test
+  public void testAttachCoveringScan() throws Exception {
+    ServiceObserver unbounded = mock( ServiceObserver.class );
+    coordinator.register( cacheKey( BASE_QUERY ), unbounded );
+
+    assertThat( coordinator.attach( cacheKey( BASE_QUERY + " WHERE A = 1" ) ).get(), sameInstance( unbounded ) );
+  }
+
+  @Test
+  public void testNoCompatibleScan() throws Exception {
+    coordinator.register( cacheKey( BASE_QUERY + " WHERE A = 1" ), mock( ServiceObserver.class ) );
+
+    assertThat( coordinator.attach( cacheKey( BASE_QUERY ) ).isPresent(), is( false ) );
+    assertThat( coordinator.attach( cacheKey( BASE_QUERY + " WHERE A = 2" ) ).isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testReleaseOnlyOwnRun() throws Exception {
+    CacheKey key = cacheKey( BASE_QUERY );
+    ServiceObserver first = mock( ServiceObserver.class );
+    ServiceObserver second = mock( ServiceObserver.class );
+
+    coordinator.register( key, first );
+    coordinator.register( key, second );
+    coordinator.release( key, first );
+    assertThat( coordinator.attach( key ).get(), sameInstance( second ) );
+
+    coordinator.release( key, second );
+    assertThat( runningServices, is( anEmptyMap() ) );
+  }
+
+  private CacheKey cacheKey( String query ) throws KettleException {
+    return CacheKey.create( new DataServiceExecutor.Builder( new SQL( query ), dataServiceMeta, context )
+      .serviceTrans( serviceTrans )
+      .build() );
+  }
+}
@@ -0,0 +1,36 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BackpressurePolicyTest {
+
+  @Test
+  public void testParse() {
+    assertThat( BackpressurePolicy.parse( "drop-oldest" ), is( BackpressurePolicy.DROP_OLDEST ) );
+    assertThat( BackpressurePolicy.parse( " Latest " ), is( BackpressurePolicy.DROP_OLDEST ) );
+    assertThat( BackpressurePolicy.parse( "buffer" ), is( BackpressurePolicy.BUFFER ) );
+    assertThat( BackpressurePolicy.parse( "BLOCK" ), is( BackpressurePolicy.BLOCK ) );
+    assertThat( BackpressurePolicy.parse( "coalesce" ), is( BackpressurePolicy.COALESCE ) );
+
+    assertThat( BackpressurePolicy.parse( null ), nullValue() );
+    assertThat( BackpressurePolicy.parse( "" ), nullValue() );
+    assertThat( BackpressurePolicy.parse( "unknown" ), nullValue() );
+  }
+}
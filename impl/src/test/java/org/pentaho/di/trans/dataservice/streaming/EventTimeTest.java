@@ -0,0 +1,58 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+import org.junit.Test;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.util.Date;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class EventTimeTest {
+
+  @Test
+  public void testTimestamp() {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaDate( "date" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "millis" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "name" ) );
+    RowMetaAndData row = new RowMetaAndData( rowMeta, new Date( 1000L ), 2000L, "a" );
+
+    assertThat( EventTime.of( "date", 0 ).timestamp( row ), is( 1000L ) );
+    assertThat( EventTime.of( "millis", 0 ).timestamp( row ), is( 2000L ) );
+    assertThat( EventTime.of( "name", 0 ).timestamp( row ), nullValue() );
+    assertThat( EventTime.of( "missing", 0 ).timestamp( row ), nullValue() );
+    assertThat( EventTime.of( "date", 0 ).timestamp( new RowMetaAndData( rowMeta, null, 2000L, "a" ) ), nullValue() );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testNegativeLateness() {
+    EventTime.of( "date", -1 );
+  }
+
+  @Test
+  public void testGetters() {
+    EventTime eventTime = EventTime.of( "date", 500 );
+
+    assertThat( eventTime.getField(), is( "date" ) );
+    assertThat( eventTime.getAllowedLateness(), is( 500L ) );
+  }
+}
@@ -0,0 +1,227 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+import com.google.common.collect.ImmutableList;
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.TestScheduler;
+import io.reactivex.subjects.PublishSubject;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class SlidingWindowsTest {
+
+  @Test
+  public void testRowBasedMatchesBuffer() {
+    Observable<Integer> stream = Observable.range( 0, 5000 );
+    int[][] parameters = { { 1, 1 }, { 3, 1 }, { 3, 3 }, { 2, 5 }, { 4, 2 }, { 2048, 1000 }, { 1500, 1500 } };
+    for ( int[] p : parameters ) {
+      List<List<Integer>> expected = stream.buffer( p[ 0 ], p[ 1 ] ).toList().blockingGet();
+      List<List<Integer>> actual = SlidingWindows.rowBased( stream, p[ 0 ], p[ 1 ] ).toList().blockingGet();
+      assertThat( "size " + p[ 0 ] + " every " + p[ 1 ], actual, equalTo( expected ) );
+    }
+  }
+
+  @Test
+  public void testRowBasedAllocation() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue( threads instanceof com.sun.management.ThreadMXBean );
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    Assume.assumeTrue( allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled() );
+
+    // A 10,000 row window sliding every 100 rows, each row belongs to 100 windows
+    int size = 10000;
+    int every = 100;
+    Integer[] rows = new Integer[ 50000 ];
+    for ( int i = 0; i < rows.length; i++ ) {
+      rows[ i ] = i;
+    }
+    long threadId = Thread.currentThread().getId();
+
+    PublishSubject<Integer> buffered = PublishSubject.create();
+    buffered.buffer( size, every ).subscribe( window -> { } );
+    long before = allocations.getThreadAllocatedBytes( threadId );
+    for ( Integer row : rows ) {
+      buffered.onNext( row );
+    }
+    long bufferAllocated = allocations.getThreadAllocatedBytes( threadId ) - before;
+
+    PublishSubject<Integer> viewed = PublishSubject.create();
+    AtomicLong windows = new AtomicLong();
+    SlidingWindows.rowBased( viewed, size, every ).subscribe( window -> windows.incrementAndGet() );
+    before = allocations.getThreadAllocatedBytes( threadId );
+    for ( Integer row : rows ) {
+      viewed.onNext( row );
+    }
+    long viewAllocated = allocations.getThreadAllocatedBytes( threadId ) - before;
+
+    // Rows are stored once instead of copied into every window holding them
+    assertThat( viewAllocated, lessThan( bufferAllocated / 10 ) );
+    // Each window is emitted by the row completing it, without waiting for more rows
+    assertThat( windows.get(), equalTo( (long) ( rows.length - size ) / every + 1 ) );
+  }
+
+  @Test
+  public void testTimeBasedSliding() {
+    TestScheduler scheduler = new TestScheduler();
+    PublishSubject<String> stream = PublishSubject.create();
+    List<List<String>> windows = new ArrayList<>();
+    SlidingWindows.timeBased( stream, 20, 10, scheduler ).subscribe( windows::add );
+
+    scheduler.advanceTimeBy( 5, TimeUnit.MILLISECONDS );
+    stream.onNext( "a" );
+    scheduler.advanceTimeBy( 10, TimeUnit.MILLISECONDS );
+    stream.onNext( "b" );
+    scheduler.advanceTimeBy( 10, TimeUnit.MILLISECONDS );
+    stream.onNext( "c" );
+    scheduler.advanceTimeBy( 10, TimeUnit.MILLISECONDS );
+    stream.onComplete();
+
+    assertThat( windows, equalTo( (List<List<String>>) ImmutableList.<List<String>>of(
+      ImmutableList.of( "a", "b" ), ImmutableList.of( "b", "c" ), ImmutableList.of( "c" ), ImmutableList.of() ) ) );
+  }
+
+  @Test
+  public void testTimeBasedExact() {
+    TestScheduler scheduler = new TestScheduler();
+    PublishSubject<String> stream = PublishSubject.create();
+    List<List<String>> windows = new ArrayList<>();
+    SlidingWindows.timeBased( stream, 10, 10, scheduler ).subscribe( windows::add );
+
+    scheduler.advanceTimeBy( 5, TimeUnit.MILLISECONDS );
+    stream.onNext( "a" );
+    scheduler.advanceTimeBy( 10, TimeUnit.MILLISECONDS );
+    stream.onNext( "b" );
+    scheduler.advanceTimeBy( 2, TimeUnit.MILLISECONDS );
+    stream.onNext( "c" );
+    scheduler.advanceTimeBy( 8, TimeUnit.MILLISECONDS );
+    stream.onComplete();
+
+    assertThat( windows, equalTo( (List<List<String>>) ImmutableList.<List<String>>of(
+      ImmutableList.of( "a" ), ImmutableList.of( "b", "c" ), ImmutableList.of() ) ) );
+  }
+
+  @Test
+  public void testTimeBasedRowCap() {
+    TestScheduler scheduler = new TestScheduler();
+    PublishSubject<String> stream = PublishSubject.create();
+    List<List<String>> exact = new ArrayList<>();
+    List<List<String>> sliding = new ArrayList<>();
+    AtomicLong dropped = new AtomicLong();
+    SlidingWindows.timeBased( stream, 10, 10, 2, scheduler, dropped::addAndGet ).subscribe( exact::add );
+    SlidingWindows.timeBased( stream, 20, 10, 2, scheduler, dropped::addAndGet ).subscribe( sliding::add );
+
+    scheduler.advanceTimeBy( 5, TimeUnit.MILLISECONDS );
+    stream.onNext( "a" );
+    stream.onNext( "b" );
+    stream.onNext( "c" );
+    scheduler.advanceTimeBy( 10, TimeUnit.MILLISECONDS );
+    stream.onNext( "d" );
+    scheduler.advanceTimeBy( 10, TimeUnit.MILLISECONDS );
+    stream.onComplete();
+
+    assertThat( exact, equalTo( (List<List<String>>) ImmutableList.<List<String>>of(
+      ImmutableList.of( "b", "c" ), ImmutableList.of( "d" ), ImmutableList.of() ) ) );
+    assertThat( sliding.get( 0 ), equalTo( (List<String>) ImmutableList.of( "c", "d" ) ) );
+    assertThat( dropped.get(), equalTo( 3L ) );
+  }
+
+  @Test
+  public void testEventTimeBased() {
+    PublishSubject<Long> stream = PublishSubject.create();
+    List<List<Long>> windows = new ArrayList<>();
+    AtomicLong dropped = new AtomicLong();
+    AtomicLong late = new AtomicLong();
+    SlidingWindows.eventTimeBased( stream, 10, 10, 100, time -> time < 0 ? null : time, 5, dropped::addAndGet,
+      late::addAndGet ).subscribe( windows::add );
+
+    stream.onNext( 1L );
+    stream.onNext( 3L );
+    stream.onNext( 12L );
+    // Within the allowed lateness
+    stream.onNext( 8L );
+    assertThat( windows.size(), equalTo( 0 ) );
+    stream.onNext( 16L );
+    stream.onNext( 2L );
+    stream.onNext( -1L );
+    stream.onNext( 25L );
+    stream.onComplete();
+
+    assertThat( windows, equalTo( (List<List<Long>>) ImmutableList.<List<Long>>of(
+      ImmutableList.of( 1L, 3L, 8L ), ImmutableList.of( 12L, 16L ), ImmutableList.of( 25L ) ) ) );
+    assertThat( late.get(), equalTo( 2L ) );
+    assertThat( dropped.get(), equalTo( 0L ) );
+  }
+
+  @Test
+  public void testEventTimeBasedSliding() {
+    PublishSubject<Long> stream = PublishSubject.create();
+    List<List<Long>> windows = new ArrayList<>();
+    SlidingWindows.eventTimeBased( stream, 10, 5, 100, time -> time, 0, dropped -> { }, late -> { } )
+      .subscribe( windows::add );
+
+    stream.onNext( 1L );
+    stream.onNext( 6L );
+    stream.onNext( 12L );
+    stream.onComplete();
+
+    assertThat( windows, equalTo( (List<List<Long>>) ImmutableList.<List<Long>>of(
+      ImmutableList.of( 1L ), ImmutableList.of( 1L, 6L ), ImmutableList.of( 6L, 12L ), ImmutableList.of( 12L ) ) ) );
+  }
+
+  @Test
+  public void testEventTimeBasedRowCap() {
+    PublishSubject<Long> stream = PublishSubject.create();
+    List<List<Long>> windows = new ArrayList<>();
+    AtomicLong dropped = new AtomicLong();
+    SlidingWindows.eventTimeBased( stream, 10, 10, 2, time -> time, 100, dropped::addAndGet, late -> { } )
+      .subscribe( windows::add );
+
+    stream.onNext( 3L );
+    stream.onNext( 1L );
+    stream.onNext( 2L );
+    stream.onComplete();
+
+    assertThat( windows, equalTo( (List<List<Long>>) ImmutableList.<List<Long>>of( ImmutableList.of( 1L, 2L ) ) ) );
+    assertThat( dropped.get(), equalTo( 1L ) );
+  }
+
+  @Test
+  public void testDispose() {
+    TestScheduler scheduler = new TestScheduler();
+    PublishSubject<String> stream = PublishSubject.create();
+    List<List<String>> windows = new ArrayList<>();
+    Disposable rows = SlidingWindows.rowBased( stream, 1, 1 ).subscribe( windows::add );
+    Disposable time = SlidingWindows.timeBased( stream, 10, 10, scheduler ).subscribe( windows::add );
+
+    rows.dispose();
+    time.dispose();
+    stream.onNext( "a" );
+    scheduler.advanceTimeBy( 20, TimeUnit.MILLISECONDS );
+
+    assertThat( windows, equalTo( (List<List<String>>) ImmutableList.<List<String>>of() ) );
+    assertThat( stream.hasObservers(), equalTo( false ) );
+  }
+}
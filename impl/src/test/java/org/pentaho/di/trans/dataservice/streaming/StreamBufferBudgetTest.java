@@ -0,0 +1,63 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+import org.junit.Test;
+import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class StreamBufferBudgetTest {
+
+  @Test
+  public void testReserve() {
+    StreamBufferBudget budget = new StreamBufferBudget( 3000 );
+
+    assertThat( budget.reserve( 2500 ), is( 2500 ) );
+    assertThat( budget.reserve( 2500 ), is( DataServiceConstants.STREAMING_BUFFER_MIN_ROWS ) );
+    assertThat( budget.reserve( 10 ), is( 10 ) );
+    assertThat( budget.getReservedRows(), is( 3510L ) );
+
+    budget.release( 2500 );
+    budget.release( DataServiceConstants.STREAMING_BUFFER_MIN_ROWS );
+    assertThat( budget.reserve( 5000 ), is( 2990 ) );
+    assertThat( budget.getReservedRows(), is( 3000L ) );
+  }
+
+  @Test
+  public void testUnlimited() {
+    StreamBufferBudget budget = new StreamBufferBudget( 0 );
+
+    assertThat( budget.reserve( Integer.MAX_VALUE ), is( Integer.MAX_VALUE ) );
+    assertThat( budget.reserve( 5000 ), is( 5000 ) );
+    budget.release( 5000 );
+    assertThat( budget.getReservedRows(), is( (long) Integer.MAX_VALUE ) );
+  }
+
+  @Test
+  public void testOverflow() {
+    StreamBufferBudget budget = new StreamBufferBudget( 0 );
+    budget.overflow( 2 );
+    budget.overflow( 3 );
+
+    assertThat( budget.getOverflowRows(), is( 5L ) );
+  }
+
+  @Test
+  public void testGetInstance() {
+    assertThat( StreamBufferBudget.getInstance(), sameInstance( StreamBufferBudget.getInstance() ) );
+  }
+}
@@ -13,14 +13,26 @@
 
 package org.pentaho.di.trans.dataservice.streaming;
 
+import io.reactivex.schedulers.TestScheduler;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 
 import static org.junit.Assert.assertEquals;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 /**
  * {@link StreamList} test class
@@ -48,4 +60,183 @@ public class StreamListTest {
   public void testGetStream() {
     assertEquals( streamList.onAdd, streamList.getStream() );
   }
+
+  @Test
+  public void testChannel() {
+    TestScheduler scheduler = new TestScheduler();
+    StreamList.Channel<String> channel = streamList.openChannel( 10, scheduler );
+    List<String> received = new ArrayList<>();
+    channel.getStream().subscribe( received::add );
+
+    streamList.add( "a" );
+    streamList.add( "b" );
+    assertTrue( received.isEmpty() );
+    assertEquals( 2, channel.getDepth() );
+
+    // Delivered in a batch on the channel scheduler
+    scheduler.triggerActions();
+    assertEquals( Arrays.asList( "a", "b" ), received );
+    assertEquals( 0, channel.getDepth() );
+    assertEquals( 2, channel.getDelivered() );
+    assertEquals( 0, channel.getDropped() );
+  }
+
+  @Test
+  public void testAddParts() {
+    TestScheduler scheduler = new TestScheduler();
+    StreamList.Channel<String> slow = streamList.openChannel( 1, scheduler );
+    StreamList.Channel<String> fast = streamList.openChannel( 10, scheduler );
+    List<String> slowReceived = new ArrayList<>();
+    List<String> fastReceived = new ArrayList<>();
+    slow.getStream().subscribe( slowReceived::add );
+    fast.getStream().subscribe( fastReceived::add );
+    AtomicInteger assembled = new AtomicInteger();
+    BiFunction<String, Integer, String> assembler = ( prefix, value ) -> {
+      assembled.incrementAndGet();
+      return prefix + value;
+    };
+
+    streamList.add( "a", 1, assembler );
+    streamList.add( "b", 2, assembler );
+    assertEquals( 0, assembled.get() );
+
+    // Each channel assembles the items it delivers, the one dropped by the slow channel is never assembled
+    scheduler.triggerActions();
+    assertEquals( Arrays.asList( "b2" ), slowReceived );
+    assertEquals( Arrays.asList( "a1", "b2" ), fastReceived );
+    assertEquals( 3, assembled.get() );
+
+    streamList.getStream().buffer( 1 ).subscribe( list -> resultList = list );
+    streamList.add( "c", 3, assembler );
+    assertEquals( Arrays.asList( "c3" ), resultList );
+  }
+
+  @Test
+  public void testAddPartsAllocation() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue( threads instanceof com.sun.management.ThreadMXBean );
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    Assume.assumeTrue( allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled() );
+
+    int warmup = 1000;
+    int rows = 10000;
+    TestScheduler scheduler = new TestScheduler();
+    streamList.openChannel( warmup + rows, scheduler ).getStream().subscribe( item -> { } );
+    streamList.openChannel( warmup + rows, scheduler ).getStream().subscribe( item -> { } );
+    Object[] row = new Object[] { MOCK_MESSAGE };
+    BiFunction<String, Object[], String> assembler = ( prefix, values ) -> prefix + values[ 0 ];
+    for ( int i = 0; i < warmup; i++ ) {
+      streamList.add( MOCK_MESSAGE, row, assembler );
+    }
+
+    // Until delivered, items from parts are held in the channel rings only
+    long threadId = Thread.currentThread().getId();
+    long before = allocations.getThreadAllocatedBytes( threadId );
+    for ( int i = 0; i < rows; i++ ) {
+      streamList.add( MOCK_MESSAGE, row, assembler );
+    }
+    long allocated = allocations.getThreadAllocatedBytes( threadId ) - before;
+
+    assertThat( allocated, lessThan( (long) rows ) );
+  }
+
+  @Test
+  public void testChannelDropsOldest() {
+    TestScheduler scheduler = new TestScheduler();
+    StreamList.Channel<String> slow = streamList.openChannel( 3, scheduler );
+    StreamList.Channel<String> fast = streamList.openChannel( 10, scheduler );
+    List<String> received = new ArrayList<>();
+    slow.getStream().subscribe( received::add );
+
+    for ( String item : Arrays.asList( "a", "b", "c", "d", "e" ) ) {
+      streamList.add( item );
+    }
+    assertEquals( 3, slow.getDepth() );
+    assertEquals( 2, slow.getDropped() );
+    assertEquals( 0, fast.getDropped() );
+    assertEquals( 2, streamList.getDropped() );
+
+    scheduler.triggerActions();
+    assertEquals( Arrays.asList( "c", "d", "e" ), received );
+  }
+
+  @Test
+  public void testChannelClose() {
+    TestScheduler scheduler = new TestScheduler();
+    StreamList.Channel<String> channel = streamList.openChannel( 10, scheduler );
+    List<String> received = new ArrayList<>();
+    channel.getStream().subscribe( received::add );
+
+    streamList.add( MOCK_MESSAGE );
+    channel.close();
+    streamList.add( MOCK_MESSAGE );
+    scheduler.triggerActions();
+
+    assertTrue( received.isEmpty() );
+    assertEquals( 0, channel.getDepth() );
+    assertTrue( streamList.getChannels().isEmpty() );
+  }
+
+  @Test
+  public void testChannelPause() {
+    TestScheduler scheduler = new TestScheduler();
+    StreamList.Channel<String> channel = streamList.openChannel( 10, scheduler );
+    List<String> received = new ArrayList<>();
+    channel.getStream().subscribe( received::add );
+
+    channel.pause();
+    assertTrue( channel.isPaused() );
+    streamList.add( "a" );
+    streamList.add( "b" );
+    scheduler.triggerActions();
+    assertTrue( received.isEmpty() );
+    assertEquals( 2, channel.getDepth() );
+
+    channel.resume();
+    assertFalse( channel.isPaused() );
+    scheduler.triggerActions();
+    assertEquals( Arrays.asList( "a", "b" ), received );
+    assertEquals( 0, channel.getDropped() );
+  }
+
+  @Test
+  public void testPausedChannelHoldsBackProducer() throws Exception {
+    TestScheduler scheduler = new TestScheduler();
+    StreamList.Channel<String> channel = streamList.openChannel( 1, scheduler );
+    List<String> received = new ArrayList<>();
+    channel.getStream().subscribe( received::add );
+
+    channel.pause();
+    streamList.add( "a" );
+    Thread producer = new Thread( () -> streamList.add( "b" ) );
+    producer.start();
+    producer.join( 200 );
+    assertTrue( producer.isAlive() );
+
+    // Once resumed, the channel falls back to dropping the oldest item if the consumer is still behind
+    channel.resume();
+    producer.join( TimeUnit.SECONDS.toMillis( 10 ) );
+    assertFalse( producer.isAlive() );
+    scheduler.triggerActions();
+    assertEquals( "b", received.get( received.size() - 1 ) );
+    assertEquals( 2, channel.getDelivered() + channel.getDropped() );
+  }
+
+  @Test
+  public void testClosingPausedChannelReleasesProducer() throws Exception {
+    TestScheduler scheduler = new TestScheduler();
+    StreamList.Channel<String> channel = streamList.openChannel( 1, scheduler );
+
+    channel.pause();
+    streamList.add( "a" );
+    Thread producer = new Thread( () -> streamList.add( "b" ) );
+    producer.start();
+    producer.join( 200 );
+    assertTrue( producer.isAlive() );
+
+    channel.close();
+    producer.join( TimeUnit.SECONDS.toMillis( 10 ) );
+    assertFalse( producer.isAlive() );
+    assertEquals( 0, channel.getDepth() );
+  }
 }
@@ -0,0 +1,89 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WindowLogTest {
+  private static final int ITEMS = WindowLog.CHUNK_SIZE * 3 + 17;
+
+  private WindowLog<Integer> log;
+
+  @Before
+  public void setUp() {
+    log = new WindowLog<>();
+    for ( int i = 0; i < ITEMS; i++ ) {
+      log.append( i );
+    }
+  }
+
+  @Test
+  public void testView() {
+    assertThat( log.size(), is( (long) ITEMS ) );
+    assertThat( log.view( 5, 5 ), empty() );
+    assertThat( log.view( 0, 3 ), equalTo( (List<Integer>) ImmutableList.of( 0, 1, 2 ) ) );
+
+    int start = WindowLog.CHUNK_SIZE - 2;
+    int end = WindowLog.CHUNK_SIZE * 3 + 4;
+    List<Integer> view = log.view( start, end );
+    assertThat( view, equalTo( range( start, end ) ) );
+
+    // Views are not affected by later appends
+    log.append( -1 );
+    assertThat( view.size(), is( end - start ) );
+  }
+
+  @Test
+  public void testTrim() {
+    List<Integer> view = log.view( 10, 20 );
+    log.trim( WindowLog.CHUNK_SIZE * 2 + 5 );
+    assertThat( log.first(), is( (long) WindowLog.CHUNK_SIZE * 2 ) );
+    assertThat( log.view( WindowLog.CHUNK_SIZE * 2, ITEMS ), equalTo( range( WindowLog.CHUNK_SIZE * 2, ITEMS ) ) );
+    // Views taken before keep their items
+    assertThat( view, equalTo( range( 10, 20 ) ) );
+
+    // Never trims past the last item
+    log.trim( Long.MAX_VALUE );
+    assertThat( log.first(), is( (long) WindowLog.CHUNK_SIZE * 3 ) );
+    log.append( ITEMS );
+    assertThat( log.view( ITEMS - 1, ITEMS + 1 ), equalTo( range( ITEMS - 1, ITEMS + 1 ) ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testViewTrimmed() {
+    log.trim( WindowLog.CHUNK_SIZE );
+    log.view( WindowLog.CHUNK_SIZE - 1, WindowLog.CHUNK_SIZE + 1 );
+  }
+
+  @Test( expected = IndexOutOfBoundsException.class )
+  public void testViewBounds() {
+    log.view( 0, 3 ).get( 3 );
+  }
+
+  private static List<Integer> range( int start, int end ) {
+    return ImmutableList.copyOf( ContiguousSet.create( Range.closedOpen( start, end ), DiscreteDomain.integers() ) );
+  }
+}
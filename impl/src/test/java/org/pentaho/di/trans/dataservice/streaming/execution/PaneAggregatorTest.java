@@ -0,0 +1,181 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming.execution;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PaneAggregatorTest {
+  private static final String AGGREGATES = "SELECT region, SUM(amount) AS total, COUNT(*) AS cnt, COUNT(amount) AS n,"
+    + " MIN(price) AS lo, MAX(price) AS hi, AVG(amount) AS mean FROM service";
+
+  private RowMetaInterface rowMeta;
+  private List<RowMetaAndData> rows;
+
+  @Before
+  public void setUp() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+    rowMeta.addValueMeta( new ValueMetaNumber( "price" ) );
+    rows = new ArrayList<>();
+    addRow( "east", 1L, 1.5 );
+    addRow( "west", 2L, 2.5 );
+    addRow( "east", 3L, 0.5 );
+    addRow( "west", null, 4.0 );
+    addRow( "east", 5L, 3.0 );
+    addRow( "west", 6L, 1.0 );
+    addRow( "east", 7L, 9.0 );
+    addRow( "west", 8L, 0.25 );
+  }
+
+  @Test
+  public void testForQuery() throws Exception {
+    PaneAggregator aggregator = aggregator( AGGREGATES + " GROUP BY region", 6, 2 ).get();
+    assertThat( aggregator.getPaneSize(), is( 2 ) );
+    assertThat( aggregator( AGGREGATES + " GROUP BY region", 6, 4 ).get().getPaneSize(), is( 2 ) );
+    assertThat( aggregator( AGGREGATES + " GROUP BY region", 6, 0 ).get().getPaneSize(), is( Integer.MAX_VALUE ) );
+    assertThat( aggregator( "SELECT SUM(amount) AS total FROM service", 6, 2 ).isPresent(), is( true ) );
+
+    assertThat( aggregator( "SELECT region FROM service GROUP BY region", 6, 2 ).isPresent(), is( false ) );
+    assertThat( aggregator( AGGREGATES + " WHERE amount > 1 GROUP BY region", 6, 2 ).isPresent(), is( false ) );
+    assertThat( aggregator( AGGREGATES + " GROUP BY region HAVING SUM(amount) > 1", 6, 2 ).isPresent(),
+      is( false ) );
+    assertThat( aggregator( AGGREGATES + " GROUP BY region ORDER BY region", 6, 2 ).isPresent(), is( false ) );
+    assertThat( aggregator( AGGREGATES + " GROUP BY region LIMIT 1", 6, 2 ).isPresent(), is( false ) );
+    assertThat( aggregator( "SELECT region, COUNT(DISTINCT amount) AS n FROM service GROUP BY region", 6, 2 )
+      .isPresent(), is( false ) );
+    assertThat( aggregator( "SELECT region, price, SUM(amount) AS n FROM service GROUP BY region", 6, 2 )
+      .isPresent(), is( false ) );
+  }
+
+  @Test
+  public void testSlidingWindows() throws Exception {
+    PaneAggregator aggregator = aggregator( AGGREGATES + " GROUP BY region", 6, 2 ).get();
+
+    Map<String, RowMetaAndData> first = byRegion( aggregator.aggregate( rows.subList( 0, 6 ) ).get() );
+    assertGroup( first.get( "east" ), 9, 3, 3, 0.5, 3.0, 3.0 );
+    assertGroup( first.get( "west" ), 8, 3, 2, 1.0, 4.0, 4.0 );
+
+    Map<String, RowMetaAndData> second = byRegion( aggregator.aggregate( rows.subList( 2, 8 ) ).get() );
+    assertGroup( second.get( "east" ), 15, 3, 3, 0.5, 9.0, 5.0 );
+    assertGroup( second.get( "west" ), 14, 3, 2, 0.25, 4.0, 7.0 );
+
+    // Windows not starting on a pane boundary are aggregated from scratch
+    Map<String, RowMetaAndData> third = byRegion( aggregator.aggregate( rows.subList( 1, 4 ) ).get() );
+    assertGroup( third.get( "east" ), 3, 1, 1, 0.5, 0.5, 3.0 );
+    assertGroup( third.get( "west" ), 2, 2, 1, 2.5, 4.0, 2.0 );
+  }
+
+  @Test
+  public void testWithoutGroups() throws Exception {
+    PaneAggregator aggregator = aggregator( "SELECT COUNT(*) AS cnt, SUM(amount) AS total FROM service", 4, 2 ).get();
+    List<RowMetaAndData> result = aggregator.aggregate( rows.subList( 0, 4 ) ).get();
+    assertThat( result.size(), is( 1 ) );
+    assertThat( result.get( 0 ).getInteger( "cnt", -1 ), is( 4L ) );
+    assertThat( result.get( 0 ).getInteger( "total", -1 ), is( 6L ) );
+  }
+
+  @Test
+  public void testEmptyStringsAreNull() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "region" ) );
+    rowMeta.addValueMeta( new ValueMetaString( "code" ) );
+    PaneAggregator aggregator = aggregator( "SELECT region, COUNT(code) AS n, MIN(code) AS lo, MAX(code) AS hi"
+      + " FROM service GROUP BY region", 4, 2 ).get();
+    List<RowMetaAndData> window = new ArrayList<>();
+    window.add( new RowMetaAndData( rowMeta, "east", "" ) );
+    window.add( new RowMetaAndData( rowMeta, "east", "b" ) );
+    window.add( new RowMetaAndData( rowMeta, "east", null ) );
+    window.add( new RowMetaAndData( rowMeta, "east", "a" ) );
+
+    List<RowMetaAndData> result = aggregator.aggregate( window ).get();
+    assertThat( result.size(), is( 1 ) );
+    assertThat( result.get( 0 ).getInteger( "n", -1 ), is( 2L ) );
+    assertThat( result.get( 0 ).getString( "lo", null ), is( "a" ) );
+    assertThat( result.get( 0 ).getString( "hi", null ), is( "b" ) );
+  }
+
+  @Test
+  public void testFallback() throws Exception {
+    PaneAggregator aggregator = aggregator( AGGREGATES + " GROUP BY region", 6, 2 ).get();
+    assertThat( aggregator.aggregate( Collections.<RowMetaAndData>emptyList() ).isPresent(), is( false ) );
+
+    // Rows of another layout
+    List<RowMetaAndData> window = new ArrayList<>( rows.subList( 0, 2 ) );
+    window.add( new RowMetaAndData( rowMeta.clone(), "east", 1L, 1.0 ) );
+    assertThat( aggregator.aggregate( window ).isPresent(), is( false ) );
+
+    RowMeta missing = new RowMeta();
+    missing.addValueMeta( new ValueMetaString( "other" ) );
+    assertThat( aggregator.aggregate( Collections.singletonList( new RowMetaAndData( missing, "x" ) ) ).isPresent(),
+      is( false ) );
+  }
+
+  private Optional<PaneAggregator> aggregator( String query, long windowSize, long windowEvery ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( rowMeta );
+    SqlTransGenerator generator = new SqlTransGenerator( sql, 0 );
+    RowMetaInterface outputFields = generator.generateTransMeta().getStepFields( generator.getResultStepName() );
+    return PaneAggregator.forQuery( sql, outputFields, IDataServiceClientService.StreamingMode.ROW_BASED,
+      windowSize, windowEvery );
+  }
+
+  private void addRow( String region, Long amount, double price ) {
+    rows.add( new RowMetaAndData( rowMeta, region, amount, price ) );
+  }
+
+  private static Map<String, RowMetaAndData> byRegion( List<RowMetaAndData> result ) throws Exception {
+    Map<String, RowMetaAndData> groups = Maps.newHashMap();
+    for ( RowMetaAndData row : result ) {
+      groups.put( row.getString( "region", null ), row );
+    }
+    assertThat( groups.size(), is( result.size() ) );
+    return groups;
+  }
+
+  private static void assertGroup( RowMetaAndData row, long total, long count, long n, double lo, double hi,
+                                   double mean ) throws Exception {
+    assertThat( row.getInteger( "total", -1 ), is( total ) );
+    assertThat( row.getInteger( "cnt", -1 ), is( count ) );
+    assertThat( row.getInteger( "n", -1 ), is( n ) );
+    assertThat( row.getNumber( "lo", -1 ), is( lo ) );
+    assertThat( row.getNumber( "hi", -1 ), is( hi ) );
+    assertThat( row.getNumber( "mean", -1 ), is( mean ) );
+  }
+}
@@ -0,0 +1,199 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming.execution;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaPluginType;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.sql.SQL;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.SingleThreadedTransExecutor;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransListener;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.dataservice.SqlTransGenerator;
+import org.pentaho.di.trans.step.RowListener;
+import org.pentaho.di.trans.step.StepInterface;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith( MockitoJUnitRunner.StrictStubs.class )
+public class ResidentGenTransTest {
+  private static final String INJECTOR_STEP_NAME = "Injector";
+  private static final String RESULT_STEP_NAME = "Result";
+
+  @Mock Trans genTrans;
+  @Mock TransMeta transMeta;
+  @Mock RowProducer rowProducer;
+  @Mock StepInterface resultStep;
+  @Mock SingleThreadedTransExecutor executor;
+
+  private RowMetaInterface rowMeta;
+  private ResidentGenTrans residentGenTrans;
+  private final Object prepareLock = new Object();
+
+  @Before
+  public void setUp() throws Exception {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "name" ) );
+    rowMeta.addValueMeta( new ValueMetaInteger( "amount" ) );
+
+    residentGenTrans = spy( new ResidentGenTrans( genTrans, INJECTOR_STEP_NAME, RESULT_STEP_NAME ) );
+  }
+
+  @Test
+  public void testSupports() throws Exception {
+    PluginRegistry.addPluginType( ValueMetaPluginType.getInstance() );
+    PluginRegistry.init();
+
+    assertThat( ResidentGenTrans.supports( generate( "SELECT name, SUM(amount) AS total FROM service"
+      + " WHERE amount > 1 GROUP BY name ORDER BY name" ) ), is( true ) );
+    assertThat( ResidentGenTrans.supports( generate( "SELECT DISTINCT name FROM service" ) ), is( true ) );
+    assertThat( ResidentGenTrans.supports( generate( "SELECT name FROM service LIMIT 10" ) ), is( false ) );
+    assertThat( ResidentGenTrans.supports( null ), is( false ) );
+    assertThat( ResidentGenTrans.supports( new TransMeta() ), is( false ) );
+  }
+
+  @Test
+  public void testExecute() throws Exception {
+    List<RowListener> rowListeners = stubStart();
+    List<RowMetaAndData> firstWindow = Arrays.asList( row( "a", 1L ), row( "b", 2L ) );
+    when( executor.oneIteration() ).then( invocation -> {
+      rowListeners.get( 0 ).rowWrittenEvent( rowMeta, new Object[] { "a", 3L } );
+      return true;
+    } ).thenReturn( true );
+
+    List<RowMetaAndData> result = residentGenTrans.execute( firstWindow, prepareLock ).get();
+    assertThat( result.size(), is( 1 ) );
+    assertThat( result.get( 0 ).getData()[ 1 ], is( (Object) 3L ) );
+    verify( rowProducer ).putRow( rowMeta, firstWindow.get( 0 ).getData() );
+    verify( rowProducer ).putRow( rowMeta, firstWindow.get( 1 ).getData() );
+
+    // The second window does not prepare the transformation again, and starts with no result rows
+    assertThat( residentGenTrans.execute( Collections.singletonList( row( "c", 4L ) ), prepareLock ).get(),
+      is( empty() ) );
+    assertThat( rowListeners.size(), is( 1 ) );
+    verify( genTrans, times( 1 ) ).prepareExecution( null );
+    verify( executor, times( 1 ) ).init();
+    verify( executor, times( 2 ) ).oneIteration();
+    verify( transMeta ).setTransformationType( TransMeta.TransformationType.SingleThreaded );
+  }
+
+  @Test
+  public void testStopped() throws Exception {
+    stubStart();
+    when( executor.oneIteration() ).thenReturn( false );
+    assertThat( residentGenTrans.execute( Collections.singletonList( row( "a", 1L ) ), prepareLock ).isPresent(),
+      is( false ) );
+
+    when( genTrans.isStopped() ).thenReturn( true );
+    assertThat( residentGenTrans.execute( Collections.singletonList( row( "a", 1L ) ), prepareLock ).isPresent(),
+      is( false ) );
+    verify( executor, times( 1 ) ).oneIteration();
+  }
+
+  @Test
+  public void testDispose() throws Exception {
+    stubStart();
+    when( executor.oneIteration() ).thenReturn( true );
+    assertThat( residentGenTrans.execute( Collections.<RowMetaAndData>emptyList(), prepareLock ).isPresent(),
+      is( true ) );
+    assertThat( residentGenTrans.isStarted(), is( true ) );
+
+    residentGenTrans.dispose();
+    assertThat( residentGenTrans.isDisposed(), is( true ) );
+    assertThat( residentGenTrans.isStarted(), is( false ) );
+    verify( executor ).dispose();
+    verify( transMeta ).setTransformationType( TransMeta.TransformationType.Normal );
+    assertThat( residentGenTrans.execute( Collections.<RowMetaAndData>emptyList(), prepareLock ).isPresent(),
+      is( false ) );
+  }
+
+  @Test
+  public void testInitFailure() throws Exception {
+    stubStart();
+    when( executor.init() ).thenReturn( false );
+    try {
+      residentGenTrans.execute( Collections.<RowMetaAndData>emptyList(), prepareLock );
+      fail( "Steps failing to initialize should fail the window" );
+    } catch ( KettleException e ) {
+      assertThat( residentGenTrans.isStarted(), is( false ) );
+    }
+  }
+
+  @Test
+  public void testInterruptedBeforeStart() throws Exception {
+    when( genTrans.getTransMeta() ).thenReturn( transMeta );
+    when( genTrans.getTransListeners() ).thenReturn( new ArrayList<TransListener>() );
+
+    Thread.currentThread().interrupt();
+    try {
+      assertThat( residentGenTrans.execute( Collections.<RowMetaAndData>emptyList(), prepareLock ).isPresent(),
+        is( false ) );
+    } finally {
+      Thread.interrupted();
+    }
+    verify( genTrans, never() ).prepareExecution( null );
+    assertThat( residentGenTrans.isStarted(), is( false ) );
+  }
+
+  private List<RowListener> stubStart() throws Exception {
+    List<RowListener> rowListeners = new ArrayList<>();
+    when( genTrans.getTransMeta() ).thenReturn( transMeta );
+    when( genTrans.getTransListeners() ).thenReturn( new ArrayList<TransListener>() );
+    when( genTrans.addRowProducer( INJECTOR_STEP_NAME, 0 ) ).thenReturn( rowProducer );
+    when( genTrans.findRunThread( RESULT_STEP_NAME ) ).thenReturn( resultStep );
+    doAnswer( invocation -> rowListeners.add( invocation.getArgument( 0 ) ) ).when( resultStep )
+      .addRowListener( any( RowListener.class ) );
+    doReturn( executor ).when( residentGenTrans ).createExecutor();
+    when( executor.init() ).thenReturn( true );
+    return rowListeners;
+  }
+
+  private RowMetaAndData row( String name, long amount ) {
+    return new RowMetaAndData( rowMeta, name, amount );
+  }
+
+  private TransMeta generate( String query ) throws Exception {
+    SQL sql = new SQL( query );
+    sql.parse( rowMeta );
+    return new SqlTransGenerator( sql, 0 ).generateTransMeta();
+  }
+}
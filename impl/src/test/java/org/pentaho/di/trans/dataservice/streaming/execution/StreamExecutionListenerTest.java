@@ -13,6 +13,7 @@
 
 package org.pentaho.di.trans.dataservice.streaming.execution;
 
+import io.reactivex.schedulers.TestScheduler;
 import io.reactivex.subjects.PublishSubject;
 import org.junit.Before;
 import org.junit.Test;
@@ -20,7 +21,11 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
 import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
+import org.pentaho.di.trans.dataservice.streaming.EventTime;
+import org.pentaho.di.trans.dataservice.streaming.StreamBufferBudget;
 import org.pentaho.di.trans.dataservice.streaming.StreamList;
 
 import java.util.ArrayList;
@@ -30,6 +35,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
 
 /**
  * {@link StreamExecutionListener} test class
@@ -181,4 +188,96 @@ public class StreamExecutionListenerTest {
     assertEquals( 1, listConsumer.size() );
     assertSame( mockRowMetaAndData, listConsumer.get( 0 ) );
   }
+
+  @Test
+  public void testRowWindowRowCap() {
+    StreamBufferBudget budget = new StreamBufferBudget( 0 );
+    streamExecutionListener = new StreamExecutionListener( streamList.getStream(),
+      rowMetaAndDataList -> consumer.onNext( rowMetaAndDataList ),
+      IDataServiceClientService.StreamingMode.ROW_BASED, 3, 1, 2, 1000, budget );
+    // Row windows are never resized, the row cap covers the window
+    assertEquals( 3, streamExecutionListener.getRowCap() );
+    assertEquals( 3, budget.getReservedRows() );
+
+    streamExecutionListener.unSubscribe();
+    streamExecutionListener.unSubscribe();
+    assertEquals( 0, budget.getReservedRows() );
+  }
+
+  @Test
+  public void testRowWindowRejected() {
+    StreamBufferBudget budget = new StreamBufferBudget( 1500 );
+    budget.reserve( 1500 );
+    try {
+      new StreamExecutionListener( streamList, 16384, rowMetaAndDataList -> consumer.onNext( rowMetaAndDataList ),
+        IDataServiceClientService.StreamingMode.ROW_BASED, 5000, 0, 10, 1000, budget, null );
+      fail( "A window larger than the rows granted must be rejected" );
+    } catch ( IllegalStateException e ) {
+      assertEquals( 1500, budget.getReservedRows() );
+    }
+  }
+
+  @Test
+  public void testChannelReserved() {
+    StreamBufferBudget budget = new StreamBufferBudget( 1500 );
+    streamExecutionListener = new StreamExecutionListener( streamList, 16384,
+      rowMetaAndDataList -> consumer.onNext( rowMetaAndDataList ),
+      IDataServiceClientService.StreamingMode.ROW_BASED, 10, 0, 10, 1000, budget, null );
+    assertEquals( 10, streamExecutionListener.getRowCap() );
+    // The channel holds no more rows than the listener buffers
+    assertEquals( 20, budget.getReservedRows() );
+
+    streamExecutionListener.unSubscribe();
+    assertEquals( 0, budget.getReservedRows() );
+  }
+
+  @Test
+  public void testEventTime() {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaInteger( "ts" ) );
+    streamExecutionListener = new StreamExecutionListener( streamList.getStream(),
+      rowMetaAndDataList -> consumer.onNext( rowMetaAndDataList ),
+      IDataServiceClientService.StreamingMode.TIME_BASED, 10, 0, 100, 1000, new StreamBufferBudget( 0 ),
+      EventTime.of( "ts", 0 ) );
+
+    RowMetaAndData first = new RowMetaAndData( rowMeta, 1L );
+    RowMetaAndData second = new RowMetaAndData( rowMeta, 5L );
+    streamList.add( first );
+    streamList.add( second );
+    assertTrue( streamExecutionListener.getCachePreWindow().isEmpty() );
+    assertEquals( 0, listConsumer.size() );
+
+    streamList.add( new RowMetaAndData( rowMeta, 12L ) );
+    assertEquals( 2, listConsumer.size() );
+    assertSame( first, listConsumer.get( 0 ) );
+    assertSame( second, listConsumer.get( 1 ) );
+
+    streamList.add( new RowMetaAndData( rowMeta, 3L ) );
+    assertEquals( 1, streamExecutionListener.getLateRows() );
+    streamExecutionListener.unSubscribe();
+  }
+
+  @Test
+  public void testChannel() {
+    TestScheduler scheduler = new TestScheduler();
+    streamExecutionListener = new StreamExecutionListener( streamList.openChannel( 1, scheduler ),
+      rowMetaAndDataList -> consumer.onNext( rowMetaAndDataList ),
+      IDataServiceClientService.StreamingMode.ROW_BASED, 1, 0, 10000, 1000 );
+
+    streamList.add( mockRowMetaAndData );
+    streamList.add( mockRowMetaAndData2 );
+    assertEquals( 1, streamExecutionListener.getPendingRows() );
+    assertEquals( 1, streamExecutionListener.getDroppedRows() );
+    assertEquals( 0, listConsumer.size() );
+
+    scheduler.triggerActions();
+    assertEquals( 0, streamExecutionListener.getPendingRows() );
+    assertEquals( 1, listConsumer.size() );
+    assertSame( mockRowMetaAndData2, listConsumer.get( 0 ) );
+
+    streamExecutionListener.unSubscribe();
+    streamList.add( mockRowMetaAndData );
+    assertEquals( 0, streamExecutionListener.getPendingRows() );
+    assertEquals( 0, streamList.getDropped() );
+  }
 }
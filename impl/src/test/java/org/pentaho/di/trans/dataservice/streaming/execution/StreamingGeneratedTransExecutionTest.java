@@ -15,6 +15,7 @@ package org.pentaho.di.trans.dataservice.streaming.execution;
 
 import io.reactivex.Observer;
 import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.TestScheduler;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -29,6 +30,7 @@ import org.pentaho.di.trans.RowProducer;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.dataservice.DataServiceContext;
 import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
+import org.pentaho.di.trans.dataservice.streaming.BackpressurePolicy;
 import org.pentaho.di.trans.dataservice.streaming.StreamServiceKey;
 import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
 import org.pentaho.di.trans.step.BaseStep;
@@ -100,7 +102,7 @@ public class StreamingGeneratedTransExecutionTest {
     serviceExecutor = spy( new StreamingServiceTransExecutor( streamServiceKey, serviceTrans, MOCK_RESULT_STEP_NAME, 10000, 1000, context ) );
 
     lenient().doReturn( streamExecutionListener ).when( serviceExecutor ).getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_ROW_BASED, MOCK_WINDOW_SIZE,
-      MOCK_WINDOW_EVERY, MOCK_WINDOW_MAX_SIZE );
+      MOCK_WINDOW_EVERY, MOCK_WINDOW_MAX_SIZE, false );
 
     when( genTrans.getLogChannel() ).thenReturn( log );
     when( genTrans.findRunThread( MOCK_RESULT_STEP_NAME ) ).thenReturn( resultStep );
@@ -127,7 +129,7 @@ public class StreamingGeneratedTransExecutionTest {
   @Test( expected = RuntimeException.class )
   public void testThrowExceptionWhenRunningTransExecutor() throws Exception {
     doReturn( null ).when( serviceExecutor ).getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_ROW_BASED, MOCK_WINDOW_SIZE,
-      MOCK_WINDOW_EVERY, MOCK_WINDOW_MAX_SIZE );
+      MOCK_WINDOW_EVERY, MOCK_WINDOW_MAX_SIZE, false );
     doThrow( new KettleStepException( "This is expected" ) ).when( genTransExecutor ).runGenTrans( Collections.emptyList() );
 
     genTransExecutor.run();
@@ -136,7 +138,7 @@ public class StreamingGeneratedTransExecutionTest {
   @Test
   public void testRunEmptyStream() throws Exception {
     doReturn( null ).when( serviceExecutor ).getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_ROW_BASED, MOCK_WINDOW_SIZE,
-      MOCK_WINDOW_EVERY, MOCK_WINDOW_MAX_SIZE );
+      MOCK_WINDOW_EVERY, MOCK_WINDOW_MAX_SIZE, false );
 
     genTransExecutor.run();
 
@@ -251,6 +253,38 @@ public class StreamingGeneratedTransExecutionTest {
     verify( genTrans, times(1) ).startThreads( );
   }
 
+  @Test
+  public void testResidentNotSupported() throws Exception {
+    genTransExecutor.setResident( true );
+    assertEquals( false, genTransExecutor.isResident() );
+    when( rowProducer.putRowWait( any(), any(), anyLong(), any() ) ).thenReturn( true );
+
+    genTransExecutor.run();
+    genTransExecutor.getGeneratedDataObservable().onNext( rowIterator );
+    verify( genTrans, times( 1 ) ).startThreads( );
+  }
+
+  @Test
+  public void testBackpressure() throws Exception {
+    when( rowProducer.putRowWait( any(), any(), anyLong(), any() ) ).thenReturn( true );
+    TestScheduler scheduler = new TestScheduler();
+    genTransExecutor.setBackpressure( BackpressurePolicy.DROP_OLDEST, 4, scheduler );
+    assertEquals( BackpressurePolicy.DROP_OLDEST, genTransExecutor.getBackpressurePolicy() );
+
+    genTransExecutor.run();
+    genTransExecutor.getGeneratedDataObservable().onNext( rowIterator );
+    genTransExecutor.getGeneratedDataObservable().onNext( rowIterator );
+    genTransExecutor.getGeneratedDataObservable().onNext( rowIterator );
+    assertEquals( 1, genTransExecutor.getPendingWindows() );
+    assertEquals( 2, genTransExecutor.getDroppedWindows() );
+    assertEquals( 0, genTransExecutor.getCoalescedWindows() );
+    verify( genTrans, times( 0 ) ).startThreads( );
+
+    scheduler.triggerActions();
+    assertEquals( 0, genTransExecutor.getPendingWindows() );
+    verify( genTrans, times( 1 ) ).startThreads( );
+  }
+
   private void verifyExecution( int numExecs ) throws Exception {
     verify( genTrans, times( numExecs ) ).cleanup( );
     verify( genTrans, times( numExecs ) ).prepareExecution( null );
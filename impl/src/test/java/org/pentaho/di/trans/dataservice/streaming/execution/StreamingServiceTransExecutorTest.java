@@ -14,6 +14,7 @@
 package org.pentaho.di.trans.dataservice.streaming.execution;
 
 import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.TestScheduler;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -29,15 +30,20 @@ import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.dataservice.DataServiceContext;
 import org.pentaho.di.trans.dataservice.DataServiceExecutor;
 import org.pentaho.di.trans.dataservice.client.api.IDataServiceClientService;
+import org.pentaho.di.trans.dataservice.streaming.EventTime;
 import org.pentaho.di.trans.dataservice.streaming.StreamServiceKey;
 import org.pentaho.di.trans.dataservice.utils.DataServiceConstants;
 import org.pentaho.di.trans.step.RowAdapter;
 import org.pentaho.di.trans.step.RowListener;
 import org.pentaho.di.trans.step.StepInterface;
 
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
@@ -135,6 +141,7 @@ public class StreamingServiceTransExecutorTest {
   public void testIgnoredExceptionOnLog() throws Exception {
     Object[] data = new Object[] { 0 };
     doThrow( new KettleValueException() ).when( rowMetaInterface ).getString( data );
+    when( log.isRowLevel() ).thenReturn( true );
 
     serviceExecutor.getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_ROW_BASED, 1, 0, 10 );
 
@@ -229,6 +236,7 @@ public class StreamingServiceTransExecutorTest {
 
 
   private void testBufferAux() throws Exception {
+    when( log.isRowLevel() ).thenReturn( true );
     RowMetaInterface rowMeta = serviceTrans.getTransMeta().getStepFields( MOCK_SERVICE_STEP_NAME );
     Object[] data = new Object[] { 0 };
     testBufferAux( rowMeta, data, true );
@@ -258,6 +266,7 @@ public class StreamingServiceTransExecutorTest {
 
   @Test
   public void testGetBufferCleanup() throws Exception {
+    when( log.isRowLevel() ).thenReturn( true );
     serviceExecutor.getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_ROW_BASED, 1, 0, 0 );
 
     ArgumentCaptor<RowListener> listenerArgumentCaptor = ArgumentCaptor.forClass( RowListener.class );
@@ -282,6 +291,59 @@ public class StreamingServiceTransExecutorTest {
     verify( log ).logDetailed( DataServiceConstants.STREAMING_TRANSFORMATION_STOPPED );
   }
 
+  @Test
+  public void testRowLevelLogDisabled() throws Exception {
+    serviceExecutor.getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_ROW_BASED, 1, 0, 10 );
+
+    ArgumentCaptor<RowListener> listenerArgumentCaptor = ArgumentCaptor.forClass( RowListener.class );
+    verify( serviceStep ).addRowListener( listenerArgumentCaptor.capture() );
+
+    RowMetaInterface rowMeta = mock( RowMetaInterface.class );
+    listenerArgumentCaptor.getValue().rowWrittenEvent( rowMeta, new Object[] { 0 } );
+
+    verify( rowMeta, never() ).getString( any( Object[].class ) );
+    verify( log, never() ).logRowlevel( anyString() );
+    verify( serviceTrans, never() ).stopAll();
+  }
+
+  @Test
+  public void testMaintenance() {
+    TestScheduler scheduler = new TestScheduler();
+    serviceExecutor.setMaintenanceScheduler( scheduler );
+    serviceExecutor.getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_ROW_BASED, 1, 0, 0 );
+
+    scheduler.advanceTimeBy( DataServiceConstants.STREAMING_CACHE_CLEANUP_INTERVAL_SECONDS, TimeUnit.SECONDS );
+    verify( serviceTrans, never() ).stopAll();
+
+    // The service is stopped once its listeners are gone, even if it no longer produces rows
+    serviceExecutor.clearCache();
+    scheduler.advanceTimeBy( DataServiceConstants.STREAMING_CACHE_CLEANUP_INTERVAL_SECONDS, TimeUnit.SECONDS );
+    verify( serviceTrans ).stopAll();
+    verify( log ).logDetailed( DataServiceConstants.STREAMING_TRANSFORMATION_STOPPED );
+
+    scheduler.advanceTimeBy( DataServiceConstants.STREAMING_CACHE_CLEANUP_INTERVAL_SECONDS, TimeUnit.SECONDS );
+    verify( serviceTrans ).stopAll();
+  }
+
+  @Test
+  public void testEventTime() {
+    assertNull( serviceExecutor.getEventTime() );
+
+    EventTime eventTime = EventTime.of( "ts", 100 );
+    serviceExecutor.setEventTime( eventTime );
+    assertSame( eventTime, serviceExecutor.getEventTime() );
+
+    // Processing and event time windows of the same query do not share a listener
+    StreamExecutionListener processingTime =
+      serviceExecutor.getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_TIME_BASED, 100, 0, 0 );
+    StreamExecutionListener sameProcessingTime =
+      serviceExecutor.getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_TIME_BASED, 100, 0, 0, false );
+    StreamExecutionListener queryEventTime =
+      serviceExecutor.getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_TIME_BASED, 100, 0, 0, true );
+    assertSame( processingTime, sameProcessingTime );
+    assertNotSame( processingTime, queryEventTime );
+  }
+
   @Test
   public void testStopAll() {
     serviceExecutor.getBuffer( MOCK_QUERY, windowConsumer, MOCK_WINDOW_MODE_ROW_BASED, 1, 0, 0 );
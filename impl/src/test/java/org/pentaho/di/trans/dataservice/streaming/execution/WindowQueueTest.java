@@ -0,0 +1,164 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2024 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ * Change Date: 2029-07-20
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.dataservice.streaming.execution;
+
+import com.google.common.collect.ImmutableList;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.schedulers.TestScheduler;
+import org.junit.Test;
+import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.dataservice.streaming.BackpressurePolicy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WindowQueueTest {
+  private final RowMetaAndData a = row( "a" );
+  private final RowMetaAndData b = row( "b" );
+  private final RowMetaAndData c = row( "c" );
+  private final RowMetaAndData d = row( "d" );
+
+  private final TestScheduler scheduler = new TestScheduler();
+  private final List<List<RowMetaAndData>> consumed = new ArrayList<>();
+
+  @Test
+  public void testDropOldest() {
+    WindowQueue queue = new WindowQueue( BackpressurePolicy.DROP_OLDEST, 10, 0, scheduler, consumed::add );
+    assertThat( queue.getCapacity(), is( 1 ) );
+
+    queue.offer( ImmutableList.of( a ) );
+    queue.offer( ImmutableList.of( b ) );
+    queue.offer( ImmutableList.of( c ) );
+    assertThat( queue.getDepth(), is( 1 ) );
+    assertThat( queue.getDropped(), is( 2L ) );
+
+    scheduler.triggerActions();
+    assertThat( consumed, contains( (List<RowMetaAndData>) ImmutableList.of( c ) ) );
+    assertThat( queue.getDepth(), is( 0 ) );
+    assertThat( queue.getDelivered(), is( 1L ) );
+  }
+
+  @Test
+  public void testBuffer() {
+    WindowQueue queue = new WindowQueue( BackpressurePolicy.BUFFER, 2, 0, scheduler, consumed::add );
+
+    queue.offer( ImmutableList.of( a ) );
+    queue.offer( ImmutableList.of( b ) );
+    queue.offer( ImmutableList.of( c ) );
+    assertThat( queue.getDepth(), is( 2 ) );
+    assertThat( queue.getDropped(), is( 1L ) );
+
+    scheduler.triggerActions();
+    assertThat( consumed, equalTo( (List<List<RowMetaAndData>>) ImmutableList.<List<RowMetaAndData>>of(
+      ImmutableList.of( b ), ImmutableList.of( c ) ) ) );
+  }
+
+  @Test
+  public void testCoalesce() {
+    WindowQueue queue = new WindowQueue( BackpressurePolicy.COALESCE, 1, 0, scheduler, consumed::add );
+
+    // Overlapping windows share rows
+    queue.offer( ImmutableList.of( a, b ) );
+    queue.offer( ImmutableList.of( b, c ) );
+    queue.offer( ImmutableList.of( d ) );
+    assertThat( queue.getDepth(), is( 1 ) );
+    assertThat( queue.getCoalesced(), is( 2L ) );
+    assertThat( queue.getDropped(), is( 0L ) );
+
+    scheduler.triggerActions();
+    assertThat( consumed, contains( (List<RowMetaAndData>) ImmutableList.of( a, b, c, d ) ) );
+  }
+
+  @Test
+  public void testCoalesceRowLimit() {
+    WindowQueue queue = new WindowQueue( BackpressurePolicy.COALESCE, 1, 3, scheduler, consumed::add );
+
+    queue.offer( ImmutableList.of( a, b ) );
+    queue.offer( ImmutableList.of( c, d ) );
+
+    scheduler.triggerActions();
+    assertThat( consumed, contains( (List<RowMetaAndData>) ImmutableList.of( b, c, d ) ) );
+  }
+
+  @Test
+  public void testBlock() {
+    AtomicInteger paused = new AtomicInteger();
+    WindowQueue queue = new WindowQueue( BackpressurePolicy.BLOCK, 2, 0, scheduler, consumed::add );
+    queue.setFlowControl( paused::incrementAndGet, paused::decrementAndGet );
+
+    queue.offer( ImmutableList.of( a ) );
+    assertThat( paused.get(), is( 0 ) );
+    queue.offer( ImmutableList.of( b ) );
+    assertThat( paused.get(), is( 1 ) );
+
+    // Windows produced before the source is held back are queued unchanged, never merged or waited for
+    queue.offer( ImmutableList.of( c ) );
+    assertThat( paused.get(), is( 1 ) );
+    assertThat( queue.getDepth(), is( 3 ) );
+    assertThat( queue.getCoalesced(), is( 0L ) );
+
+    scheduler.triggerActions();
+    assertThat( paused.get(), is( 0 ) );
+    assertThat( consumed, equalTo( (List<List<RowMetaAndData>>) ImmutableList.<List<RowMetaAndData>>of(
+      ImmutableList.of( a ), ImmutableList.of( b ), ImmutableList.of( c ) ) ) );
+    assertThat( queue.getDropped(), is( 0L ) );
+  }
+
+  @Test
+  public void testClose() {
+    AtomicInteger paused = new AtomicInteger();
+    WindowQueue queue = new WindowQueue( BackpressurePolicy.BLOCK, 1, 0, scheduler, consumed::add );
+    queue.setFlowControl( paused::incrementAndGet, paused::decrementAndGet );
+    queue.offer( ImmutableList.of( a ) );
+    assertThat( paused.get(), is( 1 ) );
+
+    queue.close();
+    assertThat( paused.get(), is( 0 ) );
+
+    queue.offer( ImmutableList.of( c ) );
+    scheduler.triggerActions();
+    assertThat( consumed.isEmpty(), is( true ) );
+    assertThat( queue.getDepth(), is( 0 ) );
+    assertThat( paused.get(), is( 0 ) );
+  }
+
+  @Test
+  public void testConsumerError() {
+    WindowQueue queue = new WindowQueue( BackpressurePolicy.BUFFER, 2, 0, Schedulers.trampoline(), window -> {
+      if ( window.contains( a ) ) {
+        throw new IllegalStateException( "Expected" );
+      }
+      consumed.add( window );
+    } );
+
+    queue.offer( ImmutableList.of( a ) );
+    queue.offer( ImmutableList.of( b ) );
+    assertThat( consumed, contains( (List<RowMetaAndData>) ImmutableList.of( b ) ) );
+    assertThat( queue.getDelivered(), is( 2L ) );
+  }
+
+  private static RowMetaAndData row( String value ) {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMetaString( "value" ) );
+    return new RowMetaAndData( rowMeta, value );
+  }
+}